@@ -1,6 +1,7 @@
 package client;
 
 import common.MessageSocket;
+import common.Rendition;
 import common.messages.*;
 import merrimackutil.cli.LongOption;
 import merrimackutil.cli.OptionParser;
@@ -24,20 +25,29 @@ public class Client {
     private static int cseq = 1;
     private static int sessionID;
     private static boolean setupComplete = false;
+    private static boolean binaryPayload = false;
+    private static boolean checksums = false; // Whether DATA frames carry a CRC32C
+    private static String resumeToken; // The secret that lets this client resume the session's upload
     private static MessageSocket playbackSocket = null;
     private static PlaySong player = null;
     private static String playingFile = "";
+    private static MessageSocket control = null; // Control connection, replaced when redirected
+    private static boolean interleaved = false; // Carry media on the control connection
+    private static int nextChannel = 0; // The next pair of interleaved channels to ask for
+
+    private static final int MAX_REDIRECTS = 5;
 
     /**
      * Prints usage information for the client program and exits.
      */
     public static void usage() {
         System.out.println("Usage:");
-        System.out.println("  client --server <addr>[:port]");
+        System.out.println("  client --server <addr>[:port] [--interleaved]");
         System.out.println("  client --help");
         System.out.println("Options:");
-        System.out.println("  -s, --server   Server address and optional port");
-        System.out.println("  -h, --help     Display this help message");
+        System.out.println("  -s, --server       Server address and optional port");
+        System.out.println("  -i, --interleaved  Carry media on the RTSP connection instead of a media connection");
+        System.out.println("  -h, --help         Display this help message");
         System.exit(1);
     }
 
@@ -49,13 +59,14 @@ public class Client {
     public static void processArgs(String[] args) {
         OptionParser parser;
 
-        LongOption[] opts = new LongOption[2];
+        LongOption[] opts = new LongOption[3];
         opts[0] = new LongOption("server", true, 's');
-        opts[1] = new LongOption("help", false, 'h');
+        opts[1] = new LongOption("interleaved", false, 'i');
+        opts[2] = new LongOption("help", false, 'h');
 
         parser = new OptionParser(args);
         parser.setLongOpts(opts);
-        parser.setOptString("s:h");
+        parser.setOptString("s:ih");
 
         Tuple<Character, String> currOpt;
 
@@ -65,6 +76,9 @@ public class Client {
                 case 's':
                     parseServer(currOpt.getSecond());
                     break;
+                case 'i':
+                    interleaved = true;
+                    break;
                 case 'h':
                     doHelp = true;
                     break;
@@ -108,6 +122,7 @@ public class Client {
      */
     public static void doCLI(MessageSocket ms) throws IOException {
         Scanner scan = new Scanner(System.in);
+        control = ms;
         boolean done = false;
         boolean playStarted = false;   // track if PLAY has been issued
 
@@ -120,10 +135,10 @@ public class Client {
 
             switch (command) {
                 case "options":
-                    sendOptions(ms);
+                    sendOptions(control);
                     break;
                 case "setup":
-                    sendSetup(ms);
+                    sendSetup(control);
                     setupComplete = true;
                     playStarted = false; // reset when starting a new session
                     break;
@@ -135,15 +150,38 @@ public class Client {
                             System.out.print("Enter file to play: ");
                             playingFile = scan.nextLine().trim();
                         }
-                        sendPlay(ms, playingFile);
+                        sendPlay(control, playingFile);
+                        playStarted = true;
+                    }
+                    break;
+                case "live":
+                    if (!setupComplete) {
+                        System.out.println("You must SETUP before LIVE.");
+                    } else if (player != null) {
+                        System.out.println("Playback already started, TEARDOWN and SETUP again to join a live stream.");
+                    } else {
+                        System.out.print("Enter recording to join: ");
+                        playingFile = scan.nextLine().trim();
+                        System.out.print("Start at second (blank for live): ");
+                        String start = scan.nextLine().trim();
+                        sendPlay(control, playingFile, "npt=" + (start.isEmpty() ? "now" : start) + "-");
                         playStarted = true;
                     }
                     break;
+                case "queue":
+                    if (player == null) {
+                        System.out.println("You must PLAY before QUEUE.");
+                    } else {
+                        System.out.print("Enter file to queue: ");
+                        String file = scan.nextLine().trim();
+                        sendQueue(control, file);
+                    }
+                    break;
                 case "pause":
                     if (!setupComplete) {
                         System.out.println("You must SETUP before PAUSE.");
                     } else {
-                        sendPause(ms);
+                        sendPause(control);
                     }
                     break;
                 case "record":
@@ -156,11 +194,11 @@ public class Client {
                         String file = scan.nextLine().trim();
                         System.out.print("Enter file path to record: ");
                         String filePath = scan.nextLine().trim();
-                        sendRecord(ms, file, filePath);
+                        sendRecord(control, file, filePath);
                     }
                     break;
                 case "teardown":
-                    sendTeardown(ms);
+                    sendTeardown(control);
                     setupComplete = false;
                     playStarted = false;
                     done = true;
@@ -169,9 +207,11 @@ public class Client {
                     System.out.println("Commands:");
                     System.out.println("  options   - query server capabilities");
                     System.out.println("  setup     - reserve transport for session");
-                    System.out.println("  play      - play a file (requires setup)");
+                    System.out.println("  play      - play a file, or mix?a.wav=0.8&b.wav to mix files (requires setup)");
+                    System.out.println("  live      - join a file while it is recorded, at live or seconds in (requires setup)");
+                    System.out.println("  queue     - play a file after the current one (requires play)");
                     System.out.println("  pause     - pause playback (requires setup)");
-                    System.out.println("  record    - record audio (requires setup, only before play)");
+                    System.out.println("  record    - record audio, or relay it live under live/<name> (requires setup, only before play)");
                     System.out.println("  teardown  - end session and exit");
                     break;
                 default:
@@ -190,7 +230,7 @@ public class Client {
     private static void sendOptions(MessageSocket ms) throws IOException {
         Message options = new OptionsMessage("rtsp://" + address + ":" + serverPort, cseq++);
         ms.sendMessage(options);
-        Message resp = ms.getMessage();
+        Message resp = receive(ms);
         if (resp instanceof ServerResponse respServer) {
             System.out.println("Server Capabilities:\n" + respServer.getOptions());
         } else {
@@ -207,7 +247,7 @@ public class Client {
     private static void sendDescribe(MessageSocket ms) throws IOException {
         Message describe = new DescribeMessage("rtsp://" + address + ":" + serverPort, cseq++, "application/sdp");
         ms.sendMessage(describe);
-        Message resp = ms.getMessage();
+        Message resp = receive(ms);
         if (resp instanceof ServerResponse respServer) {
             if (respServer.getCode() != 200) {
                 System.out.println("Failed to get description. Server response:\n" + respServer.getMessage());
@@ -221,16 +261,36 @@ public class Client {
 
     /**
      * Sends a SETUP request to the server to establish a session.
-     * Captures the session ID and prepares a playback socket.
+     * Captures the session ID and prepares a playback socket. Redirects to
+     * another server of a cluster are followed.
      *
      * @param ms The MessageSocket connected to the server.
      * @throws IOException If an I/O error occurs.
      */
     private static void sendSetup(MessageSocket ms) throws IOException {
-        Message setup = new SetUpMessage("rtsp://" + address + ":" + serverPort, cseq++, "RTP/AVP;unicast;client_port=8000-8001");
-        ms.sendMessage(setup);
+        sendSetup(ms, null);
+    }
 
-        Message resp = ms.getMessage();
+    /**
+     * Sends a SETUP request for the file that will be played, so that a
+     * cluster does not move the session away from the servers holding it.
+     *
+     * @param ms   The MessageSocket connected to the server.
+     * @param file The name of the file to play, or null if not known yet.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static void sendSetup(MessageSocket ms, String file) throws IOException {
+        Message resp = null;
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+            String url = "rtsp://" + address + ":" + serverPort + (file == null ? "" : "/" + file);
+            Message setup = new SetUpMessage(url, cseq++, transport());
+            control.sendMessage(setup);
+
+            resp = receive(control);
+            if (!(resp instanceof ServerResponse serverResp) || !followRedirect(serverResp)) {
+                break;
+            }
+        }
 
         if (resp instanceof ServerResponse serverResp) {
             if (serverResp.getCode() != 200) {
@@ -238,8 +298,10 @@ public class Client {
                 return;
             }
             sessionID = serverResp.getSessionId();   // <-- capture session ID
-            String port = serverResp.getTransport().split("server_port=")[1];
-            playbackSocket = new MessageSocket(address, Integer.parseInt(port));
+            resumeToken = transportParameter(serverResp.getTransport(), "resume");
+            binaryPayload = serverResp.getTransport().contains("payload=binary");
+            checksums = serverResp.getTransport().contains("checksum=crc32c");
+            playbackSocket = openMedia(serverResp.getTransport());
             System.out.println("Setup was Successful");
         } else {
             System.out.println("Warning: SETUP response did not include a session ID.");
@@ -248,15 +310,47 @@ public class Client {
 
     /**
      * Sends a PLAY request to the server to start or resume playback of a file.
+     * If the server redirects a new stream to another server of a cluster, the
+     * session is torn down and set up again there before playing.
      *
      * @param ms   The MessageSocket connected to the server.
      * @param file The name of the file to play.
      * @throws IOException If an I/O error occurs.
      */
     private static void sendPlay(MessageSocket ms, String file) throws IOException {
-        Message play = new PlayPauseMessage("PLAY", "rtsp://" + address + ":" + serverPort + "/" + file, cseq++, sessionID);
-        ms.sendMessage(play);
-        Message resp = ms.getMessage();
+        sendPlay(ms, file, null);
+    }
+
+    /**
+     * Sends a PLAY request to the server that starts at a position of the
+     * stream. A recording in progress is joined at the live edge with
+     * "npt=now-", or seconds after its start with "npt=t-".
+     *
+     * @param ms    The MessageSocket connected to the server.
+     * @param file  The name of the file to play.
+     * @param range The Range to play, or null to play the whole file.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static void sendPlay(MessageSocket ms, String file, String range) throws IOException {
+        Message resp = null;
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+            Message play = range == null
+                    ? new PlayPauseMessage("PLAY", "rtsp://" + address + ":" + serverPort + "/" + file, cseq++, sessionID)
+                    : new PlayPauseMessage("rtsp://" + address + ":" + serverPort + "/" + file, cseq++, sessionID, range);
+            control.sendMessage(play);
+
+            resp = receive(control);
+            if (!(resp instanceof ServerResponse serverResp) || player != null || !isRedirect(serverResp)) {
+                break;
+            }
+
+            // The session lives on the old server, so end it there and set up again on the new one
+            control.sendMessage(new TeardownMessage("rtsp://" + address + ":" + serverPort, cseq++, sessionID));
+            receive(control);
+            playbackSocket.close();
+            followRedirect(serverResp);
+            sendSetup(control, file);
+        }
 
         if (resp instanceof ServerResponse serverResp) {
             if (serverResp.getCode() == 200) {
@@ -266,6 +360,7 @@ public class Client {
                 } else {
                     System.out.println("Playback started for file: " + file);
                     player = new PlaySong(playbackSocket, sessionID);
+                    player.setChecksums(checksums);
                     player.start();
                 }
             } else {
@@ -276,6 +371,30 @@ public class Client {
         }
     }
 
+    /**
+     * Sends a queued PLAY request to the server so that a file plays right
+     * after the current one on the same session, without a new SETUP.
+     *
+     * @param ms   The MessageSocket connected to the server.
+     * @param file The name of the file to queue.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static void sendQueue(MessageSocket ms, String file) throws IOException {
+        Message play = new PlayPauseMessage("rtsp://" + address + ":" + serverPort + "/" + file, cseq++, sessionID, true);
+        ms.sendMessage(play);
+        Message resp = receive(ms);
+
+        if (resp instanceof ServerResponse serverResp) {
+            if (serverResp.getCode() == 200) {
+                System.out.println("Queued file: " + file);
+            } else {
+                System.out.println("Failed to queue file. Server response:\n" + serverResp.getMessage());
+            }
+        } else {
+            System.out.println("Received Bad Message:\n" + resp);
+        }
+    }
+
     /**
      * Sends a PAUSE request to the server to pause playback.
      *
@@ -285,7 +404,7 @@ public class Client {
     private static void sendPause(MessageSocket ms) throws IOException {
         Message pause = new PlayPauseMessage("PAUSE", "rtsp://" + address + ":" + serverPort, cseq++, sessionID);
         ms.sendMessage(pause);
-        Message resp = ms.getMessage();
+        Message resp = receive(ms);
 
         if (resp instanceof ServerResponse serverResp) {
             if (serverResp.getCode() == 200) {
@@ -313,7 +432,7 @@ public class Client {
         Message teardown = new TeardownMessage("rtsp://" + address + ":" + serverPort, cseq++, sessionID);
         ms.sendMessage(teardown);
 
-        Message resp = ms.getMessage();
+        Message resp = receive(ms);
 
         if (resp instanceof ServerResponse serverResp) {
             if (serverResp.getCode() == 200) {
@@ -331,7 +450,9 @@ public class Client {
 
      /**
      * Sends a RECORD request to the server to upload audio data.
-     * Starts a SendSong thread to transmit the file.
+     * Starts a SendSong thread to transmit the file. If a sharded cluster
+     * redirects the upload to the node owning the file, the session is torn
+     * down and set up again there before recording.
      *
      * @param ms       The MessageSocket connected to the server.
      * @param file     The server-side file name to save to.
@@ -339,16 +460,33 @@ public class Client {
      * @throws IOException If an I/O error occurs.
      */
     private static void sendRecord(MessageSocket ms, String file, String filePath) throws IOException {
-        // Construct a RECORD message with the file path included in the header
-        Message record = new RecordMessage("rtsp://" + address + ":" + serverPort + "/" + file, cseq++, sessionID, "npt=0-30");
-        ms.sendMessage(record);
+        Message resp = null;
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+            // Construct a RECORD message with the file path included in the header
+            Message record = new RecordMessage("rtsp://" + address + ":" + serverPort + "/" + file, cseq++, sessionID, "npt=0-30");
+            control.sendMessage(record);
+
+            resp = receive(control);
+            if (!(resp instanceof ServerResponse serverResp) || !isRedirect(serverResp)) {
+                break;
+            }
 
-        Message resp = ms.getMessage();
+            control.sendMessage(new TeardownMessage("rtsp://" + address + ":" + serverPort, cseq++, sessionID));
+            receive(control);
+            playbackSocket.close();
+            followRedirect(serverResp);
+            sendSetup(control, file);
+        }
 
         if (resp instanceof ServerResponse serverResp) {
             if (serverResp.getCode() == 200) {
                 System.out.println("Recording started. Saving to file: " + file);
-                SendSong recorder = new SendSong(playbackSocket, new File(filePath), sessionID);
+                // A named live stream is not stored, so there is nothing to resume
+                boolean live = file.startsWith("live/");
+                SendSong recorder = new SendSong(playbackSocket, new File(filePath), sessionID, binaryPayload,
+                        live ? null : () -> resumeRecord(file));
+                recorder.setLive(live);
+                recorder.setChecksums(checksums);
                 recorder.start();
             } else {
                 System.out.println("Failed to start recording. Server response:\n" + serverResp.getMessage());
@@ -359,6 +497,149 @@ public class Client {
     }
 
 
+    /**
+     * Reconnects an interrupted upload: sets its session up again on a new
+     * control connection and sends RECORD, after which the server continues
+     * the upload from the last chunk it acknowledged.
+     *
+     * @param file The server-side file name being recorded.
+     * @return The new media connection.
+     * @throws IOException If the server cannot be reached or does not resume the upload.
+     */
+    private static MessageSocket resumeRecord(String file) throws IOException {
+        try {
+            control.close();
+        } catch (IOException ignored) {
+            // The old connection is already gone
+        }
+        control = new MessageSocket(address, serverPort);
+
+        String url = "rtsp://" + address + ":" + serverPort;
+        String transport = resumeToken == null ? transport() : transport() + ";resume=" + resumeToken;
+        control.sendMessage(new SetUpMessage(url, cseq++, transport, sessionID));
+        Message resp = receive(control);
+        if (!(resp instanceof ServerResponse setup) || setup.getCode() != 200) {
+            throw new IOException("Server did not resume session " + sessionID);
+        }
+        playbackSocket = openMedia(setup.getTransport());
+
+        control.sendMessage(new RecordMessage(url + "/" + file, cseq++, sessionID, "npt=0-30"));
+        resp = receive(control);
+        if (!(resp instanceof ServerResponse record) || record.getCode() != 200) {
+            throw new IOException("Server did not resume recording " + file);
+        }
+
+        System.out.println("Resumed recording of " + file);
+        return playbackSocket;
+    }
+
+    /**
+     * Builds the Transport header of a SETUP request. Interleaved sessions
+     * each ask for a channel pair of their own, as RTSP does for RTP and
+     * RTCP, though only the first channel carries media. Every session asks
+     * for CRC32C checksums on its DATA frames and lists the codecs the
+     * client decodes, so that the server can adapt the bitrate of playback.
+     * Interleaved channels ask for credit flow control, so that responses
+     * are not held up behind audio the client has not played yet.
+     *
+     * @return The transport the client asks for.
+     */
+    private static String transport() {
+        if (!interleaved) {
+            return "RTP/AVP;unicast;client_port=8000-8001;payload=binary;rate=" + PlaySong.SAMPLE_RATE
+                    + ";checksum=crc32c;codecs=" + Rendition.codecList();
+        }
+        int channel = nextChannel;
+        nextChannel = (nextChannel + 2) % 256;
+        return "RTP/AVP/TCP;unicast;interleaved=" + channel + "-" + (channel + 1) + ";flow=credit;payload=binary;rate="
+                + PlaySong.SAMPLE_RATE + ";checksum=crc32c;codecs=" + Rendition.codecList();
+    }
+
+    /**
+     * Finds a parameter of a Transport header.
+     *
+     * @param transport The Transport header.
+     * @param name      The name of the parameter.
+     * @return The value of the parameter, or null if it is not present.
+     */
+    private static String transportParameter(String transport, String name) {
+        for (String parameter : transport.split(";")) {
+            if (parameter.startsWith(name + "=")) {
+                return parameter.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens the media connection of a session that was set up: a channel of
+     * the control connection for interleaved media, otherwise a connection
+     * to the port the server bound for it.
+     *
+     * @param transport The Transport header of the SETUP response.
+     * @return The socket the session's DATA frames are carried on.
+     * @throws IOException If the media connection cannot be opened.
+     */
+    private static MessageSocket openMedia(String transport) throws IOException {
+        if (transport.contains("interleaved=")) {
+            int channel = Integer.parseInt(transport.split("interleaved=")[1].split("[-;]")[0].trim());
+            return control.openChannel(channel, "credit".equals(transportParameter(transport, "flow")));
+        }
+        String port = transport.split("server_port=")[1];
+        MessageSocket media = new MessageSocket(address, Integer.parseInt(port));
+        media.setTcpNoDelay(true); // Chunks are small and go out as they are ready
+        return media;
+    }
+
+    /**
+     * Receives the server's response to a request. If the server is
+     * overloaded and sheds the connection, the wait it asks for is printed
+     * and the client exits.
+     *
+     * @param ms The MessageSocket connected to the server.
+     * @return The response message.
+     */
+    private static Message receive(MessageSocket ms) {
+        Message resp = ms.getMessage();
+        if (resp instanceof ServerResponse serverResp && serverResp.getCode() == 503) {
+            System.out.println("Server is busy. Try again in " + serverResp.getRetryAfter() + " seconds.");
+            System.exit(1);
+        }
+        return resp;
+    }
+
+    /**
+     * Checks whether a response redirects the request to another server.
+     *
+     * @param resp The server's response.
+     * @return true if the response is a 301 or 302 redirect with a location.
+     */
+    private static boolean isRedirect(ServerResponse resp) {
+        return (resp.getCode() == 301 || resp.getCode() == 302) && resp.getLocation() != null;
+    }
+
+    /**
+     * Follows a redirect by connecting the control connection to the server
+     * named in its location.
+     *
+     * @param resp The server's response.
+     * @return true if the response was a redirect and the new server is connected.
+     * @throws IOException If the new server cannot be reached.
+     */
+    private static boolean followRedirect(ServerResponse resp) throws IOException {
+        if (!isRedirect(resp)) {
+            return false;
+        }
+
+        // rtsp://host:port[/file]
+        String hostPort = resp.getLocation().substring(7).split("/", 2)[0];
+        control.close();
+        parseServer(hostPort);
+        control = new MessageSocket(address, serverPort);
+        System.out.println("Redirected to " + address + ":" + serverPort);
+        return true;
+    }
+
      /**
      * Main entry point for the client program.
      * Parses arguments, connects to the server, and starts the CLI loop.
@@ -0,0 +1,170 @@
+package client;
+
+import common.MessageSocket;
+import common.messages.Message;
+import common.messages.OptionsMessage;
+import common.messages.ServerResponse;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The ConnectBench class is a load generator that measures how fast a
+ * running server accepts clients during a connect storm, as when thousands
+ * of clients reconnect at once after an outage.
+ *
+ * Every client thread connects, sends OPTIONS, waits for the response and
+ * disconnects, over and over, with no pause in between. The number of
+ * connections answered per second is reported, split into clients that
+ * were served and clients the server shed with 503, together with the
+ * percentiles of the time from connecting to the response. A connection
+ * the server's backlog had no room for waits for the kernel to retry it, so
+ * a backlog that is too short shows up as a long tail.
+ */
+public class ConnectBench {
+
+    private static final int WARMUP_SECONDS = 1;
+    private static final int MAX_SAMPLES = 1 << 14; // Latencies kept per client
+
+    /**
+     * Runs the load generator against a server.
+     *
+     * @param args The server as host:port, optionally the number of clients and the seconds to run.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: ");
+            System.out.println("  connectbench <host:port> [clients] [seconds]");
+            System.exit(1);
+        }
+
+        String[] server = args[0].split(":");
+        String host = server[0];
+        int port = server.length > 1 ? Integer.parseInt(server[1]) : 5000;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        System.out.println("Connecting " + clients + " clients for " + seconds + " seconds...");
+
+        AtomicBoolean measuring = new AtomicBoolean(false);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Client[] workers = new Client[clients];
+        for (int i = 0; i < clients; i++) {
+            workers[i] = new Client(host, port, measuring, running);
+            workers[i].start();
+        }
+
+        Thread.sleep(WARMUP_SECONDS * 1000L);
+        measuring.set(true);
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        measuring.set(false);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        running.set(false);
+        for (Client worker : workers) {
+            worker.join();
+        }
+
+        report(workers, elapsed);
+    }
+
+    /**
+     * Prints the rates and latency percentiles of all clients together.
+     */
+    private static void report(Client[] workers, double elapsed) {
+        long served = 0;
+        long shed = 0;
+        long failed = 0;
+        int samples = 0;
+        for (Client worker : workers) {
+            served += worker.served;
+            shed += worker.shed;
+            failed += worker.failed;
+            samples += worker.samples;
+        }
+
+        long[] latencies = new long[samples];
+        int pos = 0;
+        for (Client worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, pos, worker.samples);
+            pos += worker.samples;
+        }
+        Arrays.sort(latencies);
+
+        System.out.printf("Accepted %.0f connections/s: %.0f/s served, %.0f/s shed with 503, %d failed%n",
+                (served + shed) / elapsed, served / elapsed, shed / elapsed, failed);
+        if (latencies.length == 0) {
+            System.out.println("No connection was answered.");
+            return;
+        }
+        System.out.printf("Connect to response: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                millis(latencies, 0.50), millis(latencies, 0.90), millis(latencies, 0.99),
+                latencies[latencies.length - 1] / 1e6);
+    }
+
+    /**
+     * Gets a percentile of sorted latencies in milliseconds.
+     */
+    private static double millis(long[] sorted, double percentile) {
+        return sorted[(int) Math.min(sorted.length - 1, (long) (percentile * sorted.length))] / 1e6;
+    }
+
+    /**
+     * A Client connects to the server over and over until it is told to
+     * stop, counting the answers it gets while measuring.
+     */
+    private static class Client extends Thread {
+
+        private final String host;
+        private final int port;
+        private final AtomicBoolean measuring;
+        private final AtomicBoolean running;
+        private final long[] latencies = new long[MAX_SAMPLES];
+        private int samples = 0;
+        private long served = 0;
+        private long shed = 0;
+        private long failed = 0;
+
+        Client(String host, int port, AtomicBoolean measuring, AtomicBoolean running) {
+            this.host = host;
+            this.port = port;
+            this.measuring = measuring;
+            this.running = running;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            int cseq = 1;
+            while (running.get()) {
+                long start = System.nanoTime();
+                int code;
+                try (MessageSocket socket = new MessageSocket(host, port)) {
+                    socket.setTcpNoDelay(true);
+                    socket.sendMessage(new OptionsMessage("rtsp://" + host + ":" + port, cseq++));
+                    Message resp = socket.getMessage();
+                    code = resp instanceof ServerResponse serverResp ? serverResp.getCode() : 0;
+                } catch (IOException | RuntimeException e) {
+                    code = 0;
+                }
+                long latency = System.nanoTime() - start;
+
+                if (!measuring.get()) {
+                    continue;
+                }
+                if (code == 200) {
+                    served++;
+                } else if (code == 503) {
+                    shed++;
+                } else {
+                    failed++;
+                    continue;
+                }
+                if (samples < latencies.length) {
+                    latencies[samples++] = latency;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package client;
+
+import common.MessageSocket;
+import common.messages.Message;
+import common.messages.PlayPauseMessage;
+import common.messages.RecordMessage;
+import common.messages.ServerResponse;
+import common.messages.SetUpMessage;
+import common.messages.TeardownMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The LatencyBench class measures how long audio takes from a recording
+ * client to a listener through a named live stream of a running server.
+ *
+ * One session records a live stream with a {@link SendSong} paced like a
+ * live source, stamping each chunk with the time it is sent. A second
+ * session plays the stream from its first chunk into a headless
+ * {@link PlaySong}, which reads the stamps back as the chunks arrive. Both
+ * run in this process, so the stamps and the arrival times come from the
+ * same clock. The latency of every chunk after the first second is
+ * reported as percentiles.
+ *
+ * The listener asks for the recorded rate, so the server relays the chunks
+ * unchanged and the stamps arrive intact.
+ */
+public class LatencyBench {
+
+    private static final int CHUNK_SIZE = 1764; // 10ms of 44.1kHz stereo audio
+    private static final int CHUNKS_PER_SECOND = 100;
+    private static final int WARMUP_CHUNKS = CHUNKS_PER_SECOND; // The first second is left out
+    private static final long LISTENER_TIMEOUT = 10000; // Milliseconds to wait for the stream to end
+    private static final String TRANSPORT = "RTP/AVP;unicast;client_port=8000-8001;payload=binary;rate="
+            + PlaySong.SAMPLE_RATE;
+
+    private static int cseq = 1;
+
+    /**
+     * Runs the benchmark against a server.
+     *
+     * @param args The server as host:port, and optionally the seconds to stream.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: ");
+            System.out.println("  latencybench <host:port> [seconds]");
+            System.exit(1);
+        }
+
+        String[] server = args[0].split(":");
+        String host = server[0];
+        int port = server.length > 1 ? Integer.parseInt(server[1]) : 5000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        if (seconds < 2) {
+            System.out.println("Stream for at least two seconds, the first is warm-up.");
+            System.exit(1);
+        }
+
+        try {
+            run(host, port, seconds);
+        } catch (IOException e) {
+            System.out.println("Benchmark failed: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records a stamped live stream and listens to it, then prints the latencies.
+     */
+    private static void run(String host, int port, int seconds) throws IOException, InterruptedException {
+        String url = "rtsp://" + host + ":" + port;
+        String name = "live/latency-" + System.currentTimeMillis();
+        int chunks = seconds * CHUNKS_PER_SECOND;
+
+        // Silence to send, the stamps are all that is read back
+        File source = File.createTempFile("latency", ".pcm");
+        source.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+            raf.setLength((long) chunks * CHUNK_SIZE);
+        }
+
+        MessageSocket recordControl = new MessageSocket(host, port);
+        MessageSocket listenControl = new MessageSocket(host, port);
+        recordControl.setTcpNoDelay(true);
+        listenControl.setTcpNoDelay(true);
+
+        try {
+            ServerResponse recordSetup = expect(recordControl, new SetUpMessage(url, cseq++, TRANSPORT), "SETUP");
+            int recordSession = recordSetup.getSessionId();
+            MessageSocket recordMedia = openMedia(host, recordSetup);
+            expect(recordControl, new RecordMessage(url + "/" + name, cseq++, recordSession, "npt=0-"), "RECORD");
+
+            ServerResponse listenSetup = expect(listenControl, new SetUpMessage(url, cseq++, TRANSPORT), "SETUP");
+            int listenSession = listenSetup.getSessionId();
+            MessageSocket listenMedia = openMedia(host, listenSetup);
+            expect(listenControl, new PlayPauseMessage(url + "/" + name, cseq++, listenSession, "npt=0-"), "PLAY");
+
+            Stamps stamps = new Stamps(chunks);
+            PlaySong listener = new PlaySong(listenMedia, listenSession, stamps);
+            listener.start();
+
+            SendSong sender = new SendSong(recordMedia, source, recordSession,
+                    recordSetup.getTransport().contains("payload=binary"));
+            sender.setLive(true);
+            sender.setStamped(true);
+
+            System.out.println("Streaming " + seconds + " seconds through " + name + "...");
+            sender.start();
+            sender.join();
+            listener.join(LISTENER_TIMEOUT);
+
+            stamps.report(chunks);
+
+            recordControl.sendMessage(new TeardownMessage(url, cseq++, recordSession));
+            recordControl.getMessage();
+            listenControl.sendMessage(new TeardownMessage(url, cseq++, listenSession));
+            listenControl.getMessage();
+        } finally {
+            recordControl.close();
+            listenControl.close();
+        }
+    }
+
+    /**
+     * Sends a request and checks that the server accepted it.
+     *
+     * @return The server's response.
+     * @throws IOException if the server refused the request.
+     */
+    private static ServerResponse expect(MessageSocket control, Message request, String method) throws IOException {
+        control.sendMessage(request);
+        Message resp = control.getMessage();
+        if (!(resp instanceof ServerResponse serverResp) || serverResp.getCode() != 200) {
+            throw new IOException(method + " was refused: " + resp);
+        }
+        return serverResp;
+    }
+
+    /**
+     * Opens the media connection of a session that was set up.
+     *
+     * @return The media connection.
+     * @throws IOException if the connection cannot be opened.
+     */
+    private static MessageSocket openMedia(String host, ServerResponse setup) throws IOException {
+        String port = setup.getTransport().split("server_port=")[1];
+        MessageSocket media = new MessageSocket(host, Integer.parseInt(port));
+        media.setTcpNoDelay(true);
+        return media;
+    }
+
+    /**
+     * A Stamps sink reads the send time back out of each chunk it receives
+     * and keeps how long the chunk took.
+     */
+    private static class Stamps implements PlaySong.Sink {
+
+        private final long[] latencies;
+        private int received = 0;
+
+        Stamps(int chunks) {
+            this.latencies = new long[chunks];
+        }
+
+        @Override
+        public synchronized void write(byte[] audio, int length) {
+            long now = System.nanoTime();
+            if (length < Long.BYTES || received == latencies.length) {
+                return;
+            }
+            long sent = ByteBuffer.wrap(audio).order(ByteOrder.LITTLE_ENDIAN).getLong(0);
+            latencies[received++] = now - sent;
+        }
+
+        /**
+         * Prints the percentiles of the latencies measured after the warm-up.
+         *
+         * @param sent The number of chunks sent.
+         */
+        synchronized void report(int sent) {
+            System.out.println("Received " + received + " of " + sent + " chunks.");
+            if (received <= WARMUP_CHUNKS) {
+                System.out.println("Too few chunks to measure.");
+                return;
+            }
+
+            long[] measured = Arrays.copyOfRange(latencies, WARMUP_CHUNKS, received);
+            Arrays.sort(measured);
+            System.out.printf("Latency over %d chunks: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                    measured.length, millis(measured, 0.50), millis(measured, 0.90), millis(measured, 0.99),
+                    measured[measured.length - 1] / 1e6);
+        }
+
+        /**
+         * Gets a percentile of sorted latencies
+         *
+         * @return double latency in milliseconds
+         */
+        private static double millis(long[] sorted, double percentile) {
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
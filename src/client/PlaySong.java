@@ -1,26 +1,46 @@
 package client;
 
+import common.BufferPool;
 import common.MessageSocket;
-import common.messages.DataMessage;
-import common.messages.Message;
+import common.Rendition;
+import common.messages.DataFrame;
 
 import javax.sound.sampled.*;
-import java.util.Base64;
+import java.util.Arrays;
 
 /**
  * The PlaySong class is responsible for receiving audio data messages from the server
  * over a MessageSocket and playing them back using Java's audio system.
  * 
  * It runs in its own thread to continuously process incoming DATA messages,
- * decode their Base64 payloads into raw audio bytes, and stream them to a SourceDataLine.
+ * take their raw or Base64 decoded payloads as audio bytes, and stream them to a SourceDataLine.
  * 
  * Playback can be paused and resumed by toggling the pause state with {@link #pausePlayback()}.
+ *
+ * Given a {@link Sink}, the audio goes to the sink instead of a line, so the
+ * stream can be received without a sound device.
+ *
+ * When checksums were negotiated, a chunk that does not match its CRC32C,
+ * damaged on the way or on the server's disk, is played as silence rather
+ * than as noise, and the number of such chunks is reported at the end.
+ *
+ * A server with an adaptive bitrate may switch the stream to a lower
+ * bitrate rendition and back at any chunk. The first chunk after a switch
+ * names the new format, and a {@link RenditionDecoder} turns every chunk
+ * back into the 44.1 kHz stereo PCM the line plays, so the switch is not
+ * heard as a gap.
  */
 public class PlaySong extends Thread {
 
+    public static final int SAMPLE_RATE = 44100; // Asked for in SETUP, the server converts files to it
+
     private final MessageSocket socket;
     private final int sessionID;
+    private final Sink sink;
     private boolean isPaused = false;
+    private boolean checksums = false;
+    private int damaged = 0;
+    private final RenditionDecoder decoder = new RenditionDecoder();
 
     /**
      * Constructs a new PlaySong thread bound to a given session.
@@ -29,12 +49,53 @@ public class PlaySong extends Thread {
      * @param sessionID The RTSP session ID that identifies the playback session.
      */
     public PlaySong(MessageSocket socket, int sessionID) {
+        this(socket, sessionID, null);
+    }
+
+    /**
+     * Constructs a new headless PlaySong thread that hands the audio to a
+     * sink instead of playing it.
+     *
+     * @param socket    The MessageSocket used to receive DATA messages from the server.
+     * @param sessionID The RTSP session ID that identifies the playback session.
+     * @param sink      Receives the audio of each chunk, or null to play it on a line.
+     */
+    public PlaySong(MessageSocket socket, int sessionID, Sink sink) {
         this.socket = socket;
         this.sessionID = sessionID;
+        this.sink = sink;
+    }
+
+    /**
+     * Checks every chunk against the CRC32C it carries.
+     *
+     * @param checksums Whether the server accepted checksums in SETUP.
+     */
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * Get the number of chunks played as silence because they did not match
+     * their checksum
+     *
+     * @return int damaged chunks
+     */
+    public int getDamagedCount() {
+        return damaged;
+    }
+
+    /**
+     * Get the rendition the stream is playing in
+     *
+     * @return Rendition of the last chunk played
+     */
+    public Rendition getRendition() {
+        return decoder.getRendition();
     }
 
     /**
-     * Continuously receives DATA messages from the server, decodes their Base64 payloads,
+     * Continuously receives DATA messages from the server, takes their raw or Base64 decoded payloads,
      * and writes the audio data to a SourceDataLine for playback.
      * 
      * The method blocks while waiting for messages and terminates when an "End" header
@@ -44,7 +105,16 @@ public class PlaySong extends Thread {
     @Override
     public void run() {
 
-        AudioFormat audioFormat = new AudioFormat(44100, 16, 2, true, false);
+        if (sink != null) {
+            try {
+                receive(sink);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
+        AudioFormat audioFormat = new AudioFormat(SAMPLE_RATE, 16, 2, true, false);
 
         try {
             DataLine.Info info = new DataLine.Info(SourceDataLine.class, audioFormat);
@@ -62,43 +132,66 @@ public class PlaySong extends Thread {
 
             line.start();
 
-            Message msg = socket.getMessage();
+            receive((audio, length) -> line.write(audio, 0, length));
+
+            // Stop the line when the audio is finished
+            line.drain();
+            line.stop();
+            line.close();
+
+        } catch (LineUnavailableException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
 
-            while (msg.getType().equals("DATA") && !msg.getHeader().equals("End")) {
-                while (isPaused) {
-                    synchronized (this) {
-                        this.wait();
-                    }
+    }
 
-                }
+    /**
+     * Receives DATA messages of the session until the END message and hands
+     * each payload to a sink.
+     *
+     * @param out The sink the audio is written to.
+     * @throws InterruptedException if interrupted while paused.
+     */
+    private void receive(Sink out) throws InterruptedException {
 
-                if (!(((DataMessage) msg).getSessionID() == sessionID)) {
-                    // Get the next message from the socket
-                    msg = socket.getMessage(); // blocking call to receive the next message
-                    continue;
-                }
+        // The frame and the line buffer are reused for every chunk
+        DataFrame frame = new DataFrame(BufferPool.shared());
+        byte[] audioData = new byte[frame.getCapacity()];
 
-                String payload = ((DataMessage) msg).getPayload();
+        socket.readFrame(frame);
 
-                // Process the data message
-                byte[] audioData = Base64.getDecoder().decode(payload); // decode the payload from base 64 encoding
+        while (!frame.isEnd()) {
+            while (isPaused) {
+                synchronized (this) {
+                    this.wait();
+                }
 
-                // Write the audio data to the line
-                line.write(audioData, 0, audioData.length);
+            }
 
+            if (!(frame.getSessionID() == sessionID)) {
                 // Get the next message from the socket
-                msg = socket.getMessage(); // blocking call to receive the next message
+                socket.readFrame(frame); // blocking call to receive the next message
+                continue;
             }
 
-            // Stop the line when the audio is finished
-            line.drain();
-            line.stop();
-            line.close();
+            // Process the data message, raw bytes or decoded from base 64 for text frames, in its rendition
+            int length = decoder.decode(frame, audioData);
+            if (checksums && !frame.isIntact()) {
+                Arrays.fill(audioData, 0, length, (byte) 0); // Silence instead of noise
+                damaged++;
+            }
 
-        } catch (LineUnavailableException | InterruptedException e) {
-            throw new RuntimeException(e);
+            // Write the audio data to the sink
+            out.write(audioData, length);
+
+            // Get the next message from the socket
+            socket.readFrame(frame); // blocking call to receive the next message
         }
 
+        frame.release();
+        if (damaged > 0) {
+            System.out.println(damaged + " damaged chunks were played as silence.");
+        }
     }
 
     public synchronized void pausePlayback() {
@@ -107,4 +200,18 @@ public class PlaySong extends Thread {
             this.notify();
         }
     }
+
+    /**
+     * A Sink takes the audio of the chunks PlaySong receives.
+     */
+    public interface Sink {
+
+        /**
+         * Takes the audio of one chunk. The array is reused for the next chunk.
+         *
+         * @param audio  The PCM bytes of the chunk.
+         * @param length The number of bytes of the chunk.
+         */
+        void write(byte[] audio, int length);
+    }
 }
@@ -0,0 +1,100 @@
+package client;
+
+import common.Rendition;
+import common.messages.DataFrame;
+
+/**
+ * The RenditionDecoder class turns the chunks of a stream into 44.1 kHz
+ * stereo PCM, whatever {@link Rendition} the server sends them in. It
+ * follows the Format field of the frames: a frame that names a format
+ * switches the decoder to it, for that frame and the ones after it.
+ *
+ * Chunks of PCM pass through as they are. Other chunks are decoded, and
+ * chunks at a lower sample rate are brought back to 44.1 kHz by linear
+ * interpolation. Each chunk of 10ms is interpolated from the last sample of
+ * the chunk before, which the server leaves out of the chunk, so the
+ * samples join up across chunks and across a switch.
+ */
+public class RenditionDecoder {
+
+    private static final int OUTPUT_RATE = Rendition.PCM.getSampleRate();
+    private static final int OUTPUT_CHANNELS = 2;
+
+    private Rendition rendition = Rendition.PCM;
+    private short[] samples = new short[0];
+    private final short[] last = new short[OUTPUT_CHANNELS];
+
+    /**
+     * Decodes the payload of a frame.
+     *
+     * @param frame The received frame.
+     * @param out   The array the PCM is written to, room for 10ms of audio.
+     * @return The number of PCM bytes written.
+     * @throws IllegalArgumentException if the frame names a format that cannot be decoded.
+     */
+    public int decode(DataFrame frame, byte[] out) {
+        if (frame.getFormat() != null) {
+            rendition = Rendition.parse(frame.getFormat());
+        }
+
+        if (rendition == Rendition.PCM) {
+            int length = frame.copyPayload(out);
+            if (length >= 2 * OUTPUT_CHANNELS) {
+                last[0] = sample(out, length / 2 - 2);
+                last[1] = sample(out, length / 2 - 1);
+            }
+            return length;
+        }
+
+        int channels = rendition.getChannels();
+        int needed = 2 * frame.getLength() + 2; // No codec packs a sample into less than 4 bits
+        if (samples.length < needed) {
+            samples = new short[needed];
+        }
+        int frames = frame.getLength() == 0 ? 0
+                : rendition.getCodec().decode(frame.getPayload(), frame.getLength(), channels, samples);
+        if (frames <= 0) {
+            return 0;
+        }
+
+        int rate = rendition.getSampleRate();
+        int outFrames = (int) Math.min(out.length / (2 * OUTPUT_CHANNELS), (long) frames * OUTPUT_RATE / rate);
+        for (int f = 0; f < outFrames; f++) {
+            for (int c = 0; c < OUTPUT_CHANNELS; c++) {
+                int channel = Math.min(c, channels - 1);
+                int value;
+                if (rate == OUTPUT_RATE) {
+                    value = samples[f * channels + channel];
+                } else {
+                    // Position among the last sample of the previous chunk (0) and the samples of this one (1 on)
+                    long scaled = (long) f * rate;
+                    int at = (int) (scaled / OUTPUT_RATE);
+                    double fraction = (double) (scaled % OUTPUT_RATE) / OUTPUT_RATE;
+                    int before = at == 0 ? last[c] : samples[(at - 1) * channels + channel];
+                    int after = samples[at * channels + channel];
+                    value = (int) Math.round(before + (after - before) * fraction);
+                }
+                out[4 * f + 2 * c] = (byte) value;
+                out[4 * f + 2 * c + 1] = (byte) (value >> 8);
+            }
+        }
+
+        for (int c = 0; c < OUTPUT_CHANNELS; c++) {
+            last[c] = samples[(frames - 1) * channels + Math.min(c, channels - 1)];
+        }
+        return outFrames * 2 * OUTPUT_CHANNELS;
+    }
+
+    /**
+     * Get the rendition the stream is in
+     *
+     * @return Rendition of the last chunk decoded
+     */
+    public Rendition getRendition() {
+        return rendition;
+    }
+
+    private static short sample(byte[] pcm, int index) {
+        return (short) ((pcm[2 * index] & 0xFF) | pcm[2 * index + 1] << 8);
+    }
+}
@@ -1,26 +1,52 @@
 package client;
 
+import common.BufferPool;
 import common.MessageSocket;
-import common.messages.DataMessage;
+import common.messages.DataFrame;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The SendSong class is responsible for reading an audio file from disk,
- * splitting it into small chunks, encoding each chunk in Base64, and sending
- * the chunks to the server as RTSP DATA messages over a MessageSocket.
+ * splitting it into small chunks, encoding each chunk in Base64 (or keeping it
+ * as raw bytes for binary frames), and sending the chunks to the server as
+ * RTSP DATA messages over a MessageSocket.
  *
  * It runs in its own thread to continuously transmit audio data until the
  * entire file has been sent, after which it sends an END message to signal
- * completion and closes the socket.
+ * completion and closes the socket once the server has acknowledged every
+ * chunk. The server acknowledges periodically with the number of chunks it
+ * holds without a gap; if the connection is lost, the upload reconnects and
+ * continues from there instead of starting over.
+ *
+ * A live upload is paced to send each chunk when it would have been
+ * captured, as a live source would, instead of as fast as the file reads.
  */
 public class SendSong extends Thread {
 
+    private static final int CHUNK_SIZE = 1764; // 44100 Hz * 2 bytes/sample * 2 channels * 0.01 sec = 1764 bytes for 10ms of audio
+    private static final long ACK_TIMEOUT = 10000; // Milliseconds to wait for the server to acknowledge
+    private static final int MAX_RESUMES = 5;
+    private static final long RESUME_DELAY = 1000; // Milliseconds between reconnect attempts
+    private static final long CHUNK_NANOS = 10_000_000; // Each chunk holds 10ms of audio
+
     private final File file;
-    private final MessageSocket socket;
     private final int sessionID;
+    private final boolean binaryPayload;
+    private final Reconnect reconnect;
+    private MessageSocket socket;
+    private boolean live = false;
+    private boolean stamped = false;
+    private boolean checksums = false;
+
+    private final Object ackLock = new Object();
+    private MessageSocket ackSocket; // The connection the acknowledgements below came from
+    private int acknowledged = -1;
+    private boolean ackClosed = false;
 
      /**
      * Constructs a new SendSong thread bound to a given session.
@@ -28,50 +54,231 @@ public class SendSong extends Thread {
      * @param socket    The MessageSocket used to send DATA messages to the server.
      * @param file      The audio file to be read and transmitted.
      * @param sessionID The RTSP session ID that identifies the recording session.
+     * @param binaryPayload Whether the server accepted binary DATA frames.
+     */
+    public SendSong(MessageSocket socket, File file, int sessionID, boolean binaryPayload) {
+        this(socket, file, sessionID, binaryPayload, null);
+    }
+
+    /**
+     * Constructs a new SendSong thread that resumes the upload over a new
+     * connection if the current one is lost.
+     *
+     * @param socket        The MessageSocket used to send DATA messages to the server.
+     * @param file          The audio file to be read and transmitted.
+     * @param sessionID     The RTSP session ID that identifies the recording session.
+     * @param binaryPayload Whether the server accepted binary DATA frames.
+     * @param reconnect     Opens a new media connection for the session, or null to give up on a lost connection.
      */
-    public SendSong(MessageSocket socket, File file, int sessionID) {
+    public SendSong(MessageSocket socket, File file, int sessionID, boolean binaryPayload, Reconnect reconnect) {
         this.socket = socket;
         this.file = file;
         this.sessionID = sessionID;
+        this.binaryPayload = binaryPayload;
+        this.reconnect = reconnect;
     }
 
     /**
-     * Reads the audio file into memory, splits it into fixed-size chunks
-     * (1764 bytes per chunk, corresponding to 10ms of stereo audio at 44.1 kHz),
-     * encodes each chunk in Base64, and sends it to the server as a DataMessage.
+     * Sends each chunk at the time it plays, counted from the start of the
+     * upload, instead of as fast as the file reads.
      *
-     * After all chunks have been sent, an END message is transmitted to mark
-     * the end of the stream, and the socket is closed.
+     * @param live Whether the upload is paced like a live source.
+     */
+    public void setLive(boolean live) {
+        this.live = live;
+    }
+
+    /**
+     * Writes the {@link System#nanoTime()} a chunk is sent at over the first
+     * 8 bytes of its payload, little-endian, so a receiver in the same
+     * process can measure how long the chunk took to arrive. The stamps
+     * replace audio, so this is only for measuring.
+     *
+     * @param stamped Whether chunks carry their send time.
+     */
+    public void setStamped(boolean stamped) {
+        this.stamped = stamped;
+    }
+
+    /**
+     * Has every chunk carry the CRC32C of its payload, so the server drops a
+     * chunk damaged on the way instead of storing it.
+     *
+     * @param checksums Whether the server accepted checksums in SETUP.
+     */
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * Reads the audio file in fixed-size chunks (1764 bytes per chunk,
+     * corresponding to 10ms of stereo audio at 44.1 kHz) into a pooled frame
+     * and sends each chunk to the server, Base64 encoded unless binary frames
+     * were negotiated. The frame is reused for every chunk, so the loop does
+     * not allocate.
+     *
+     * Sending starts at the first chunk the server does not hold yet. After
+     * all chunks have been sent, an END message carrying the number of chunks
+     * is transmitted, and the socket is closed once the server acknowledges
+     * all of them. A lost connection is resumed up to {@value #MAX_RESUMES}
+     * times.
      *
      * @throws RuntimeException if an I/O error occurs while reading the file or sending messages.
      */
     @Override
     public void run() {
 
-        try {
-            byte[] bytes = Files.readAllBytes(file.toPath());
-            int chunkSize = 1764; // 44100 Hz * 2 bytes/sample * 2 channels * 0.01 sec = 1764 bytes for 10ms of audio
-            int totalChunks = (int) Math.ceil((double) bytes.length / chunkSize); // Calculate total number of chunks
-
-            // Send chunks
-            for (int i = 0; i < totalChunks; i++) {
-                int start = i * chunkSize;
-                int end = Math.min(start + chunkSize, bytes.length);
-                byte[] chunk = new byte[end - start];
-                System.arraycopy(bytes, start, chunk, 0, end - start);
+        DataFrame frame = new DataFrame(BufferPool.shared());
 
-                String payload = java.util.Base64.getEncoder().encodeToString(chunk); // Encode chunk to Base64
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int totalChunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE); // Calculate total number of chunks
 
-                // Here you would create and send your DataMessage using the socket
-                DataMessage dataMessage = new DataMessage("DATA", i, sessionID, payload);
-                socket.sendMessage(dataMessage);
+            for (int resumes = 0; ; resumes++) {
+                try {
+                    send(channel, frame, totalChunks);
+                    break;
+                } catch (IOException | RuntimeException e) {
+                    if (reconnect == null || resumes == MAX_RESUMES) {
+                        throw e;
+                    }
+                    System.out.println("Upload interrupted, resuming: " + e.getMessage());
+                    socket.close();
+                    Thread.sleep(RESUME_DELAY);
+                    try {
+                        socket = reconnect.reconnect();
+                    } catch (IOException reconnectFailed) {
+                        System.out.println("Unable to reconnect: " + reconnectFailed.getMessage());
+                    }
+                }
             }
 
-            socket.sendMessage(new DataMessage("END", 0, sessionID, ""));
             socket.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            frame.release();
         }
     }
 
+    /**
+     * Sends the chunks the server does not hold yet over the current
+     * connection, followed by END, and waits for the server to acknowledge.
+     *
+     * @param channel     The audio file.
+     * @param frame       The frame the chunks are sent in.
+     * @param totalChunks The number of chunks in the file.
+     * @throws IOException if the connection fails or the server does not acknowledge.
+     */
+    private void send(FileChannel channel, DataFrame frame, int totalChunks) throws IOException, InterruptedException {
+        startAckReader(socket);
+        int next = awaitAck(0); // The server acknowledges as soon as the connection attaches
+
+        // Send chunks
+        long start = System.nanoTime();
+        for (int i = next; i < totalChunks; i++) {
+            int length = frame.readPayload(channel, (long) i * CHUNK_SIZE, CHUNK_SIZE);
+
+            if (live) {
+                long delay = start + (i - next) * CHUNK_NANOS - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+            }
+            if (stamped && length >= Long.BYTES) {
+                frame.writablePayload().putLong(0, System.nanoTime());
+            }
+
+            frame.set("DATA", i, sessionID, length, binaryPayload);
+            if (checksums) {
+                frame.computeChecksum();
+            }
+            socket.sendFrame(frame);
+        }
+
+        frame.writablePayload();
+        frame.set("END", totalChunks, sessionID, 0, binaryPayload);
+        socket.sendFrame(frame);
+
+        awaitAck(totalChunks);
+    }
+
+    /**
+     * Starts reading the acknowledgements the server sends on a connection.
+     *
+     * @param from The media connection.
+     */
+    private void startAckReader(MessageSocket from) {
+        synchronized (ackLock) {
+            ackSocket = from;
+            acknowledged = -1;
+            ackClosed = false;
+        }
+
+        Thread reader = new Thread(() -> {
+            DataFrame ack = new DataFrame(BufferPool.shared());
+            try {
+                while (true) {
+                    from.readFrame(ack);
+                    if (ack.isAck()) {
+                        synchronized (ackLock) {
+                            if (ackSocket == from) {
+                                acknowledged = Math.max(acknowledged, ack.getCseq());
+                                ackLock.notifyAll();
+                            }
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                synchronized (ackLock) { // The connection is closed
+                    if (ackSocket == from) {
+                        ackClosed = true;
+                        ackLock.notifyAll();
+                    }
+                }
+            } finally {
+                ack.release();
+            }
+        }, "upload-acks");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Waits until the server acknowledges a number of chunks.
+     *
+     * @param chunks The number of chunks wanted.
+     * @return The number of chunks the server holds without a gap.
+     * @throws IOException if the connection closes or the server does not acknowledge in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private int awaitAck(int chunks) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + ACK_TIMEOUT;
+        synchronized (ackLock) {
+            while (acknowledged < chunks || acknowledged < 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (ackClosed || remaining <= 0) {
+                    throw new IOException("Server acknowledged " + Math.max(acknowledged, 0) + " of " + chunks + " chunks");
+                }
+                ackLock.wait(remaining);
+            }
+            return acknowledged;
+        }
+    }
+
+    /**
+     * A Reconnect opens a new media connection for an interrupted upload.
+     */
+    public interface Reconnect {
+
+        /**
+         * Sets the session up again on the server and starts recording.
+         *
+         * @return The new media connection.
+         * @throws IOException if the server cannot be reached or refuses.
+         */
+        MessageSocket reconnect() throws IOException;
+    }
 }
@@ -0,0 +1,246 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The AudioCodec enum lists the codecs a chunk of audio can be sent in, and
+ * encodes and decodes one chunk at a time from and to interleaved 16-bit
+ * samples.
+ *
+ * Every encoded chunk can be decoded on its own, so a stream can switch
+ * codecs on any chunk boundary:
+ * <ul>
+ *     <li>L16 is little-endian PCM, as WAV files hold it.</li>
+ *     <li>ADPCM is IMA ADPCM at 4 bits a sample. Each channel of a chunk
+ *     starts with a 4-byte header holding its first sample and the step
+ *     index, so the decoder needs nothing from the chunks before.</li>
+ *     <li>PCMU is G.711 mu-law at 8 bits a sample.</li>
+ * </ul>
+ */
+public enum AudioCodec {
+
+    L16,
+    ADPCM,
+    PCMU;
+
+    private static final int ADPCM_HEADER = 4; // First sample, step index and padding of a channel
+
+    private static final int[] STEP_SIZES = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230,
+            253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963,
+            1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327,
+            3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487,
+            12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+    private static final int[] INDEX_STEPS = {-1, -1, -1, -1, 2, 4, 6, 8};
+
+    private static final int ULAW_BIAS = 0x84;
+    private static final int ULAW_CLIP = 32635;
+
+    /**
+     * Gets the length of an encoded chunk.
+     *
+     * @param frames   The number of frames in the chunk.
+     * @param channels The number of channels.
+     * @return The length in bytes.
+     */
+    public int encodedLength(int frames, int channels) {
+        return switch (this) {
+            case L16 -> frames * channels * 2;
+            case ADPCM -> channels * (ADPCM_HEADER + frames / 2);
+            case PCMU -> frames * channels;
+        };
+    }
+
+    /**
+     * Encodes a chunk.
+     *
+     * @param samples  The interleaved samples.
+     * @param frames   The number of frames to encode, at least one.
+     * @param channels The number of channels.
+     * @param state    The ADPCM step index of each channel, carried from one
+     *                 chunk to the next; unused by the other codecs.
+     * @param out      The array the chunk is written to, at least {@link #encodedLength} long.
+     * @return The length of the encoded chunk in bytes.
+     */
+    public int encode(short[] samples, int frames, int channels, int[] state, byte[] out) {
+        switch (this) {
+            case L16 -> {
+                for (int i = 0; i < frames * channels; i++) {
+                    out[2 * i] = (byte) samples[i];
+                    out[2 * i + 1] = (byte) (samples[i] >> 8);
+                }
+            }
+            case ADPCM -> {
+                int codes = frames / 2; // Bytes of 4-bit codes per channel, the first sample is in the header
+                for (int c = 0; c < channels; c++) {
+                    encodeAdpcm(samples, frames, channels, c, state, out, channels * ADPCM_HEADER + c * codes);
+                }
+            }
+            case PCMU -> {
+                for (int i = 0; i < frames * channels; i++) {
+                    out[i] = ulaw(samples[i]);
+                }
+            }
+        }
+        return encodedLength(frames, channels);
+    }
+
+    /**
+     * Decodes a chunk.
+     *
+     * @param in       The encoded chunk, from position zero.
+     * @param length   The length of the encoded chunk in bytes.
+     * @param channels The number of channels.
+     * @param samples  The array the interleaved samples are written to.
+     * @return The number of frames decoded.
+     */
+    public int decode(ByteBuffer in, int length, int channels, short[] samples) {
+        switch (this) {
+            case L16 -> {
+                ByteBuffer le = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < length / 2; i++) {
+                    samples[i] = le.getShort(2 * i);
+                }
+                return length / (2 * channels);
+            }
+            case ADPCM -> {
+                int codes = length / channels - ADPCM_HEADER;
+                int frames = 1 + 2 * codes - (in.get(3) & 1); // The first channel's header says if the last code is padding
+                for (int c = 0; c < channels; c++) {
+                    decodeAdpcm(in, frames, channels, c, channels * ADPCM_HEADER + c * codes, samples);
+                }
+                return frames;
+            }
+            case PCMU -> {
+                for (int i = 0; i < length; i++) {
+                    samples[i] = linear(in.get(i));
+                }
+                return length / channels;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Encodes one channel of a chunk as IMA ADPCM.
+     *
+     * @param codesAt The offset of the channel's codes in the output.
+     */
+    private static void encodeAdpcm(short[] samples, int frames, int channels, int channel, int[] state,
+                                    byte[] out, int codesAt) {
+        int predictor = samples[channel];
+        int index = state[channel];
+        int header = channel * ADPCM_HEADER;
+        out[header] = (byte) predictor;
+        out[header + 1] = (byte) (predictor >> 8);
+        out[header + 2] = (byte) index;
+        out[header + 3] = (byte) (frames % 2 == 0 ? 1 : 0); // An even count leaves the last code as padding
+
+        for (int f = 1; f <= 2 * (frames / 2); f++) {
+            int code = 0;
+            if (f < frames) { // Past the last frame is the padding code
+                int step = STEP_SIZES[index];
+                int diff = samples[f * channels + channel] - predictor;
+                if (diff < 0) {
+                    code = 8;
+                    diff = -diff;
+                }
+                int delta = step >> 3;
+                if (diff >= step) {
+                    code |= 4;
+                    diff -= step;
+                    delta += step;
+                }
+                step >>= 1;
+                if (diff >= step) {
+                    code |= 2;
+                    diff -= step;
+                    delta += step;
+                }
+                step >>= 1;
+                if (diff >= step) {
+                    code |= 1;
+                    delta += step;
+                }
+                predictor = clamp((code & 8) != 0 ? predictor - delta : predictor + delta);
+                index = Math.max(0, Math.min(STEP_SIZES.length - 1, index + INDEX_STEPS[code & 7]));
+            }
+
+            int at = codesAt + (f - 1) / 2;
+            if ((f - 1) % 2 == 0) {
+                out[at] = (byte) code;
+            } else {
+                out[at] |= (byte) (code << 4);
+            }
+        }
+        state[channel] = index;
+    }
+
+    /**
+     * Decodes one channel of an IMA ADPCM chunk.
+     *
+     * @param codesAt The offset of the channel's codes in the input.
+     */
+    private static void decodeAdpcm(ByteBuffer in, int frames, int channels, int channel, int codesAt,
+                                    short[] samples) {
+        int header = channel * ADPCM_HEADER;
+        int predictor = (short) ((in.get(header) & 0xFF) | in.get(header + 1) << 8);
+        int index = Math.max(0, Math.min(STEP_SIZES.length - 1, in.get(header + 2) & 0xFF));
+        samples[channel] = (short) predictor;
+
+        for (int f = 1; f < frames; f++) {
+            int packed = in.get(codesAt + (f - 1) / 2);
+            int code = (f - 1) % 2 == 0 ? packed & 0xF : packed >> 4 & 0xF;
+            int step = STEP_SIZES[index];
+            int delta = step >> 3;
+            if ((code & 4) != 0) {
+                delta += step;
+            }
+            if ((code & 2) != 0) {
+                delta += step >> 1;
+            }
+            if ((code & 1) != 0) {
+                delta += step >> 2;
+            }
+            predictor = clamp((code & 8) != 0 ? predictor - delta : predictor + delta);
+            index = Math.max(0, Math.min(STEP_SIZES.length - 1, index + INDEX_STEPS[code & 7]));
+            samples[f * channels + channel] = (short) predictor;
+        }
+    }
+
+    /**
+     * Encodes a sample as G.711 mu-law.
+     */
+    private static byte ulaw(short sample) {
+        int value = sample;
+        int sign = value < 0 ? 0x80 : 0;
+        if (value < 0) {
+            value = -value;
+        }
+        value = Math.min(value, ULAW_CLIP) + ULAW_BIAS;
+
+        int exponent = 7;
+        for (int mask = 0x4000; (value & mask) == 0 && exponent > 0; mask >>= 1) {
+            exponent--;
+        }
+        int mantissa = value >> (exponent + 3) & 0x0F;
+        return (byte) ~(sign | exponent << 4 | mantissa);
+    }
+
+    /**
+     * Decodes a G.711 mu-law sample.
+     */
+    private static short linear(byte code) {
+        int value = ~code & 0xFF;
+        int exponent = value >> 4 & 0x07;
+        int magnitude = (((value & 0x0F) << 3) + ULAW_BIAS << exponent) - ULAW_BIAS;
+        return (short) ((value & 0x80) != 0 ? -magnitude : magnitude);
+    }
+
+    private static int clamp(int sample) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+    }
+}
@@ -0,0 +1,115 @@
+package common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The Base64Codec class encodes and decodes the Base64 payload of text DATA
+ * messages between byte arrays and buffers without allocating. It produces
+ * and accepts the same padded standard alphabet as {@link java.util.Base64}.
+ */
+public final class Base64Codec {
+
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+    private static final int[] VALUES = new int[256];
+
+    static {
+        java.util.Arrays.fill(VALUES, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64Codec() {
+    }
+
+    /**
+     * Gets the encoded length of a number of bytes.
+     *
+     * @param length The number of bytes to encode.
+     * @return The number of Base64 characters, including padding.
+     */
+    public static int encodedLength(int length) {
+        return 4 * ((length + 2) / 3);
+    }
+
+    /**
+     * Encodes the first bytes of a buffer into an array.
+     *
+     * @param src    The buffer to encode, read from index zero.
+     * @param length The number of bytes to encode.
+     * @param dst    The array to write the characters to.
+     * @param offset The offset in the array to start writing at.
+     * @return The offset after the last written character.
+     */
+    public static int encode(ByteBuffer src, int length, byte[] dst, int offset) {
+        int i = 0;
+        for (; i + 2 < length; i += 3) {
+            int bits = (src.get(i) & 0xff) << 16 | (src.get(i + 1) & 0xff) << 8 | (src.get(i + 2) & 0xff);
+            dst[offset++] = ALPHABET[bits >>> 18];
+            dst[offset++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[offset++] = ALPHABET[(bits >>> 6) & 0x3f];
+            dst[offset++] = ALPHABET[bits & 0x3f];
+        }
+
+        int remaining = length - i;
+        if (remaining > 0) {
+            int bits = (src.get(i) & 0xff) << 16;
+            if (remaining == 2) {
+                bits |= (src.get(i + 1) & 0xff) << 8;
+            }
+            dst[offset++] = ALPHABET[bits >>> 18];
+            dst[offset++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[offset++] = remaining == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : (byte) '=';
+            dst[offset++] = '=';
+        }
+
+        return offset;
+    }
+
+    /**
+     * Decodes Base64 characters from an array into the start of a buffer.
+     *
+     * @param src    The array holding the characters.
+     * @param offset The offset of the first character.
+     * @param length The number of characters, including padding.
+     * @param dst    The buffer to write to, starting at index zero.
+     * @return The number of decoded bytes.
+     * @throws IllegalArgumentException if the characters are not valid Base64.
+     */
+    public static int decode(byte[] src, int offset, int length, ByteBuffer dst) {
+        while (length > 0 && src[offset + length - 1] == '=') {
+            length--;
+        }
+
+        int out = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            int value = VALUES[src[offset + i] & 0xff];
+            if (value < 0) {
+                throw new IllegalArgumentException("Invalid Base64 character in payload");
+            }
+
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                dst.put(out++, (byte) (bits >>> 16));
+                dst.put(out++, (byte) (bits >>> 8));
+                dst.put(out++, (byte) bits);
+                bits = 0;
+                count = 0;
+            }
+        }
+
+        if (count == 3) {
+            dst.put(out++, (byte) (bits >>> 10));
+            dst.put(out++, (byte) (bits >>> 2));
+        } else if (count == 2) {
+            dst.put(out++, (byte) (bits >>> 4));
+        } else if (count == 1) {
+            throw new IllegalArgumentException("Truncated Base64 payload");
+        }
+
+        return out;
+    }
+}
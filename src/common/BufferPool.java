@@ -0,0 +1,129 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The BufferPool class hands out fixed-size off-heap buffers for audio chunks.
+ * Buffers are carved out of large direct slabs and go back to the pool when
+ * their owner releases them, so a streaming loop that keeps reusing its
+ * buffers does not allocate anything per chunk.
+ *
+ * The pool only grows: when it runs dry a new slab is allocated, and the
+ * buffers of that slab stay pooled for the lifetime of the process.
+ */
+public class BufferPool {
+
+    public static final int BUFFER_SIZE = 8192; // Room for a 10ms chunk after any chunk transform
+    private static final int BUFFERS_PER_SLAB = 64;
+
+    private static final BufferPool SHARED = new BufferPool(BUFFER_SIZE, BUFFERS_PER_SLAB);
+
+    private final int bufferSize;
+    private final int buffersPerSlab;
+    private PooledBuffer[] free;
+    private int freeCount;
+    private int slabCount;
+
+    /**
+     * Constructs a new empty BufferPool.
+     *
+     * @param bufferSize     The size of every buffer in bytes.
+     * @param buffersPerSlab The number of buffers carved from each slab.
+     */
+    public BufferPool(int bufferSize, int buffersPerSlab) {
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = buffersPerSlab;
+        this.free = new PooledBuffer[0];
+    }
+
+    /**
+     * Gets the pool shared by all streams of the process.
+     *
+     * @return The shared BufferPool.
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Takes a buffer from the pool. The buffer is cleared, and the caller
+     * owns it until it releases it.
+     *
+     * @return The acquired buffer.
+     */
+    public synchronized PooledBuffer acquire() {
+        if (freeCount == 0) {
+            allocateSlab();
+        }
+
+        PooledBuffer buffer = free[--freeCount];
+        free[freeCount] = null;
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Puts a released buffer back in the pool.
+     *
+     * @param buffer The buffer to recycle.
+     */
+    synchronized void recycle(PooledBuffer buffer) {
+        free[freeCount++] = buffer;
+    }
+
+    /**
+     * Get the size of every buffer
+     *
+     * @return int buffer size in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Get the number of slabs allocated so far
+     *
+     * @return int number of slabs
+     */
+    public synchronized int getSlabCount() {
+        return slabCount;
+    }
+
+    /**
+     * Get the number of buffers currently in the pool
+     *
+     * @return int number of free buffers
+     */
+    public synchronized int getFreeCount() {
+        return freeCount;
+    }
+
+    /**
+     * Get the number of bytes held by buffers that are handed out
+     *
+     * @return long bytes in use
+     */
+    public synchronized long getUsedBytes() {
+        return (long) (slabCount * buffersPerSlab - freeCount) * bufferSize;
+    }
+
+    /**
+     * Allocates a new direct slab and adds its buffers to the pool.
+     */
+    private void allocateSlab() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+
+        PooledBuffer[] bigger = new PooledBuffer[free.length + buffersPerSlab];
+        System.arraycopy(free, 0, bigger, 0, freeCount);
+        free = bigger;
+
+        for (int i = 0; i < buffersPerSlab; i++) {
+            slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+            ByteBuffer slice = slab.slice().order(ByteOrder.LITTLE_ENDIAN); // PCM samples are little-endian
+            free[freeCount++] = new PooledBuffer(slice, this);
+        }
+
+        slabCount++;
+    }
+}
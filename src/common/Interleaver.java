@@ -0,0 +1,657 @@
+package common;
+
+import common.messages.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * The Interleaver class carries the media of several sessions on the control
+ * connection, using the interleaved binary data of RFC 2326 section 10.12:
+ * a '$', a one byte channel ID and a two byte length, followed by that many
+ * bytes of the channel's stream. RTSP messages are sent between such frames.
+ *
+ * Each channel is handed out as a {@link Socket} whose streams carry the
+ * channel's bytes, so a {@link MessageSocket} built on it sends and receives
+ * DATA frames exactly as it would over a separate media connection.
+ *
+ * A reader thread demultiplexes the connection: frames go to the input of
+ * their channel and messages to a queue for {@link #takeMessage()}. A writer
+ * thread multiplexes it: messages are sent first, and the channels with
+ * queued frames take turns, one frame each, so that a fast stream cannot
+ * starve the others. Every channel queues a bounded number of frames, which
+ * holds back a sender that gets ahead of the connection.
+ *
+ * A channel buffers {@value #INPUT_BYTES} received bytes for its reader.
+ * When they are full, the reader thread waits for the channel's reader, and
+ * TCP holds back the peer, as the RFC's framing expects. A channel whose
+ * reader takes nothing for {@value #STALL_MILLIS} ms is ended and its
+ * frames are dropped, so a reader that went away without closing its
+ * channel does not hold up the connection for good.
+ *
+ * A channel opened with credit, which both ends agree on with
+ * {@code flow=credit} in the Transport of its SETUP, never makes the reader
+ * thread wait. Its sender only sends as many bytes as the receiver has room
+ * for, {@value #INPUT_BYTES} to begin with. As the channel's reader takes
+ * bytes, the receiver grants the room back with a frame header that has
+ * the top bit of its length set: it carries no payload, and the rest of the
+ * length is the number of bytes granted. Frames of such a channel are never
+ * that long. A sender that overruns its grant has its channel ended.
+ */
+public class Interleaver {
+
+    public static final int MAX_FRAME = 4096; // Largest payload of one interleaved frame, two DATA chunks
+
+    private static final int QUEUE_FRAMES = 16; // Frames each channel may queue for sending
+    private static final int INPUT_BYTES = 64 * 1024; // Received bytes each channel buffers for its reader
+    private static final int GRANT_BYTES = INPUT_BYTES / 4; // Bytes a reader takes before their room is granted back
+    private static final int WINDOW_UPDATE = 0x8000; // Length bit of a credit channel's frame that grants room
+    private static final int MAX_GRANT = WINDOW_UPDATE - 1;
+    private static final int MAX_LENGTH = 0xFFFF; // Longest frame a peer may send, the two byte length allows no more
+    private static final long STALL_MILLIS = 30_000; // How long a full channel may hold up the reader thread
+    private static final int CONTROL = -1; // The ID of the queue RTSP messages are sent from
+    private static final long DRAIN_MILLIS = 5000; // How long closing waits for queued frames to be sent
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final Supplier<Message> parser;
+
+    private final Channel control = new Channel(CONTROL);
+    private final List<Channel> channels = new ArrayList<>();
+    private final LinkedBlockingQueue<Object> messages = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private int turn = 0;
+    private boolean closed = false;
+    private boolean closing = false;
+
+    /**
+     * Constructs a new Interleaver over the streams of a connection and
+     * starts its reader and writer threads.
+     *
+     * @param in     The input of the connection, supporting mark and reset.
+     * @param out    The output of the connection.
+     * @param parser Parses one RTSP message from the input.
+     */
+    public Interleaver(InputStream in, OutputStream out, Supplier<Message> parser) {
+        this.in = in;
+        this.out = out;
+        this.parser = parser;
+
+        Thread reader = new Thread(this::demultiplex, "interleave-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        writer = new Thread(this::multiplex, "interleave-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Opens a channel of the connection.
+     *
+     * @param id     The channel ID, 0 to 255.
+     * @param credit Whether the peer agreed to flow control the channel with grants.
+     * @return A socket carrying the channel's stream.
+     * @throws IOException if the channel is already open or the connection is closed.
+     */
+    public synchronized Socket openChannel(int id, boolean credit) throws IOException {
+        if (id < 0 || id > 255) {
+            throw new IOException("Interleaved channel out of range: " + id);
+        }
+        if (closed || find(id) != null) {
+            throw new IOException("Interleaved channel " + id + " is not available");
+        }
+
+        Channel channel = new Channel(id, credit);
+        channels.add(channel);
+        return new ChannelSocket(channel);
+    }
+
+    /**
+     * Sends an RTSP message ahead of any queued media.
+     *
+     * @param message The serialized message.
+     */
+    public void sendMessage(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        sendMessage(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Sends an already serialized RTSP message ahead of any queued media.
+     *
+     * @param bytes  The buffer holding the message.
+     * @param offset The offset of the message in the buffer.
+     * @param length The length of the message in bytes.
+     */
+    public void sendMessage(byte[] bytes, int offset, int length) {
+        try {
+            for (int end = offset + length; offset < end; offset += MAX_FRAME) {
+                enqueue(control, bytes, offset, Math.min(MAX_FRAME, end - offset));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Waits for the next RTSP message received on the connection.
+     *
+     * @return The message.
+     * @throws RuntimeException if the connection is closed.
+     */
+    public Message takeMessage() throws RuntimeException {
+        try {
+            Object next = messages.take();
+            if (next instanceof RuntimeException e) {
+                messages.add(e); // Every later call fails the same way
+                throw e;
+            }
+            return (Message) next;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Checks whether an RTSP message has been received and not taken yet.
+     *
+     * @return true if a message is waiting.
+     */
+    public boolean hasMessage() {
+        return messages.peek() instanceof Message;
+    }
+
+    /**
+     * Stops accepting frames and waits a while for the queued ones to be
+     * sent, so that the last response is not lost when the connection is
+     * closed right after it.
+     */
+    public void drain() {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        try {
+            writer.join(DRAIN_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the connection until it closes, handing frames to their channel
+     * and messages to the message queue.
+     */
+    private void demultiplex() {
+        byte[] buffer = new byte[MAX_LENGTH];
+        try {
+            while (true) {
+                in.mark(1);
+                int first = in.read();
+                if (first == -1) {
+                    throw new RuntimeException("Connection closed");
+                }
+
+                if (first == '\r' || first == '\n') {
+                    continue; // Line end left over after the body of a message
+                }
+
+                if (first != '$') {
+                    in.reset();
+                    messages.add(parser.get());
+                    continue;
+                }
+
+                int id = readByte();
+                int length = readByte() << 8 | readByte();
+                Channel channel;
+                synchronized (this) {
+                    channel = find(id);
+                    if (channel != null && channel.credited && (length & WINDOW_UPDATE) != 0) {
+                        channel.credit += length & MAX_GRANT;
+                        notifyAll();
+                        continue;
+                    }
+                }
+                if (in.readNBytes(buffer, 0, length) != length) {
+                    throw new RuntimeException("Connection closed");
+                }
+
+                if (channel != null) { // Frames of unknown channels are dropped
+                    channel.deliver(buffer, length);
+                }
+            }
+        } catch (IOException e) {
+            close(new RuntimeException(e));
+        } catch (RuntimeException e) {
+            close(e);
+        }
+    }
+
+    /**
+     * Writes queued messages, grants and frames to the connection until it
+     * closes, flushing whenever nothing more is queued.
+     */
+    private void multiplex() {
+        byte[] update = new byte[4];
+        try {
+            while (true) {
+                Channel channel;
+                int granted = 0;
+                synchronized (this) {
+                    while ((channel = next()) == null) {
+                        if (closed || closing) {
+                            return; // Everything queued has been written and flushed
+                        }
+                        wait();
+                    }
+
+                    if (channel.grant > 0) {
+                        granted = Math.min(MAX_GRANT, channel.grant);
+                        channel.grant -= granted;
+                    } else if (channel.credited) {
+                        channel.credit -= channel.lengths[channel.head] - 4;
+                    }
+                }
+
+                if (granted > 0) {
+                    update[0] = '$';
+                    update[1] = (byte) channel.id;
+                    update[2] = (byte) ((WINDOW_UPDATE | granted) >> 8);
+                    update[3] = (byte) granted;
+                    out.write(update);
+
+                    boolean idle;
+                    synchronized (this) {
+                        idle = !pending();
+                    }
+                    if (idle) {
+                        out.flush();
+                    }
+                    continue;
+                }
+
+                int slot = channel.head; // Stays reserved until released below
+                out.write(channel.slots[slot], 0, channel.lengths[slot]);
+
+                boolean idle;
+                synchronized (this) {
+                    channel.head = (channel.head + 1) % QUEUE_FRAMES;
+                    channel.count--;
+                    notifyAll();
+                    idle = !pending();
+                }
+                if (idle) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            close(new RuntimeException(e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Picks the queue to send from next: messages first, then grants, then
+     * the channels in turn, those with credit only while the receiver has
+     * room for their next frame. Closed channels are dropped once their
+     * queue is empty.
+     *
+     * @return The queue, or null if nothing can be sent.
+     */
+    private Channel next() {
+        if (control.count > 0) {
+            return control;
+        }
+
+        channels.removeIf(c -> c.outputClosed && c.count == 0);
+        for (Channel channel : channels) {
+            if (channel.grant > 0 && !channel.outputClosed) {
+                return channel;
+            }
+        }
+        for (int i = 0; i < channels.size(); i++) {
+            Channel channel = channels.get((turn + i) % channels.size());
+            if (channel.count > 0 && (!channel.credited || channel.credit >= channel.lengths[channel.head] - 4)) {
+                turn = (turn + i + 1) % channels.size();
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether anything is queued for sending.
+     *
+     * @return true if a message or frame is queued.
+     */
+    private boolean pending() {
+        if (control.count > 0) {
+            return true;
+        }
+        for (Channel channel : channels) {
+            if (channel.count > 0 || channel.grant > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Grants the sender of a channel room for more bytes, once its reader
+     * has taken them.
+     *
+     * @param channel The channel.
+     * @param bytes   The number of bytes taken.
+     */
+    private synchronized void grant(Channel channel, int bytes) {
+        if (!closed && !channel.outputClosed) {
+            channel.grant += bytes;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Queues bytes for sending as one frame of a channel, waiting while the
+     * channel's queue is full.
+     *
+     * @throws IOException if the channel or the connection is closed.
+     */
+    private synchronized void enqueue(Channel channel, byte[] bytes, int offset, int length) throws IOException {
+        while (channel.count == QUEUE_FRAMES && !closed && !closing && !channel.outputClosed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending", e);
+            }
+        }
+        if (closed || closing || channel.outputClosed) {
+            throw new IOException("Interleaved channel closed");
+        }
+
+        int slot = (channel.head + channel.count) % QUEUE_FRAMES;
+        byte[] frame = channel.slots[slot];
+        int header = 0;
+        if (channel.id != CONTROL) {
+            frame[0] = '$';
+            frame[1] = (byte) channel.id;
+            frame[2] = (byte) (length >> 8);
+            frame[3] = (byte) length;
+            header = 4;
+        }
+        System.arraycopy(bytes, offset, frame, header, length);
+        channel.lengths[slot] = header + length;
+        channel.count++;
+        notifyAll();
+    }
+
+    /**
+     * Reads one byte of a frame header.
+     *
+     * @return The byte.
+     * @throws IOException if the connection closes.
+     */
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new IOException("Connection closed");
+        }
+        return b;
+    }
+
+    /**
+     * Finds an open channel.
+     *
+     * @param id The channel ID.
+     * @return The channel, or null if it is not open.
+     */
+    private Channel find(int id) {
+        for (Channel channel : channels) {
+            if (channel.id == id && !channel.outputClosed) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Shuts every channel down after the connection is lost.
+     *
+     * @param cause The error readers of messages and channels get.
+     */
+    private void close(RuntimeException cause) {
+        List<Channel> open;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            open = new ArrayList<>(channels);
+        }
+
+        messages.add(cause);
+        for (Channel channel : open) {
+            channel.endInput();
+        }
+    }
+
+    /**
+     * One channel: the frames queued for sending and the bytes received for
+     * its reader.
+     */
+    private class Channel {
+
+        private final int id;
+        private final byte[][] slots;
+        private final int[] lengths = new int[QUEUE_FRAMES];
+        private int head = 0;
+        private int count = 0;
+        private boolean outputClosed = false;
+        private final boolean credited; // Flow controlled with grants, as agreed with the peer
+        private int credit = INPUT_BYTES; // Bytes the receiver has room for
+        private int grant = 0; // Bytes taken by the reader and not granted back yet
+
+        private final byte[] input;
+        private int inputHead = 0;
+        private int inputCount = 0;
+        private int taken = 0; // Bytes taken by the reader since the last grant
+        private boolean inputEnded = false;
+        private String failure; // Why the input ended before the connection, null if it did not
+
+        Channel(int id, boolean credited) {
+            this.id = id;
+            this.credited = credited;
+            this.slots = new byte[QUEUE_FRAMES][MAX_FRAME + 4];
+            this.input = id == CONTROL ? new byte[0] : new byte[INPUT_BYTES];
+        }
+
+        Channel(int id) {
+            this(id, false);
+        }
+
+        /**
+         * Adds received bytes to the input. A channel with credit never
+         * waits: its sender only sends what the input has room for, so a
+         * frame that does not fit overran its grant and ends the channel.
+         * Otherwise this waits for the reader to make room, and ends the
+         * channel if the reader takes nothing for too long.
+         */
+        synchronized void deliver(byte[] bytes, int length) {
+            if (credited && !inputEnded && input.length - inputCount < length) {
+                fail("overran its window");
+                return;
+            }
+
+            int offset = 0;
+            long deadline = System.currentTimeMillis() + STALL_MILLIS;
+            while (offset < length && !inputEnded) {
+                if (inputCount == input.length) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        fail("stalled, its frames were dropped");
+                        return;
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        fail("was interrupted");
+                        return;
+                    }
+                    continue;
+                }
+
+                int tail = (inputHead + inputCount) % input.length;
+                int n = Math.min(length - offset, Math.min(input.length - inputCount, input.length - tail));
+                System.arraycopy(bytes, offset, input, tail, n);
+                inputCount += n;
+                offset += n;
+                deadline = System.currentTimeMillis() + STALL_MILLIS; // The reader made room
+                notifyAll();
+            }
+        }
+
+        /**
+         * Ends the input early. The reader gets the reason once it has
+         * taken the bytes received before.
+         *
+         * @param reason What went wrong with the channel.
+         */
+        private void fail(String reason) {
+            failure = reason;
+            endInput();
+        }
+
+        /**
+         * Reads received bytes, waiting until some arrive. The sender of a
+         * channel with credit is granted room for more once enough have been
+         * taken.
+         *
+         * @return The number of bytes read, or -1 once the input has ended.
+         * @throws IOException if interrupted, or if the channel was ended early.
+         */
+        int read(byte[] dst, int offset, int length) throws IOException {
+            int n;
+            int granted = 0;
+            synchronized (this) {
+                while (inputCount == 0 && !inputEnded) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while receiving", e);
+                    }
+                }
+                if (inputCount == 0) {
+                    if (failure != null) {
+                        throw new IOException("Interleaved channel " + id + " " + failure);
+                    }
+                    return -1;
+                }
+
+                n = Math.min(length, Math.min(inputCount, input.length - inputHead));
+                System.arraycopy(input, inputHead, dst, offset, n);
+                inputHead = (inputHead + n) % input.length;
+                inputCount -= n;
+                notifyAll(); // The reader thread may be waiting for room
+                if (credited) {
+                    taken += n;
+                    if (taken >= GRANT_BYTES) {
+                        granted = taken;
+                        taken = 0;
+                    }
+                }
+            }
+
+            if (granted > 0) {
+                grant(this, granted); // Outside the channel's lock, the writer never takes it
+            }
+            return n;
+        }
+
+        synchronized int available() {
+            return inputCount;
+        }
+
+        synchronized void endInput() {
+            inputEnded = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A socket carrying the stream of one channel.
+     */
+    private class ChannelSocket extends Socket {
+
+        private final Channel channel;
+        private final byte[] single = new byte[1];
+
+        private final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : channel.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return channel.available();
+            }
+        };
+
+        private final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                for (int end = off + len; off < end; off += MAX_FRAME) {
+                    enqueue(channel, b, off, Math.min(MAX_FRAME, end - off));
+                }
+            }
+        };
+
+        ChannelSocket(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return output;
+        }
+
+        /**
+         * Closes the channel. Frames already queued are still sent.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            synchronized (Interleaver.this) {
+                channel.outputClosed = true;
+                Interleaver.this.notifyAll();
+            }
+            channel.endInput();
+            super.close();
+        }
+    }
+}
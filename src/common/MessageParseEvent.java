@@ -0,0 +1,38 @@
+package common;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The MessageParseEvent is recorded by Java Flight Recorder for each
+ * message or DATA frame a {@link MessageSocket} parses. It starts once the
+ * first line has arrived, so the time spent waiting for the peer to send
+ * anything is not counted, only the time taken to read and parse the rest.
+ */
+@Name("streaming.MessageParse")
+@Label("Message Parse")
+@Category({"Streaming", "Protocol"})
+@Description("An RTSP message or DATA frame read and parsed from a connection")
+class MessageParseEvent extends jdk.jfr.Event {
+
+    @Label("Type")
+    @Description("The RTSP method, or the header of a DATA frame")
+    String type;
+
+    @Label("Session")
+    int session;
+
+    @Label("Sequence")
+    @Description("The CSeq of the message or frame")
+    int sequence;
+
+    @Label("Payload")
+    @DataAmount(DataAmount.BYTES)
+    int bytes;
+
+    @Label("Peer")
+    String peer;
+}
@@ -0,0 +1,38 @@
+package common;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The MessageSerializeEvent is recorded by Java Flight Recorder for each
+ * message, response or DATA frame a {@link MessageSocket} serializes and
+ * writes. Its duration includes the time the write blocked on a full socket
+ * buffer.
+ */
+@Name("streaming.MessageSerialize")
+@Label("Message Serialize")
+@Category({"Streaming", "Protocol"})
+@Description("An RTSP message, response or DATA frame serialized and written to a connection")
+class MessageSerializeEvent extends jdk.jfr.Event {
+
+    @Label("Type")
+    @Description("The RTSP method or status line, or the header of a DATA frame")
+    String type;
+
+    @Label("Session")
+    int session;
+
+    @Label("Sequence")
+    @Description("The CSeq of the message or frame")
+    int sequence;
+
+    @Label("Bytes Written")
+    @DataAmount(DataAmount.BYTES)
+    int bytes;
+
+    @Label("Peer")
+    String peer;
+}
@@ -2,19 +2,54 @@ package common;
 
 import common.messages.*;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.Scanner;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import jdk.jfr.EventType;
 
 /**
  * Wraps socket class for use to send and receive DHT Messages
+ *
+ * Every message and DATA frame parsed or serialized is timed as a
+ * {@link MessageParseEvent} or {@link MessageSerializeEvent} for Java Flight
+ * Recorder. While no recording enables them the events cost next to nothing,
+ * and their fields are only filled in for events that are recorded. The
+ * events of DATA frames and pre-framed messages are only created while they
+ * are enabled, since the JIT does not always remove them and the streaming
+ * loops must not allocate.
  */
 public class MessageSocket extends Socket {
 
     // ----- PRIVATE FIELDS ----- //
-    private Scanner recv;
+    private Socket socket; // The accepted socket this one wraps, null when connected directly
+    private FrameInputStream recv;
     private PrintWriter send;
+    private OutputStream out;
+    private SocketChannel socketChannel;
+    private WritableByteChannel outChannel;
+    private byte[] lineBuffer = new byte[256];
+    private Interleaver interleaver; // Set once media is interleaved on this connection
+    private boolean interleaved = false; // Set on the sockets of interleaved channels
+
+    // Reused by the media streaming loops so that no chunk allocates
+    private static final int FRAME_OVERHEAD = 192; // Longest header block, with a Checksum and a Format field
+    private static final String[] FRAME_HEADERS = {"DATA", "End", "END", "ACK"};
+    private byte[] frameBuffer;
+    private ByteBuffer wrapped;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private static final EventType SERIALIZE = EventType.getEventType(MessageSerializeEvent.class);
+    private static final EventType PARSE = EventType.getEventType(MessageParseEvent.class);
 
     /**
      * Creates Message Socket from a socket
@@ -25,10 +60,13 @@ public class MessageSocket extends Socket {
      */
     public MessageSocket(Socket socket) throws IOException {
         super(); // Call parent class (Socket)
+        this.socket = socket;
 
         try {
-            this.recv = new Scanner(socket.getInputStream());
-            this.send = new PrintWriter(socket.getOutputStream(), true);
+            this.recv = new FrameInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+            this.send = new PrintWriter(out, true);
+            this.socketChannel = socket.getChannel(); // Only set for sockets accepted from a channel
         } catch (IOException e) {
             System.err.println("Message socket could not get IO streams setup");
             throw e; // Rethrow for consumer to handle
@@ -44,147 +82,688 @@ public class MessageSocket extends Socket {
         super(addr, port); // Call parent class (Socket)
 
         try {
-            this.recv = new Scanner(this.getInputStream());
-            this.send = new PrintWriter(this.getOutputStream(), true);
+            this.recv = new FrameInputStream(this.getInputStream());
+            this.out = this.getOutputStream();
+            this.send = new PrintWriter(out, true);
         } catch (IOException e) {
             System.err.println("Message socket could not get IO streams setup");
             throw e; // Rethrow for consumer to handle
         }
     }
 
+    /**
+     * Closes the socket, including the accepted socket it wraps.
+     *
+     * @throws IOException if the socket cannot be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (interleaver != null) {
+            interleaver.drain();
+        }
+        if (socket != null) {
+            socket.close();
+        }
+        super.close();
+    }
+
+    /**
+     * Gets the address of the peer, including for a socket that wraps an
+     * accepted one.
+     *
+     * @return The remote address, or null if the socket is not connected.
+     */
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return socket != null ? socket.getRemoteSocketAddress() : super.getRemoteSocketAddress();
+    }
+
+    /**
+     * Opens an interleaved channel on this connection, so that a session's
+     * media is carried on it instead of on a connection of its own. The first
+     * channel switches the connection to interleaved mode, after which
+     * messages and channel frames are read and written by the connection's
+     * {@link Interleaver}.
+     *
+     * @param id     The channel ID, 0 to 255.
+     * @param credit Whether the peer agreed to flow control the channel with grants.
+     * @return A MessageSocket carrying the channel's DATA frames.
+     * @throws IOException if the channel cannot be opened.
+     */
+    public synchronized MessageSocket openChannel(int id, boolean credit) throws IOException {
+        if (interleaver == null) {
+            send.flush();
+            interleaver = new Interleaver(recv, out, this::parseMessage);
+        }
+        MessageSocket channel = new MessageSocket(interleaver.openChannel(id, credit));
+        channel.interleaved = true;
+        return channel;
+    }
+
+    /**
+     * Checks whether this socket carries an interleaved channel of a control
+     * connection rather than a connection of its own.
+     *
+     * @return true for an interleaved channel.
+     */
+    public boolean isInterleaved() {
+        return interleaved;
+    }
+
     /**
      * This sends a message to the connected socket
      */
     public void sendMessage(Message msg) {
-        send.println(msg);
+        if (interleaver != null) {
+            interleaver.sendMessage(msg + System.lineSeparator()); // As println would write it
+            return;
+        }
+
+        MessageSerializeEvent event = new MessageSerializeEvent();
+        event.begin();
+
+        if (msg instanceof DataMessage dataMsg && dataMsg.isBinary()) {
+            try {
+                send.print(dataMsg); // Header block, the payload follows as raw bytes
+                send.flush();
+                out.write(dataMsg.getData());
+                out.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            send.println(msg);
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.type = msg.getType();
+            event.sequence = msg.getCseq();
+            event.session = msg instanceof DataMessage dataMsg ? dataMsg.getSessionID() : 0;
+            event.peer = String.valueOf(getRemoteSocketAddress());
+            event.commit();
+        }
     }
 
     /**
-     * Receives a message from the connected socket.
+     * This sends an already serialized message to the connected socket, such
+     * as a pre-framed DATA message
      *
-     * @return The received {@link Message} object.
-     * @throws RuntimeException if the message type is unknown.
+     * @param bytes  The buffer holding the serialized message
+     * @param offset The offset of the message in the buffer
+     * @param length The length of the message in bytes
+     * @throws IOException Throws if the bytes cannot be written
      */
-    public Message getMessage() throws RuntimeException {
+    public void sendBytes(byte[] bytes, int offset, int length) throws IOException {
+        if (interleaver != null) {
+            interleaver.sendMessage(bytes, offset, length);
+            return;
+        }
 
-        while (!recv.hasNextLine()) {
+        MessageSerializeEvent event = SERIALIZE.isEnabled() ? new MessageSerializeEvent() : null; // Pre-framed chunks
+        if (event != null) {
+            event.begin();
+        }
 
+        send.flush(); // Keep ordering with messages sent through the writer
+        writeFully(bytes, offset, length);
+
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.type = firstLine(bytes, offset, length);
+                event.bytes = length;
+                event.peer = String.valueOf(getRemoteSocketAddress());
+                event.commit();
+            }
         }
+    }
 
-        String temp;
+    /**
+     * This sends a DATA frame to the connected socket without allocating. The
+     * frame is serialized into a reusable buffer, either as a binary DATA
+     * message or with its payload Base64 encoded.
+     *
+     * @param frame The frame to send
+     * @return The number of bytes written
+     * @throws IOException Throws if the frame cannot be written
+     */
+    public int sendFrame(DataFrame frame) throws IOException {
+        MessageSerializeEvent event = SERIALIZE.isEnabled() ? new MessageSerializeEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        int written = writeFrame(frame);
+
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.type = frame.getHeader();
+                event.session = frame.getSessionID();
+                event.sequence = frame.getCseq();
+                event.bytes = written;
+                event.peer = String.valueOf(getRemoteSocketAddress());
+                event.commit();
+            }
+        }
+        return written;
+    }
 
-        String stringMsg =
-                recv.nextLine() + "\r\n" + // Header line
-                recv.nextLine() + "\r\n"; // CSeq line
+    /**
+     * Serializes a DATA frame into the reusable buffer and writes it.
+     *
+     * @return The number of bytes written
+     */
+    private int writeFrame(DataFrame frame) throws IOException {
+        send.flush(); // Keep ordering with messages sent through the writer
 
-        Message msg = new Message(stringMsg);
+        int needed = FRAME_OVERHEAD + Base64Codec.encodedLength(frame.getCapacity());
+        if (frameBuffer == null || frameBuffer.length < needed) {
+            frameBuffer = new byte[needed];
+        }
 
-        switch (msg.getType()) {
-            case "OPTIONS": // Note: OPTIONS in spec is plural
+        ByteBuffer payload = frame.getPayload();
 
-                recv.nextLine(); // Read the empty line
+        if (frame.isBinary()) {
+            int headerLength = DataMessage.writeBinaryHeader(frameBuffer, frame.getHeader(),
+                    frame.getCseq(), frame.getSessionID(), frame.getLength(), frame.getChecksum(), frame.getFormat());
 
-                return new OptionsMessage(stringMsg);
-            case "DESCRIBE":
+            if (socketChannel != null) { // Gather the header and the off-heap payload into one write
+                gather[0] = wrap(frameBuffer, 0, headerLength);
+                gather[1] = payload;
+                while (gather[0].hasRemaining() || payload.hasRemaining()) { // The payload of an ACK is empty
+                    socketChannel.write(gather);
+                }
+            } else {
+                payload.get(0, frameBuffer, headerLength, frame.getLength());
+                writeFully(frameBuffer, 0, headerLength + frame.getLength());
+            }
+            return headerLength + frame.getLength();
+        } else {
+            int pos = DataMessage.writeTextHeader(frameBuffer, frame.getHeader(), frame.getCseq(), frame.getSessionID(),
+                    frame.getChecksum(), frame.getFormat());
+            pos = Base64Codec.encode(payload, frame.getLength(), frameBuffer, pos);
+            pos = DataMessage.writeTextTrailer(frameBuffer, pos);
+            writeFully(frameBuffer, 0, pos);
+            return pos;
+        }
+    }
 
-                stringMsg += recv.nextLine() + "\r\n"; // Read the Accept line
+    /**
+     * Receives a DATA message from the connected socket into a reusable frame
+     * without allocating. A binary payload is read straight into the frame's
+     * off-heap buffer and a text payload is Base64 decoded into it.
+     *
+     * @param frame The frame to overwrite with the received message
+     * @return The frame that was passed in
+     * @throws RuntimeException if the message is not a DATA message or the connection is closed.
+     */
+    public DataFrame readFrame(DataFrame frame) throws RuntimeException {
+        int length = readLineBytes(); // Header line
+        while (length == 0) { // Line ends left over after a previous message
+            length = readLineBytes();
+        }
 
-                recv.nextLine(); // Read the empty line
+        MessageParseEvent event = PARSE.isEnabled() ? new MessageParseEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
 
-                return new DescribeMessage(stringMsg);
-            case "SETUP":
+        if (!startsWith(length, "DATA ")) {
+            throw new RuntimeException("Unknown message type: " + new String(lineBuffer, 0, length, StandardCharsets.UTF_8));
+        }
+        String header = frameHeader(length);
+
+        ByteBuffer payload = frame.writablePayload();
+        int cseq = 0;
+        int sessionID = 0;
+        int payloadLength = -1;
+        boolean binary = false;
+        long checksum = -1;
+        String format = null;
+
+        // Header fields may come in any order, unknown ones are skipped
+        while ((length = readLineBytes()) != 0) {
+            int value;
+            if ((value = fieldValue(length, "CSeq")) >= 0) {
+                cseq = parseInt(value, length);
+            } else if ((value = fieldValue(length, "Session")) >= 0) {
+                sessionID = parseInt(value, length);
+            } else if ((value = fieldValue(length, "Content-Length")) >= 0) { // Binary payload follows the empty line
+                payloadLength = parseInt(value, length);
+                binary = true;
+            } else if ((value = fieldValue(length, "Payload")) >= 0) { // Decoded before the next line overwrites it
+                payloadLength = Base64Codec.decode(lineBuffer, value, length - value, payload);
+            } else if ((value = fieldValue(length, "Checksum")) >= 0) {
+                checksum = parseHex(value, length);
+            } else if ((value = fieldValue(length, "Format")) >= 0) { // Only sent when the stream switches format
+                format = new String(lineBuffer, value, length - value, StandardCharsets.US_ASCII).trim();
+            }
+        }
 
-                stringMsg += recv.nextLine() + "\r\n"; // Read the Transport line
+        if (payloadLength < 0) {
+            throw new RuntimeException("Payload is required in DATA message");
+        }
+        if (binary) {
+            readPayload(payload, payloadLength);
+        }
+        frame.set(header, cseq, sessionID, payloadLength, binary);
+        frame.setChecksum(checksum);
+        frame.setFormat(format);
+
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.type = header;
+                event.session = sessionID;
+                event.sequence = cseq;
+                event.bytes = payloadLength;
+                event.peer = String.valueOf(getRemoteSocketAddress());
+                event.commit();
+            }
+        }
+        return frame;
+    }
 
-                recv.nextLine(); // Read the empty line
+    /**
+     * This sends a frame made of a header followed by a region of a file. The
+     * header is written from the given buffer and the file region is handed
+     * to {@link FileChannel#transferTo} so that, on a socket accepted from a
+     * channel, the payload goes from the page cache to the socket without
+     * being copied through the Java heap.
+     *
+     * @param header   The buffer holding the frame header, between position and limit
+     * @param file     The file channel the payload is taken from
+     * @param position The position of the payload in the file
+     * @param count    The length of the payload in bytes
+     * @throws IOException Throws if the frame cannot be written
+     */
+    public void sendFileRegion(ByteBuffer header, FileChannel file, long position, long count) throws IOException {
+        MessageSerializeEvent event = SERIALIZE.isEnabled() ? new MessageSerializeEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        int bytes = (int) (header.remaining() + count);
 
-                return new SetUpMessage(stringMsg);
-            case "PLAY":
-            case "PAUSE":
+        send.flush(); // Keep ordering with messages sent through the writer
 
-                stringMsg += recv.nextLine() + "\r\n"; // Read the Session line
+        WritableByteChannel channel = socketChannel;
+        if (channel == null) {
+            if (outChannel == null) {
+                outChannel = Channels.newChannel(out); // Plain socket, the transfer is copied
+            }
+            channel = outChannel;
+        }
 
-                recv.nextLine(); // Read the empty line
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
 
-                return new PlayPauseMessage(stringMsg);
-            case "RECORD":
+        while (count > 0) {
+            long sent = file.transferTo(position, count, channel);
+            if (sent <= 0 && position >= file.size()) {
+                throw new IOException("File ended before the frame payload was sent");
+            }
+            position += sent;
+            count -= sent;
+        }
 
-                stringMsg += recv.nextLine() + "\r\n"; // Read the Session line
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.type = "DATA";
+                event.bytes = bytes;
+                event.peer = String.valueOf(getRemoteSocketAddress());
+                event.commit();
+            }
+        }
+    }
 
-                stringMsg += recv.nextLine() + "\r\n"; // Read the Range line
+    /**
+     * Receives a message from the connected socket.
+     *
+     * @return The received {@link Message} object.
+     * @throws RuntimeException if the message type is unknown.
+     */
+    public Message getMessage() throws RuntimeException {
+        if (interleaver != null) {
+            return interleaver.takeMessage();
+        }
+        return parseMessage();
+    }
 
-                recv.nextLine();
+    /**
+     * Parses one message from the connected socket. The start line is
+     * followed by header lines in any order up to an empty line, and then by
+     * exactly Content-Length bytes of body. Line ends left over after the
+     * body of the previous message are skipped.
+     *
+     * @return The received {@link Message} object.
+     * @throws RuntimeException if the message type is unknown or the message is malformed.
+     */
+    private Message parseMessage() throws RuntimeException {
 
-                return new RecordMessage(stringMsg);
-            case "TEARDOWN":
-                stringMsg += recv.nextLine() + "\r\n"; // Read the Session line
+        String startLine = readLine();
+        while (startLine.isEmpty()) {
+            startLine = readLine();
+        }
 
-                recv.nextLine(); // Read the empty line
+        MessageParseEvent event = new MessageParseEvent();
+        event.begin();
 
-                return new TeardownMessage(stringMsg);
-            case "DATA":
-                stringMsg += recv.nextLine() + "\r\n"; // Read the Sequence Number line
+        Map<String, String> headers = MessageCodec.newHeaders();
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+            MessageCodec.addHeader(headers, line);
+        }
 
-                stringMsg += recv.nextLine() + "\r\n"; // Read the Data line
+        int contentLength = MessageCodec.contentLength(headers);
+        byte[] body = contentLength > 0 ? readBytes(contentLength) : null;
+        Message msg = MessageCodec.decode(startLine, headers, body);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.type = msg.getType();
+            event.sequence = msg.getCseq();
+            event.bytes = Math.max(0, contentLength);
+            event.peer = String.valueOf(getRemoteSocketAddress());
+            event.commit();
+        }
+        return msg;
+    }
 
-                recv.nextLine(); // Read the empty line
+    /**
+     * Check if there is a message available to read
+     *
+     * @return true if a message is available, false otherwise
+     */
+    public boolean hasMessage() {
+        if (interleaver != null) {
+            return interleaver.hasMessage();
+        }
 
-                return new DataMessage(stringMsg);
-            case "RTSP/1.0":
+        try {
+            return recv.available() > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
-                temp = recv.nextLine();
+    /**
+     * Reads one line from the connected socket. A line ends with a line feed,
+     * a carriage return, or a carriage return followed by a line feed.
+     *
+     * @return The line without its terminator.
+     * @throws RuntimeException if the connection is closed or cannot be read.
+     */
+    private String readLine() throws RuntimeException {
+        int length = readLineBytes();
+        return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+    }
 
-                if (temp.startsWith("Session:")) { // Check for Session line
-                    stringMsg += temp + "\r\n"; // Session line
+    /**
+     * Reads one line from the connected socket into the line buffer.
+     *
+     * @return The length of the line without its terminator.
+     * @throws RuntimeException if the connection is closed or cannot be read.
+     */
+    private int readLineBytes() throws RuntimeException {
+        try {
+            int length = 0;
+            int b = recv.read();
+
+            if (b == -1) {
+                throw new RuntimeException("Connection closed");
+            }
+
+            while (b != -1 && b != '\n' && b != '\r') {
+                if (length == lineBuffer.length) {
+                    byte[] bigger = new byte[lineBuffer.length * 2];
+                    System.arraycopy(lineBuffer, 0, bigger, 0, length);
+                    lineBuffer = bigger;
+                }
+                lineBuffer[length++] = (byte) b;
+                b = recv.read();
+            }
+
+            if (b == '\r') { // Swallow the line feed of a CRLF pair
+                recv.mark(1);
+                if (recv.read() != '\n') {
+                    recv.reset();
+                }
+            }
 
-                    if (recv.hasNextLine()) { // Check for Transport line
-                        temp = recv.nextLine();
-                        if (temp.startsWith("Transport:")) {
-                            stringMsg += temp + "\r\n"; // Transport line
+            return length;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-                            recv.nextLine(); // Read the empty line
-                        }
-                    }
+    /**
+     * Reads an exact number of bytes from the connected socket.
+     *
+     * @param length The number of bytes to read.
+     * @return The bytes read.
+     * @throws RuntimeException if the connection is closed or cannot be read.
+     */
+    private byte[] readBytes(int length) throws RuntimeException {
+        try {
+            byte[] data = recv.readNBytes(length);
+            if (data.length != length) {
+                throw new RuntimeException("Connection closed");
+            }
+            return data;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-                } else if (temp.startsWith("Public:")) { // Check for Public line
-                    stringMsg += temp + "\r\n"; // Public line
-                    recv.nextLine(); // Read the empty line
-
-                } else if (temp.startsWith("Content-Type:")) { // Check for Content-Type line
-                    stringMsg += temp + "\r\n"; // Content-Type line
-                    int contentLength = Integer.parseInt(recv.nextLine().substring(16));
-                    stringMsg += "Content-Length: " + contentLength + "\r\n";
-                    stringMsg += "\r\n"; // Blank line
-                    // Read content based on Content-Length
-                    StringBuilder body = new StringBuilder();
-                    while (recv.hasNextLine()) {
-                        String line = recv.nextLine();
-                        body.append(line).append("\n");
-                        if (body.length() >= contentLength) {
-                            break;
-                        }
+    /**
+     * Reads an exact number of bytes from the connected socket into the start
+     * of a buffer. Bytes already buffered are copied first; on a socket
+     * accepted from a channel the rest is read from the channel directly.
+     *
+     * @param dst    The buffer to read into.
+     * @param length The number of bytes to read.
+     * @throws RuntimeException if the bytes do not fit or the connection is closed.
+     */
+    private void readPayload(ByteBuffer dst, int length) throws RuntimeException {
+        if (length > dst.capacity()) {
+            throw new RuntimeException("DATA payload of " + length + " bytes does not fit a pooled buffer");
+        }
+
+        dst.clear().limit(length);
+        recv.drainTo(dst);
+
+        try {
+            while (dst.hasRemaining()) {
+                int read;
+                if (socketChannel != null) {
+                    read = socketChannel.read(dst);
+                } else {
+                    read = recv.read(lineBuffer, 0, Math.min(lineBuffer.length, dst.remaining()));
+                    if (read > 0) {
+                        dst.put(lineBuffer, 0, read);
                     }
-                    stringMsg += body + "\r\n";
+                }
 
-                    System.out.println("Complete ServerResponse message:\n" + stringMsg);
+                if (read < 0) {
+                    throw new RuntimeException("Connection closed");
                 }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-                return new ServerResponse(stringMsg);
-            default:
-                throw new RuntimeException("Unknown message type: " + msg.getType());
+    /**
+     * Writes bytes to the connected socket, through the socket's channel when
+     * it has one.
+     *
+     * @throws IOException if the bytes cannot be written.
+     */
+    private void writeFully(byte[] bytes, int offset, int length) throws IOException {
+        if (socketChannel == null) {
+            out.write(bytes, offset, length);
+            out.flush();
+            return;
         }
 
+        ByteBuffer buffer = wrap(bytes, offset, length);
+        while (buffer.hasRemaining()) {
+            socketChannel.write(buffer);
+        }
     }
 
     /**
-     * Check if there is a message available to read
+     * Gets the first line of an already serialized message, as the type of
+     * its serialize event.
      *
-     * @return true if a message is available, false otherwise
+     * @return The first line without its line end.
      */
-    public boolean hasMessage() {
-        return recv.hasNext();
+    private static String firstLine(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != '\r' && bytes[end] != '\n') {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
     }
 
+    /**
+     * Gets a buffer over a region of an array, reusing the previous wrapper
+     * when the array is the same.
+     *
+     * @return The buffer positioned at the region.
+     */
+    private ByteBuffer wrap(byte[] bytes, int offset, int length) {
+        if (wrapped == null || wrapped.array() != bytes) {
+            wrapped = ByteBuffer.wrap(bytes);
+        }
+        wrapped.limit(offset + length).position(offset);
+        return wrapped;
+    }
 
-}
+    /**
+     * Checks whether the line buffer starts with an ASCII prefix.
+     *
+     * @return true if the line starts with the prefix.
+     */
+    private boolean startsWith(int length, String prefix) {
+        return length >= prefix.length() && regionMatches(0, prefix);
+    }
+
+    /**
+     * Checks whether the line buffer holds an ASCII string at an offset.
+     *
+     * @return true if the bytes at the offset match the string.
+     */
+    private boolean regionMatches(int offset, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (lineBuffer[offset + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the value of a header field in the line buffer. Field names are
+     * compared without regard to case.
+     *
+     * @return The offset of the value after the colon and any spaces, or -1 if the line is another field.
+     */
+    private int fieldValue(int length, String name) {
+        if (length <= name.length() || lineBuffer[name.length()] != ':') {
+            return -1;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase(lineBuffer[i]) != Character.toLowerCase(name.charAt(i))) {
+                return -1;
+            }
+        }
+
+        int value = name.length() + 1;
+        while (value < length && lineBuffer[value] == ' ') {
+            value++;
+        }
+        return value;
+    }
 
+    /**
+     * Parses the non-negative integer at an offset of the line buffer.
+     *
+     * @return The parsed value.
+     */
+    private int parseInt(int offset, int length) {
+        int value = 0;
+        for (int i = offset; i < length; i++) {
+            int digit = lineBuffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Parses the hexadecimal 32-bit value at an offset of the line buffer.
+     *
+     * @return The parsed value.
+     */
+    private long parseHex(int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < length && i < offset + 8; i++) {
+            int digit = Character.digit(lineBuffer[i], 16);
+            if (digit < 0) {
+                break;
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Gets the header of a DATA message from its first line in the line
+     * buffer, returning the shared constant for the known headers.
+     *
+     * @return The header of the message.
+     */
+    private String frameHeader(int length) {
+        int end = 5;
+        while (end < length && lineBuffer[end] != ' ') {
+            end++;
+        }
+
+        for (String known : FRAME_HEADERS) {
+            if (end - 5 == known.length() && regionMatches(5, known)) {
+                return known;
+            }
+        }
+        return new String(lineBuffer, 5, end - 5, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A buffered input stream that can hand its already buffered bytes to a
+     * ByteBuffer, so that a payload can be read partly from the buffer and
+     * partly from the socket's channel.
+     */
+    private static class FrameInputStream extends BufferedInputStream {
+
+        FrameInputStream(InputStream in) {
+            super(in);
+        }
+
+        /**
+         * Moves as many buffered bytes as fit into the buffer.
+         *
+         * @param dst The buffer to fill.
+         */
+        synchronized void drainTo(ByteBuffer dst) {
+            int n = Math.min(count - pos, dst.remaining());
+            if (n > 0) {
+                dst.put(buf, pos, n);
+                pos += n;
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A PooledBuffer is an off-heap buffer taken from a {@link BufferPool}. It
+ * has a single owner, which must {@link #release()} it when done, returning
+ * it to its pool.
+ */
+public class PooledBuffer {
+
+    private final ByteBuffer buffer;
+    private final BufferPool pool;
+    private boolean released;
+
+    /**
+     * Constructs a new PooledBuffer around a slice of a slab.
+     *
+     * @param buffer The slice backing this buffer.
+     * @param pool   The pool the buffer returns to.
+     */
+    PooledBuffer(ByteBuffer buffer, BufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /**
+     * Get the backing buffer
+     *
+     * @return ByteBuffer backing this buffer
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the capacity of the buffer
+     *
+     * @return int capacity in bytes
+     */
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Returns the buffer to its pool.
+     *
+     * @throws IllegalStateException if the buffer was already released.
+     */
+    public void release() {
+        if (released) {
+            throw new IllegalStateException("Buffer was already released");
+        }
+        released = true;
+        pool.recycle(this);
+    }
+
+    /**
+     * Resets the buffer when it is handed out again.
+     */
+    void reset() {
+        released = false;
+        buffer.clear();
+    }
+}
@@ -0,0 +1,196 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Rendition is one rung of the bitrate ladder a file can be streamed at:
+ * a codec, a sample rate and a number of channels. Every rendition is cut
+ * into chunks of 10ms of audio, the same chunks a 44.1 kHz stereo file is
+ * sent in, so chunk i of every rendition covers the same stretch of the
+ * stream and the server can switch renditions between any two chunks.
+ *
+ * A DATA frame names the rendition it is in with a Format field such as
+ * {@code ADPCM/16000/2}, sent on the first frame after every switch. A
+ * stream without a Format field is in {@link #PCM}.
+ */
+public class Rendition {
+
+    public static final int CHUNKS_PER_SECOND = 100;
+
+    public static final Rendition PCM = new Rendition("pcm", AudioCodec.L16, 44100, 2);
+    public static final Rendition ADPCM = new Rendition("adpcm", AudioCodec.ADPCM, 44100, 2);
+    public static final Rendition ADPCM_16K = new Rendition("adpcm16", AudioCodec.ADPCM, 16000, 2);
+    public static final Rendition ULAW_8K = new Rendition("ulaw8", AudioCodec.PCMU, 8000, 1);
+
+    // Highest bitrate first
+    public static final List<Rendition> LADDER = List.of(PCM, ADPCM, ADPCM_16K, ULAW_8K);
+
+    private final String name;
+    private final AudioCodec codec;
+    private final int sampleRate;
+    private final int channels;
+    private final String format;
+
+    /**
+     * Constructs a new Rendition.
+     *
+     * @param name       The name its stored chunks are kept under.
+     * @param codec      The codec of its chunks.
+     * @param sampleRate The sample rate, a multiple of {@value #CHUNKS_PER_SECOND}.
+     * @param channels   The number of channels, 1 or 2.
+     */
+    private Rendition(String name, AudioCodec codec, int sampleRate, int channels) {
+        this.name = name;
+        this.codec = codec;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.format = codec + "/" + sampleRate + "/" + channels;
+    }
+
+    /**
+     * Gets the rendition a Format field names.
+     *
+     * @param format The value of the Format field, as codec/rate/channels.
+     * @return The rendition of the ladder with that format, or a new one for a format off the ladder.
+     * @throws IllegalArgumentException if the format cannot be parsed.
+     */
+    public static Rendition parse(String format) {
+        for (Rendition rendition : LADDER) {
+            if (rendition.format.equalsIgnoreCase(format.trim())) {
+                return rendition;
+            }
+        }
+
+        String[] parts = format.trim().split("/");
+        AudioCodec codec;
+        int rate;
+        int channels;
+        try {
+            codec = AudioCodec.valueOf(parts[0].toUpperCase());
+            rate = Integer.parseInt(parts[1]);
+            channels = Integer.parseInt(parts[2]);
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid Format: " + format, e);
+        }
+        if (parts.length != 3 || rate <= 0 || rate % CHUNKS_PER_SECOND != 0 || channels < 1 || channels > 2) {
+            throw new IllegalArgumentException("Unsupported Format: " + format);
+        }
+        return new Rendition(format.trim(), codec, rate, channels);
+    }
+
+    /**
+     * Gets the renditions of the ladder a client can decode, from the codecs
+     * parameter of its SETUP transport. {@link #PCM} is always included.
+     *
+     * @param codecs The comma separated codec names, or null.
+     * @return The renditions, highest bitrate first.
+     */
+    public static List<Rendition> accepted(String codecs) {
+        List<Rendition> renditions = new ArrayList<>();
+        renditions.add(PCM);
+        if (codecs == null) {
+            return renditions;
+        }
+
+        for (Rendition rendition : LADDER) {
+            for (String codec : codecs.split(",")) {
+                if (rendition != PCM && rendition.codec.name().equalsIgnoreCase(codec.trim())) {
+                    renditions.add(rendition);
+                    break;
+                }
+            }
+        }
+        return renditions;
+    }
+
+    /**
+     * Gets the codecs parameter a client that decodes every codec sends in SETUP
+     *
+     * @return String of comma separated codec names
+     */
+    public static String codecList() {
+        StringBuilder list = new StringBuilder();
+        for (AudioCodec codec : AudioCodec.values()) {
+            list.append(list.length() == 0 ? "" : ",").append(codec);
+        }
+        return list.toString();
+    }
+
+    /**
+     * Get the name the stored chunks are kept under
+     *
+     * @return String of name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the codec
+     *
+     * @return AudioCodec of the chunks
+     */
+    public AudioCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Get the sample rate
+     *
+     * @return int sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Get the number of channels
+     *
+     * @return int channels
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Get the value of the Format field of a frame in this rendition
+     *
+     * @return String of codec/rate/channels
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Get the number of frames in a full chunk
+     *
+     * @return int frames of 10ms of audio
+     */
+    public int getChunkFrames() {
+        return sampleRate / CHUNKS_PER_SECOND;
+    }
+
+    /**
+     * Get the length of a full encoded chunk
+     *
+     * @return int bytes
+     */
+    public int getChunkBytes() {
+        return codec.encodedLength(getChunkFrames(), channels);
+    }
+
+    /**
+     * Get the bitrate of the audio, without the framing of the chunks
+     *
+     * @return int bits per second
+     */
+    public int getBitrate() {
+        return getChunkBytes() * 8 * CHUNKS_PER_SECOND;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,284 @@
+package common.messages;
+
+import common.BufferPool;
+import common.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * A DataFrame is a mutable, reusable DATA message for the media streaming
+ * loops. Unlike {@link DataMessage} its payload lives in a pooled off-heap
+ * buffer and every field can be overwritten, so a sender or receiver can move
+ * a whole stream through one DataFrame without allocating per chunk.
+ *
+ * The frame owns its payload buffer for as long as it is used, and the next
+ * payload overwrites the last. A holder that wants to keep a payload copies
+ * it out with {@link #copyPayload(byte[])}.
+ *
+ * A frame may carry the CRC32C of its payload, so that the receiver can tell
+ * a chunk damaged on the way or on disk from a good one. The checksum is
+ * computed with the JDK's intrinsic CRC32C straight on the off-heap buffer.
+ *
+ * A frame may also name the format of its payload, when the stream switches
+ * to another {@link common.Rendition}. The format holds for the frames that
+ * follow until another frame names a new one.
+ */
+public class DataFrame {
+
+    private PooledBuffer payload;
+
+    private String header;
+    private int cseq;
+    private int sessionID;
+    private int length;
+    private boolean binary;
+    private long checksum = -1; // CRC32C of the payload, -1 if the frame carries none
+    private String format; // Format of the payload from this frame on, null if unchanged
+    private final CRC32C crc = new CRC32C();
+
+    /**
+     * Constructs a new DataFrame with a payload buffer from the given pool.
+     *
+     * @param pool The pool payload buffers are taken from.
+     */
+    public DataFrame(BufferPool pool) {
+        this.payload = pool.acquire();
+        this.header = "DATA";
+    }
+
+    /**
+     * Sets every field of the frame except the payload bytes. The frame
+     * carries no checksum and no format until one is computed or set.
+     *
+     * @param header    The header of the message ("DATA", "End" or "END")
+     * @param cseq      The sequence number
+     * @param sessionID The session ID
+     * @param length    The length of the payload in bytes
+     * @param binary    Whether the payload is sent as raw bytes instead of Base64
+     */
+    public void set(String header, int cseq, int sessionID, int length, boolean binary) {
+        this.header = header;
+        this.cseq = cseq;
+        this.sessionID = sessionID;
+        this.length = length;
+        this.binary = binary;
+        this.checksum = -1;
+        this.format = null;
+    }
+
+    /**
+     * Sets the format the payload of this frame and the frames after it are
+     * in, as the value of a Format field.
+     *
+     * @param format The format, or null if it is unchanged.
+     */
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    /**
+     * Get the format the frame switches to
+     *
+     * @return String of codec/rate/channels, or null if the format is unchanged
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Computes the CRC32C of the payload and has the frame carry it. Called
+     * after {@link #set}, once the payload is final.
+     *
+     * @return The checksum.
+     */
+    public long computeChecksum() {
+        checksum = crc32c();
+        return checksum;
+    }
+
+    /**
+     * Sets the checksum the frame carries, as received or as stored.
+     *
+     * @param checksum The CRC32C of the payload, or -1 for none.
+     */
+    public void setChecksum(long checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * Get the checksum the frame carries
+     *
+     * @return long CRC32C of the payload, or -1 if the frame carries none
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Checks the payload against the checksum the frame carries.
+     *
+     * @return true if the payload matches its CRC32C, or the frame carries none.
+     */
+    public boolean isIntact() {
+        return checksum < 0 || crc32c() == checksum;
+    }
+
+    /**
+     * Computes the CRC32C of the payload
+     *
+     * @return long checksum
+     */
+    private long crc32c() {
+        crc.reset();
+        crc.update(getPayload());
+        return crc.getValue();
+    }
+
+    /**
+     * Gets the payload buffer for writing a new payload into it.
+     *
+     * @return The cleared payload buffer.
+     */
+    public ByteBuffer writablePayload() {
+        ByteBuffer buffer = payload.buffer();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Reads the payload from a region of a file into the payload buffer.
+     *
+     * @param file     The file to read from.
+     * @param position The position of the region in the file.
+     * @param count    The length of the region in bytes.
+     * @return The number of bytes read, less than count only at the end of the file.
+     * @throws IOException if the file cannot be read.
+     */
+    public int readPayload(FileChannel file, long position, int count) throws IOException {
+        ByteBuffer buffer = writablePayload();
+        buffer.limit(count);
+
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+
+        return buffer.position();
+    }
+
+    /**
+     * Copies the payload into an array.
+     *
+     * @param dst The array to copy into, at least {@link #getLength()} long.
+     * @return The number of bytes copied.
+     */
+    public int copyPayload(byte[] dst) {
+        payload.buffer().get(0, dst, 0, length);
+        return length;
+    }
+
+    /**
+     * Releases the payload buffer of the frame. The frame must not be used
+     * afterwards.
+     */
+    public void release() {
+        payload.release();
+        payload = null;
+    }
+
+    /**
+     * Check if the frame marks the end of a stream
+     *
+     * @return true if the header is "End" or "END"
+     */
+    public boolean isEnd() {
+        return header.equals("End") || header.equals("END");
+    }
+
+    /**
+     * Check if the frame acknowledges the chunks of an upload
+     *
+     * @return true if the header is "ACK"
+     */
+    public boolean isAck() {
+        return header.equals("ACK");
+    }
+
+    /**
+     * Get the payload bytes, positioned at zero and limited to the payload length
+     *
+     * @return ByteBuffer of payload
+     */
+    public ByteBuffer getPayload() {
+        ByteBuffer buffer = payload.buffer();
+        buffer.limit(length).position(0);
+        return buffer;
+    }
+
+    /**
+     * Get the payload capacity
+     *
+     * @return int payload capacity in bytes
+     */
+    public int getCapacity() {
+        return payload.capacity();
+    }
+
+    /**
+     * Get header
+     *
+     * @return String of header
+     */
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * Get cseq
+     *
+     * @return int of cseq
+     */
+    public int getCseq() {
+        return cseq;
+    }
+
+    /**
+     * Get session ID
+     *
+     * @return int of session ID
+     */
+    public int getSessionID() {
+        return sessionID;
+    }
+
+    /**
+     * Get payload length
+     *
+     * @return int of payload length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Set payload length
+     *
+     * @param length int of payload length
+     */
+    public void setLength(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Check if the payload is carried as raw bytes
+     *
+     * @return true if the frame is a binary DATA message
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+}
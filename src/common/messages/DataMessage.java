@@ -1,9 +1,22 @@
 package common.messages;
 
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
 public class DataMessage extends Message {
 
     private int sessionID;
     private String payload;
+    private byte[] data;
+    private long checksum = -1; // CRC32C of the payload, -1 if the message carries none
+
+    /**
+     * The bytes that end a text DATA message after its payload, as sent by
+     * {@link java.io.PrintWriter#println(Object)}
+     */
+    public static final String TEXT_TRAILER = "\r\n\r" + System.lineSeparator();
 
     /**
      * Constructor creates a new DATA message from parameters
@@ -20,25 +33,46 @@ public class DataMessage extends Message {
     }
 
     /**
-     * Constructor creates a new DATA message from a message string
+     * Constructor creates a new binary DATA message from parameters. The
+     * payload is sent as raw bytes after the header block instead of as a
+     * Base64 Payload line.
      *
-     * @param messageString The raw RTSP DATA message
+     * @param header    The header of the message
+     * @param cseq      The sequence number
+     * @param sessionID The is the session ID
+     * @param data      The raw data payload
      */
-    public DataMessage(String messageString) {
-        super(messageString);
+    public DataMessage(String header, int cseq, int sessionID, byte[] data) {
+        super("DATA", header, cseq);
+        this.sessionID = sessionID;
+        this.data = data;
+    }
+
+    /**
+     * Constructor creates a new DATA message from its parsed start line and
+     * header fields. A binary message carries its raw payload as the body, a
+     * text message carries it Base64 encoded in its Payload field.
+     *
+     * @param startLine The first line of the message
+     * @param headers   The header fields of the message
+     * @param data      The raw data payload, or null for a text message
+     */
+    public DataMessage(String startLine, Map<String, String> headers, byte[] data) {
+        super(startLine, headers);
 
         if (!(this.getType().equals("DATA"))) {
             throw new IllegalArgumentException("Invalid message type for DataMessage: " + this.getType());
         }
 
-        String[] lines = messageString.split("\r\n");
-
-        // Extract sessionID and payload if present
-        for (String line : lines) {
-            if (line.startsWith("Session: ")) {
-                this.sessionID = Integer.parseInt(line.split(" ")[1]);
-            } else if (line.startsWith("Payload: ")) {
-                this.payload = line.substring(9);
+        this.sessionID = getIntField("Session");
+        this.payload = getField("Payload");
+        this.data = data;
+        String checksumField = getField("Checksum");
+        if (checksumField != null) {
+            try {
+                this.checksum = Long.parseLong(checksumField.trim(), 16) & 0xFFFFFFFFL;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid Checksum in DATA message: " + checksumField);
             }
         }
 
@@ -46,11 +80,137 @@ public class DataMessage extends Message {
         if (this.sessionID == 0) {
             throw new IllegalArgumentException("Session ID is required in DATA message");
         }
-        if (this.payload == null) {
+        if (this.payload == null && this.data == null) {
             throw new IllegalArgumentException("Payload is required in DATA message");
         }
     }
 
+    /**
+     * Writes the header block of a binary DATA message into a buffer without
+     * allocating, so that a sender can reuse one buffer for every chunk. The
+     * CRC32C and the format of the payload are optional fields.
+     *
+     * @param buffer    The buffer to write into
+     * @param header    The header of the message
+     * @param cseq      The sequence number
+     * @param sessionID The session ID
+     * @param length    The length of the raw payload that follows the header block
+     * @param checksum  The CRC32C of the payload, or -1 to send none
+     * @param format    The format the stream switches to with this message, or null to send none
+     * @return The length of the header block in bytes
+     */
+    public static int writeBinaryHeader(byte[] buffer, String header, int cseq, int sessionID, int length,
+                                        long checksum, String format) {
+        int pos = writeAscii(buffer, 0, "DATA ");
+        pos = writeAscii(buffer, pos, header);
+        pos = writeAscii(buffer, pos, " RTSP/1.0\r\nCSeq: ");
+        pos = writeInt(buffer, pos, cseq);
+        pos = writeAscii(buffer, pos, "\r\nSession: ");
+        pos = writeInt(buffer, pos, sessionID);
+        pos = writeChecksum(buffer, pos, checksum);
+        pos = writeFormat(buffer, pos, format);
+        pos = writeAscii(buffer, pos, "\r\nContent-Length: ");
+        pos = writeInt(buffer, pos, length);
+        return writeAscii(buffer, pos, "\r\n\r\n");
+    }
+
+    /**
+     * Writes the start of a text DATA message, up to and including the
+     * "Payload: " prefix, into a buffer without allocating. The Base64 payload
+     * and the trailer written by {@link #writeTextTrailer(byte[], int)} follow
+     * it. The CRC32C covers the decoded payload bytes, and it and the format
+     * are optional fields.
+     *
+     * @param buffer    The buffer to write into
+     * @param header    The header of the message
+     * @param cseq      The sequence number
+     * @param sessionID The session ID
+     * @param checksum  The CRC32C of the payload, or -1 to send none
+     * @param format    The format the stream switches to with this message, or null to send none
+     * @return The position after the "Payload: " prefix
+     */
+    public static int writeTextHeader(byte[] buffer, String header, int cseq, int sessionID, long checksum,
+                                      String format) {
+        int pos = writeAscii(buffer, 0, "DATA ");
+        pos = writeAscii(buffer, pos, header);
+        pos = writeAscii(buffer, pos, " RTSP/1.0\r\nCSeq: ");
+        pos = writeInt(buffer, pos, cseq);
+        pos = writeAscii(buffer, pos, "\r\nSession: ");
+        pos = writeInt(buffer, pos, sessionID);
+        pos = writeChecksum(buffer, pos, checksum);
+        pos = writeFormat(buffer, pos, format);
+        return writeAscii(buffer, pos, "\r\nPayload: ");
+    }
+
+    /**
+     * Writes a Checksum field as eight hex digits, or nothing for -1
+     *
+     * @return The position after the field
+     */
+    private static int writeChecksum(byte[] buffer, int pos, long checksum) {
+        if (checksum < 0) {
+            return pos;
+        }
+        pos = writeAscii(buffer, pos, "\r\nChecksum: ");
+        for (int shift = 28; shift >= 0; shift -= 4) {
+            buffer[pos++] = (byte) Character.forDigit((int) (checksum >>> shift) & 0xF, 16);
+        }
+        return pos;
+    }
+
+    /**
+     * Writes a Format field, or nothing for null
+     *
+     * @return The position after the field
+     */
+    private static int writeFormat(byte[] buffer, int pos, String format) {
+        if (format == null) {
+            return pos;
+        }
+        pos = writeAscii(buffer, pos, "\r\nFormat: ");
+        return writeAscii(buffer, pos, format);
+    }
+
+    /**
+     * Writes the end of a text DATA message after its Base64 payload
+     *
+     * @param buffer The buffer to write into
+     * @param pos    The position after the payload
+     * @return The position after the end of the message
+     */
+    public static int writeTextTrailer(byte[] buffer, int pos) {
+        return writeAscii(buffer, pos, TEXT_TRAILER);
+    }
+
+    /**
+     * Writes an ASCII string into a buffer
+     *
+     * @return The position after the written string
+     */
+    private static int writeAscii(byte[] buffer, int pos, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            buffer[pos++] = (byte) s.charAt(i);
+        }
+        return pos;
+    }
+
+    /**
+     * Writes the decimal digits of a non-negative integer into a buffer
+     *
+     * @return The position after the written digits
+     */
+    private static int writeInt(byte[] buffer, int pos, int value) {
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int d = digits - 1; d >= 0; d--) {
+            buffer[pos + d] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+
     /**
      * Get session ID
      *
@@ -70,17 +230,67 @@ public class DataMessage extends Message {
     }
 
     /**
-     * Override toString to include session ID and payload
+     * Check if the payload is carried as raw bytes
+     *
+     * @return true if the message is a binary DATA message
+     */
+    public boolean isBinary() {
+        return data != null;
+    }
+
+    /**
+     * Get the raw payload bytes, decoding the Base64 payload if needed
+     *
+     * @return byte[] of payload
+     */
+    public byte[] getData() {
+        if (data != null) {
+            return data;
+        }
+        return Base64.getDecoder().decode(payload);
+    }
+
+    /**
+     * Check the payload against the checksum the message carries
+     *
+     * @return true if the payload matches its CRC32C, or the message carries none
+     */
+    public boolean isIntact() {
+        if (checksum < 0) {
+            return true;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(ByteBuffer.wrap(getData()));
+        return crc.getValue() == checksum;
+    }
+
+    /**
+     * Override toString to include session ID and payload. For a binary
+     * message only the header block is returned, the raw payload follows it
      */
     @Override
     public String toString() {
-        if (messageString != null) {
-            return messageString;
+        if (data != null) {
+            return super.toString() +
+                    "Session: " + sessionID + "\r\n" +
+                    checksumField() +
+                    "Content-Length: " + data.length + "\r\n" +
+                    "\r\n";
         } else {
             String baseString = super.toString() +
                     "Session: " + sessionID + "\r\n" +
+                    checksumField() +
                     "Payload: " + payload + "\r\n";
             return baseString + "\r";
         }
     }
+
+    /**
+     * Gets the Checksum field line of the message
+     *
+     * @return String field line, empty if the message carries no checksum
+     */
+    private String checksumField() {
+        return checksum < 0 ? "" : String.format("Checksum: %08x\r\n", checksum);
+    }
 }
@@ -1,5 +1,7 @@
 package common.messages;
 
+import java.util.Map;
+
 public class DescribeMessage extends Message{
     
     private String accept;
@@ -17,24 +19,19 @@ public class DescribeMessage extends Message{
     }
 
     /**
-     * Constructor creates a new DESCRIBE message from a message string
+     * Constructor creates a new DESCRIBE message from its parsed start line and header fields
      * 
-     * @param messageString This is the messageString
+     * @param startLine This is the first line of the message
+     * @param headers This is the map of header fields
      */
-    public DescribeMessage(String messageString) {
-        super(messageString);
+    public DescribeMessage(String startLine, Map<String, String> headers) {
+        super(startLine, headers);
 
         if (!(this.getType().equals("DESCRIBE"))) {
             throw new IllegalArgumentException("Invalid message type for DescribeMessage: " + this.getType());
         }
 
-        String[] lines = messageString.split("\r\n");
-
-        for (String line : lines) {
-            if (line.startsWith("Accept: ")) {
-                this.accept = line.substring(8).trim();
-            }
-        }
+        this.accept = getField("Accept");
 
         //Validate required fields
         if (this.accept == null || this.accept.isEmpty()) {
@@ -56,11 +53,7 @@ public class DescribeMessage extends Message{
      */
     @Override
     public String toString() {
-        if (messageString != null) {
-            return messageString;
-        } else {
-            String baseString = super.toString() + "Accept: " + accept + "\r\n";
-            return baseString + "\r";
-        }
+        String baseString = super.toString() + "Accept: " + accept + "\r\n";
+        return baseString + "\r";
     }
 }
@@ -1,13 +1,14 @@
 package common.messages;
 
+import java.util.Collections;
+import java.util.Map;
 
 public class Message {
 
-    protected String messageString;
-
     private String type;
     private String header;
     private int cseq;
+    private Map<String, String> headers = Collections.emptyMap();
 
     /**
      * Constructor creates a new message from parameters
@@ -19,21 +20,27 @@ public class Message {
     }
 
     /**
-     * Constructor creates a new message from a message string
+     * Constructor creates a new message from its parsed start line and
+     * header fields, as read by {@link MessageCodec}
+     *
+     * @param startLine The first line of the message
+     * @param headers   The header fields of the message by name
      */
-    public Message(String messageString) {
-        this.messageString = messageString;
-
-        // Parse the message string to extract type, header, and cseq
-        String[] lines = messageString.split("\r\n");
-
+    public Message(String startLine, Map<String, String> headers) {
         // First line: TYPE SERVER_ADDRESS RTSP/1.0
-        String[] firstLineParts = lines[0].split(" ");
+        String[] firstLineParts = startLine.split(" ");
+        if (firstLineParts.length < 2) {
+            throw new IllegalArgumentException("Invalid start line: " + startLine);
+        }
         this.type = firstLineParts[0];
         this.header = firstLineParts[1];
+        this.headers = headers;
 
-        // Second line: CSeq: <number>
-        this.cseq = Integer.parseInt(lines[1].split(" ")[1]);
+        String cseqField = headers.get("CSeq");
+        if (cseqField == null) {
+            throw new IllegalArgumentException("CSeq field is required in " + type + " message");
+        }
+        this.cseq = parseInt(cseqField);
     }
 
     /**
@@ -63,6 +70,43 @@ public class Message {
         return cseq;
     }
 
+    /**
+     * Get a header field of a received message, including fields this class
+     * does not know
+     *
+     * @param name The field name, in any case
+     * @return String value of the field, or null if the message did not have it
+     */
+    public String getField(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Get a numeric header field of a received message. Parameters after the
+     * number, such as the timeout of a Session field, are ignored.
+     *
+     * @param name The field name, in any case
+     * @return int value of the field, or zero if the message did not have it
+     */
+    protected int getIntField(String name) {
+        String value = headers.get(name);
+        return value == null ? 0 : parseInt(value);
+    }
+
+    /**
+     * Parses the number at the start of a field value
+     *
+     * @return int parsed value
+     */
+    private static int parseInt(String value) {
+        int end = value.indexOf(';');
+        try {
+            return Integer.parseInt((end < 0 ? value : value.substring(0, end)).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid numeric field: " + value);
+        }
+    }
+
     @Override
     public String toString() {
         return type + " " + header + " RTSP/1.0\r\n" +
@@ -0,0 +1,92 @@
+package common.messages;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The MessageCodec class turns the parts of an RTSP message read off the wire
+ * into a message. A message is a start line, header lines up to an empty
+ * line, and a body of exactly as many bytes as its Content-Length field says.
+ * Header fields may come in any order, their names are matched without regard
+ * to case, and fields no message class knows are kept so that a newer peer
+ * can add headers without breaking an older one.
+ */
+public class MessageCodec {
+
+    /**
+     * Creates the map the header fields of one message are collected in
+     *
+     * @return Map from field name to value, with names compared ignoring case
+     */
+    public static Map<String, String> newHeaders() {
+        return new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    /**
+     * Adds one header line to the fields of a message. A field given more
+     * than once keeps all of its values, separated by commas.
+     *
+     * @param headers The fields read so far.
+     * @param line    The header line, without its line end.
+     * @throws IllegalArgumentException if the line is not a "Name: value" field.
+     */
+    public static void addHeader(Map<String, String> headers, String line) {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Malformed header line: " + line);
+        }
+
+        String name = line.substring(0, colon).trim();
+        String value = line.substring(colon + 1).trim();
+        headers.merge(name, value, (first, next) -> first + ", " + next);
+    }
+
+    /**
+     * Gets the length of the body that follows the header of a message
+     *
+     * @param headers The fields of the message.
+     * @return The number of body bytes, zero if the message has no body.
+     * @throws IllegalArgumentException if the Content-Length field is not a valid length.
+     */
+    public static int contentLength(Map<String, String> headers) {
+        String value = headers.get("Content-Length");
+        if (value == null) {
+            return 0;
+        }
+
+        try {
+            int length = Integer.parseInt(value.trim());
+            if (length < 0) {
+                throw new IllegalArgumentException("Negative Content-Length: " + value);
+            }
+            return length;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid Content-Length: " + value);
+        }
+    }
+
+    /**
+     * Builds the message of the type named by a start line
+     *
+     * @param startLine The first line of the message.
+     * @param headers   The header fields of the message.
+     * @param body      The body of the message, or null if it had none.
+     * @return The received {@link Message} object.
+     * @throws RuntimeException if the message type is unknown or the message is invalid.
+     */
+    public static Message decode(String startLine, Map<String, String> headers, byte[] body) throws RuntimeException {
+        String type = startLine.split(" ", 2)[0];
+
+        return switch (type) {
+            case "OPTIONS" -> new OptionsMessage(startLine, headers); // Note: OPTIONS in spec is plural
+            case "DESCRIBE" -> new DescribeMessage(startLine, headers);
+            case "SETUP" -> new SetUpMessage(startLine, headers);
+            case "PLAY", "PAUSE" -> new PlayPauseMessage(startLine, headers);
+            case "RECORD" -> new RecordMessage(startLine, headers);
+            case "TEARDOWN" -> new TeardownMessage(startLine, headers);
+            case "DATA" -> new DataMessage(startLine, headers, body);
+            case "RTSP/1.0" -> new ServerResponse(startLine, headers, body);
+            default -> throw new RuntimeException("Unknown message type: " + type);
+        };
+    }
+}
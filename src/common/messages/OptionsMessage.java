@@ -1,5 +1,7 @@
 package common.messages;
 
+import java.util.Map;
+
 public class OptionsMessage extends Message {
 
     private String options;
@@ -9,32 +11,16 @@ public class OptionsMessage extends Message {
     }
 
     /**
-     * Constructor creates a new OPTIONS message from a message string
+     * Constructor creates a new OPTIONS message from its parsed start line and header fields
      */
-    public OptionsMessage(String messageString) {
-        super(messageString);
+    public OptionsMessage(String startLine, Map<String, String> headers) {
+        super(startLine, headers);
 
         if (!(this.getType().equals("OPTIONS"))) {
             throw new IllegalArgumentException("Invalid message type for OptionMessage: " + this.getType());
         }
 
-        String[] lines = messageString.split("\r\n");
-
-        // Third line: Options: <options>
-        if (lines.length == 3) {
-            String[] optionsList = lines[2].split(" ");
-
-            // Reconstruct options string
-            StringBuilder optionsBuilder = new StringBuilder();
-            for (int i = 1; i < optionsList.length; i++) {
-                optionsBuilder.append(optionsList[i]);
-                if (i < optionsList.length - 1) {
-                    optionsBuilder.append(" ");
-                }
-            }
-
-            this.options = optionsBuilder.toString();
-        }
+        this.options = getField("Public");
     }
 
     /**
@@ -1,9 +1,12 @@
 package common.messages;
 
+import java.util.Map;
+
 public class PlayPauseMessage extends Message {
 
     private int sessionID;
     private String range;
+    private boolean queued;
 
     /**
      * Constructor creates a new PLAY/PAUSE message from parameters
@@ -14,26 +17,51 @@ public class PlayPauseMessage extends Message {
     }
 
     /**
-     * Constructor creates a new PLAY/PAUSE message from a message string
+     * Constructor creates a new PLAY message that queues the file after the
+     * one currently playing in the session
+     *
+     * @param header    The header of the message
+     * @param cseq      The sequence number
+     * @param sessionID The session ID
+     * @param queued    Whether to queue the file instead of starting playback
+     */
+    public PlayPauseMessage(String header, int cseq, int sessionID, boolean queued) {
+        super("PLAY", header, cseq);
+        this.sessionID = sessionID;
+        this.queued = queued;
+    }
+
+    /**
+     * Constructor creates a new PLAY message that starts at a position of
+     * the stream, such as "npt=now-" for the live edge of a recording
+     *
+     * @param header    The header of the message
+     * @param cseq      The sequence number
+     * @param sessionID The session ID
+     * @param range     The Range to play, or null for the default
      */
-    public PlayPauseMessage(String messageString) {
-        super(messageString);
+    public PlayPauseMessage(String header, int cseq, int sessionID, String range) {
+        super("PLAY", header, cseq);
+        this.sessionID = sessionID;
+        this.range = range;
+    }
+
+    /**
+     * Constructor creates a new PLAY/PAUSE message from its parsed start line and header fields
+     */
+    public PlayPauseMessage(String startLine, Map<String, String> headers) {
+        super(startLine, headers);
 
         if (!(this.getType().equals("PLAY") || this.getType().equals("PAUSE"))) {
             throw new IllegalArgumentException("Invalid message type for PlayPauseMessage: " + this.getType());
         }
 
-        String[] lines = messageString.split("\r\n");
+        this.sessionID = getIntField("Session");
 
-        // Extract sessionID and range if present
-        for (String line : lines) {
-            // Look for Session
-            if (line.startsWith("Session: ")) {
-                this.sessionID = Integer.parseInt(line.split(" ")[1]);
-                // Look for Range
-            } else if (line.startsWith("Range: ") && getType().equals("PLAY")) {
-                this.range = line.substring(7);
-            }
+        // Range and Queue only apply to PLAY
+        if (getType().equals("PLAY")) {
+            this.range = getField("Range");
+            this.queued = "true".equals(getField("Queue"));
         }
 
         // Validate required fields
@@ -61,18 +89,26 @@ public class PlayPauseMessage extends Message {
     }
 
     /**
-     * Override toString to include session ID and range
+     * Check if the file is queued after the current one
+     *
+     * @return true if the PLAY message queues its file
+     */
+    public boolean isQueued() {
+        return queued;
+    }
+
+    /**
+     * Override toString to include session ID, range and queue flag
      */
     @Override
     public String toString() {
-        if (messageString != null) {
-            return messageString;
-        } else {
-            String baseString = super.toString() + "Session: " + sessionID + "\r\n";
-            if (range != null && !range.isEmpty()) {
-                baseString += "Range: " + range + "\r\n";
-            }
-            return baseString + "\r";
+        String baseString = super.toString() + "Session: " + sessionID + "\r\n";
+        if (range != null && !range.isEmpty()) {
+            baseString += "Range: " + range + "\r\n";
+        }
+        if (queued) {
+            baseString += "Queue: true\r\n";
         }
+        return baseString + "\r";
     }
 }
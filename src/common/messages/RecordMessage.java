@@ -1,5 +1,7 @@
 package common.messages;
 
+import java.util.Map;
+
 public class RecordMessage extends Message{
 
     private int sessionID;
@@ -12,24 +14,17 @@ public class RecordMessage extends Message{
     }
 
     /**
-     * Constructor that creates a new RECORD message from a message string
+     * Constructor that creates a new RECORD message from its parsed start line and header fields
      */
-    public RecordMessage(String messageString) {
-        super(messageString);
+    public RecordMessage(String startLine, Map<String, String> headers) {
+        super(startLine, headers);
 
         if (!(this.getType().equals("RECORD"))) {
             throw new IllegalArgumentException("Invalid message type for RecordMessage" + this.getType());
         }
 
-        String[] lines = messageString.split("\r\n");
-
-        for (String line : lines) {
-            if (line.startsWith("Session: ")) {
-                this.sessionID = Integer.parseInt(line.split(" ")[1]);
-            } else if (line.startsWith("Range: ")) {
-                this.range = line.substring(7);
-            }
-        }
+        this.sessionID = getIntField("Session");
+        this.range = getField("Range");
 
         // Validate required fields
         if (this.sessionID == 0) {
@@ -60,15 +55,11 @@ public class RecordMessage extends Message{
      */
     @Override
     public String toString() {
-        if (messageString != null) {
-            return messageString;
-        } else {
-            String baseString = super.toString() + "Session: " + sessionID + "\r\n";
-            if (range != null && !range.isEmpty()) {
-                baseString += "Range: " + range + "\r\n";
-            }
-            return baseString + "\r";
+        String baseString = super.toString() + "Session: " + sessionID + "\r\n";
+        if (range != null && !range.isEmpty()) {
+            baseString += "Range: " + range + "\r\n";
         }
+        return baseString + "\r";
     }
 
 }
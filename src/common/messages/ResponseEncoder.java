@@ -0,0 +1,263 @@
+package common.messages;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The ResponseEncoder class serializes server responses into a reusable
+ * buffer, producing the same bytes as printing the response would. Responses
+ * that only differ in their CSeq and Session, such as the status-only errors
+ * or the OPTIONS capability list, are pre-encoded once as a {@link Template},
+ * and only the two numbers are written per request. An encoder belongs to one
+ * connection and is not thread-safe, the templates are shared.
+ */
+public class ResponseEncoder {
+
+    private static final String LINE_END = System.lineSeparator(); // What println appends to a message
+    private static final ConcurrentHashMap<Integer, Template> STATUS = new ConcurrentHashMap<>();
+
+    private byte[] buffer = new byte[512];
+
+    /**
+     * Get the template of a response carrying nothing but its status
+     *
+     * @param code The response code.
+     * @return Template shared by every response with the code
+     */
+    public static Template status(int code) {
+        return STATUS.computeIfAbsent(code, c -> new Template(new ServerResponse.ResponseBuilder(c, 0).build()));
+    }
+
+    /**
+     * Pre-encodes a response whose headers and body do not change between
+     * requests. The CSeq and Session of the response are ignored, they are
+     * given each time the template is encoded.
+     *
+     * @param response The response to pre-encode.
+     * @return The template.
+     */
+    public static Template template(ServerResponse response) {
+        return new Template(response);
+    }
+
+    /**
+     * Get the buffer the last response was encoded into
+     *
+     * @return byte[] buffer, valid up to the length the encode call returned
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Encodes a response from a template.
+     *
+     * @param template  The pre-encoded response.
+     * @param cseq      The CSeq of the request being answered.
+     * @param sessionId The session ID, or zero for no Session header.
+     * @return The length of the encoded response.
+     */
+    public int encode(Template template, int cseq, int sessionId) {
+        ensure(template.length() + 48);
+        int pos = put(template.head, 0);
+        pos = writeInt(pos, cseq);
+        pos = put(template.options, pos);
+        if (sessionId != 0) {
+            pos = writeAscii(pos, "Session: ");
+            pos = writeInt(pos, sessionId);
+            pos = writeAscii(pos, "\r\n");
+        }
+        return put(template.tail, pos);
+    }
+
+    /**
+     * Encodes any response, writing its headers straight into the buffer.
+     *
+     * @param response The response.
+     * @return The length of the encoded response.
+     */
+    public int encode(ServerResponse response) {
+        Template status = status(response.getCode());
+        int pos = encode(status, response.getCseq(), 0) - status.tail.length; // Up to the end of the CSeq line
+
+        if (response.getOptions() != null) {
+            pos = header(pos, "Public: ", response.getOptions());
+        }
+        if (response.getSessionId() != 0) {
+            pos = header(pos, "Session: ", response.getSessionId());
+        }
+        if (response.getTransport() != null) {
+            pos = header(pos, "Transport: ", response.getTransport());
+        }
+        if (response.getContentType() != null) {
+            pos = header(pos, "Content-Type: ", response.getContentType());
+        }
+        if (response.getContentLength() != 0) {
+            pos = header(pos, "Content-Length: ", response.getContentLength());
+        }
+        if (response.getRetryAfter() != 0) {
+            pos = header(pos, "Retry-After: ", response.getRetryAfter());
+        }
+        if (response.getLocation() != null) {
+            pos = header(pos, "Location: ", response.getLocation());
+        }
+
+        pos = writeAscii(pos, "\r");
+        if (response.getBody() != null) {
+            pos = writeText(pos, response.getBody());
+            pos = writeAscii(pos, "\r");
+        }
+        return writeAscii(pos, LINE_END);
+    }
+
+    /**
+     * Writes a header with a text value
+     *
+     * @return The position after the header line
+     */
+    private int header(int pos, String name, String value) {
+        pos = writeAscii(pos, name);
+        pos = writeText(pos, value);
+        return writeAscii(pos, "\r\n");
+    }
+
+    /**
+     * Writes a header with a numeric value
+     *
+     * @return The position after the header line
+     */
+    private int header(int pos, String name, int value) {
+        ensure(pos + name.length() + 13);
+        pos = writeAscii(pos, name);
+        pos = writeInt(pos, value);
+        return writeAscii(pos, "\r\n");
+    }
+
+    /**
+     * Writes a string that may hold characters outside ASCII as UTF-8
+     *
+     * @return The position after the written string
+     */
+    private int writeText(int pos, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return put(s.getBytes(StandardCharsets.UTF_8), pos);
+            }
+        }
+        return writeAscii(pos, s);
+    }
+
+    /**
+     * Writes an ASCII string into the buffer
+     *
+     * @return The position after the written string
+     */
+    private int writeAscii(int pos, String s) {
+        ensure(pos + s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[pos++] = (byte) s.charAt(i);
+        }
+        return pos;
+    }
+
+    /**
+     * Writes the decimal digits of an integer into the buffer
+     *
+     * @return The position after the written digits
+     */
+    private int writeInt(int pos, int value) {
+        if (value < 0) {
+            return writeAscii(pos, Integer.toString(value));
+        }
+
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensure(pos + digits);
+        for (int d = digits - 1; d >= 0; d--) {
+            buffer[pos + d] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+
+    /**
+     * Copies pre-encoded bytes into the buffer
+     *
+     * @return The position after the copied bytes
+     */
+    private int put(byte[] bytes, int pos) {
+        ensure(pos + bytes.length);
+        System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    /**
+     * Grows the buffer to hold at least a number of bytes, keeping its contents
+     */
+    private void ensure(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+
+    /**
+     * A response encoded once, split around the places its CSeq and Session
+     * go: the status line up to "CSeq: ", the end of the CSeq line with the
+     * Public header, and everything after the Session header.
+     */
+    public static class Template {
+        private final int code;
+        private final byte[] head;
+        private final byte[] options;
+        private final byte[] tail;
+
+        /**
+         * Constructs a new Template from a response.
+         *
+         * @param response The response to pre-encode.
+         */
+        private Template(ServerResponse response) {
+            this.code = response.getCode();
+            String text = new ServerResponse.ResponseBuilder(response.getCode(), 0)
+                    .setOptions(response.getOptions())
+                    .setTransport(response.getTransport())
+                    .setContentType(response.getContentType())
+                    .setContentLength(response.getContentLength())
+                    .setBody(response.getBody())
+                    .setRetryAfter(response.getRetryAfter())
+                    .setLocation(response.getLocation())
+                    .build() + LINE_END;
+
+            int cseq = text.indexOf("\r\n") + "\r\nCSeq: ".length();
+            int session = text.indexOf("\r\n", cseq) + 2; // The Session header follows the CSeq line ...
+            if (response.getOptions() != null) {
+                session = text.indexOf("\r\n", session) + 2; // ... and the Public header if there is one
+            }
+
+            this.head = text.substring(0, cseq).getBytes(StandardCharsets.UTF_8);
+            this.options = text.substring(cseq + 1, session).getBytes(StandardCharsets.UTF_8); // Skips the "0"
+            this.tail = text.substring(session).getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Get the length of the template without its CSeq and Session
+         *
+         * @return int number of pre-encoded bytes
+         */
+        public int length() {
+            return head.length + options.length + tail.length;
+        }
+
+        /**
+         * Get the status code of the response
+         *
+         * @return int response code
+         */
+        public int getCode() {
+            return code;
+        }
+    }
+}
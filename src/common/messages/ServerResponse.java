@@ -1,5 +1,8 @@
 package common.messages;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
 public class ServerResponse extends Message {
 
     /// Required variables ///
@@ -14,6 +17,8 @@ public class ServerResponse extends Message {
     private String contentType;
     private int contentLength;
     private String body;
+    private int retryAfter;
+    private String location;
 
     /**
      * Constructor for ServerResponse using ResponseBuilder
@@ -31,53 +36,44 @@ public class ServerResponse extends Message {
         this.contentType = builder.contentType;
         this.contentLength = builder.contentLength;
         this.body = builder.body;
+        this.retryAfter = builder.retryAfter;
+        this.location = builder.location;
     }
 
     /**
-     * Constructor for ServerResponse from message string
+     * Constructor for ServerResponse from its parsed start line and header fields
      *
-     * @param messageString This is the full message string
+     * @param startLine This is the status line
+     * @param headers This is the map of header fields
+     * @param body This is the body of the response, or null if it had none
      */
-    public ServerResponse(String messageString) {
-        super(messageString);
+    public ServerResponse(String startLine, Map<String, String> headers, byte[] body) {
+        super(startLine, headers);
 
         if (!getType().equals("RTSP/1.0")) {
             throw new IllegalArgumentException("Invalid RTSP response message");
         }
 
-        // Further parsing of the messageString to extract code, message, and optional fields can be added here
-        String[] lines = messageString.split("\r\n");
-
         // First line: RTSP/1.0 <code> <message>
-        String[] firstLineParts = lines[0].split(" ", 3);
-        this.code = Integer.parseInt(firstLineParts[1]);
-        this.message = firstLineParts[2];
-        this.cseq = Integer.parseInt(lines[1].split(" ")[1]);
-
-        // Additional parsing for optional fields can be implemented here
-        for (String line : lines) {
-            if (line.startsWith("Public: ")) { // Options header
-                this.options = line.substring(8);
-
-            } else if (line.startsWith("Session: ")) { // Session header
-                this.sessionId = Integer.parseInt(line.substring(9));
-
-            } else if (line.startsWith("Transport: ")) { // Transport header
-                this.transport = line.substring(11);
-
-            } else if (line.startsWith("Content-Type: ")) { // Content-Type header
-                this.contentType = line.substring(14);
-
-            } else if (line.startsWith("Content-Length: ")) { // Content-Length header
-                this.contentLength = Integer.parseInt(line.substring(16));
-
-            } else if (line.isEmpty()) { // Body starts after this line
-                // The body starts after an empty line
-                int bodyIndex = messageString.indexOf("\r\n\r\n") + 5;
-                if (bodyIndex < messageString.length()) {
-                    this.body = messageString.substring(bodyIndex);
-                }
-            }
+        String[] firstLineParts = startLine.split(" ", 3);
+        try {
+            this.code = Integer.parseInt(firstLineParts[1]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid status code: " + firstLineParts[1]);
+        }
+        this.message = firstLineParts.length == 3 ? firstLineParts[2] : "";
+        this.cseq = super.getCseq();
+
+        this.options = getField("Public");
+        this.sessionId = getIntField("Session");
+        this.transport = getField("Transport");
+        this.contentType = getField("Content-Type");
+        this.contentLength = getIntField("Content-Length");
+        this.retryAfter = getIntField("Retry-After");
+        this.location = getField("Location");
+
+        if (body != null) {
+            this.body = new String(body, StandardCharsets.UTF_8);
         }
     }
 
@@ -162,6 +158,24 @@ public class ServerResponse extends Message {
         return body;
     }
 
+    /**
+     * Get retry after
+     *
+     * @return int seconds to wait before retrying, zero if not set
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Get location
+     *
+     * @return String URL a redirected request should be sent to
+     */
+    public String getLocation() {
+        return location;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -183,6 +197,12 @@ public class ServerResponse extends Message {
         if (contentLength != 0) {
             sb.append("Content-Length: ").append(contentLength).append("\r\n");
         }
+        if (retryAfter != 0) {
+            sb.append("Retry-After: ").append(retryAfter).append("\r\n");
+        }
+        if (location != null) {
+            sb.append("Location: ").append(location).append("\r\n");
+        }
         sb.append("\r");
         if (body != null) {
             sb.append(body).append("\r");
@@ -205,6 +225,8 @@ public class ServerResponse extends Message {
         private String contentType;
         private int contentLength;
         private String body;
+        private int retryAfter;
+        private String location;
 
         /**
          * Constructor for ResponseBuilder
@@ -423,6 +445,28 @@ public class ServerResponse extends Message {
             return this;
         }
 
+        /**
+         * Set retry after
+         *
+         * @param retryAfter This is the number of seconds to wait before retrying
+         * @return ResponseBuilder
+         */
+        public ResponseBuilder setRetryAfter(int retryAfter) {
+            this.retryAfter = retryAfter;
+            return this;
+        }
+
+        /**
+         * Set location
+         *
+         * @param location This is the URL a redirected request should be sent to
+         * @return ResponseBuilder
+         */
+        public ResponseBuilder setLocation(String location) {
+            this.location = location;
+            return this;
+        }
+
         /**
          * Build the ServerResponse
          *
@@ -1,8 +1,11 @@
 package common.messages;
 
+import java.util.Map;
+
 public class SetUpMessage extends Message {
 
     private String transport;
+    private int sessionID;
 
     /**
      * Constructor creates a new SETUP message from parameters
@@ -17,26 +20,34 @@ public class SetUpMessage extends Message {
     }
 
     /**
-     * Constructor creates a new SETUP message from a message string
+     * Constructor creates a new SETUP message that resumes an existing
+     * session, such as an interrupted upload
+     *
+     * @param header This is the header of the message
+     * @param cseq This is the cseq of the message
+     * @param transport This is the transport of the message
+     * @param sessionID The session ID to resume
+     */
+    public SetUpMessage(String header, int cseq, String transport, int sessionID) {
+        this(header, cseq, transport);
+        this.sessionID = sessionID;
+    }
+
+    /**
+     * Constructor creates a new SETUP message from its parsed start line and header fields
      *
-     * @param messageString This is the message string
+     * @param startLine This is the first line of the message
+     * @param headers This is the map of header fields
      */
-    public SetUpMessage(String messageString) {
-        super(messageString);
+    public SetUpMessage(String startLine, Map<String, String> headers) {
+        super(startLine, headers);
 
         if (!(this.getType().equals("SETUP"))) {
             throw new IllegalArgumentException("Invalid message type for SetUpMessage: " + this.getType());
         }
 
-        String[] lines = messageString.split("\r\n");
-
-        // Extract sessionID if present
-        for (String line : lines) {
-            // Look for Session if present
-            if (line.startsWith("Transport: ")) {
-                this.transport = line.substring(11);
-            }
-        }
+        this.transport = getField("Transport");
+        this.sessionID = getIntField("Session"); // Only present when resuming a session
 
         // Validate required fields
         if (this.transport == null) {
@@ -53,20 +64,26 @@ public class SetUpMessage extends Message {
         return transport;
     }
 
+    /**
+     * Get session ID
+     *
+     * @return int of the session ID to resume, zero for a new session
+     */
+    public int getSessionID() {
+        return sessionID;
+    }
+
     /**
      * Override toString to include sessionID and transport
      */
     @Override
     public String toString() {
-        // If messageString is already constructed, return it
-        if (messageString != null) {
-            return messageString;
-        }
-
-        // Otherwise, construct it
         StringBuilder sb = new StringBuilder();
         sb.append(super.toString());
         sb.append("Transport: ").append(transport).append("\r\n");
+        if (sessionID != 0) {
+            sb.append("Session: ").append(sessionID).append("\r\n");
+        }
 
         return sb.toString() + "\r";
 
@@ -1,5 +1,7 @@
 package common.messages;
 
+import java.util.Map;
+
 public class TeardownMessage extends Message {
 
     private int sessionID;
@@ -17,25 +19,19 @@ public class TeardownMessage extends Message {
     }
 
     /**
-     * Constructor creates a new TEARDOWN message from a message string
+     * Constructor creates a new TEARDOWN message from its parsed start line and header fields
      *
-     * @param messageString The raw RTSP TEARDOWN message
+     * @param startLine The first line of the message
+     * @param headers   The header fields of the message
      */
-    public TeardownMessage(String messageString) {
-        super(messageString);
+    public TeardownMessage(String startLine, Map<String, String> headers) {
+        super(startLine, headers);
 
         if (!(this.getType().equals("TEARDOWN"))) {
             throw new IllegalArgumentException("Invalid message type for TeardownMessage: " + this.getType());
         }
 
-        String[] lines = messageString.split("\r\n");
-
-        // Extract sessionID if present
-        for (String line : lines) {
-            if (line.startsWith("Session: ")) {
-                this.sessionID = Integer.parseInt(line.split(" ")[1]);
-            }
-        }
+        this.sessionID = getIntField("Session");
 
         // Validate required fields
         if (this.sessionID == 0) {
@@ -57,11 +53,7 @@ public class TeardownMessage extends Message {
      */
     @Override
     public String toString() {
-        if (messageString != null) {
-            return messageString;
-        } else {
-            String baseString = super.toString() + "Session: " + sessionID + "\r\n";
-            return baseString + "\r";
-        }
+        String baseString = super.toString() + "Session: " + sessionID + "\r\n";
+        return baseString + "\r";
     }
 }
@@ -0,0 +1,230 @@
+package server;
+
+import common.Rendition;
+
+import java.util.List;
+
+/**
+ * The AdaptiveBitrate class picks the {@link Rendition} a session sends its
+ * next chunk in, from how fast the client takes the chunks.
+ *
+ * The server sends chunks as fast as the socket takes them, so a send blocks
+ * once the client's buffers and the network are full. Over each window of a
+ * second the controller measures two things:
+ * <ul>
+ *     <li>The chunk rate. A client that keeps up takes 100 chunks a second,
+ *     as fast as it plays them, or more while its buffers fill. A slower
+ *     rate means the link cannot carry the rendition.</li>
+ *     <li>The throughput: the bytes sent over the time spent blocked in
+ *     sends. While the link is the bottleneck, this is what it carries.</li>
+ * </ul>
+ * It also keeps the lead, how many chunks the session has sent beyond the
+ * time it has been playing, which is roughly what the client has buffered.
+ *
+ * A window below real time steps down straight to the highest rendition
+ * that fits the measured throughput with room to spare, once the lead is
+ * under {@value #SAFE_LEAD_CHUNKS} chunks or on the second such window in
+ * a row. A single slow window with a large lead is ridden out from the
+ * client's buffer. The session is held to {@value #MAX_LEAD_CHUNKS} chunks
+ * ahead, so there is always audio left to switch. After a run of good
+ * windows the controller steps up one rendition. A blocked sender cannot
+ * tell how much more the link could carry, so stepping up is a probe: if it
+ * has to step back down soon after, it waits twice as long before the next
+ * one.
+ */
+public class AdaptiveBitrate {
+
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+    private static final long CHUNK_NANOS = WINDOW_NANOS / Rendition.CHUNKS_PER_SECOND;
+    private static final int HEADER_BYTES = 80; // A binary DATA header with a Checksum field
+    private static final double HEADROOM = 0.8; // Share of the measured throughput a rendition may take
+    private static final double BEHIND = 0.9; // Share of real time below which a window falls behind
+    private static final int SAFE_LEAD_CHUNKS = 300; // Three seconds buffered ride out a slow window
+    private static final int MAX_LEAD_CHUNKS = 1000; // Sending further ahead would leave nothing to switch
+    private static final int HOLD_WINDOWS = 4; // Good windows before the first step up
+    private static final int MAX_HOLD_WINDOWS = 64;
+    private static final int SETTLE_WINDOWS = 30; // Windows on a rendition after which stepping up to it worked
+
+    private final List<Rendition> ladder;
+    private int rung = 0;
+    private boolean steppedUp = false;
+    private int hold = HOLD_WINDOWS;
+    private int goodWindows = 0;
+    private int windowsOnRung = 0;
+    private int slowWindows = 0;
+
+    private long start;
+    private long chunks;
+    private long windowStart;
+    private long windowBytes;
+    private long windowBusy;
+    private int windowChunks;
+    private long throughput = 0;
+
+    /**
+     * Constructs a new AdaptiveBitrate starting on the highest rendition.
+     *
+     * @param ladder The renditions the client can decode, highest bitrate first.
+     */
+    public AdaptiveBitrate(List<Rendition> ladder) {
+        this.ladder = ladder;
+        restart(System.nanoTime());
+    }
+
+    /**
+     * Starts measuring from scratch, as when a session starts adapting: the
+     * lead and the window start over, the rendition and the probing state
+     * are kept.
+     *
+     * @param now The current time in nanoseconds.
+     */
+    public void restart(long now) {
+        start = now;
+        chunks = 0;
+        startWindow(now);
+    }
+
+    /**
+     * Takes a pause out of the measurement, since the client plays nothing
+     * and the server sends nothing while paused.
+     *
+     * @param nanos The length of the pause.
+     */
+    public void paused(long nanos) {
+        start += nanos;
+        windowStart += nanos;
+    }
+
+    /**
+     * Records a chunk sent and, at the end of a window, picks the rendition
+     * of the next chunks.
+     *
+     * @param bytes The bytes written for the chunk, header included.
+     * @param busy  The nanoseconds the send took.
+     * @param now   The current time in nanoseconds.
+     * @return true if the rendition changed.
+     */
+    public boolean sent(int bytes, long busy, long now) {
+        chunks++;
+        windowChunks++;
+        windowBytes += bytes;
+        windowBusy += busy;
+
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW_NANOS) {
+            return false;
+        }
+
+        double rate = windowChunks * 1e9 / elapsed;
+        throughput = windowBusy > 0 ? (long) (windowBytes * 8e9 / windowBusy) : Long.MAX_VALUE;
+        long lead = getLead(now);
+        startWindow(now);
+        windowsOnRung++;
+
+        if (rate < BEHIND * Rendition.CHUNKS_PER_SECOND) {
+            goodWindows = 0;
+            return (lead < SAFE_LEAD_CHUNKS || ++slowWindows > 1) && stepDown();
+        }
+        slowWindows = 0;
+
+        if (steppedUp && windowsOnRung == SETTLE_WINDOWS) {
+            hold = HOLD_WINDOWS; // The last step up held
+        }
+        if (lead >= SAFE_LEAD_CHUNKS && ++goodWindows >= hold && rung > 0) {
+            setRung(rung - 1);
+            steppedUp = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Steps down to the highest rendition that fits the throughput, at least
+     * one below the current one.
+     *
+     * @return true if the rendition changed.
+     */
+    private boolean stepDown() {
+        if (rung == ladder.size() - 1) {
+            return false;
+        }
+        if (steppedUp && windowsOnRung < SETTLE_WINDOWS) {
+            hold = Math.min(MAX_HOLD_WINDOWS, 2 * hold); // The probe failed, wait longer for the next
+        }
+
+        int target = rung + 1;
+        while (target < ladder.size() - 1 && getWireBitrate(ladder.get(target)) > HEADROOM * throughput) {
+            target++;
+        }
+        setRung(target);
+        steppedUp = false;
+        return true;
+    }
+
+    private void setRung(int rung) {
+        this.rung = rung;
+        goodWindows = 0;
+        windowsOnRung = 0;
+        slowWindows = 0;
+    }
+
+    private void startWindow(long now) {
+        windowStart = now;
+        windowBytes = 0;
+        windowBusy = 0;
+        windowChunks = 0;
+    }
+
+    /**
+     * Gets the bitrate a rendition takes on the wire, with the DATA header
+     * every chunk is framed in.
+     *
+     * @param rendition The rendition.
+     * @return The bitrate in bits per second.
+     */
+    public static long getWireBitrate(Rendition rendition) {
+        return (long) (rendition.getChunkBytes() + HEADER_BYTES) * 8 * Rendition.CHUNKS_PER_SECOND;
+    }
+
+    /**
+     * Get the rendition the next chunk is sent in
+     *
+     * @return Rendition of the next chunk
+     */
+    public Rendition getRendition() {
+        return ladder.get(rung);
+    }
+
+    /**
+     * Get the throughput measured over the last window
+     *
+     * @return long bits per second, Long.MAX_VALUE if no send blocked
+     */
+    public long getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * Gets how long to wait before the next chunk, so the session stays no
+     * more than {@value #MAX_LEAD_CHUNKS} chunks ahead. A client that has
+     * the rest of a file buffered in a low rendition would play all of it
+     * in that rendition once the link recovers.
+     *
+     * @param now The current time in nanoseconds.
+     * @return The nanoseconds to wait, 0 to send right away.
+     */
+    public long getWait(long now) {
+        return Math.max(0, (chunks - MAX_LEAD_CHUNKS) * CHUNK_NANOS - (now - start));
+    }
+
+    /**
+     * Gets the chunks sent beyond the time played since the measurement
+     * started.
+     *
+     * @param now The current time in nanoseconds.
+     * @return The lead in chunks, negative if the client has run dry.
+     */
+    public long getLead(long now) {
+        return chunks - (now - start) / CHUNK_NANOS;
+    }
+}
@@ -0,0 +1,156 @@
+package server;
+
+import common.BufferPool;
+import merrimackutil.net.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The AdmissionController class decides whether the server can take on more
+ * work without degrading the sessions it already serves. It is asked twice:
+ * <ul>
+ *     <li>At accept time, for the connection. A connection is accepted only
+ *     while a thread of the connection pool is free for it, so clients never
+ *     wait silently in the pool's queue.</li>
+ *     <li>At SETUP, for each session. A connection can carry many sessions,
+ *     so the session limit is applied here, counting the sessions of the
+ *     {@link SessionRegistry}. A session holds its slot until the registry
+ *     closes it, on TEARDOWN or when its connection ends.</li>
+ * </ul>
+ * Both checks also require the measured outbound bitrate plus one more
+ * stream, and the bytes held in pooled frame buffers, to stay below their
+ * limits. A limit of zero disables that check.
+ *
+ * Connections that are not accepted are shed by an {@link OverloadHandler},
+ * and a SETUP that is not admitted is answered the same way, with 503
+ * Service Unavailable and a Retry-After header.
+ */
+public class AdmissionController {
+
+    public static final long STREAM_BITRATE = 44100L * 16 * 2; // One 44.1 kHz 16-bit stereo stream, in bits per second
+
+    private final int maxConnections;
+    private final int maxSessions;
+    private final long maxOutboundBitrate;
+    private final long maxBufferedBytes;
+    private final int retryAfter;
+    private final TrafficMeter meter;
+    private final BufferPool pool;
+    private final SessionRegistry registry;
+    private final Log logger;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * Constructs a new AdmissionController.
+     *
+     * @param maxConnections     The largest number of concurrent connections.
+     * @param maxSessions        The largest number of concurrent sessions.
+     * @param maxOutboundBitrate The largest aggregate outbound bitrate in bits per second, or zero for no limit.
+     * @param maxBufferedBytes   The largest number of bytes in pooled frame buffers, or zero for no limit.
+     * @param retryAfter         The number of seconds a shed client is asked to wait.
+     * @param meter              The meter measuring the outbound bitrate.
+     * @param pool               The pool holding the frame buffers.
+     * @param registry           The registry holding the sessions.
+     * @param logger             The logger used to record rejections.
+     */
+    public AdmissionController(int maxConnections, int maxSessions, long maxOutboundBitrate, long maxBufferedBytes,
+                               int retryAfter, TrafficMeter meter, BufferPool pool, SessionRegistry registry,
+                               Log logger) {
+        this.maxConnections = maxConnections;
+        this.maxSessions = maxSessions;
+        this.maxOutboundBitrate = maxOutboundBitrate;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.retryAfter = retryAfter;
+        this.meter = meter;
+        this.pool = pool;
+        this.registry = registry;
+        this.logger = logger;
+    }
+
+    /**
+     * Tries to accept a new connection. An accepted connection holds a slot
+     * until {@link #releaseConnection()} is called.
+     *
+     * @return true if the connection is accepted, false if it must be shed.
+     */
+    public boolean tryAccept() {
+        if (overloaded()) {
+            return false;
+        }
+
+        while (true) {
+            int active = connections.get();
+            if (active >= maxConnections) {
+                logger.log("ERROR: Rejected client, " + active + " connections open.");
+                return false;
+            }
+            if (connections.compareAndSet(active, active + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases the slot of an accepted connection.
+     */
+    public void releaseConnection() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Tries to open a session for a client setting one up.
+     *
+     * @param client The address of the client.
+     * @return The new session, or null if it must be shed.
+     */
+    public SessionState tryOpen(String client) {
+        if (overloaded()) {
+            return null;
+        }
+
+        SessionState session = registry.open(client, maxSessions);
+        if (session == null) {
+            logger.log("ERROR: Rejected session, " + registry.size() + " sessions active.");
+        }
+        return session;
+    }
+
+    /**
+     * Checks the outbound bitrate and the buffered bytes against their
+     * limits, logging the one that is exceeded.
+     *
+     * @return true if either limit would be exceeded by one more stream.
+     */
+    private boolean overloaded() {
+        long bitrate = meter.getBitrate();
+        if (maxOutboundBitrate > 0 && bitrate + STREAM_BITRATE > maxOutboundBitrate) {
+            logger.log("ERROR: Rejected client, outbound bitrate at " + bitrate / 1000 + " kbps.");
+            return true;
+        }
+
+        long buffered = pool.getUsedBytes();
+        if (maxBufferedBytes > 0 && buffered >= maxBufferedBytes) {
+            logger.log("ERROR: Rejected client, " + buffered + " bytes buffered.");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of active sessions
+     *
+     * @return int active sessions
+     */
+    public int getActiveSessions() {
+        return registry.size();
+    }
+
+    /**
+     * Get the time a shed client is asked to wait before retrying
+     *
+     * @return int seconds
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,280 @@
+package server;
+
+import client.PlaySong;
+import client.SendSong;
+import common.MessageSocket;
+import merrimackutil.net.Log;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * The AllocationCheck class checks that the loops streaming chunks stay
+ * within their allocation budget, and fails the build when one does not.
+ *
+ * A file is played from a {@link PlayHandler} to a headless {@link PlaySong}
+ * and recorded from a {@link SendSong} to a {@link RecordHandler}, over
+ * loopback. Both are done twice: with binary frames and checksums, as this
+ * client asks for them, and with Base64 text frames, as clients that do not
+ * ask for {@code payload=binary} get them. Once the loops have run long
+ * enough to be compiled, the bytes each thread allocates on the heap are
+ * measured over a window of chunks and divided by the chunks in it. A loop
+ * over its budget is reported, and the check exits with status 1. It is run
+ * without a flight recording, as the events of recorded chunks are
+ * allocated.
+ *
+ * It runs client and server classes in one JVM, so it is run from the build
+ * tree by {@code ant check} rather than from either jar. The files it writes
+ * are deleted when it ends.
+ */
+public class AllocationCheck {
+
+    private static final int SECONDS = 40; // Of audio streamed each way on each path
+    private static final int WARMUP_CHUNKS = 2500;
+    private static final int MEASURED_CHUNKS = 1000;
+    private static final long BUDGET = 16; // Bytes a loop may allocate per chunk, less than any object
+    private static final int SESSION = 123456; // Within the range pre-framed segments can be patched for
+    private static final int SOCKET_BUFFER = 64 * 1024; // Keeps a sender close enough to be measured with its receiver
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Runs the check.
+     *
+     * @param args Unused.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (!THREADS.isThreadAllocatedMemorySupported()) {
+            System.out.println("Thread allocation is not measured by this JVM");
+            System.exit(1);
+        }
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        Path dir = Files.createTempDirectory("allocationcheck");
+        boolean within;
+        try {
+            within = check(dir.toFile());
+        } finally {
+            OriginTransferCheck.delete(dir);
+        }
+
+        if (!within) {
+            System.out.println("Allocation check failed: a loop allocates more than " + BUDGET + " bytes per chunk");
+            System.exit(1);
+        }
+        System.out.println("Allocation check passed");
+        System.exit(0); // The handlers' pools and the journal committer keep the JVM alive
+    }
+
+    /**
+     * Streams a file each way on both paths and measures every loop.
+     *
+     * @param dir The directory to write the files in.
+     * @return true if every loop is within the budget.
+     */
+    private static boolean check(File dir) throws IOException, InterruptedException {
+        File audio = new File(dir, "check.wav");
+        writeAudio(audio);
+
+        Log log = new Log(new File(dir, "allocationcheck.log").getPath(), "AllocationCheck");
+        Catalog catalog = new Catalog(dir.getPath(), log);
+        catalog.ingest(audio);
+        RecordJournal.shared().open(new File(dir, ".journal"), 10, 1 << 20, log);
+
+        boolean within = true;
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress("127.0.0.1", 0));
+            within &= play(listener, catalog, audio, log, true, SESSION);
+            within &= record(listener, catalog, audio, new File(dir, "binary.wav"), log, true, SESSION + 1);
+            within &= play(listener, catalog, audio, log, false, SESSION + 2);
+            within &= record(listener, catalog, audio, new File(dir, "text.wav"), log, false, SESSION + 3);
+        } finally {
+            RecordJournal.shared().close();
+        }
+        return within;
+    }
+
+    /**
+     * Plays a file from a PlayHandler to a PlaySong and measures both.
+     *
+     * @param listener The channel media connections are accepted from.
+     * @param catalog  The library the file is played from.
+     * @param audio    The file.
+     * @param log      The log of the handler.
+     * @param binary   Whether to send binary frames with checksums rather than text frames.
+     * @param session  The session ID.
+     * @return true if both loops are within the budget.
+     */
+    private static boolean play(ServerSocketChannel listener, Catalog catalog, File audio, Log log, boolean binary,
+                                int session) throws IOException, InterruptedException {
+        MessageSocket player = connect(listener);
+        PlayHandler playHandler = new PlayHandler(accept(listener), audio.getPath(), log, session, catalog, binary);
+        playHandler.setOutputRate(PlaySong.SAMPLE_RATE);
+        playHandler.setChecksums(binary);
+        AtomicInteger played = new AtomicInteger();
+        PlaySong playSong = new PlaySong(player, session, (bytes, length) -> played.incrementAndGet());
+        playSong.setChecksums(binary);
+        playHandler.start();
+        playSong.start();
+
+        String path = binary ? " (binary)" : " (text)";
+        boolean within = measure(played::get, playHandler, "PlayHandler" + path, playSong, "PlaySong" + path);
+        playSong.join();
+        playHandler.stopPlayback();
+        player.close();
+        return within;
+    }
+
+    /**
+     * Records a file from a SendSong to a RecordHandler and measures both.
+     *
+     * @param listener The channel media connections are accepted from.
+     * @param catalog  The library the recording is added to.
+     * @param audio    The file sent.
+     * @param file     The file recorded.
+     * @param log      The log of the handler.
+     * @param binary   Whether to send binary frames with checksums rather than text frames.
+     * @param session  The session ID.
+     * @return true if both loops are within the budget.
+     */
+    private static boolean record(ServerSocketChannel listener, Catalog catalog, File audio, File file, Log log,
+                                  boolean binary, int session) throws IOException, InterruptedException {
+        MessageSocket recorder = connect(listener);
+        Upload upload = UploadRegistry.shared().begin(session, file, null);
+        RecordHandler recordHandler = new RecordHandler(accept(listener), upload, log, catalog);
+        SendSong sendSong = new SendSong(recorder, audio, session, binary);
+        sendSong.setChecksums(binary);
+        recordHandler.start();
+        sendSong.start();
+
+        String path = binary ? " (binary)" : " (text)";
+        boolean within = measure(upload::getAcknowledged, sendSong, "SendSong" + path, recordHandler,
+                "RecordHandler" + path);
+        sendSong.join();
+        recordHandler.join();
+        recorder.close();
+        return within;
+    }
+
+    /**
+     * Opens a media connection to the listener with small socket buffers.
+     * A sender can otherwise fill megabytes of loopback buffers and finish
+     * before its receiver has been measured.
+     *
+     * @param listener The channel media connections are accepted from.
+     * @return The client's end of the connection.
+     */
+    private static MessageSocket connect(ServerSocketChannel listener) throws IOException {
+        MessageSocket socket = new MessageSocket("127.0.0.1", listener.socket().getLocalPort());
+        socket.setSendBufferSize(SOCKET_BUFFER);
+        socket.setReceiveBufferSize(SOCKET_BUFFER);
+        return socket;
+    }
+
+    /**
+     * Accepts a media connection with small socket buffers.
+     *
+     * @param listener The channel media connections are accepted from.
+     * @return The server's end of the connection.
+     */
+    private static MessageSocket accept(ServerSocketChannel listener) throws IOException {
+        Socket socket = listener.accept().socket();
+        socket.setSendBufferSize(SOCKET_BUFFER);
+        socket.setReceiveBufferSize(SOCKET_BUFFER);
+        return new MessageSocket(socket);
+    }
+
+    /**
+     * Measures the bytes two threads allocate per chunk over a window of
+     * chunks after the warm-up, and prints them against the budget.
+     *
+     * @param progress The number of chunks streamed so far.
+     * @param sender   The thread sending the chunks.
+     * @param sendName The name of the sending loop.
+     * @param receiver The thread receiving the chunks.
+     * @param recvName The name of the receiving loop.
+     * @return true if both loops are within the budget.
+     */
+    private static boolean measure(IntSupplier progress, Thread sender, String sendName, Thread receiver,
+                                   String recvName) throws InterruptedException {
+        awaitChunks(progress, WARMUP_CHUNKS);
+        int start = progress.getAsInt();
+        long sent = THREADS.getThreadAllocatedBytes(sender.getId());
+        long received = THREADS.getThreadAllocatedBytes(receiver.getId());
+
+        awaitChunks(progress, start + MEASURED_CHUNKS);
+        long sentAfter = THREADS.getThreadAllocatedBytes(sender.getId());
+        long receivedAfter = THREADS.getThreadAllocatedBytes(receiver.getId());
+        int chunks = progress.getAsInt() - start;
+        if (sent < 0 || received < 0 || sentAfter < 0 || receivedAfter < 0) {
+            throw new IllegalStateException(sendName + " or " + recvName + " ended before it was measured");
+        }
+
+        return report(sendName, (sentAfter - sent) / (double) chunks)
+                & report(recvName, (receivedAfter - received) / (double) chunks);
+    }
+
+    /**
+     * Prints the allocation of a loop against the budget.
+     *
+     * @param name     The name of the loop.
+     * @param perChunk The bytes it allocated per chunk.
+     * @return true if it is within the budget.
+     */
+    private static boolean report(String name, double perChunk) {
+        boolean within = perChunk <= BUDGET;
+        System.out.printf("%-24s %8.1f bytes per chunk (budget %d) %s%n", name, perChunk, BUDGET,
+                within ? "OK" : "OVER BUDGET");
+        return within;
+    }
+
+    /**
+     * Waits until a number of chunks have been streamed.
+     *
+     * @param progress The number of chunks streamed so far.
+     * @param chunks   The number to wait for.
+     */
+    private static void awaitChunks(IntSupplier progress, int chunks) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (progress.getAsInt() < chunks) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Only " + progress.getAsInt() + " of " + chunks + " chunks streamed");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Writes a 16-bit stereo 44.1 kHz WAV file of a tone.
+     *
+     * @param file The file to write.
+     */
+    private static void writeAudio(File file) throws IOException {
+        AudioFormat format = new AudioFormat(44100f, 16, 2, true, false);
+        int frames = SECONDS * 44100;
+        byte[] samples = new byte[frames * 4];
+        for (int i = 0; i < frames; i++) {
+            short sample = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / 44100.0));
+            samples[4 * i] = samples[4 * i + 2] = (byte) sample;
+            samples[4 * i + 1] = samples[4 * i + 3] = (byte) (sample >> 8);
+        }
+        try (AudioInputStream stream = new AudioInputStream(new ByteArrayInputStream(samples), format, frames)) {
+            AudioSystem.write(stream, AudioFileFormat.Type.WAVE, file);
+        }
+    }
+}
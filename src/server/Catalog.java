@@ -0,0 +1,298 @@
+package server;
+
+import merrimackutil.net.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Catalog class keeps track of the media library in the database directory
+ * and runs the ingest steps that prepare a file for playback. Ingest runs once
+ * when a recording finishes and for every file during a library scan, so that
+ * the work does not have to be repeated for each listener.
+ */
+public class Catalog {
+
+    private final String databaseDir;
+    private final Log logger;
+    private final SegmentStore segmentStore;
+    private final LoudnessStore loudnessStore;
+    private final ChecksumStore checksumStore;
+    private final RenditionStore renditionStore;
+    private final AtomicLong version = new AtomicLong();
+    private volatile double loudnessTarget = Double.NaN;
+    private volatile boolean adaptiveBitrate = true;
+    private EdgeCache edgeCache;
+    private Replicator replicator;
+
+    /**
+     * Constructs a new Catalog over the given database directory.
+     *
+     * @param databaseDir The database directory holding the media files.
+     * @param logger      The logger used to record ingest events.
+     */
+    public Catalog(String databaseDir, Log logger) {
+        this.databaseDir = databaseDir;
+        this.logger = logger;
+        this.segmentStore = new SegmentStore(databaseDir, logger);
+        this.loudnessStore = new LoudnessStore(databaseDir, logger);
+        this.checksumStore = new ChecksumStore(databaseDir, logger);
+        this.renditionStore = new RenditionStore(databaseDir, logger);
+    }
+
+    /**
+     * Get the database directory
+     *
+     * @return String of database directory
+     */
+    public String getDatabaseDir() {
+        return databaseDir;
+    }
+
+    /**
+     * Get the segment store
+     *
+     * @return SegmentStore of pre-framed media
+     */
+    public SegmentStore getSegmentStore() {
+        return segmentStore;
+    }
+
+    /**
+     * Get the loudness store
+     *
+     * @return LoudnessStore of measured file loudness
+     */
+    public LoudnessStore getLoudnessStore() {
+        return loudnessStore;
+    }
+
+    /**
+     * Get the checksum store
+     *
+     * @return ChecksumStore of per-block file checksums
+     */
+    public ChecksumStore getChecksumStore() {
+        return checksumStore;
+    }
+
+    /**
+     * Get the rendition store
+     *
+     * @return RenditionStore of lower bitrate renditions
+     */
+    public RenditionStore getRenditionStore() {
+        return renditionStore;
+    }
+
+    /**
+     * Lets sessions whose clients decode several codecs switch renditions
+     * as their throughput changes.
+     *
+     * @param adaptiveBitrate Whether sessions adapt their bitrate.
+     */
+    public void setAdaptiveBitrate(boolean adaptiveBitrate) {
+        this.adaptiveBitrate = adaptiveBitrate;
+    }
+
+    /**
+     * Check if sessions adapt their bitrate
+     *
+     * @return true if sessions may switch renditions
+     */
+    public boolean isAdaptiveBitrate() {
+        return adaptiveBitrate;
+    }
+
+    /**
+     * Makes playback bring every file to a common loudness.
+     *
+     * @param target The loudness files are played at in LUFS, or NaN to play them at their own level.
+     */
+    public void setLoudnessTarget(double target) {
+        this.loudnessTarget = target;
+    }
+
+    /**
+     * Gets the gain a file is played with to reach the loudness target.
+     *
+     * @param file The media file.
+     * @return The linear gain, 1 if there is no target or the file has not been measured.
+     */
+    public double gainFor(File file) {
+        if (Double.isNaN(loudnessTarget)) {
+            return 1.0;
+        }
+        Loudness loudness = loudnessStore.get(file);
+        return loudness == null ? 1.0 : loudness.gainFor(loudnessTarget);
+    }
+
+    /**
+     * Get the edge cache
+     *
+     * @return EdgeCache of files fetched from the origin, or null if this server is not an edge
+     */
+    public EdgeCache getEdgeCache() {
+        return edgeCache;
+    }
+
+    /**
+     * Makes this library an edge in front of an origin server. Files that are
+     * not held locally are then fetched from the origin into a bounded cache.
+     *
+     * @param origin   The host:port of the origin server.
+     * @param maxBytes The largest total size of the cached files.
+     */
+    public void setOrigin(String origin, long maxBytes) {
+        this.edgeCache = new EdgeCache(databaseDir, origin, maxBytes, segmentStore, logger);
+    }
+
+    /**
+     * Get the replicator
+     *
+     * @return Replicator copying recordings to peers, or null if recordings are not replicated
+     */
+    public Replicator getReplicator() {
+        return replicator;
+    }
+
+    /**
+     * Sets the replicator that copies new recordings to peer servers.
+     *
+     * @param replicator The replicator.
+     */
+    public void setReplicator(Replicator replicator) {
+        this.replicator = replicator;
+    }
+
+    /**
+     * Get the version of the library, which changes whenever a file is ingested or removed
+     *
+     * @return long library version
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Lists every media file in the database directory, skipping the hidden
+     * directories used for derived data.
+     *
+     * @return The media files in the library.
+     */
+    public List<File> listMedia() {
+        List<File> media = new ArrayList<>();
+        collect(new File(databaseDir), media);
+        return media;
+    }
+
+    /**
+     * Gets the name a media file is requested under.
+     *
+     * @param file The media file.
+     * @return The file name relative to the database directory, with / separators.
+     */
+    public String nameOf(File file) {
+        Path dir = new File(databaseDir).toPath().toAbsolutePath().normalize();
+        return dir.relativize(file.toPath().toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Deletes a media file and its derived data from the library. Listeners
+     * still playing it keep reading their open handle.
+     *
+     * @param file The media file to remove.
+     * @return true if the file was deleted.
+     */
+    public boolean remove(File file) {
+        segmentStore.remove(file);
+        loudnessStore.remove(file);
+        checksumStore.remove(file);
+        renditionStore.remove(file);
+        if (!file.delete()) {
+            logger.log("ERROR: Unable to remove " + file.getPath());
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Runs the ingest steps for a single media file.
+     *
+     * @param file The media file to ingest.
+     */
+    public void ingest(File file) {
+        try {
+            checksumStore.build(file);
+            if (LosslessCodec.isLossless(file)) {
+                segmentStore.remove(file); // Compressed files are decoded as they play, never sent pre-framed
+            } else {
+                segmentStore.build(file);
+            }
+            loudnessStore.analyze(file);
+            version.incrementAndGet();
+        } catch (IOException e) {
+            logger.log("ERROR: Unable to ingest " + file.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Scans the library and ingests every media file whose derived data is
+     * missing or stale. The scan runs on a background daemon thread, which
+     * ingests the files in parallel on a fork-join pool with a worker per
+     * core, since measuring loudness keeps a core busy for each file.
+     */
+    public void scan() {
+        Thread scanner = new Thread(() -> {
+            List<File> media = listMedia();
+            logger.log("INFO: Catalog scan found " + media.size() + " media files.");
+
+            ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            try {
+                pool.submit(() -> media.parallelStream().forEach(this::ingest)).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                logger.log("ERROR: Catalog scan failed: " + e.getCause().getMessage());
+            } finally {
+                pool.shutdown();
+            }
+
+            logger.log("INFO: Catalog scan finished.");
+        }, "catalog-scan");
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    /**
+     * Recursively collects the regular files below a directory.
+     *
+     * @param dir   The directory to walk.
+     * @param media The list the files are added to.
+     */
+    private void collect(File dir, List<File> media) {
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return;
+        }
+
+        for (File entry : entries) {
+            if (entry.getName().startsWith(".")) {
+                continue;
+            }
+
+            if (entry.isDirectory()) {
+                collect(entry, media);
+            } else {
+                media.add(entry);
+            }
+        }
+    }
+}
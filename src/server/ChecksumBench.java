@@ -0,0 +1,125 @@
+package server;
+
+import common.BufferPool;
+import common.messages.DataFrame;
+import merrimackutil.net.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * The ChecksumBench class measures what CRC32C checksums cost a stream.
+ *
+ * A chunk is 10ms of audio, so a stream sends 100 of them a second. The
+ * sender computes the checksum of each chunk and the receiver verifies it,
+ * both on the pooled off-heap payload, and the time the pair takes is
+ * reported per chunk and as the share of one core a stream spends on it.
+ * CRC32 is measured on the same chunks for comparison. Stored checksums are
+ * measured per {@value ChecksumStore#BLOCK_BYTES} byte block: the first
+ * check of a block reads and checksums it, every later one hits the cache.
+ */
+public class ChecksumBench {
+
+    private static final int CHUNK_BYTES = 1764; // 10ms of 44.1 kHz stereo
+    private static final int CHUNKS_PER_SECOND = 100;
+    private static final int ITERATIONS = 2_000_000;
+    private static final int RUNS = 5;
+    private static final int FILE_BYTES = 64 << 20;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Unused.
+     */
+    public static void main(String[] args) throws IOException {
+        DataFrame frame = new DataFrame(BufferPool.shared());
+        byte[] audio = new byte[CHUNK_BYTES];
+        new Random(42).nextBytes(audio);
+        frame.writablePayload().put(0, audio, 0, CHUNK_BYTES);
+        frame.set("DATA", 0, 1, CHUNK_BYTES, true);
+
+        double crc32c = Double.MAX_VALUE;
+        double crc32 = Double.MAX_VALUE;
+        long sink = 0;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                frame.computeChecksum();
+                sink += frame.isIntact() ? 1 : 0;
+            }
+            crc32c = Math.min(crc32c, (System.nanoTime() - start) / (double) ITERATIONS);
+
+            CRC32 crc = new CRC32();
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                crc.reset();
+                crc.update(frame.getPayload());
+                sink += crc.getValue();
+                crc.reset();
+                crc.update(frame.getPayload());
+                sink += crc.getValue();
+            }
+            crc32 = Math.min(crc32, (System.nanoTime() - start) / (double) ITERATIONS);
+        }
+        frame.release();
+
+        System.out.printf("CRC32C, computed and verified: %.0f ns per %d byte chunk (%.1f GB/s)%n", crc32c,
+                CHUNK_BYTES, 2 * CHUNK_BYTES / crc32c);
+        System.out.printf("CRC32, computed and verified:  %.0f ns per chunk%n", crc32);
+        System.out.printf("Per stream: %.1f us of CPU a second, %.4f%% of a core, %.0f streams per core%n",
+                crc32c * CHUNKS_PER_SECOND / 1000, crc32c * CHUNKS_PER_SECOND / 1e7,
+                1e9 / (crc32c * CHUNKS_PER_SECOND));
+
+        File dir = File.createTempFile("checksums", "");
+        dir.delete();
+        dir.mkdirs();
+        File media = new File(dir, "bench.wav");
+        try (RandomAccessFile out = new RandomAccessFile(media, "rw")) {
+            byte[] block = new byte[1 << 20];
+            Random random = new Random(7);
+            for (int written = 0; written < FILE_BYTES; written += block.length) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+
+        Log log = new Log(new File(dir, "bench.log").getPath(), "ChecksumBench");
+        ChecksumStore store = new ChecksumStore(dir.getPath(), log);
+        long start = System.nanoTime();
+        store.build(media);
+        double build = (System.nanoTime() - start) / 1e9;
+
+        // A fresh store has the checksums on disk but has checked no block yet
+        ChecksumStore.Checksums sums = new ChecksumStore(dir.getPath(), log).get(media);
+        int blocks = sums.getBlockCount();
+        double first;
+        double cached;
+        try (FileChannel channel = FileChannel.open(media.toPath())) {
+            start = System.nanoTime();
+            for (long position = 0; position < FILE_BYTES; position += CHUNK_BYTES) {
+                sink += sums.check(channel, position, CHUNK_BYTES) ? 1 : 0;
+            }
+            first = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (long position = 0; position < FILE_BYTES; position += CHUNK_BYTES) {
+                sink += sums.check(channel, position, CHUNK_BYTES) ? 1 : 0;
+            }
+            cached = System.nanoTime() - start;
+        }
+        long chunks = (FILE_BYTES + CHUNK_BYTES - 1) / CHUNK_BYTES;
+
+        System.out.printf("Checksum file built in %.2f s, %.0f MB/s%n", build, FILE_BYTES / build / (1 << 20));
+        System.out.printf("First read: %.1f us per block, %.0f ns per chunk; later reads: %.0f ns per chunk%n",
+                first / blocks / 1000, first / chunks, cached / chunks);
+        System.out.printf("%d of %d blocks verified (%d)%n", sums.getVerifiedCount(), blocks, sink);
+
+        store.remove(media);
+        media.delete();
+        new File(dir, "bench.log").delete();
+    }
+}
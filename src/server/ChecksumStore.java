@@ -0,0 +1,270 @@
+package server;
+
+import merrimackutil.net.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * The ChecksumStore class keeps a CRC32C of every {@value #BLOCK_BYTES} byte
+ * block of every media file, in a small file next to its segments, so that
+ * a file damaged on disk after it was ingested is noticed instead of played.
+ * Like a loudness file, a checksum file remembers the length and
+ * modification time of its source and is built again whenever the source
+ * changes.
+ *
+ * Blocks are verified lazily: the first read of a block since the server
+ * started checks it against its checksum, and the result is cached for
+ * every later read by any listener. A block that does not match is logged
+ * once and reported to the reader each time it is read.
+ */
+public class ChecksumStore {
+
+    public static final int BLOCK_BYTES = 64 * 1024;
+
+    private static final int MAGIC = 0x43524352; // "RCRC"
+    private static final int VERSION = 1;
+    private static final String CHECKSUM_DIR = ".checksums";
+    private static final String CHECKSUM_SUFFIX = ".crc";
+
+    private final File databaseDir;
+    private final File checksumDir;
+    private final Log logger;
+    private final ConcurrentHashMap<String, Checksums> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a new ChecksumStore for the given database directory.
+     *
+     * @param databaseDir The database directory holding the source media files.
+     * @param logger      The logger used to record damaged blocks.
+     */
+    public ChecksumStore(String databaseDir, Log logger) {
+        this.databaseDir = new File(databaseDir);
+        this.checksumDir = new File(databaseDir, CHECKSUM_DIR);
+        this.logger = logger;
+    }
+
+    /**
+     * Gets the checksum file that belongs to a source media file.
+     *
+     * @param source The source media file.
+     * @return The checksum file location.
+     */
+    public File checksumFile(File source) {
+        String relative = databaseDir.toPath().toAbsolutePath().normalize()
+                .relativize(source.toPath().toAbsolutePath().normalize()).toString();
+        return new File(checksumDir, relative + CHECKSUM_SUFFIX);
+    }
+
+    /**
+     * Checksums every block of a source file and stores the result, unless up
+     * to date checksums are already stored. The blocks are taken as good,
+     * they are checked against these checksums from now on.
+     *
+     * @param source The source media file.
+     * @throws IOException if the source cannot be read or the result cannot be written.
+     */
+    public void build(File source) throws IOException {
+        if (get(source) != null) {
+            return;
+        }
+
+        long length = source.length();
+        long lastModified = source.lastModified();
+        int[] sums = new int[(int) ((length + BLOCK_BYTES - 1) / BLOCK_BYTES)];
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_BYTES);
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(source.toPath())) {
+            for (int i = 0; i < sums.length; i++) {
+                readBlock(channel, block, i, length);
+                crc.reset();
+                crc.update(block.flip());
+                sums[i] = (int) crc.getValue();
+            }
+        }
+
+        File file = checksumFile(source);
+        file.getParentFile().mkdirs();
+        File tmpFile = new File(file.getPath() + ".tmp." + Thread.currentThread().getId());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeInt(BLOCK_BYTES);
+            out.writeInt(sums.length);
+            for (int sum : sums) {
+                out.writeInt(sum);
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Checksums checksums = new Checksums(source, length, lastModified, sums);
+        checksums.verified.set(0, sums.length); // Read just now
+        cache.put(source.getAbsolutePath(), checksums);
+    }
+
+    /**
+     * Gets the stored checksums of a source file.
+     *
+     * @param source The source media file.
+     * @return The checksums, or null if the file has not been checksummed since it last changed.
+     */
+    public Checksums get(File source) {
+        long length = source.length();
+        long lastModified = source.lastModified();
+
+        Checksums checksums = cache.get(source.getAbsolutePath());
+        if (checksums != null && checksums.length == length && checksums.lastModified == lastModified) {
+            return checksums;
+        }
+
+        File file = checksumFile(source);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != length || in.readLong() != lastModified || in.readInt() != BLOCK_BYTES) {
+                return null;
+            }
+            int[] sums = new int[in.readInt()];
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] = in.readInt();
+            }
+            Checksums loaded = new Checksums(source, length, lastModified, sums);
+            return cache.compute(source.getAbsolutePath(), (key, cached) -> cached != null
+                    && cached.length == length && cached.lastModified == lastModified ? cached : loaded);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Removes the checksum file of a source file, if any.
+     *
+     * @param source The source media file.
+     */
+    public void remove(File source) {
+        cache.remove(source.getAbsolutePath());
+        File file = checksumFile(source);
+        if (file.exists() && !file.delete()) {
+            logger.log("ERROR: Unable to remove checksum file " + file.getPath());
+        }
+    }
+
+    /**
+     * Reads one block of a file into a buffer.
+     */
+    private static void readBlock(FileChannel channel, ByteBuffer block, int index, long length) throws IOException {
+        long start = (long) index * BLOCK_BYTES;
+        block.clear().limit((int) Math.min(BLOCK_BYTES, length - start));
+        while (block.hasRemaining()) {
+            if (channel.read(block, start + block.position()) < 0) {
+                throw new EOFException("File ends before block " + index);
+            }
+        }
+    }
+
+    /**
+     * The Checksums of one version of a source file, with the blocks found
+     * good or damaged so far.
+     */
+    public class Checksums {
+
+        private final File source;
+        private final long length;
+        private final long lastModified;
+        private final int[] sums;
+        private final BitSet verified = new BitSet();
+        private final BitSet damaged = new BitSet();
+
+        Checksums(File source, long length, long lastModified, int[] sums) {
+            this.source = source;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.sums = sums;
+        }
+
+        /**
+         * Checks the blocks a read of the source touches, reading each block
+         * that has not been checked yet.
+         *
+         * @param channel  The source, opened by the reader.
+         * @param position The position of the read in the source.
+         * @param count    The length of the read.
+         * @return true if every block touched matches its checksum.
+         * @throws IOException if a block cannot be read.
+         */
+        public boolean check(FileChannel channel, long position, long count) throws IOException {
+            if (count <= 0) {
+                return true;
+            }
+
+            int first = (int) (position / BLOCK_BYTES);
+            int last = (int) ((Math.min(position + count, length) - 1) / BLOCK_BYTES);
+            boolean intact = true;
+            for (int i = first; i <= last && i < sums.length; i++) {
+                intact &= checkBlock(channel, i);
+            }
+            return intact;
+        }
+
+        /**
+         * Checks one block unless it was checked before.
+         *
+         * @return true if the block matches its checksum
+         */
+        private boolean checkBlock(FileChannel channel, int index) throws IOException {
+            synchronized (this) {
+                if (verified.get(index)) {
+                    return true;
+                }
+                if (damaged.get(index)) {
+                    return false;
+                }
+            }
+
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_BYTES);
+            readBlock(channel, block, index, length);
+            CRC32C crc = new CRC32C();
+            crc.update(block.flip());
+            boolean intact = (int) crc.getValue() == sums[index];
+
+            synchronized (this) {
+                if (intact) {
+                    verified.set(index);
+                } else if (!damaged.get(index)) {
+                    damaged.set(index);
+                    logger.log("ERROR: Block " + index + " of " + source.getPath() + " does not match its checksum.");
+                }
+            }
+            return intact;
+        }
+
+        /**
+         * Get the number of blocks checked and found good
+         *
+         * @return int verified blocks
+         */
+        public synchronized int getVerifiedCount() {
+            return verified.cardinality();
+        }
+
+        /**
+         * Get the number of blocks
+         *
+         * @return int blocks of the source
+         */
+        public int getBlockCount() {
+            return sums.length;
+        }
+    }
+}
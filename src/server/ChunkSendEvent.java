@@ -0,0 +1,35 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The ChunkSendEvent is recorded by Java Flight Recorder for each chunk a
+ * {@link PlayHandler} sends. Its duration is the time the handler was
+ * blocked sending the chunk: reading or converting it, and waiting for room
+ * in the socket buffer of a slow client.
+ */
+@Name("streaming.ChunkSend")
+@Label("Chunk Send")
+@Category({"Streaming", "Media"})
+@Description("A chunk of audio sent to a listener")
+class ChunkSendEvent extends jdk.jfr.Event {
+
+    @Label("Session")
+    int session;
+
+    @Label("Sequence")
+    int sequence;
+
+    @Label("Size")
+    @Description("The bytes written for the chunk, header included")
+    @DataAmount(DataAmount.BYTES)
+    int bytes;
+
+    @Label("Track")
+    @Description("The send path of the chunk")
+    String track;
+}
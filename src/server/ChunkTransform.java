@@ -0,0 +1,30 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ChunkTransform changes the audio bytes of each chunk on its way from the
+ * media file to the client, for example to apply gain or convert the format.
+ * While a transform is active {@link PlayHandler} cannot hand the file region
+ * to the socket directly and falls back to buffered copies.
+ */
+public interface ChunkTransform {
+
+    /**
+     * Gets the largest number of bytes the transform can produce from a chunk.
+     *
+     * @param inputLength The length of the input chunk in bytes.
+     * @return The largest output length in bytes.
+     */
+    int maxOutputLength(int inputLength);
+
+    /**
+     * Transforms a chunk in place. The chunk starts at index zero of the
+     * buffer, whose byte order is little-endian like the PCM samples.
+     *
+     * @param chunk  The buffer holding the chunk, at least {@link #maxOutputLength(int)} long.
+     * @param length The length of the input chunk in bytes.
+     * @return The length of the transformed chunk in bytes.
+     */
+    int apply(ByteBuffer chunk, int length);
+}
@@ -0,0 +1,331 @@
+package server;
+
+import merrimackutil.net.Log;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The ClusterNode class connects a server to the cluster {@link Coordinator}.
+ * It reports the server's load once per heartbeat, together with its library
+ * whenever that has changed, and asks the coordinator where to redirect a
+ * client that this server should not serve: either because the requested
+ * file lives on another node, or because this node is loaded noticeably more
+ * than the least loaded node that could serve the request instead.
+ *
+ * If the coordinator cannot be reached, the node simply serves everything
+ * itself.
+ */
+public class ClusterNode {
+
+    public static final long HEARTBEAT_MILLIS = 1000;
+
+    private static final int TIMEOUT = 500; // Milliseconds to connect to and wait for the coordinator
+    private static final double REDIRECT_LOAD = 0.75; // Load above which clients are sent to peers
+    private static final double REDIRECT_MARGIN = 0.1; // How much less loaded a peer must be
+
+    private final String self;
+    private final String coordinatorHost;
+    private final int coordinatorPort;
+    private final Catalog catalog;
+    private final AdmissionController admission;
+    private final TrafficMeter meter;
+    private final int capacity;
+    private final Log logger;
+    private long reportedVersion = -1;
+    private Placement placement;
+    private int replicaPort = 0;
+
+    /**
+     * Constructs a new ClusterNode.
+     *
+     * @param self        The host:port clients reach this server on.
+     * @param coordinator The host:port of the coordinator.
+     * @param catalog     The library of this server.
+     * @param admission   The admission controller counting active sessions.
+     * @param meter       The meter measuring the outbound bitrate.
+     * @param capacity    The largest number of concurrent sessions.
+     * @param logger      The logger used to record cluster events.
+     */
+    public ClusterNode(String self, String coordinator, Catalog catalog, AdmissionController admission,
+                       TrafficMeter meter, int capacity, Log logger) {
+        String[] parts = coordinator.split(":");
+        this.self = self;
+        this.coordinatorHost = parts[0];
+        this.coordinatorPort = Integer.parseInt(parts[1]);
+        this.catalog = catalog;
+        this.admission = admission;
+        this.meter = meter;
+        this.capacity = capacity;
+        this.logger = logger;
+    }
+
+    /**
+     * Get the address of this node
+     *
+     * @return String host:port of this node
+     */
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * Get the placement of files on the cluster
+     *
+     * @return Placement of files, or null if the library is not sharded
+     */
+    public Placement getPlacement() {
+        return placement;
+    }
+
+    /**
+     * Sets the placement that shards the library across the cluster.
+     *
+     * @param placement The placement of files.
+     */
+    public void setPlacement(Placement placement) {
+        this.placement = placement;
+    }
+
+    /**
+     * Sets the port this node accepts replicas from its peers on, which is
+     * reported to the coordinator.
+     *
+     * @param replicaPort The port of the replica receiver.
+     */
+    public void setReplicaPort(int replicaPort) {
+        this.replicaPort = replicaPort;
+    }
+
+    /**
+     * Finds where a node accepts replicas.
+     *
+     * @param node The host:port of the node.
+     * @return The host:port replicas are sent to, or null if the node does not accept them.
+     */
+    public String findReplicaAddress(String node) {
+        try {
+            String answer = exchange("REPLICA " + node + "\n");
+            return answer.startsWith("REPLICA ") ? answer.substring(8) : null;
+        } catch (IOException e) {
+            logger.log("ERROR: Unable to reach coordinator: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gets the live nodes of the cluster.
+     *
+     * @return The live nodes, or null if the coordinator cannot be reached.
+     */
+    public Set<String> getMembers() {
+        try {
+            String answer = exchange("NODES\n");
+            Set<String> members = new TreeSet<>();
+            for (String node : answer.split(" ")) {
+                if (!node.equals("NODES") && !node.isEmpty()) {
+                    members.add(node);
+                }
+            }
+            return members;
+        } catch (IOException e) {
+            logger.log("ERROR: Unable to reach coordinator: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gets the files held by the live nodes of the cluster.
+     *
+     * @return The nodes holding each file, or null if the coordinator cannot be reached.
+     */
+    public Map<String, Set<String>> getHolders() {
+        try (Socket socket = connect()) {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write("FILES\n");
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String header = in.readLine();
+            if (header == null || !header.startsWith("FILES ")) {
+                throw new IOException("Unexpected answer from coordinator: " + header);
+            }
+
+            Map<String, Set<String>> holders = new HashMap<>();
+            int count = Integer.parseInt(header.substring(6));
+            for (int i = 0; i < count; i++) {
+                String[] line = in.readLine().split(" ", 2);
+                holders.computeIfAbsent(line[1], k -> new HashSet<>()).add(line[0]);
+            }
+            return holders;
+        } catch (IOException | RuntimeException e) {
+            logger.log("ERROR: Unable to list cluster files: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Starts reporting to the coordinator on a background daemon thread.
+     */
+    public void start() {
+        Thread heartbeat = new Thread(() -> {
+            while (true) {
+                report();
+                try {
+                    Thread.sleep(HEARTBEAT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "cluster-heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+
+    /**
+     * Gets the load of this node.
+     *
+     * @return The fraction of the session capacity in use.
+     */
+    public double getLoad() {
+        return capacity <= 0 ? 1.0 : (double) admission.getActiveSessions() / capacity;
+    }
+
+    /**
+     * Finds the node that holds a file this node does not have.
+     *
+     * @param resource The file name relative to the database directory.
+     * @return The host:port of the node holding the file, or null if none does.
+     */
+    public String findOwner(String resource) {
+        String[] node = locate(resource);
+        return node == null || node[0].equals(self) ? null : node[0];
+    }
+
+    /**
+     * Finds a less loaded node to serve a request if this node is loaded.
+     *
+     * @param resource The file name relative to the database directory, or null for any node.
+     * @return The host:port of the less loaded node, or null to serve locally.
+     */
+    public String findLessLoaded(String resource) {
+        double load = getLoad();
+        if (load < REDIRECT_LOAD) {
+            return null;
+        }
+
+        String[] node = locate(resource == null ? "*" : resource);
+        if (node == null || node[0].equals(self) || Double.parseDouble(node[1]) + REDIRECT_MARGIN > load) {
+            return null;
+        }
+        return node[0];
+    }
+
+    /**
+     * Sends one load report, with the library if it changed since the last
+     * report or the coordinator asks for it.
+     */
+    private synchronized void report() {
+        long version = catalog.getVersion();
+        boolean sendFiles = version != reportedVersion;
+
+        try {
+            String answer = send(sendFiles);
+            if (answer.equals("RESYNC")) {
+                answer = send(true);
+            }
+            if (answer.equals("OK")) {
+                reportedVersion = version;
+            }
+        } catch (IOException e) {
+            reportedVersion = -1; // The coordinator may have restarted, send the library again
+        }
+    }
+
+    /**
+     * Sends a REPORT command.
+     *
+     * @param sendFiles Whether to include the library.
+     * @return The coordinator's answer.
+     * @throws IOException if the coordinator cannot be reached.
+     */
+    private String send(boolean sendFiles) throws IOException {
+        StringBuilder command = new StringBuilder("REPORT ").append(self)
+                .append(' ').append(admission.getActiveSessions())
+                .append(' ').append(capacity)
+                .append(' ').append(meter.getBitrate()).append(' ');
+
+        if (sendFiles) {
+            List<File> media = catalog.listMedia();
+            command.append(media.size()).append(' ').append(replicaPort).append('\n');
+            for (File file : media) {
+                command.append(catalog.nameOf(file)).append('\n');
+            }
+        } else {
+            command.append("- ").append(replicaPort).append('\n');
+        }
+
+        return exchange(command.toString());
+    }
+
+    /**
+     * Asks the coordinator for the least loaded node holding a file.
+     *
+     * @param file The file name, or * for any node.
+     * @return The node and its load, or null if no node holds it or the coordinator cannot be reached.
+     */
+    private String[] locate(String file) {
+        try {
+            String answer = exchange("LOCATE " + file + "\n");
+            if (!answer.startsWith("NODE ")) {
+                return null;
+            }
+            return answer.substring(5).split(" ");
+        } catch (IOException e) {
+            logger.log("ERROR: Unable to reach coordinator: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Sends a command to the coordinator and reads its one-line answer.
+     *
+     * @param command The command, ending in a newline.
+     * @return The answer line.
+     * @throws IOException if the coordinator cannot be reached.
+     */
+    private String exchange(String command) throws IOException {
+        try (Socket socket = connect()) {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(command);
+            out.flush();
+
+            String answer = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+            if (answer == null) {
+                throw new IOException("Coordinator closed the connection");
+            }
+            return answer;
+        }
+    }
+
+    /**
+     * Opens a connection to the coordinator.
+     *
+     * @return The connected socket.
+     * @throws IOException if the coordinator cannot be reached.
+     */
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(coordinatorHost, coordinatorPort), TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+}
@@ -1,128 +1,340 @@
 package server;
 
 import common.MessageSocket;
+import common.Rendition;
 import common.messages.*;
 import merrimackutil.net.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.util.Random;
-
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ConnectionHandler class serves the RTSP control connection of one
+ * client. A connection may carry several sessions at once, each named by the
+ * Session header of its requests; the fields describing a session are those
+ * of the session the current request is for. Sessions whose media is
+ * interleaved on the control connection get a channel of it in place of a
+ * media connection of their own.
+ *
+ * Each request is timed as a {@link RequestEvent} for Java Flight Recorder,
+ * with the session it was for, the state it moved the session between, and
+ * the status it was answered with.
+ */
 public class ConnectionHandler extends Thread {
 
+    private static final int DEFAULT_RATE = 44100;
+    private static final int MIN_RATE = 8000;
+    private static final int MAX_RATE = 192000;
+    private static final int ADAPTIVE_SEND_BUFFER = 32 * 1024; // Keeps the backlog of a slow link where sends can see it
+
+    static final String METHODS = "DESCRIBE, SETUP, PLAY, PAUSE, RECORD, TEARDOWN";
+    static final String SDP = "v=0\n" +
+            "o=- 1 1 IN IP4 127.0.0.1\n" +
+            "s=Stereo PCM Audio\n" +
+            "t=0 0\n" +
+            "m=audio 0 RTP/AVP 96\n" +
+            "a=rtpmap:96 L16/44100/2";
+
+    // Responses whose bytes only differ in CSeq and Session are encoded once for the server
+    static final ResponseEncoder.Template OPTIONS = ResponseEncoder.template(
+            new ServerResponse.ResponseBuilder(200, 0)
+                    .setOptions(METHODS)
+                    .build());
+    static final ResponseEncoder.Template DESCRIBE = ResponseEncoder.template(
+            new ServerResponse.ResponseBuilder(200, 0)
+                    .setContentType("application/sdp")
+                    .setContentLength(SDP.length())
+                    .setBody(SDP)
+                    .build());
+
     private final MessageSocket socket;
+    private final ResponseEncoder encoder = new ResponseEncoder();
     private final Log logger;
     private RTSPSates state;
     private final String databaseDir;
+    private final Catalog catalog;
+    private final ClusterNode cluster;
+    private final AdmissionController admission;
     private MessageSocket serverSocket;
     private PlayHandler playHandler;
+    private boolean binaryPayload;
+    private int sampleRate;
+    private boolean verbatim; // A copy of the file for another server, sent as stored
+    private boolean checksums;
+    private List<Rendition> renditions; // Renditions the session may switch between, highest first
 
     private int sessionId;
-    private final Random r;
+    private SessionState registered; // The server-wide entry of the current session
+    private int status; // The code of the last response sent
+    private final Map<Integer, Session> sessions = new HashMap<>();
 
-    public ConnectionHandler(MessageSocket socket, Log logger, String databaseDir) {
+    public ConnectionHandler(MessageSocket socket, Log logger, Catalog catalog) {
+        this(socket, logger, catalog, null, null);
+    }
+
+    /**
+     * Constructs a new ConnectionHandler for a server that is part of a
+     * cluster. Clients are redirected to other nodes of the cluster when
+     * this node does not hold the requested file or is loaded more than a
+     * peer. New sessions are only set up while admission allows them.
+     *
+     * @param socket    The control connection of the client.
+     * @param logger    The logger used to record session events.
+     * @param catalog   The library of this server.
+     * @param cluster   The cluster this server is part of, or null if it runs alone.
+     * @param admission The controller admitting new sessions, or null to admit every session.
+     */
+    public ConnectionHandler(MessageSocket socket, Log logger, Catalog catalog, ClusterNode cluster,
+                             AdmissionController admission) {
         this.socket = socket;
         this.logger = logger;
-        this.databaseDir = databaseDir;
+        this.catalog = catalog;
+        this.cluster = cluster;
+        this.admission = admission;
+        this.databaseDir = catalog.getDatabaseDir();
         this.state = RTSPSates.INIT;
-        this.r = new Random();
     }
 
+    /**
+     * Serves the connection. Its sessions stop playing and leave the
+     * server-wide registry however the connection ends, including when the
+     * client goes away without a TEARDOWN.
+     */
     @Override
     public void run() {
+        try {
+            serve();
+        } finally {
+            if (playHandler != null) {
+                playHandler.stopPlayback(); // Started but not stored when the connection broke
+            }
+            for (Session session : sessions.values()) {
+                if (session.playHandler != null) {
+                    session.playHandler.stopPlayback();
+                }
+                SessionRegistry.shared().close(session.registered);
+            }
+            if (registered != null) {
+                SessionRegistry.shared().close(registered); // Set up but not stored when the connection broke
+            }
+        }
+    }
+
+    /**
+     * Handles requests until the last session of the connection is torn down.
+     */
+    private void serve() {
         logger.log("Connection handler started.");
 
-        while (state != RTSPSates.TEARDOWN) {
+        while (state != RTSPSates.TEARDOWN || !sessions.isEmpty()) {
             // Handle connection based on current state
             Message msg = socket.getMessage();
+            RequestEvent event = new RequestEvent();
+            event.begin();
 
             logger.log("INFO: Received " + msg.getType() + " message.");
 
+            // Requests for a session this connection does not carry are refused
+            if (!select(sessionOf(msg))) {
+                respond(454, msg.getCseq());
+                logger.log("ERROR: Session not found.");
+                commit(event, msg, null);
+                continue;
+            }
+            RTSPSates before = state;
+
             switch(msg.getType()) {
                 case "OPTIONS" -> {
 
                     // Check if in valid state
                     if (!(state == RTSPSates.INIT || state == RTSPSates.RECORDING)) {
-                        msg = new ServerResponse.ResponseBuilder(455, msg.getCseq())
-                                .build();
-                        socket.sendMessage(msg);
+                        respond(455, msg.getCseq());
                         logger.log("ERROR: Method not valid in current state.");
                         break;
                     }
 
-                    msg = new ServerResponse.ResponseBuilder(200, msg.getCseq())
-                            .setOptions("DESCRIBE, SETUP, PLAY, PAUSE, RECORD, TEARDOWN")
-                            .build();
-                    socket.sendMessage(msg);
+                    respond(OPTIONS, msg.getCseq(), 0);
                     logger.log("INFO: Sent OPTIONS response.");
                 }
                 case "SETUP" -> {
 
                     // Check if in valid state
                     if (!(state == RTSPSates.INIT || state == RTSPSates.READY)) {
-                        msg = new ServerResponse.ResponseBuilder(455, msg.getCseq())
-                                .build();
-                        socket.sendMessage(msg);
+                        respond(455, msg.getCseq());
                         logger.log("ERROR: Method not valid in current state.");
                         break;
                     }
 
-                    sessionId = r.nextInt(1000000 - 100000) + 100000; // Generate random session ID
-                    int port = randomPort();
-                    msg = new ServerResponse.ResponseBuilder(200, msg.getCseq())
-                            .setSessionId(sessionId)
-                            .setTransport(((SetUpMessage) msg).getTransport() + ";server_port="+port)
-                            .build();
+                    // A SETUP naming a session resumes its interrupted upload
+                    int resumeId = ((SetUpMessage) msg).getSessionID();
+
+                    // A new session starts on the least loaded node that holds the resource, if one is named
+                    if (state == RTSPSates.INIT && cluster != null && resumeId == 0) {
+                        String[] url = msg.getHeader().split("/", 4);
+                        String resource = url.length == 4 && !url[3].isEmpty() ? url[3] : null;
+                        String peer = cluster.findLessLoaded(resource);
+                        if (peer != null) {
+                            redirect(302, msg.getCseq(), "rtsp://" + peer + (resource == null ? "" : "/" + resource));
+                            break;
+                        }
+                    }
+
+                    // Session IDs are unique across the server, a resumed upload keeps its own
+                    String client = String.valueOf(socket.getRemoteSocketAddress());
+                    if (resumeId != 0) {
+                        String resumeToken = transportParameter(((SetUpMessage) msg).getTransport(), "resume");
+                        registered = SessionRegistry.shared().claim(resumeId, client, resumeToken);
+                        if (registered == null) {
+                            respond(454, msg.getCseq());
+                            logger.log("ERROR: No interrupted upload of this client for session " + resumeId + ".");
+                            break;
+                        }
+                    } else if (admission == null) {
+                        registered = SessionRegistry.shared().open(client);
+                    } else {
+                        registered = admission.tryOpen(client);
+                        if (registered == null) {
+                            send(new ServerResponse.ResponseBuilder(503, msg.getCseq())
+                                    .setRetryAfter(admission.getRetryAfter())
+                                    .build());
+                            logger.log("ERROR: Server busy, asked client to retry SETUP.");
+                            break;
+                        }
+                    }
+                    sessionId = registered.getId();
+                    String transport = ((SetUpMessage) msg).getTransport();
+                    binaryPayload = transport.contains("payload=binary");
+                    verbatim = "verbatim".equals(transportParameter(transport, "transfer"));
+                    sampleRate = verbatim ? 0 : sampleRate(transport);
+                    checksums = "crc32c".equalsIgnoreCase(transportParameter(transport, "checksum"));
+                    renditions = renditions(transport);
+
+                    // The client is given a token to resume an upload of the session with, a resume already holds it
+                    String reply = resumeId != 0 ? transport : transport + ";resume=" + registered.getResumeToken();
+
+                    // Interleaved media is carried on the control connection itself
+                    int channel = interleavedChannel(transport);
+                    if (channel >= 0) {
+                        closeMedia();
+                        try {
+                            serverSocket = socket.openChannel(channel,
+                                    "credit".equals(transportParameter(transport, "flow")));
+                        } catch (IOException e) {
+                            SessionRegistry.shared().close(registered);
+                            registered = null;
+                            respond(461, msg.getCseq());
+                            logger.log("ERROR: Unable to open interleaved channel " + channel + ": " + e.getMessage());
+                            break;
+                        }
+
+                        state = RTSPSates.READY;
+                        registered.setInterleaved(true);
+                        send(new ServerResponse.ResponseBuilder(200, msg.getCseq())
+                                .setSessionId(sessionId)
+                                .setTransport(reply)
+                                .build());
+                        logger.log("INFO: Sent SETUP response, media interleaved on channel " + channel + ".");
+                        break;
+                    }
+
+                    // Bind the media socket before answering so the client can connect right away
+                    ServerSocketChannel mediaChannel = openMediaChannel();
+                    int port = mediaChannel.socket().getLocalPort();
                     state = RTSPSates.READY;
-                    socket.sendMessage(msg);
+                    send(new ServerResponse.ResponseBuilder(200, msg.getCseq())
+                            .setSessionId(sessionId)
+                            .setTransport(reply + ";server_port="+port)
+                            .build());
                     logger.log("INFO: Sent SETUP response.");
 
                     // Set up server socket for media streaming
-                    setUpServerSocket(port);
+                    setUpServerSocket(mediaChannel);
                 }
                 case "PLAY" -> {
 
+                    // A queued PLAY adds to a running stream, in any state that has one
+                    boolean queued = ((PlayPauseMessage) msg).isQueued() && playHandler != null;
+
                     // Check if in valid state
-                    if (state != RTSPSates.READY) {
-                        msg = new ServerResponse.ResponseBuilder(455, msg.getCseq())
-                                .build();
-                        socket.sendMessage(msg);
+                    if (!(state == RTSPSates.READY || (queued && state == RTSPSates.PLAYING))) {
+                        respond(455, msg.getCseq());
                         logger.log("ERROR: Method not valid in current state.");
                         break;
                     }
 
                     int sessionIdMsg = ((PlayPauseMessage) msg).getSessionID();
-                    String path = databaseDir + "/" + msg.getHeader().split("/",4)[3];
+                    String range = ((PlayPauseMessage) msg).getRange();
+                    String resource = msg.getHeader().split("/",4)[3];
+                    String path = databaseDir + "/" + resource;
 
+                    // A file still being recorded here is relayed live
                     File file = new File(path);
-                    if (!file.exists() || file.isDirectory()) {
-                        msg = new ServerResponse.ResponseBuilder(404, msg.getCseq())
-                                .build();
-                        socket.sendMessage(msg);
+                    boolean live = LiveRelay.shared().find(file) != null;
+                    boolean found = Mixer.isMix(path) ? Mixer.exists(path)
+                            : live || (file.exists() && !file.isDirectory());
+
+                    // Files held elsewhere, and new streams on a loaded node, move to a peer
+                    if (cluster != null && !queued && !Mixer.isMix(path) && !live && !LiveRelay.isNamed(resource)) {
+                        String peer = found ? cluster.findLessLoaded(resource) : cluster.findOwner(resource);
+                        if (peer != null) {
+                            redirect(found ? 302 : 301, msg.getCseq(), "rtsp://" + peer + "/" + resource);
+                            break;
+                        }
+                    }
+
+                    // An edge pulls files it does not hold from the origin
+                    if (!found && catalog.getEdgeCache() != null && !Mixer.isMix(path)) {
+                        String cached = catalog.getEdgeCache().open(resource);
+                        if (cached != null) {
+                            path = cached;
+                            found = true;
+                        }
+                    }
+
+                    if (!found) {
+                        respond(404, msg.getCseq());
                         logger.log("ERROR: File not found.");
                         break;
                     }
 
                     if (sessionIdMsg != sessionId) {
-                        msg = new ServerResponse.ResponseBuilder(454, msg.getCseq())
-                                .build();
-                        socket.sendMessage(msg);
+                        respond(454, msg.getCseq());
                         logger.log("ERROR: Session ID mismatch.");
                         break;
                     }
 
-                    msg = new ServerResponse.ResponseBuilder(200, msg.getCseq())
-                            .setSessionId(sessionId)
-                            .build();
+                    if (queued) {
+                        if (!playHandler.enqueue(path)) {
+                            respond(455, msg.getCseq());
+                            logger.log("ERROR: Stream already ended, cannot queue.");
+                            break;
+                        }
+
+                        respond(ResponseEncoder.status(200), msg.getCseq(), sessionId);
+                        logger.log("INFO: Queued file at path: " + path);
+                        break;
+                    }
+
                     state = RTSPSates.PLAYING;
-                    socket.sendMessage(msg);
+                    registered.setResource(resource);
+                    respond(ResponseEncoder.status(200), msg.getCseq(), sessionId);
                     logger.log("INFO: Sent PLAY response.");
 
                     logger.log("INFO: Playing file at path: " + path);
 
                     if (playHandler == null) {
-                        playHandler = new PlayHandler(serverSocket, path, logger, sessionIdMsg);
+                        playHandler = new PlayHandler(serverSocket, path, logger, sessionIdMsg, catalog, binaryPayload);
+                        playHandler.setOutputRate(sampleRate);
+                        playHandler.setNormalized(!verbatim);
+                        playHandler.setChecksums(checksums);
+                        playHandler.setRenditions(renditions);
+                        playHandler.setRange(range);
                         playHandler.start();
                     } else {
                         playHandler.pausePlayback();
@@ -132,26 +344,19 @@ public class ConnectionHandler extends Thread {
 
                     // Check if in valid state
                     if (state != RTSPSates.PLAYING) {
-                        msg = new ServerResponse.ResponseBuilder(455, msg.getCseq())
-                                .build();
-                        socket.sendMessage(msg);
+                        respond(455, msg.getCseq());
                         logger.log("ERROR: Method not valid in current state.");
                         break;
                     }
 
                     int sessionIdMsg = ((PlayPauseMessage) msg).getSessionID();
                     if (sessionIdMsg != sessionId) {
-                        msg = new ServerResponse.ResponseBuilder(454, msg.getCseq())
-                                .build();
-                        socket.sendMessage(msg);
+                        respond(454, msg.getCseq());
                         logger.log("ERROR: Session ID mismatch.");
                         break;
                     }
-                    msg = new ServerResponse.ResponseBuilder(200, msg.getCseq())
-                            .setSessionId(sessionId)
-                            .build();
                     state = RTSPSates.READY;
-                    socket.sendMessage(msg);
+                    respond(ResponseEncoder.status(200), msg.getCseq(), sessionId);
                     logger.log("INFO: Sent PAUSE response.");
 
                     playHandler.pausePlayback();
@@ -161,9 +366,7 @@ public class ConnectionHandler extends Thread {
 
                     // Check if in valid state
                     if (state != RTSPSates.READY) {
-                        msg = new ServerResponse.ResponseBuilder(455, msg.getCseq())
-                                .build();
-                        socket.sendMessage(msg);
+                        respond(455, msg.getCseq());
                         logger.log("ERROR: Method not valid in current state.");
                         break;
                     }
@@ -172,31 +375,61 @@ public class ConnectionHandler extends Thread {
                     String path = msg.getHeader().split("/",4)[3];
 
                     if (sessionIdMsg != sessionId) {
-                        msg = new ServerResponse.ResponseBuilder(454, msg.getCseq())
-                                .build();
-                        socket.sendMessage(msg);
+                        respond(454, msg.getCseq());
                         logger.log("ERROR: Session ID mismatch.");
                         break;
                     }
 
-                    File file = new File(databaseDir + "/" + path);
+                    // A named live stream is relayed by the node it is recorded on and never stored
+                    if (LiveRelay.isNamed(path)) {
+                        LiveStream stream = LiveRelay.shared().openNamed(new File(databaseDir + "/" + path));
+                        if (stream == null) {
+                            respond(403, msg.getCseq());
+                            logger.log("ERROR: Live stream is already being recorded.");
+                            break;
+                        }
+
+                        state = RTSPSates.RECORDING;
+                        registered.setResource(path);
+                        respond(ResponseEncoder.status(200), msg.getCseq(), sessionId);
+                        logger.log("INFO: Sent RECORD response for live stream " + path + ".");
+
+                        new RelayHandler(serverSocket, sessionId, stream, logger).start();
+                        break;
+                    }
 
-                    if (file.exists() || file.isDirectory()) {
-                        msg = new ServerResponse.ResponseBuilder(403, msg.getCseq())
-                                .build();
-                        socket.sendMessage(msg);
-                        logger.log("ERROR: File already exists.");
+                    // A sharded cluster records each file on the node that owns it
+                    Placement placement = cluster == null ? null : cluster.getPlacement();
+                    if (placement != null && !placement.isOwner(path)) {
+                        redirect(301, msg.getCseq(), "rtsp://" + placement.primaryOwner(path) + "/" + path);
                         break;
                     }
 
-                    msg = new ServerResponse.ResponseBuilder(200, msg.getCseq())
-                            .setSessionId(sessionId)
-                            .build();
+                    File file = new File(databaseDir + "/" + path);
+
+                    Upload upload = UploadRegistry.shared().resume(sessionId, file);
+                    if (upload == null) {
+                        if (file.exists() || file.isDirectory()) {
+                            respond(403, msg.getCseq());
+                            logger.log("ERROR: File already exists.");
+                            break;
+                        }
+                        if (LiveRelay.shared().find(file) != null) {
+                            respond(403, msg.getCseq());
+                            logger.log("ERROR: File is already being recorded.");
+                            break;
+                        }
+                        upload = UploadRegistry.shared().begin(sessionId, file, registered.getResumeToken());
+                    } else {
+                        logger.log("INFO: Resuming upload of " + path + " at chunk " + upload.getAcknowledged() + ".");
+                    }
+
                     state = RTSPSates.RECORDING;
-                    socket.sendMessage(msg);
+                    registered.setResource(path);
+                    respond(ResponseEncoder.status(200), msg.getCseq(), sessionId);
                     logger.log("INFO: Sent RECORD response.");
 
-                    RecordHandler recordHandler = new RecordHandler(serverSocket, sessionIdMsg, file, logger);
+                    RecordHandler recordHandler = new RecordHandler(serverSocket, upload, logger, catalog);
                     recordHandler.start();
 
                 }
@@ -204,63 +437,47 @@ public class ConnectionHandler extends Thread {
 
                     // Check if in valid state
                     if (state != RTSPSates.INIT) {
-                        msg = new ServerResponse.ResponseBuilder(455, msg.getCseq())
-                                .build();
-                        socket.sendMessage(msg);
+                        respond(455, msg.getCseq());
                         logger.log("ERROR: Method not valid in current state.");
                         break;
                     }
 
-                    String sdpInfo = "v=0\n" +
-                            "o=- 1 1 IN IP4 127.0.0.1\n" +
-                            "s=Stereo PCM Audio\n" +
-                            "t=0 0\n" +
-                            "m=audio 0 RTP/AVP 96\n" +
-                            "a=rtpmap:96 L16/44100/2";
-
-                    msg = new ServerResponse.ResponseBuilder(200, msg.getCseq())
-                            .setContentType("application/sdp")
-                            .setContentLength(sdpInfo.length())
-                            .setBody(sdpInfo)
-                            .build();
-                    socket.sendMessage(msg);
+                    respond(DESCRIBE, msg.getCseq(), 0);
                     logger.log("INFO: Sent DESCRIBE response.");
                 }
                 case "TEARDOWN" -> {
                     // Check if in valid state
                     if (state == RTSPSates.INIT) {
-                        msg = new ServerResponse.ResponseBuilder(455, msg.getCseq())
-                                .build();
-                        socket.sendMessage(msg);
+                        respond(455, msg.getCseq());
                         logger.log("ERROR: Method not valid in current state.");
                         break;
                     }
 
                     int sessionIdMsg = ((TeardownMessage) msg).getSessionID();
                     if (sessionIdMsg != sessionId) {
-                        msg = new ServerResponse.ResponseBuilder(454, msg.getCseq())
-                                .build();
-                        socket.sendMessage(msg);
+                        respond(454, msg.getCseq());
                         logger.log("ERROR: Session ID mismatch.");
                         break;
                     }
 
-                    msg = new ServerResponse.ResponseBuilder(200, msg.getCseq())
-                            .build();
                     state = RTSPSates.TEARDOWN;
-                    socket.sendMessage(msg);
+                    respond(ResponseEncoder.status(200), msg.getCseq(), 0);
                     logger.log("INFO: Sent TEARDOWN response.");
 
-                    playHandler.pausePlayback();
-                    playHandler = null;
+                    if (playHandler != null) {
+                        playHandler.stopPlayback();
+                        playHandler = null;
+                    }
+                    closeMedia();
                 }
                 default -> {
-                    msg = new ServerResponse.ResponseBuilder(400, msg.getCseq())
-                            .build();
-                    socket.sendMessage(msg);
+                    respond(400, msg.getCseq());
                     logger.log("ERROR: Unsupported method.");
                 }
             }
+
+            commit(event, msg, before);
+            store();
         }
 
         logger.log("Connection handler terminating.");
@@ -274,32 +491,293 @@ public class ConnectionHandler extends Thread {
     }
 
     /**
-     * Allocates a random available port on the server.
+     * Ends the event of a request and records it, if a recording wants it.
      *
-     * @return An available port number.
+     * @param event  The event begun when the request was received.
+     * @param msg    The request.
+     * @param before The state of the session before the request, or null if no session was selected.
      */
-    private int randomPort() {
-        try (ServerSocket socket = new ServerSocket(0)) {
-            return socket.getLocalPort();
-        } catch (Exception e) {
-            logger.log("ERROR: Unable to allocate random port.");
+    private void commit(RequestEvent event, Message msg, RTSPSates before) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = msg.getType();
+            event.cseq = msg.getCseq();
+            event.session = before == null ? sessionOf(msg) : sessionId;
+            event.fromState = before == null ? null : before.name();
+            event.toState = before == null ? null : state.name();
+            event.status = status;
+            event.client = String.valueOf(socket.getRemoteSocketAddress());
+            event.commit();
+        }
+    }
+
+    /**
+     * Gets the session a request is for.
+     *
+     * @param msg The request.
+     * @return The session ID of the request, or 0 if it names none.
+     */
+    private static int sessionOf(Message msg) {
+        if (msg instanceof PlayPauseMessage play) {
+            return play.getSessionID();
+        } else if (msg instanceof RecordMessage record) {
+            return record.getSessionID();
+        } else if (msg instanceof TeardownMessage teardown) {
+            return teardown.getSessionID();
+        }
+        return 0; // A SETUP naming a session resumes an upload, it starts a new session here
+    }
+
+    /**
+     * Makes a session the one requests are handled for. A request that names
+     * no session is handled for a new one, as is every request while the
+     * connection carries no sessions, so that a stale session ID is answered
+     * as it always was.
+     *
+     * @param id The session ID named by the request, or 0.
+     * @return false if the request names a session this connection does not carry.
+     */
+    private boolean select(int id) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            if (id != 0 && !sessions.isEmpty()) {
+                return false;
+            }
+            session = new Session();
+        }
+
+        sessionId = session.id;
+        state = session.state;
+        binaryPayload = session.binaryPayload;
+        sampleRate = session.sampleRate;
+        verbatim = session.verbatim;
+        checksums = session.checksums;
+        renditions = session.renditions;
+        serverSocket = session.serverSocket;
+        playHandler = session.playHandler;
+        registered = session.registered;
+        return true;
+    }
+
+    /**
+     * Keeps the state of the session the last request was handled for. A
+     * session that was set up is kept until it is torn down.
+     */
+    private void store() {
+        if (state == RTSPSates.INIT) {
+            return;
+        }
+        if (state == RTSPSates.TEARDOWN) {
+            sessions.remove(sessionId);
+            SessionRegistry.shared().close(registered);
+            return;
+        }
+
+        Session session = sessions.computeIfAbsent(sessionId, id -> new Session());
+        session.id = sessionId;
+        session.state = state;
+        session.binaryPayload = binaryPayload;
+        session.sampleRate = sampleRate;
+        session.verbatim = verbatim;
+        session.checksums = checksums;
+        session.renditions = renditions;
+        session.serverSocket = serverSocket;
+        session.playHandler = playHandler;
+        session.registered = registered;
+        registered.setState(state);
+    }
+
+    /**
+     * Gets the channel a transport asks its media to be interleaved on.
+     *
+     * @param transport The Transport header of a SETUP request.
+     * @return The first channel of the interleaved parameter, or -1 if the media gets its own connection.
+     */
+    private static int interleavedChannel(String transport) {
+        String channels = transportParameter(transport, "interleaved");
+        try {
+            return channels == null ? -1 : Integer.parseInt(channels.split("-")[0].trim());
+        } catch (NumberFormatException e) {
             return -1;
         }
     }
 
     /**
-     * Sets up a server socket to listen for media streaming on the specified port.
+     * Gets the sample rate a transport asks the media to be played at.
+     * Clients that do not say play at 44.1 kHz, the rate they always used.
+     *
+     * @param transport The Transport header of a SETUP request.
+     * @return The sample rate in Hz.
+     */
+    private static int sampleRate(String transport) {
+        String rate = transportParameter(transport, "rate");
+        try {
+            return rate == null ? DEFAULT_RATE : Math.max(MIN_RATE, Math.min(MAX_RATE, Integer.parseInt(rate.trim())));
+        } catch (NumberFormatException e) {
+            return DEFAULT_RATE;
+        }
+    }
+
+    /**
+     * Gets the renditions a session may switch between: the ones whose
+     * codecs the transport's codecs parameter lists. Only sessions that play
+     * at the rate of the renditions adapt their bitrate.
+     *
+     * @param transport The Transport header of a SETUP request.
+     * @return The renditions, highest bitrate first, only {@link Rendition#PCM} if the session does not adapt.
+     */
+    private List<Rendition> renditions(String transport) {
+        if (!catalog.isAdaptiveBitrate() || sampleRate(transport) != Rendition.PCM.getSampleRate()) {
+            return Rendition.accepted(null);
+        }
+        return Rendition.accepted(transportParameter(transport, "codecs"));
+    }
+
+    /**
+     * Gets the value of a parameter of a Transport header.
+     *
+     * @param transport The Transport header.
+     * @param name      The parameter name.
+     * @return The value, or null if the transport does not have the parameter.
+     */
+    private static String transportParameter(String transport, String name) {
+        for (String parameter : transport.split(";")) {
+            if (parameter.startsWith(name + "=")) {
+                return parameter.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closes the interleaved channel of the current session, if it has one.
+     * Media connections of their own are closed by their handlers.
+     */
+    private void closeMedia() {
+        if (serverSocket != null && serverSocket.isInterleaved()) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                logger.log("ERROR: Unable to close interleaved channel: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Redirects the client to another node of the cluster.
+     *
+     * @param code     The redirect status, 301 if the file lives elsewhere or 302 if this node is loaded.
+     * @param cseq     The CSeq of the redirected request.
+     * @param location The URL the client should send the request to.
+     */
+    private void redirect(int code, int cseq, String location) {
+        send(new ServerResponse.ResponseBuilder(code, cseq)
+                .setLocation(location)
+                .build());
+        logger.log("INFO: Redirected client to " + location);
+    }
+
+    /**
+     * Sends a response carrying nothing but its status.
+     *
+     * @param code The response code.
+     * @param cseq The CSeq of the request being answered.
+     */
+    private void respond(int code, int cseq) {
+        respond(ResponseEncoder.status(code), cseq, 0);
+    }
+
+    /**
+     * Sends a response from a pre-encoded template.
+     *
+     * @param template  The template of the response.
+     * @param cseq      The CSeq of the request being answered.
+     * @param sessionId The session ID, or zero for no Session header.
+     */
+    private void respond(ResponseEncoder.Template template, int cseq, int sessionId) {
+        status = template.getCode();
+        write(encoder.encode(template, cseq, sessionId));
+    }
+
+    /**
+     * Sends a response built for this request, encoded without going through
+     * its string form.
+     *
+     * @param response The response.
+     */
+    private void send(ServerResponse response) {
+        status = response.getCode();
+        write(encoder.encode(response));
+    }
+
+    /**
+     * Writes the response the encoder last encoded to the client.
+     *
+     * @param length The length of the encoded response.
+     */
+    private void write(int length) {
+        try {
+            socket.sendBytes(encoder.getBuffer(), 0, length);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Opens a server channel for media streaming on a random available port.
      *
-     * @param port The port number to listen on.
+     * @return The bound server channel.
      */
-    private void setUpServerSocket(int port) {
+    private ServerSocketChannel openMediaChannel() {
         try {
-            ServerSocket serverSocket = new ServerSocket(port);
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(0));
+            return channel;
+        } catch (IOException e) {
+            logger.log("ERROR: Unable to allocate random port.");
+            throw new RuntimeException(e);
+        }
+    }
 
-            this.serverSocket = new MessageSocket(serverSocket.accept());
+    /**
+     * Accepts the client's media connection on the given server channel. The
+     * accepted socket is backed by a channel so that playback can transfer
+     * file regions to it directly. A session with an adaptive bitrate gets a
+     * small send buffer, so sends block soon after the link falls behind.
+     *
+     * @param mediaChannel The bound server channel to accept on.
+     */
+    private void setUpServerSocket(ServerSocketChannel mediaChannel) {
+        int port = mediaChannel.socket().getLocalPort();
+        try (mediaChannel) {
+            SocketChannel channel = mediaChannel.accept();
+            channel.socket().setTcpNoDelay(true); // Frame headers and payloads are written separately
+            if (renditions.size() > 1) {
+                // A send buffer grown to megabytes hides a slow link from the adaptive bitrate for seconds
+                channel.socket().setSendBufferSize(ADAPTIVE_SEND_BUFFER);
+            }
+
+            this.serverSocket = new MessageSocket(channel.socket());
         } catch (IOException e) {
             logger.log("ERROR: Unable to set up server socket on port " + port);
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * The state of one session carried by the connection.
+     */
+    private static class Session {
+
+        private int id;
+        private RTSPSates state = RTSPSates.INIT;
+        private boolean binaryPayload;
+        private int sampleRate;
+        private boolean verbatim;
+        private boolean checksums;
+        private List<Rendition> renditions;
+        private MessageSocket serverSocket;
+        private PlayHandler playHandler;
+        private SessionState registered;
+    }
 }
@@ -0,0 +1,288 @@
+package server;
+
+import merrimackutil.net.Log;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Coordinator class keeps the load and library of every server in a
+ * cluster and tells servers where to send clients. Servers report to it once
+ * per heartbeat and ask it to locate files, each over a short-lived TCP
+ * connection carrying one line-based command:
+ *
+ * <pre>
+ * REPORT &lt;node&gt; &lt;sessions&gt; &lt;capacity&gt; &lt;bitrate&gt; &lt;count|-&gt; [replica port]
+ *   followed by count file names, one per line, or - if the library is unchanged
+ *   answered with OK, or RESYNC if the coordinator needs the library again
+ * LOCATE &lt;file|*&gt;
+ *   answered with NODE &lt;node&gt; &lt;load&gt; for the least loaded live node holding
+ *   the file (any node for *), or NONE
+ * NODES
+ *   answered with NODES followed by every live node
+ * FILES
+ *   answered with FILES &lt;count&gt; and count lines of &lt;node&gt; &lt;file&gt;, one for
+ *   every file held by a live node
+ * REPLICA &lt;node&gt;
+ *   answered with REPLICA &lt;host:port&gt; the node accepts replicas on, or NONE
+ * </pre>
+ *
+ * A node is identified by the host:port clients reach it on. Nodes that miss
+ * several heartbeats are no longer handed out. The coordinator can be
+ * embedded in one server or run on its own.
+ */
+public class Coordinator extends Thread {
+
+    public static final long NODE_TIMEOUT = 3 * ClusterNode.HEARTBEAT_MILLIS;
+
+    private static final int READ_TIMEOUT = 1000;
+
+    private final ServerSocket serverSocket;
+    private final Log logger;
+    private final ConcurrentHashMap<String, NodeStatus> nodes = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a new Coordinator listening on a port.
+     *
+     * @param port   The port to listen on.
+     * @param logger The logger used to record cluster events.
+     * @throws IOException if the port cannot be bound.
+     */
+    public Coordinator(int port, Log logger) throws IOException {
+        super("coordinator");
+        this.serverSocket = new ServerSocket(port);
+        this.logger = logger;
+        setDaemon(true);
+    }
+
+    /**
+     * Runs a standalone coordinator.
+     *
+     * @param args The port to listen on and optionally the log file.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: ");
+            System.out.println("  coordinator <port> [log file]");
+            System.exit(1);
+        }
+
+        try {
+            Log log = new Log(args.length > 1 ? args[1] : "coordinator.log", "Coordinator");
+            Coordinator coordinator = new Coordinator(Integer.parseInt(args[0]), log);
+            log.log("Starting coordinator on port " + args[0]);
+            coordinator.run();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Accepts and answers commands until the socket is closed. Commands are
+     * small, so each one is answered on the accepting thread.
+     */
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(READ_TIMEOUT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+
+                out.write(handle(in.readLine(), in) + "\n");
+                out.flush();
+            } catch (IOException | RuntimeException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.log("ERROR: Coordinator request failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting commands.
+     *
+     * @throws IOException if the socket cannot be closed.
+     */
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * Answers one command.
+     *
+     * @param command The command line.
+     * @param in      The reader positioned after the command line.
+     * @return The answer line.
+     * @throws IOException if the rest of the command cannot be read.
+     */
+    private String handle(String command, BufferedReader in) throws IOException {
+        if (command == null) {
+            return "ERROR empty command";
+        }
+
+        String[] parts = command.split(" ");
+        switch (parts[0]) {
+            case "REPORT":
+                return report(parts, in);
+            case "LOCATE":
+                return locate(command.substring(7));
+            case "NODES":
+                return "NODES" + liveNodes();
+            case "FILES":
+                return files();
+            case "REPLICA":
+                return replica(parts[1]);
+            default:
+                return "ERROR unknown command";
+        }
+    }
+
+    /**
+     * Records the load and, if sent, the library of a node.
+     *
+     * @param parts The fields of the REPORT line.
+     * @param in    The reader the file names follow on.
+     * @return OK, or RESYNC if the library of an unknown node was not sent.
+     * @throws IOException if the file names cannot be read.
+     */
+    private String report(String[] parts, BufferedReader in) throws IOException {
+        String node = parts[1];
+        NodeStatus status = nodes.get(node);
+
+        Set<String> files = null;
+        if (!parts[5].equals("-")) {
+            int count = Integer.parseInt(parts[5]);
+            files = new HashSet<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                files.add(in.readLine());
+            }
+        } else if (status == null) {
+            return "RESYNC";
+        } else {
+            files = status.files;
+        }
+
+        if (status == null) {
+            logger.log("INFO: Node " + node + " joined the cluster.");
+        }
+
+        int replicaPort = parts.length > 6 ? Integer.parseInt(parts[6]) : 0;
+        nodes.put(node, new NodeStatus(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                Long.parseLong(parts[4]), files, replicaPort, System.currentTimeMillis()));
+        return "OK";
+    }
+
+    /**
+     * Finds the least loaded live node that holds a file.
+     *
+     * @param file The file name, or * for any node.
+     * @return NODE with the node and its load, or NONE.
+     */
+    private String locate(String file) {
+        long now = System.currentTimeMillis();
+        String best = null;
+        NodeStatus bestStatus = null;
+
+        for (var entry : nodes.entrySet()) {
+            NodeStatus status = entry.getValue();
+            if (now - status.lastSeen > NODE_TIMEOUT) {
+                continue;
+            }
+            if (!file.equals("*") && !status.files.contains(file)) {
+                continue;
+            }
+            if (bestStatus == null || status.load() < bestStatus.load()
+                    || (status.load() == bestStatus.load() && status.bitrate < bestStatus.bitrate)) {
+                best = entry.getKey();
+                bestStatus = status;
+            }
+        }
+
+        return best == null ? "NONE" : "NODE " + best + " " + bestStatus.load();
+    }
+
+    /**
+     * Lists the live nodes.
+     *
+     * @return The live nodes, each preceded by a space.
+     */
+    private String liveNodes() {
+        long now = System.currentTimeMillis();
+        StringBuilder live = new StringBuilder();
+        for (var entry : nodes.entrySet()) {
+            if (now - entry.getValue().lastSeen <= NODE_TIMEOUT) {
+                live.append(' ').append(entry.getKey());
+            }
+        }
+        return live.toString();
+    }
+
+    /**
+     * Lists every file held by a live node.
+     *
+     * @return The FILES answer, one line per node and file.
+     */
+    private String files() {
+        long now = System.currentTimeMillis();
+        StringBuilder lines = new StringBuilder();
+        int count = 0;
+
+        for (var entry : nodes.entrySet()) {
+            NodeStatus status = entry.getValue();
+            if (now - status.lastSeen > NODE_TIMEOUT) {
+                continue;
+            }
+            for (String file : status.files) {
+                lines.append('\n').append(entry.getKey()).append(' ').append(file);
+                count++;
+            }
+        }
+        return "FILES " + count + lines;
+    }
+
+    /**
+     * Finds where a live node accepts replicas.
+     *
+     * @param node The host:port of the node.
+     * @return REPLICA with the host:port replicas are sent to, or NONE.
+     */
+    private String replica(String node) {
+        NodeStatus status = nodes.get(node);
+        if (status == null || status.replicaPort <= 0 || System.currentTimeMillis() - status.lastSeen > NODE_TIMEOUT) {
+            return "NONE";
+        }
+        return "REPLICA " + node.substring(0, node.lastIndexOf(':') + 1) + status.replicaPort;
+    }
+
+    /**
+     * The last report of a node.
+     */
+    private static class NodeStatus {
+
+        private final int sessions;
+        private final int capacity;
+        private final long bitrate;
+        private final Set<String> files;
+        private final int replicaPort;
+        private final long lastSeen;
+
+        NodeStatus(int sessions, int capacity, long bitrate, Set<String> files, int replicaPort, long lastSeen) {
+            this.sessions = sessions;
+            this.capacity = capacity;
+            this.bitrate = bitrate;
+            this.files = files;
+            this.replicaPort = replicaPort;
+            this.lastSeen = lastSeen;
+        }
+
+        double load() {
+            return capacity <= 0 ? 1.0 : (double) sessions / capacity;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package server;
+
+import merrimackutil.net.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The EdgeCache class lets a server act as an edge in front of an origin
+ * server. A file that is not in the database directory is fetched from the
+ * origin on first request and written through to a disk cache in the hidden
+ * {@code .cache} directory, from where later requests are served like any
+ * local file.
+ *
+ * Concurrent requests for a file that is still being fetched share the one
+ * {@link OriginFetch} and are streamed from its spool as it grows. The cache
+ * is bounded in size and evicts the least recently played files first.
+ */
+public class EdgeCache implements OriginFetch.Listener {
+
+    private static final String CACHE_DIR = ".cache";
+    private static final String PART_SUFFIX = ".part";
+
+    private final File cacheDir;
+    private final String origin;
+    private final long maxBytes;
+    private final SegmentStore segmentStore;
+    private final Log logger;
+
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true); // Least recently played first
+    private long cachedBytes = 0;
+    private final ConcurrentHashMap<String, OriginFetch> fetches = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a new EdgeCache and indexes the files already cached.
+     *
+     * @param databaseDir  The database directory the cache lives in.
+     * @param origin       The host:port of the origin server.
+     * @param maxBytes     The largest total size of the cached files.
+     * @param segmentStore The store holding pre-framed segments of cached files.
+     * @param logger       The logger used to record cache events.
+     */
+    public EdgeCache(String databaseDir, String origin, long maxBytes, SegmentStore segmentStore, Log logger) {
+        this.cacheDir = new File(databaseDir, CACHE_DIR);
+        this.origin = origin;
+        this.maxBytes = maxBytes;
+        this.segmentStore = segmentStore;
+        this.logger = logger;
+
+        List<File> files = new ArrayList<>();
+        collect(cacheDir, files);
+        files.sort(Comparator.comparingLong(File::lastModified)); // Oldest fetches are evicted first
+        for (File file : files) {
+            entries.put(resourceOf(file), file.length());
+            cachedBytes += file.length();
+        }
+        logger.log("INFO: Edge cache holds " + entries.size() + " files (" + cachedBytes + " bytes).");
+    }
+
+    /**
+     * Gets the path a file not held locally can be played from, starting a
+     * fetch from the origin if it is neither cached nor being fetched.
+     *
+     * @param resource The file name relative to the database directory.
+     * @return The path of the cached file, or null if the origin does not have it.
+     */
+    public String open(String resource) {
+        synchronized (this) {
+            if (entries.get(resource) != null && cacheFile(resource).exists()) {
+                return cacheFile(resource).getPath();
+            }
+        }
+
+        OriginFetch fetch = fetches.computeIfAbsent(resource, r -> {
+            OriginFetch started = new OriginFetch(this, origin, r, new File(cacheDir, r + PART_SUFFIX), cacheFile(r), logger);
+            started.start();
+            return started;
+        });
+
+        try {
+            return fetch.awaitStart() ? fetch.getCachedFile().getPath() : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Gets the fetch that is filling a cached file, if it is still running.
+     *
+     * @param path The path of the cached file.
+     * @return The running fetch, or null if the file is not being fetched.
+     */
+    public OriginFetch inFlight(String path) {
+        String prefix = cacheDir.getPath() + File.separator;
+        if (!path.startsWith(prefix)) {
+            return null;
+        }
+
+        OriginFetch fetch = fetches.get(path.substring(prefix.length()).replace(File.separatorChar, '/'));
+        return fetch != null && fetch.getCachedFile().getPath().equals(path) ? fetch : null;
+    }
+
+    /**
+     * Moves a completed fetch into the cache and evicts the least recently
+     * played files until the cache fits its bound again.
+     *
+     * @param fetch The completed fetch.
+     * @throws IOException if the spool cannot be moved into place.
+     */
+    @Override
+    public void complete(OriginFetch fetch) throws IOException {
+        try {
+            fetch.moveIntoPlace();
+
+            synchronized (this) {
+                long size = fetch.getCachedFile().length();
+                Long previous = entries.put(fetch.getResource(), size);
+                cachedBytes += size - (previous == null ? 0 : previous);
+
+                Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+                while (cachedBytes > maxBytes && eldest.hasNext()) {
+                    Map.Entry<String, Long> entry = eldest.next();
+                    evict(entry.getKey());
+                    cachedBytes -= entry.getValue();
+                    eldest.remove();
+                }
+            }
+
+            logger.log("INFO: Cached " + fetch.getResource() + " from origin.");
+        } finally {
+            fetches.remove(fetch.getResource());
+        }
+    }
+
+    /**
+     * Drops a failed fetch so that the next request tries the origin again.
+     *
+     * @param fetch The failed fetch.
+     */
+    @Override
+    public void fail(OriginFetch fetch) {
+        fetch.deleteSpool();
+        fetches.remove(fetch.getResource());
+    }
+
+    /**
+     * Deletes a cached file and its derived data. Listeners still playing it
+     * keep reading their open handle.
+     *
+     * @param resource The file name relative to the database directory.
+     */
+    private void evict(String resource) {
+        File file = cacheFile(resource);
+        segmentStore.remove(file);
+        if (file.exists() && !file.delete()) {
+            logger.log("ERROR: Unable to evict " + file.getPath());
+            return;
+        }
+        logger.log("INFO: Evicted " + resource + " from the edge cache.");
+    }
+
+    /**
+     * Gets the cache location of a file.
+     *
+     * @param resource The file name relative to the database directory.
+     * @return The cached file.
+     */
+    private File cacheFile(String resource) {
+        return new File(cacheDir, resource);
+    }
+
+    /**
+     * Gets the file name a cached file was requested under.
+     *
+     * @param file The cached file.
+     * @return The file name relative to the database directory.
+     */
+    private String resourceOf(File file) {
+        return cacheDir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Recursively collects the cached files, deleting spools left behind by
+     * fetches that did not finish.
+     *
+     * @param dir   The directory to walk.
+     * @param files The list the files are added to.
+     */
+    private void collect(File dir, List<File> files) {
+        File[] list = dir.listFiles();
+        if (list == null) {
+            return;
+        }
+
+        for (File file : list) {
+            if (file.isDirectory()) {
+                collect(file, files);
+            } else if (file.getName().endsWith(PART_SUFFIX)) {
+                file.delete();
+            } else {
+                files.add(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package server;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import merrimackutil.net.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+
+/**
+ * The FlightRecording class runs a continuous Java Flight Recorder
+ * recording of the server with the bundled {@value #SETTINGS} settings. They
+ * enable the streaming events of the protocol and media pipeline, each with
+ * a threshold that keeps the per-chunk events to the stalls, next to the
+ * JDK's own garbage collection, lock, socket and sampling events, so that a
+ * latency spike can be matched to the session it hit and to what the JVM was
+ * doing at the time.
+ *
+ * The recording keeps the last minutes of events on disk and writes them to
+ * its file when the server exits. It can be dumped at any time with
+ * {@code jcmd <pid> JFR.dump name=streaming filename=<file>}.
+ */
+public class FlightRecording {
+
+    public static final String NAME = "streaming";
+    public static final String SETTINGS = "streaming.jfc";
+
+    /**
+     * Starts the recording.
+     *
+     * @param file          The file the recording is written to when the server exits.
+     * @param maxAgeMinutes The minutes of events kept.
+     * @param logger        The logger used to record the start of the recording.
+     * @return The running recording.
+     * @throws IOException if the settings cannot be read or the recording cannot be started.
+     */
+    public static Recording start(String file, int maxAgeMinutes, Log logger) throws IOException {
+        Configuration settings;
+        try (InputStream in = FlightRecording.class.getResourceAsStream(SETTINGS)) {
+            if (in == null) {
+                throw new IOException("Flight recorder settings " + SETTINGS + " are missing");
+            }
+            try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+                settings = Configuration.create(reader);
+            }
+        } catch (ParseException e) {
+            throw new IOException("Invalid flight recorder settings: " + e.getMessage(), e);
+        }
+
+        Recording recording = new Recording(settings);
+        recording.setName(NAME);
+        recording.setToDisk(true);
+        recording.setMaxAge(Duration.ofMinutes(maxAgeMinutes));
+        recording.setDestination(Path.of(file));
+        recording.setDumpOnExit(true);
+        recording.start();
+
+        logger.log("INFO: Flight recording the last " + maxAgeMinutes + " minutes to " + file + ".");
+        return recording;
+    }
+}
@@ -0,0 +1,50 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The GainTransform class scales 16-bit PCM samples by a fixed gain, as
+ * used to play files at a common loudness. The gain is held in 16.16 fixed
+ * point, so each sample costs one integer multiply and shift, and results
+ * beyond the 16-bit range are saturated instead of wrapping.
+ */
+public class GainTransform implements ChunkTransform {
+
+    private static final int FRACTION_BITS = 16;
+
+    private final int gain;
+
+    /**
+     * Constructs a new GainTransform.
+     *
+     * @param gain The linear gain, below 32768.
+     */
+    public GainTransform(double gain) {
+        this.gain = (int) Math.round(gain * (1 << FRACTION_BITS));
+    }
+
+    /**
+     * Checks whether a gain changes samples enough to be worth applying.
+     *
+     * @param gain The linear gain.
+     * @return true unless the gain is within 0.1 dB of unity.
+     */
+    public static boolean isAudible(double gain) {
+        return Math.abs(20 * Math.log10(gain)) >= 0.1;
+    }
+
+    @Override
+    public int maxOutputLength(int inputLength) {
+        return inputLength;
+    }
+
+    @Override
+    public int apply(ByteBuffer chunk, int length) {
+        int rounding = 1 << (FRACTION_BITS - 1);
+        for (int i = 0; i + 1 < length; i += 2) {
+            int scaled = (int) (((long) chunk.getShort(i) * gain + rounding) >> FRACTION_BITS);
+            chunk.putShort(i, (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, scaled)));
+        }
+        return length;
+    }
+}
@@ -0,0 +1,89 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * The HashRing class places nodes on a consistent-hash ring. Every node is
+ * hashed onto the ring at several virtual points so that keys spread evenly,
+ * and a key is owned by the first distinct nodes found walking clockwise from
+ * its hash. When a node joins or leaves, only the keys next to its points
+ * change owners.
+ */
+public class HashRing {
+
+    private final TreeMap<Long, String> points = new TreeMap<>();
+    private final Set<String> nodes;
+
+    /**
+     * Constructs a new HashRing.
+     *
+     * @param nodes        The nodes on the ring.
+     * @param virtualNodes The number of points each node is placed at.
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * Get the nodes on the ring
+     *
+     * @return Set of nodes
+     */
+    public Set<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Gets the owners of a key.
+     *
+     * @param key   The key to place.
+     * @param count The number of owners wanted.
+     * @return The owners in ring order, the primary owner first. Fewer are
+     *         returned if the ring has fewer nodes.
+     */
+    public List<String> owners(String key, int count) {
+        List<String> owners = new ArrayList<>(count);
+        if (points.isEmpty()) {
+            return owners;
+        }
+
+        int wanted = Math.min(count, nodes.size());
+        Iterator<String> clockwise = points.tailMap(hash(key)).values().iterator();
+        Iterator<String> wrapped = points.values().iterator();
+
+        while (owners.size() < wanted) {
+            String node = clockwise.hasNext() ? clockwise.next() : wrapped.next();
+            if (!owners.contains(node)) {
+                owners.add(node);
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * Hashes a string onto the ring.
+     *
+     * @param value The string to hash.
+     * @return The position on the ring.
+     */
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            long position = 0;
+            for (int i = 0; i < 8; i++) {
+                position = position << 8 | (digest[i] & 0xff);
+            }
+            return position;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The IngestEvent is recorded by Java Flight Recorder for each finished
+ * recording a {@link RecordHandler} writes out as a WAV file, forces to disk
+ * and adds to the catalog.
+ */
+@Name("streaming.Ingest")
+@Label("Record Ingest")
+@Category({"Streaming", "Media"})
+@Description("A finished recording written out and added to the library")
+class IngestEvent extends jdk.jfr.Event {
+
+    @Label("Session")
+    int session;
+
+    @Label("File")
+    String file;
+
+    @Label("Size")
+    @DataAmount(DataAmount.BYTES)
+    long bytes;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
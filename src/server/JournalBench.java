@@ -0,0 +1,119 @@
+package server;
+
+import merrimackutil.net.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * The JournalBench class measures how fast the {@link RecordJournal} takes
+ * in chunks from many recordings at once, for a range of commit intervals.
+ *
+ * Each recording is a thread appending chunks as fast as it can for a fixed
+ * time. The throughput is reported with the number of fsyncs the committer
+ * issued, and as the number of recordings that rate could keep up with in
+ * real time. A last run makes every recording wait for its chunk to be on
+ * disk before sending the next, as an fsync per chunk would, committing
+ * continuously.
+ */
+public class JournalBench {
+
+    private static final int CHUNK_BYTES = Upload.CHUNK_BYTES;
+    private static final int CHUNKS_PER_SECOND = 100; // Chunks a real-time recording sends
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args The directory to journal in, and optionally the number of recordings, the seconds per run and the commit intervals in milliseconds.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: ");
+            System.out.println("  journalbench <dir> [recordings] [seconds] [commit ms...]");
+            System.exit(1);
+        }
+
+        File dir = new File(args[0]);
+        int recordings = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        long[] intervals = {0, 1, 5, 10, 50};
+        if (args.length > 3) {
+            intervals = new long[args.length - 3];
+            for (int i = 3; i < args.length; i++) {
+                intervals[i - 3] = Long.parseLong(args[i]);
+            }
+        }
+
+        Log log = new Log(new File(dir, "journalbench.log").getPath(), "JournalBench");
+        System.out.println(recordings + " recordings, " + seconds + " s per run");
+        for (long interval : intervals) {
+            run(dir, log, recordings, seconds, interval, false);
+        }
+        run(dir, log, recordings, seconds, 0, true);
+    }
+
+    /**
+     * Appends chunks from every recording for a while and prints the throughput.
+     */
+    private static void run(File dir, Log log, int recordings, int seconds, long interval, boolean waitEach)
+            throws IOException, InterruptedException {
+        File journalDir = Files.createTempDirectory(dir.toPath(), "journal").toFile();
+        RecordJournal journal = new RecordJournal();
+        journal.open(journalDir, interval, RecordJournal.DEFAULT_COMMIT_BYTES, log);
+
+        long[] chunks = new long[recordings];
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] threads = new Thread[recordings];
+        for (int r = 0; r < recordings; r++) {
+            int session = r;
+            threads[r] = new Thread(() -> {
+                ByteBuffer payload = ByteBuffer.allocateDirect(CHUNK_BYTES);
+                try {
+                    journal.begin(session, new File(dir, "bench-" + session + ".wav"));
+                    int sequence = 0;
+                    while (System.nanoTime() < deadline) {
+                        journal.append(session, sequence++, payload);
+                        if (waitEach) {
+                            journal.sync();
+                        }
+                    }
+                    chunks[session] = sequence;
+                    journal.finish(session);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[r].start();
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        journal.sync();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long commits = journal.getCommits();
+        journal.close();
+
+        long total = 0;
+        for (long count : chunks) {
+            total += count;
+        }
+        double rate = total / elapsed;
+        System.out.printf("%-22s %9.0f chunks/s %8.1f MB/s %7.0f fsyncs/s %6.0f real-time recordings%n",
+                waitEach ? "wait per chunk" : "commit every " + interval + " ms", rate,
+                rate * CHUNK_BYTES / (1024 * 1024), commits / elapsed, rate / CHUNKS_PER_SECOND);
+
+        File[] segments = journalDir.listFiles();
+        if (segments != null) {
+            for (File segment : segments) {
+                segment.delete();
+            }
+        }
+        journalDir.delete();
+    }
+}
@@ -0,0 +1,125 @@
+package server;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The LiveRelay class keeps the live streams of the recordings in progress by
+ * the file they are recorded to, so that a PLAY of a file still being
+ * recorded joins its {@link LiveStream}. A stream lives as long as its
+ * upload, across interruptions, and ends when the recording is finished or
+ * given up.
+ *
+ * A recording made under {@value #LIVE_PREFIX} is a named live stream
+ * instead: it is relayed from the ingest connection to its listeners and
+ * never stored, and it ends when its ingest connection does.
+ */
+public class LiveRelay {
+
+    public static final int DEFAULT_WINDOW_MINUTES = 2;
+    public static final String LIVE_PREFIX = "live/";
+
+    private static final LiveRelay SHARED = new LiveRelay();
+
+    private final ConcurrentHashMap<File, LiveStream> streams = new ConcurrentHashMap<>();
+    private volatile int windowChunks = chunksFor(DEFAULT_WINDOW_MINUTES);
+
+    /**
+     * Get the relay shared by every session of the server
+     *
+     * @return LiveRelay shared relay
+     */
+    public static LiveRelay shared() {
+        return SHARED;
+    }
+
+    /**
+     * Sets how much of a live stream is kept for listeners to seek back in.
+     * Streams opened before keep their window.
+     *
+     * @param minutes The length of the window in minutes.
+     */
+    public void setWindowMinutes(int minutes) {
+        if (minutes < 1) {
+            throw new IllegalArgumentException("The live window must be at least one minute");
+        }
+        windowChunks = chunksFor(minutes);
+    }
+
+    /**
+     * Get the window of new streams
+     *
+     * @return int chunks kept per stream
+     */
+    public int getWindowChunks() {
+        return windowChunks;
+    }
+
+    /**
+     * Gets the live stream of an upload, opening it when the upload starts.
+     * A resumed upload keeps the stream it had.
+     *
+     * @param upload The upload.
+     * @return The upload's live stream.
+     */
+    public LiveStream open(Upload upload) {
+        return streams.computeIfAbsent(upload.getFile(), file -> new LiveStream(upload, windowChunks));
+    }
+
+    /**
+     * Opens a named live stream for a recording that is only relayed.
+     *
+     * @param file The file the stream is known by.
+     * @return The new stream, or null if a stream by that name is live already.
+     */
+    public LiveStream openNamed(File file) {
+        if (streams.containsKey(file)) {
+            return null;
+        }
+
+        LiveStream stream = new LiveStream(file, windowChunks);
+        return streams.putIfAbsent(file, stream) == null ? stream : null;
+    }
+
+    /**
+     * Checks whether a resource names a live stream rather than a file
+     *
+     * @param resource The resource of a request, relative to the library.
+     * @return true if the resource is under {@value #LIVE_PREFIX}
+     */
+    public static boolean isNamed(String resource) {
+        return resource.startsWith(LIVE_PREFIX) && resource.length() > LIVE_PREFIX.length();
+    }
+
+    /**
+     * Gets the live stream of a file that is being recorded.
+     *
+     * @param file The file.
+     * @return The live stream, or null if the file is not being recorded.
+     */
+    public LiveStream find(File file) {
+        return streams.get(file);
+    }
+
+    /**
+     * Ends the live stream of a file, once its recording is finished or
+     * given up.
+     *
+     * @param file The recorded file.
+     */
+    public void end(File file) {
+        LiveStream stream = streams.remove(file);
+        if (stream != null) {
+            stream.end();
+        }
+    }
+
+    /**
+     * Gets the number of chunks a window holds
+     *
+     * @return int chunks in the given number of minutes
+     */
+    private static int chunksFor(int minutes) {
+        return minutes * 60 * 1000 / LiveStream.CHUNK_MILLIS;
+    }
+}
@@ -0,0 +1,405 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The LiveStream class relays a recording to listeners while it is still
+ * being recorded. Chunks of the upload are placed in an off-heap ring buffer
+ * by their sequence number, and the last few minutes stay in it, so a
+ * listener can start at the live edge or seek back within that window
+ * without touching disk. A listener is only a sequence number: it reads
+ * chunks out of the ring under the stream's lock and waits on the stream for
+ * the next one.
+ *
+ * The ring is also the upload's write-behind buffer. A writer thread takes
+ * the chunks from the ring in sequence order and writes them to the upload's
+ * spool, so the receive loop never waits on the disk. A chunk is not
+ * overwritten before it is written out: when the ring is full of unwritten
+ * chunks the receive loop waits for the writer. Chunks that cannot wait, such
+ * as ones far ahead of a gap the client has not filled, are written to the
+ * spool directly and are not relayed.
+ *
+ * A named live stream has no upload behind it. Its chunks are only relayed:
+ * nothing waits for a writer, a chunk is readable as soon as it is placed,
+ * and the live edge moves past chunks lost on the way, since listeners would
+ * rather skip them than fall behind.
+ *
+ * The memory of a stream is fixed when it is created and does not grow with
+ * its listeners or its length.
+ */
+public class LiveStream {
+
+    public static final int CHUNK_MILLIS = 10; // Each upload chunk holds 10ms of audio
+
+    private final Upload upload; // Null for a named stream, which is not stored
+    private final File file;
+    private final int capacity; // Chunks the ring holds
+    private final ByteBuffer ring;
+    private final int[] slotSeq; // The sequence number each slot holds, -1 if none
+    private final int[] lengths;
+    private final int base; // The first sequence number relayed
+
+    private int head; // Chunks up to here are in the ring or the spool without a gap
+    private int persisted; // Chunks up to here are in the spool without a gap
+    private int highest = -1; // The highest sequence number placed in the ring
+    private boolean ended = false;
+    private Thread writer;
+    private IOException failure;
+
+    /**
+     * Constructs a new LiveStream for an upload. The stream starts at the
+     * chunks the upload already holds.
+     *
+     * @param upload   The upload the stream relays and writes out.
+     * @param capacity The number of chunks the ring holds.
+     */
+    LiveStream(Upload upload, int capacity) {
+        this(upload, upload.getFile(), capacity, upload.getAcknowledged());
+    }
+
+    /**
+     * Constructs a new named LiveStream, which relays its chunks without
+     * storing them.
+     *
+     * @param file     The file the stream is known by.
+     * @param capacity The number of chunks the ring holds.
+     */
+    LiveStream(File file, int capacity) {
+        this(null, file, capacity, 0);
+    }
+
+    private LiveStream(Upload upload, File file, int capacity, int base) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("A live stream needs room for at least one chunk");
+        }
+
+        this.upload = upload;
+        this.file = file;
+        this.capacity = capacity;
+        this.ring = ByteBuffer.allocateDirect(capacity * Upload.CHUNK_BYTES);
+        this.slotSeq = new int[capacity];
+        this.lengths = new int[capacity];
+        Arrays.fill(slotSeq, -1);
+
+        this.base = base;
+        this.head = base;
+        this.persisted = base;
+    }
+
+    /**
+     * Get the file the stream is recorded to
+     *
+     * @return File of the recording
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the live edge of the stream
+     *
+     * @return int sequence number of the next chunk listeners wait for
+     */
+    public synchronized int getHead() {
+        return head;
+    }
+
+    /**
+     * Get the number of chunks the ring holds
+     *
+     * @return int capacity in chunks
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Starts writing the ring out to the upload's spool. Called when a media
+     * connection attaches to the upload, after the spool is opened.
+     */
+    public synchronized void attach() {
+        if (writer != null || upload == null) {
+            return;
+        }
+
+        failure = null;
+        writer = new Thread(this::writeOut, "live-" + upload.getSessionId());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Waits until every chunk up to the first gap has been written out, then
+     * stops the writer. Called before the upload is finished or suspended,
+     * so the spool holds everything received without a gap. Chunks after a
+     * gap stay in the ring until the client resends the missing ones.
+     *
+     * @throws IOException if the writer failed to write a chunk.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void detach() throws IOException, InterruptedException {
+        Thread stopping;
+        synchronized (this) {
+            while (writer != null && failure == null && hasWritable()) {
+                wait();
+            }
+            stopping = writer;
+            writer = null;
+            notifyAll();
+        }
+
+        if (stopping != null) {
+            stopping.join();
+        }
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Places a received chunk in the ring. Waits while the ring is full of
+     * chunks the writer has not written out yet.
+     *
+     * @param sequence The sequence number of the chunk.
+     * @param payload  The chunk bytes.
+     * @return true if the chunk was new, false for a duplicate or, on a named stream, a chunk too late to relay.
+     * @throws IOException if a chunk written directly cannot be written, or the writer failed.
+     * @throws InterruptedException if interrupted while waiting for the writer.
+     */
+    public boolean write(int sequence, ByteBuffer payload) throws IOException, InterruptedException {
+        synchronized (this) {
+            if (upload == null) {
+                if (sequence <= highest - capacity || slotSeq[slot(sequence)] == sequence
+                        || payload.remaining() > Upload.CHUNK_BYTES) {
+                    return false;
+                }
+                place(sequence, payload);
+                head = Math.max(head, sequence + 1); // Listeners skip what has not arrived
+                notifyAll();
+                return true;
+            }
+
+            while (true) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (sequence < persisted || slotSeq[slot(sequence)] == sequence) {
+                    return false;
+                }
+                if (sequence < persisted + capacity && payload.remaining() <= Upload.CHUNK_BYTES) {
+                    break;
+                }
+                if (!hasWritable() || payload.remaining() > Upload.CHUNK_BYTES) {
+                    return writeDirect(sequence, payload); // The writer cannot make room for it
+                }
+                wait();
+            }
+
+            place(sequence, payload);
+            advanceHead();
+            notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Ends the stream. Listeners play what is left in the ring after their
+     * position and then stop.
+     */
+    public synchronized void end() {
+        ended = true;
+        notifyAll();
+    }
+
+    /**
+     * Checks whether the stream has ended
+     *
+     * @return true once the recording is finished or given up
+     */
+    public synchronized boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Gets the sequence number a listener starts at for an RTSP Range. A
+     * Range of "npt=now-", or none, starts at the live edge. A Range of
+     * "npt=t-" starts t seconds after the start of the recording, or at the
+     * oldest chunk still held if that has already left the ring.
+     *
+     * @param range The Range header of the PLAY request, or null.
+     * @return The sequence number of the first chunk to play.
+     */
+    public synchronized int startFor(String range) {
+        if (range == null || !range.startsWith("npt=")) {
+            return head;
+        }
+
+        String start = range.substring(4).split("-", 2)[0].trim();
+        if (start.isEmpty() || start.equals("now")) {
+            return head;
+        }
+
+        try {
+            long chunk = Math.round(Double.parseDouble(start) * 1000 / CHUNK_MILLIS);
+            return (int) Math.max(oldest(), Math.min(head, chunk));
+        } catch (NumberFormatException e) {
+            return head;
+        }
+    }
+
+    /**
+     * Waits until a chunk can be read or the stream has ended.
+     *
+     * @param sequence The sequence number of the chunk.
+     * @return true if the chunk is available, false once the stream has ended before it.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized boolean await(int sequence) throws InterruptedException {
+        while (sequence >= head && !ended) {
+            wait();
+        }
+        return sequence < head;
+    }
+
+    /**
+     * Gets the number of chunks a listener can read without waiting.
+     *
+     * @param sequence The sequence number of the listener's next chunk.
+     * @return The number of chunks from the sequence number to the live edge.
+     */
+    public synchronized int available(int sequence) {
+        return Math.max(0, head - sequence);
+    }
+
+    /**
+     * Gets the oldest chunk a listener can still read
+     *
+     * @return int sequence number of the oldest chunk in the ring
+     */
+    public synchronized int oldest() {
+        return Math.max(base, highest + 1 - capacity);
+    }
+
+    /**
+     * Copies a chunk out of the ring.
+     *
+     * @param sequence The sequence number of the chunk.
+     * @param dst      The buffer to copy the chunk to, from index zero.
+     * @return The length of the chunk, or -1 if the ring no longer holds it.
+     */
+    public synchronized int read(int sequence, ByteBuffer dst) {
+        int slot = slot(sequence);
+        if (sequence >= head || slotSeq[slot] != sequence) {
+            return -1;
+        }
+
+        dst.put(0, ring, slot * Upload.CHUNK_BYTES, lengths[slot]);
+        return lengths[slot];
+    }
+
+    /**
+     * Writes the chunks of the ring to the upload's spool in sequence order
+     * until the stream is detached.
+     */
+    private void writeOut() {
+        ByteBuffer view = ring.duplicate();
+        Thread self = Thread.currentThread();
+
+        try {
+            while (true) {
+                int sequence;
+                int slot;
+                synchronized (this) {
+                    while (writer == self && !hasWritable()) {
+                        wait();
+                    }
+                    if (writer != self) {
+                        return;
+                    }
+
+                    sequence = persisted;
+                    slot = slot(sequence);
+                    if (slotSeq[slot] != sequence) { // Written directly, nothing to copy
+                        persisted++;
+                        notifyAll();
+                        continue;
+                    }
+                }
+
+                // The slot is not reused before persisted moves past it, so it is read without the lock
+                int offset = slot * Upload.CHUNK_BYTES;
+                view.limit(offset + lengths[slot]).position(offset);
+                upload.write(sequence, view);
+
+                synchronized (this) {
+                    persisted++;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copies a chunk into its slot of the ring.
+     */
+    private void place(int sequence, ByteBuffer payload) {
+        int slot = slot(sequence);
+        int length = payload.remaining();
+        ring.put(slot * Upload.CHUNK_BYTES, payload, payload.position(), length);
+        payload.position(payload.limit());
+        slotSeq[slot] = sequence;
+        lengths[slot] = length;
+        highest = Math.max(highest, sequence);
+    }
+
+    /**
+     * Writes a chunk straight to the upload's spool, bypassing the ring.
+     *
+     * @return true if the chunk was new, false for a duplicate.
+     */
+    private boolean writeDirect(int sequence, ByteBuffer payload) throws IOException {
+        boolean added = upload.write(sequence, payload);
+        advanceHead();
+        notifyAll();
+        return added;
+    }
+
+    /**
+     * Moves the live edge over the chunks that arrived without a gap.
+     */
+    private void advanceHead() {
+        while (slotSeq[slot(head)] == head || upload.has(head)) {
+            head++;
+        }
+    }
+
+    /**
+     * Checks whether the writer has a chunk to write out next
+     *
+     * @return true if the next chunk to write has arrived
+     */
+    private boolean hasWritable() {
+        return persisted < head;
+    }
+
+    /**
+     * Gets the slot of the ring a chunk goes in
+     *
+     * @return int slot index
+     */
+    private int slot(int sequence) {
+        return sequence % capacity;
+    }
+}
@@ -0,0 +1,276 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The LosslessBench class measures the {@link LosslessCodec}: how much it
+ * shrinks audio, how fast one core encodes and decodes it, and what the
+ * smaller files do for the page cache.
+ *
+ * Every file is compressed, decoded and compared with the original, so the
+ * run fails if the codec loses a sample. Decoding reads the file the way
+ * playback does, in 10ms chunks through a {@link LosslessReader}. The cache
+ * is simulated: a library of four minute tracks, each the measured fraction
+ * of its WAV size, is played with Zipf distributed popularity through an
+ * LRU cache of whole files, and the share of plays served from the cache is
+ * reported for the WAV and the compressed library.
+ *
+ * Without files to measure, a minute of synthetic music is generated:
+ * decaying harmonic notes, panned, over low noise.
+ */
+public class LosslessBench {
+
+    private static final int CHUNK_BYTES = 1764; // 10ms, as playback reads
+    private static final int RUNS = 5;
+    private static final int TRACKS = 2000;
+    private static final long TRACK_BYTES = 4 * 60 * 44100 * 4L;
+    private static final int PLAYS = 200_000;
+    private static final double ZIPF = 0.9;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args WAV files to measure, or none to measure synthetic music.
+     */
+    public static void main(String[] args) throws Exception {
+        List<File> sources = new ArrayList<>();
+        for (String arg : args) {
+            sources.add(new File(arg));
+        }
+        if (sources.isEmpty()) {
+            File synthetic = File.createTempFile("synthetic", ".wav");
+            synthetic.deleteOnExit();
+            synthesize(synthetic, 60);
+            sources.add(synthetic);
+        }
+
+        long raw = 0;
+        long coded = 0;
+        long pcm = 0;
+        double encodeSeconds = 0;
+        double decodeSeconds = 0;
+        List<File> compressed = new ArrayList<>();
+
+        for (File source : sources) {
+            File out = File.createTempFile("lossless", ".slac");
+            out.deleteOnExit();
+
+            double encode = Double.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                if (!LosslessCodec.compress(source, out)) {
+                    throw new IOException(source.getPath() + " is not 16-bit PCM audio");
+                }
+                encode = Math.min(encode, (System.nanoTime() - start) / 1e9);
+            }
+
+            WavFormat format = WavFormat.read(source);
+            long length = format.getDataLength() - format.getDataLength() % format.getFrameSize();
+            checkRoundTrip(source, format, out, length);
+
+            double decode = Double.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                decode = Math.min(decode, decode(out));
+            }
+
+            raw += source.length();
+            coded += out.length();
+            pcm += length;
+            encodeSeconds += encode;
+            decodeSeconds += decode;
+            compressed.add(out);
+            System.out.printf("%-40s %6.1f%% of %d bytes%n", source.getName(), 100.0 * out.length() / source.length(),
+                    source.length());
+        }
+
+        double ratio = (double) coded / raw;
+        double audioSeconds = pcm / (44100.0 * 4);
+        System.out.printf("Compressed to %.1f%% of the WAV size, every sample decoded back%n", 100 * ratio);
+        System.out.printf("Encode: %.1f MB/s per core (%.0fx real time)%n", pcm / encodeSeconds / (1 << 20),
+                audioSeconds / encodeSeconds);
+        System.out.printf("Decode: %.1f MB/s per core (%.0fx real time, %.0f streams per core)%n",
+                pcm / decodeSeconds / (1 << 20), audioSeconds / decodeSeconds, audioSeconds / decodeSeconds);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("Decode on %d cores: %.1f MB/s%n", cores, parallelDecode(compressed, cores, pcm) / (1 << 20));
+
+        long library = TRACKS * TRACK_BYTES;
+        for (double share : new double[]{0.05, 0.10, 0.25}) {
+            long cache = (long) (library * share);
+            double wavHits = hitRate(cache, TRACK_BYTES);
+            double codedHits = hitRate(cache, (long) (TRACK_BYTES * ratio));
+            System.out.printf("Page cache of %4.0f%% of the WAV library (%5d MB): hit rate %.1f%% as WAV, %.1f%% compressed%n",
+                    share * 100, cache >> 20, wavHits * 100, codedHits * 100);
+        }
+    }
+
+    /**
+     * Decodes a compressed file and compares it with its source.
+     */
+    private static void checkRoundTrip(File source, WavFormat format, File out, long length) throws IOException {
+        ByteBuffer expected = ByteBuffer.allocate(CHUNK_BYTES * 64);
+        ByteBuffer actual = ByteBuffer.allocate(CHUNK_BYTES * 64);
+        try (PcmReader original = PcmReader.open(source, format); LosslessReader decoded = new LosslessReader(out)) {
+            if (decoded.length() != length) {
+                throw new IOException("Decoded " + decoded.length() + " of " + length + " bytes");
+            }
+            for (long position = 0; position < length; position += expected.capacity()) {
+                expected.clear();
+                actual.clear();
+                while (expected.hasRemaining() && original.read(expected, position + expected.position()) > 0) {
+                    // Keep reading until the buffer is full
+                }
+                while (actual.hasRemaining() && decoded.read(actual, position + actual.position()) > 0) {
+                    // Keep reading until the buffer is full
+                }
+                if (!expected.flip().equals(actual.flip())) {
+                    throw new IOException("Samples differ near byte " + position + " of " + source.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes a file in playback sized chunks.
+     *
+     * @return double seconds taken
+     */
+    private static double decode(File file) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+        long start = System.nanoTime();
+        try (LosslessReader reader = new LosslessReader(file)) {
+            long position = 0;
+            int read;
+            while ((read = reader.read(chunk.clear(), position)) > 0) {
+                position += read;
+            }
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    /**
+     * Decodes the files on every core at once, each thread decoding them all.
+     *
+     * @return double PCM bytes decoded per second
+     */
+    private static double parallelDecode(List<File> files, int threads, long pcm) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Double>> results = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                results.add(pool.submit(() -> {
+                    double seconds = 0;
+                    for (File file : files) {
+                        seconds += decode(file);
+                    }
+                    return seconds;
+                }));
+            }
+            for (Future<Double> result : results) {
+                result.get();
+            }
+            return pcm * threads / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Plays a Zipf distributed sequence of tracks through an LRU cache of
+     * whole files.
+     *
+     * @return double share of plays found in the cache
+     */
+    private static double hitRate(long cacheBytes, long trackBytes) {
+        double[] cumulative = new double[TRACKS];
+        double sum = 0;
+        for (int i = 0; i < TRACKS; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF);
+            cumulative[i] = sum;
+        }
+
+        Random random = new Random(7); // The same plays for both libraries
+        LinkedHashMap<Integer, Boolean> cache = new LinkedHashMap<>(16, 0.75f, true);
+        long capacity = cacheBytes / trackBytes;
+        int hits = 0;
+        for (int play = 0; play < PLAYS; play++) {
+            int index = java.util.Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            int track = index < 0 ? -index - 1 : index;
+            if (cache.get(track) != null) {
+                hits++;
+                continue;
+            }
+            cache.put(track, Boolean.TRUE);
+            if (cache.size() > capacity) {
+                Iterator<Integer> eldest = cache.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return (double) hits / PLAYS;
+    }
+
+    /**
+     * Writes a WAV file of synthetic stereo music at 44.1 kHz.
+     */
+    private static void synthesize(File file, int seconds) throws IOException {
+        int rate = 44100;
+        int frames = rate * seconds;
+        ByteBuffer data = ByteBuffer.allocate(44 + frames * 4).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(0x46464952).putInt(36 + frames * 4).putInt(0x45564157)
+                .putInt(0x20746D66).putInt(16).putShort((short) 1).putShort((short) 2)
+                .putInt(rate).putInt(rate * 4).putShort((short) 4).putShort((short) 16)
+                .putInt(0x61746164).putInt(frames * 4);
+
+        Random random = new Random(42);
+        int noteFrames = rate / 4;
+        double[] freq = new double[4];
+        double[] pan = new double[4];
+        for (int f = 0; f < frames; f++) {
+            int voice = (f / noteFrames) % freq.length;
+            if (f % noteFrames == 0) {
+                freq[voice] = 110 * Math.pow(2, random.nextInt(36) / 12.0);
+                pan[voice] = random.nextDouble();
+            }
+
+            double left = 0;
+            double right = 0;
+            for (int v = 0; v < freq.length; v++) {
+                if (freq[v] == 0) {
+                    continue;
+                }
+                double age = ((f - v * noteFrames) % (noteFrames * freq.length)) / (double) rate;
+                double envelope = Math.exp(-3 * age);
+                double t = (double) f / rate;
+                double tone = 0;
+                for (int h = 1; h <= 6; h++) {
+                    tone += Math.sin(2 * Math.PI * freq[v] * h * t) / (h * h);
+                }
+                left += tone * envelope * (1 - pan[v]);
+                right += tone * envelope * pan[v];
+            }
+
+            double noise = random.nextGaussian() * 0.002;
+            data.putShort((short) Math.round(Math.max(-1, Math.min(1, left * 0.3 + noise)) * 32767));
+            data.putShort((short) Math.round(Math.max(-1, Math.min(1, right * 0.3 + noise)) * 32767));
+        }
+
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(0);
+            out.write(data.array());
+        }
+    }
+}
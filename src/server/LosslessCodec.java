@@ -0,0 +1,789 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The LosslessCodec class compresses 16-bit PCM audio without loss, in the
+ * manner of FLAC. The audio is cut into blocks of {@value #BLOCK_FRAMES}
+ * frames. In a stereo block the channels are first decorrelated into left,
+ * right, mid or side, whichever pair is cheapest. Each channel is then
+ * predicted from its previous samples, by a fixed polynomial predictor or by
+ * linear prediction with quantized coefficients found by Levinson-Durbin
+ * recursion, and the prediction residual is Rice coded, with a Rice
+ * parameter for every {@value #PARTITION} samples. A channel that does not
+ * get smaller is stored verbatim.
+ *
+ * A compressed file is a header, a seek table with the offset of every
+ * block, and the blocks. Blocks are independent, so a reader decodes only
+ * the blocks it plays, starting anywhere. The file keeps the name it had as
+ * a WAV file and is recognized by its magic number.
+ *
+ * An instance holds the scratch buffers of one channel layout and is not
+ * thread safe.
+ */
+public class LosslessCodec {
+
+    public static final int MAGIC = 0x43414C53; // "SLAC" little-endian
+    public static final int BLOCK_FRAMES = 4096; // About 93ms at 44.1kHz
+
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 28; // Magic, version, channels, bits, rate, frames, block frames, blocks
+
+    private static final int PARTITION = 256;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_LPC_ORDER = 8;
+    private static final int LPC_PRECISION = 12;
+    private static final int MAX_RICE = 30;
+    private static final int MAX_RESIDUAL = 1 << 29; // Larger residuals would overflow their zigzag code
+    private static final int VERBATIM = 0;
+    private static final int FIXED = 1;
+    private static final int LPC = 2;
+    private static final int INDEPENDENT = 0;
+    private static final int LEFT_SIDE = 1;
+    private static final int RIGHT_SIDE = 2;
+    private static final int MID_SIDE = 3;
+
+    private final int channels;
+    private final int[][] samples; // The channels as read, then as coded
+    private final int[] side;
+    private final int[] mid;
+    private final int[] residual;
+    private final int[] bestResidual;
+    private final int[] coefficients = new int[MAX_LPC_ORDER];
+    private final int[] bestCoefficients = new int[MAX_LPC_ORDER];
+    private final double[] window;
+    private final double[] windowed;
+    private final double[] autocorrelation = new double[MAX_LPC_ORDER + 1];
+    private final double[] lpc = new double[MAX_LPC_ORDER];
+    private final double[][] predictors = new double[MAX_LPC_ORDER + 1][MAX_LPC_ORDER];
+    private final BitWriter writer = new BitWriter();
+    private final BitReader reader = new BitReader();
+
+    /**
+     * Constructs a codec for audio with one or two channels.
+     *
+     * @param channels The number of channels.
+     */
+    public LosslessCodec(int channels) {
+        if (channels < 1 || channels > 2) {
+            throw new IllegalArgumentException("Only mono and stereo audio can be compressed");
+        }
+
+        this.channels = channels;
+        this.samples = new int[2][BLOCK_FRAMES];
+        this.side = new int[BLOCK_FRAMES];
+        this.mid = new int[BLOCK_FRAMES];
+        this.residual = new int[BLOCK_FRAMES];
+        this.bestResidual = new int[BLOCK_FRAMES];
+        this.windowed = new double[BLOCK_FRAMES];
+        this.window = new double[BLOCK_FRAMES];
+    }
+
+    /**
+     * Gets the largest number of bytes a block can be coded in
+     *
+     * @return int bound on the coded length of a block
+     */
+    public int maxBlockBytes() {
+        return channels * (BLOCK_FRAMES * 17 + 64) / 8 + 16; // Verbatim 17-bit side channel and headers
+    }
+
+    /**
+     * Checks whether a file is stored compressed.
+     *
+     * @param file The media file.
+     * @return true if the file starts with the magic number of the format.
+     * @throws IOException if the file cannot be read.
+     */
+    public static boolean isLossless(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (magic.hasRemaining() && channel.read(magic, magic.position()) >= 0) {
+                // Keep reading until the magic number is in
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Compresses a 16-bit PCM WAV file with one or two channels.
+     *
+     * @param wav The WAV file.
+     * @param out The file to write the compressed audio to.
+     * @return false if the file is not audio the codec can compress, in which case nothing is written.
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static boolean compress(File wav, File out) throws IOException {
+        WavFormat format = WavFormat.read(wav);
+        if (format == null || format.isLossless() || format.getBitsPerSample() != 16
+                || format.getChannels() < 1 || format.getChannels() > 2) {
+            return false;
+        }
+
+        int frameSize = format.getFrameSize();
+        long frames = format.getDataLength() / frameSize;
+        int blocks = (int) ((frames + BLOCK_FRAMES - 1) / BLOCK_FRAMES);
+        LosslessCodec codec = new LosslessCodec(format.getChannels());
+
+        try (PcmReader in = PcmReader.open(wav, format);
+             FileChannel channel = FileChannel.open(out.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer table = ByteBuffer.allocate(8 * (blocks + 1)).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer pcm = ByteBuffer.allocate(BLOCK_FRAMES * frameSize);
+            byte[] coded = new byte[codec.maxBlockBytes()];
+            long position = HEADER_BYTES + table.capacity();
+
+            for (int b = 0; b < blocks; b++) {
+                int count = (int) Math.min(BLOCK_FRAMES, frames - (long) b * BLOCK_FRAMES);
+                pcm.clear().limit(count * frameSize);
+                long start = (long) b * BLOCK_FRAMES * frameSize;
+                while (pcm.hasRemaining() && in.read(pcm, start + pcm.position()) >= 0) {
+                    // Keep reading until the block is full
+                }
+
+                int length = codec.encode(pcm.array(), count, coded);
+                table.putLong(position);
+                writeFully(channel, ByteBuffer.wrap(coded, 0, length), position);
+                position += length;
+            }
+            table.putLong(position).flip();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).put((byte) VERSION).put((byte) format.getChannels()).put((byte) 16).put((byte) 0)
+                    .putInt(format.getSampleRate()).putLong(frames).putInt(BLOCK_FRAMES).putInt(blocks).flip();
+            writeFully(channel, header, 0);
+            writeFully(channel, table, HEADER_BYTES);
+        }
+        return true;
+    }
+
+    /**
+     * Encodes one block of interleaved little-endian 16-bit PCM.
+     *
+     * @param pcm    The samples of the block.
+     * @param frames The number of frames in the block, at most {@value #BLOCK_FRAMES}.
+     * @param out    The array to write the coded block to, at least {@link #maxBlockBytes()} long.
+     * @return The number of bytes written.
+     */
+    public int encode(byte[] pcm, int frames, byte[] out) {
+        for (int i = 0; i < frames; i++) {
+            for (int c = 0; c < channels; c++) {
+                int at = (i * channels + c) * 2;
+                samples[c][i] = (short) ((pcm[at] & 0xFF) | (pcm[at + 1] << 8));
+            }
+        }
+
+        writer.reset(out);
+        if (channels == 1) {
+            writer.write(INDEPENDENT, 2);
+            encodeChannel(samples[0], frames, 16);
+            return writer.finish();
+        }
+
+        int[] left = samples[0];
+        int[] right = samples[1];
+        for (int i = 0; i < frames; i++) {
+            side[i] = left[i] - right[i];
+            mid[i] = (left[i] + right[i]) >> 1;
+        }
+
+        long costLeft = estimate(left, frames);
+        long costRight = estimate(right, frames);
+        long costSide = estimate(side, frames);
+        long costMid = estimate(mid, frames);
+
+        int mode = INDEPENDENT;
+        long best = costLeft + costRight;
+        if (costLeft + costSide < best) {
+            mode = LEFT_SIDE;
+            best = costLeft + costSide;
+        }
+        if (costSide + costRight < best) {
+            mode = RIGHT_SIDE;
+            best = costSide + costRight;
+        }
+        if (costMid + costSide < best) {
+            mode = MID_SIDE;
+        }
+
+        writer.write(mode, 2);
+        switch (mode) {
+            case LEFT_SIDE -> {
+                encodeChannel(left, frames, 16);
+                encodeChannel(side, frames, 17);
+            }
+            case RIGHT_SIDE -> {
+                encodeChannel(side, frames, 17);
+                encodeChannel(right, frames, 16);
+            }
+            case MID_SIDE -> {
+                encodeChannel(mid, frames, 16);
+                encodeChannel(side, frames, 17);
+            }
+            default -> {
+                encodeChannel(left, frames, 16);
+                encodeChannel(right, frames, 16);
+            }
+        }
+        return writer.finish();
+    }
+
+    /**
+     * Decodes one block into interleaved little-endian 16-bit PCM.
+     *
+     * @param in     The array holding the coded block.
+     * @param offset The position of the block in the array.
+     * @param length The coded length of the block.
+     * @param frames The number of frames in the block.
+     * @param pcm    The array to write the samples to, from index zero.
+     * @throws IOException if the block is corrupt.
+     */
+    public void decode(byte[] in, int offset, int length, int frames, byte[] pcm) throws IOException {
+        reader.reset(in, offset, length);
+        int mode = reader.read(2);
+
+        if (channels == 1) {
+            decodeChannel(samples[0], frames, 16);
+        } else {
+            int[] a = samples[0];
+            int[] b = samples[1];
+            decodeChannel(a, frames, mode == RIGHT_SIDE ? 17 : 16);
+            decodeChannel(b, frames, mode == LEFT_SIDE || mode == MID_SIDE ? 17 : 16);
+
+            for (int i = 0; i < frames; i++) {
+                int left;
+                int right;
+                switch (mode) {
+                    case LEFT_SIDE -> {
+                        left = a[i];
+                        right = a[i] - b[i];
+                    }
+                    case RIGHT_SIDE -> {
+                        left = a[i] + b[i];
+                        right = b[i];
+                    }
+                    case MID_SIDE -> {
+                        int sum = (a[i] << 1) | (b[i] & 1);
+                        left = (sum + b[i]) >> 1;
+                        right = (sum - b[i]) >> 1;
+                    }
+                    default -> {
+                        left = a[i];
+                        right = b[i];
+                    }
+                }
+                a[i] = left;
+                b[i] = right;
+            }
+        }
+
+        for (int i = 0; i < frames; i++) {
+            for (int c = 0; c < channels; c++) {
+                int value = samples[c][i];
+                int at = (i * channels + c) * 2;
+                pcm[at] = (byte) value;
+                pcm[at + 1] = (byte) (value >> 8);
+            }
+        }
+    }
+
+    /**
+     * Estimates the cost of a channel by its second order residual, to pick
+     * the channel pair of a stereo block.
+     *
+     * @return long sum of the absolute residuals
+     */
+    private static long estimate(int[] x, int frames) {
+        long sum = 0;
+        for (int i = 2; i < frames; i++) {
+            sum += Math.abs(x[i] - 2 * x[i - 1] + x[i - 2]);
+        }
+        return sum;
+    }
+
+    /**
+     * Codes one channel of a block with the predictor whose Rice coded
+     * residual is smallest, or verbatim if nothing is smaller.
+     */
+    private void encodeChannel(int[] x, int frames, int bits) {
+        long bestBits = (long) frames * bits;
+        int bestType = VERBATIM;
+        int bestOrder = 0;
+        int bestShift = 0;
+
+        for (int order = 0; order <= MAX_FIXED_ORDER && order < frames; order++) {
+            if (fixedResidual(x, frames, order)) {
+                long cost = (long) order * bits + riceBits(residual, order, frames);
+                if (cost < bestBits) {
+                    bestBits = cost;
+                    bestType = FIXED;
+                    bestOrder = order;
+                    System.arraycopy(residual, 0, bestResidual, 0, frames);
+                }
+            }
+        }
+
+        if (frames > 4 * MAX_LPC_ORDER && computePredictors(x, frames)) {
+            for (int order = 1; order <= MAX_LPC_ORDER; order++) {
+                int shift = quantize(predictors[order], order);
+                if (shift < 0 || !lpcResidual(x, frames, order, shift)) {
+                    continue;
+                }
+                long cost = 4 + (long) order * (16 + bits) + riceBits(residual, order, frames);
+                if (cost < bestBits) {
+                    bestBits = cost;
+                    bestType = LPC;
+                    bestOrder = order;
+                    bestShift = shift;
+                    System.arraycopy(coefficients, 0, bestCoefficients, 0, order);
+                    System.arraycopy(residual, 0, bestResidual, 0, frames);
+                }
+            }
+        }
+
+        writer.write(bestType, 2);
+        writer.write(bestOrder, 4);
+        if (bestType == VERBATIM) {
+            for (int i = 0; i < frames; i++) {
+                writer.write(x[i], bits);
+            }
+            return;
+        }
+
+        if (bestType == LPC) {
+            writer.write(bestShift, 4);
+            for (int j = 0; j < bestOrder; j++) {
+                writer.write(bestCoefficients[j], 16);
+            }
+        }
+        for (int i = 0; i < bestOrder; i++) {
+            writer.write(x[i], bits);
+        }
+        writeResidual(bestResidual, bestOrder, frames);
+    }
+
+    /**
+     * Decodes one channel of a block.
+     */
+    private void decodeChannel(int[] x, int frames, int bits) throws IOException {
+        int type = reader.read(2);
+        int order = reader.read(4);
+
+        if (type == VERBATIM) {
+            for (int i = 0; i < frames; i++) {
+                x[i] = reader.readSigned(bits);
+            }
+            return;
+        }
+        if (order > frames || (type == FIXED && order > MAX_FIXED_ORDER) || type > LPC || order > MAX_LPC_ORDER) {
+            throw new IOException("Corrupt block: predictor " + type + " of order " + order);
+        }
+
+        int shift = 0;
+        if (type == LPC) {
+            shift = reader.read(4);
+            for (int j = 0; j < order; j++) {
+                coefficients[j] = reader.readSigned(16);
+            }
+        }
+        for (int i = 0; i < order; i++) {
+            x[i] = reader.readSigned(bits);
+        }
+        readResidual(x, order, frames);
+
+        if (type == FIXED) {
+            switch (order) {
+                case 1 -> {
+                    for (int i = 1; i < frames; i++) {
+                        x[i] += x[i - 1];
+                    }
+                }
+                case 2 -> {
+                    for (int i = 2; i < frames; i++) {
+                        x[i] += 2 * x[i - 1] - x[i - 2];
+                    }
+                }
+                case 3 -> {
+                    for (int i = 3; i < frames; i++) {
+                        x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+                    }
+                }
+                case 4 -> {
+                    for (int i = 4; i < frames; i++) {
+                        x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+                    }
+                }
+                default -> {
+                    // Order zero, the residual is the signal
+                }
+            }
+            return;
+        }
+
+        int[] c = coefficients;
+        for (int i = order; i < frames; i++) {
+            long sum = 0;
+            for (int j = 0; j < order; j++) {
+                sum += (long) c[j] * x[i - 1 - j];
+            }
+            x[i] += (int) (sum >> shift);
+        }
+    }
+
+    /**
+     * Computes the residual of a fixed polynomial predictor.
+     *
+     * @return false if the residual is too large to code
+     */
+    private boolean fixedResidual(int[] x, int frames, int order) {
+        for (int i = order; i < frames; i++) {
+            int r = switch (order) {
+                case 0 -> x[i];
+                case 1 -> x[i] - x[i - 1];
+                case 2 -> x[i] - 2 * x[i - 1] + x[i - 2];
+                case 3 -> x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                default -> x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+            };
+            if (r >= MAX_RESIDUAL || r <= -MAX_RESIDUAL) {
+                return false;
+            }
+            residual[i] = r;
+        }
+        return true;
+    }
+
+    /**
+     * Computes the residual of the quantized linear predictor in
+     * {@link #coefficients}.
+     *
+     * @return false if the residual is too large to code
+     */
+    private boolean lpcResidual(int[] x, int frames, int order, int shift) {
+        for (int i = order; i < frames; i++) {
+            long sum = 0;
+            for (int j = 0; j < order; j++) {
+                sum += (long) coefficients[j] * x[i - 1 - j];
+            }
+            long r = x[i] - (sum >> shift);
+            if (r >= MAX_RESIDUAL || r <= -MAX_RESIDUAL) {
+                return false;
+            }
+            residual[i] = (int) r;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the linear predictors of every order up to
+     * {@value #MAX_LPC_ORDER} from the autocorrelation of the windowed
+     * channel, by Levinson-Durbin recursion.
+     *
+     * @return false if the channel is silent
+     */
+    private boolean computePredictors(int[] x, int frames) {
+        for (int i = 0; i < frames; i++) {
+            double w = (2.0 * i - (frames - 1)) / (frames + 1); // Welch window
+            window[i] = 1 - w * w;
+            windowed[i] = x[i] * window[i];
+        }
+        for (int lag = 0; lag <= MAX_LPC_ORDER; lag++) {
+            double sum = 0;
+            for (int i = lag; i < frames; i++) {
+                sum += windowed[i] * windowed[i - lag];
+            }
+            autocorrelation[lag] = sum;
+        }
+        if (autocorrelation[0] == 0) {
+            return false;
+        }
+
+        Arrays.fill(lpc, 0);
+        double error = autocorrelation[0] * (1 + 1e-10);
+        for (int i = 0; i < MAX_LPC_ORDER; i++) {
+            double r = -autocorrelation[i + 1];
+            for (int j = 0; j < i; j++) {
+                r -= lpc[j] * autocorrelation[i - j];
+            }
+            r /= error;
+
+            lpc[i] = r;
+            for (int j = 0; j < i / 2; j++) {
+                double tmp = lpc[j];
+                lpc[j] += r * lpc[i - 1 - j];
+                lpc[i - 1 - j] += r * tmp;
+            }
+            if ((i & 1) == 1) {
+                lpc[i / 2] += lpc[i / 2] * r;
+            }
+            error *= 1 - r * r;
+
+            for (int j = 0; j <= i; j++) {
+                predictors[i + 1][j] = -lpc[j]; // Predict x[n] as the sum of c[j] * x[n - 1 - j]
+            }
+            if (error <= 0) {
+                for (int order = i + 2; order <= MAX_LPC_ORDER; order++) {
+                    System.arraycopy(predictors[i + 1], 0, predictors[order], 0, MAX_LPC_ORDER);
+                }
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Quantizes predictor coefficients into {@link #coefficients}, carrying
+     * the rounding error of each coefficient into the next.
+     *
+     * @return int shift the coefficients are scaled by, or -1 if they cannot be quantized
+     */
+    private int quantize(double[] predictor, int order) {
+        double max = 0;
+        for (int j = 0; j < order; j++) {
+            max = Math.max(max, Math.abs(predictor[j]));
+        }
+        if (max == 0 || Double.isNaN(max) || Double.isInfinite(max)) {
+            return -1;
+        }
+
+        int shift = Math.min(15, LPC_PRECISION - Math.getExponent(max) - 2);
+        if (shift < 0) {
+            return -1;
+        }
+
+        int limit = (1 << (LPC_PRECISION - 1)) - 1;
+        double error = 0;
+        for (int j = 0; j < order; j++) {
+            error += predictor[j] * (1 << shift);
+            long q = Math.round(error);
+            q = Math.max(-limit - 1, Math.min(limit, q));
+            coefficients[j] = (int) q;
+            error -= q;
+        }
+        return shift;
+    }
+
+    /**
+     * Counts the bits of a residual Rice coded with the best parameter for
+     * each partition.
+     *
+     * @return long bits of the coded residual
+     */
+    private static long riceBits(int[] r, int order, int frames) {
+        long bits = 0;
+        for (int start = 0; start < frames; start += PARTITION) {
+            int from = Math.max(start, order);
+            int to = Math.min(start + PARTITION, frames);
+            bits += 5;
+            if (from < to) {
+                bits += partitionBits(r, from, to, riceParameter(r, from, to));
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Picks the Rice parameter of a partition from the mean of its codes.
+     *
+     * @return int Rice parameter
+     */
+    private static int riceParameter(int[] r, int from, int to) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += zigzag(r[i]);
+        }
+        long mean = sum / (to - from);
+        int k = mean == 0 ? 0 : 63 - Long.numberOfLeadingZeros(mean);
+
+        int best = k;
+        long bestBits = partitionBits(r, from, to, k);
+        for (int candidate = Math.max(0, k - 1); candidate <= Math.min(MAX_RICE, k + 1); candidate++) {
+            long bits = partitionBits(r, from, to, candidate);
+            if (bits < bestBits) {
+                best = candidate;
+                bestBits = bits;
+            }
+        }
+        return Math.min(best, MAX_RICE);
+    }
+
+    /**
+     * Counts the bits of a partition coded with a Rice parameter
+     *
+     * @return long bits of the partition
+     */
+    private static long partitionBits(int[] r, int from, int to, int k) {
+        long bits = (long) (to - from) * (k + 1);
+        for (int i = from; i < to; i++) {
+            bits += zigzag(r[i]) >>> k;
+        }
+        return bits;
+    }
+
+    /**
+     * Writes a residual, partition by partition, each with its Rice parameter.
+     */
+    private void writeResidual(int[] r, int order, int frames) {
+        for (int start = 0; start < frames; start += PARTITION) {
+            int from = Math.max(start, order);
+            int to = Math.min(start + PARTITION, frames);
+            int k = from < to ? riceParameter(r, from, to) : 0;
+            writer.write(k, 5);
+            for (int i = from; i < to; i++) {
+                int u = zigzag(r[i]);
+                writer.writeUnary(u >>> k);
+                if (k > 0) {
+                    writer.write(u, k);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a residual into the samples after the warm-up.
+     */
+    private void readResidual(int[] x, int order, int frames) throws IOException {
+        for (int start = 0; start < frames; start += PARTITION) {
+            int from = Math.max(start, order);
+            int to = Math.min(start + PARTITION, frames);
+            int k = reader.read(5);
+            for (int i = from; i < to; i++) {
+                int u = (reader.readUnary() << k) | reader.read(k);
+                x[i] = (u >>> 1) ^ -(u & 1);
+            }
+        }
+    }
+
+    /**
+     * Maps a signed residual to an unsigned code, small magnitudes first
+     *
+     * @return int zigzag code
+     */
+    private static int zigzag(int r) {
+        return (r << 1) ^ (r >> 31);
+    }
+
+    /**
+     * Writes a buffer at a position of a file until it is all written.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Writes bits most significant first into an array.
+     */
+    private static class BitWriter {
+
+        private byte[] out;
+        private int position;
+        private long bits;
+        private int count;
+
+        void reset(byte[] out) {
+            this.out = out;
+            this.position = 0;
+            this.bits = 0;
+            this.count = 0;
+        }
+
+        void write(int value, int width) {
+            bits = (bits << width) | (value & (0xFFFFFFFFL >>> (32 - width)));
+            count += width;
+            while (count >= 8) {
+                count -= 8;
+                out[position++] = (byte) (bits >>> count);
+            }
+        }
+
+        void writeUnary(int zeros) {
+            while (zeros >= 32) {
+                write(0, 32);
+                zeros -= 32;
+            }
+            write(1, zeros + 1);
+        }
+
+        int finish() {
+            if (count > 0) {
+                write(0, 8 - count);
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Reads bits most significant first from an array.
+     */
+    private static class BitReader {
+
+        private byte[] in;
+        private int position;
+        private int end;
+        private long cache; // The next bits, left aligned, zero below them
+        private int count;
+
+        void reset(byte[] in, int offset, int length) {
+            this.in = in;
+            this.position = offset;
+            this.end = offset + length;
+            this.cache = 0;
+            this.count = 0;
+        }
+
+        private void refill() {
+            while (count <= 56 && position < end) {
+                cache |= (in[position++] & 0xFFL) << (56 - count);
+                count += 8;
+            }
+        }
+
+        int read(int width) throws IOException {
+            if (width == 0) {
+                return 0;
+            }
+            if (count < width) {
+                refill();
+                if (count < width) {
+                    throw new IOException("Corrupt block: ends early");
+                }
+            }
+            int value = (int) (cache >>> (64 - width));
+            cache <<= width;
+            count -= width;
+            return value;
+        }
+
+        int readSigned(int width) throws IOException {
+            int shift = 32 - width;
+            return (read(width) << shift) >> shift;
+        }
+
+        int readUnary() throws IOException {
+            int zeros = 0;
+            while (true) {
+                if (cache == 0) {
+                    zeros += count;
+                    cache = 0;
+                    count = 0;
+                    refill();
+                    if (count == 0) {
+                        throw new IOException("Corrupt block: ends early");
+                    }
+                    continue;
+                }
+                int leading = Long.numberOfLeadingZeros(cache);
+                cache = (cache << leading) << 1; // A shift by 64 would leave the cache as it is
+                count -= leading + 1;
+                return zeros + leading;
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The LosslessReader class streams the samples of a {@link LosslessCodec}
+ * file. The seek table is read when the file is opened; after that a read
+ * at any position costs one file read and the decoding of the block that
+ * holds it. The last decoded block is kept, so reading a block in chunks
+ * decodes it once. Given the stored checksums of the file, each coded block
+ * is checked as it is read.
+ *
+ * A reader is used by one thread at a time.
+ */
+public class LosslessReader implements PcmReader {
+
+    private final FileChannel file;
+    private final LosslessCodec codec;
+    private final long[] offsets; // Start of every block, and the end of the last
+    private final int frameSize;
+    private final int blockFrames;
+    private final long frames;
+    private final long length;
+    private final byte[] coded;
+    private final byte[] block;
+    private final ChecksumStore.Checksums checksums;
+    private int cached = -1;
+    private int cachedBytes;
+    private boolean cachedIntact = true; // Whether the cached block matched its checksum
+    private boolean intact = true;
+
+    /**
+     * Opens a compressed file and reads its seek table.
+     *
+     * @param audioFile The compressed file.
+     * @throws IOException if the file cannot be read or is not a compressed file.
+     */
+    public LosslessReader(File audioFile) throws IOException {
+        this(audioFile, null);
+    }
+
+    /**
+     * Opens a compressed file and reads its seek table, checking the blocks
+     * read against their stored checksums.
+     *
+     * @param audioFile The compressed file.
+     * @param checksums The stored checksums of the file, or null to read unchecked.
+     * @throws IOException if the file cannot be read or is not a compressed file.
+     */
+    public LosslessReader(File audioFile, ChecksumStore.Checksums checksums) throws IOException {
+        this.checksums = checksums;
+        this.file = FileChannel.open(audioFile.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(LosslessCodec.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, 0);
+            if (header.getInt(0) != LosslessCodec.MAGIC || header.get(4) != LosslessCodec.VERSION) {
+                throw new IOException("Not a compressed file: " + audioFile.getPath());
+            }
+
+            int channels = header.get(5);
+            this.frameSize = channels * 2;
+            this.frames = header.getLong(12);
+            this.blockFrames = header.getInt(20);
+            int blocks = header.getInt(24);
+            if (blockFrames != LosslessCodec.BLOCK_FRAMES || blocks < 0
+                    || (long) blocks * blockFrames < frames) {
+                throw new IOException("Corrupt header in " + audioFile.getPath());
+            }
+            this.length = frames * frameSize;
+
+            ByteBuffer table = ByteBuffer.allocate(8 * (blocks + 1)).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(table, LosslessCodec.HEADER_BYTES);
+            this.offsets = new long[blocks + 1];
+            table.flip().asLongBuffer().get(offsets);
+
+            this.codec = new LosslessCodec(channels);
+            this.coded = new byte[codec.maxBlockBytes()];
+            this.block = new byte[blockFrames * frameSize];
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+
+        long blockBytes = (long) blockFrames * frameSize;
+        int read = 0;
+        while (dst.hasRemaining() && position < length) {
+            int index = (int) (position / blockBytes);
+            load(index);
+
+            int from = (int) (position - index * blockBytes);
+            int count = Math.min(dst.remaining(), cachedBytes - from);
+            dst.put(block, from, count);
+            intact &= cachedIntact;
+            position += count;
+            read += count;
+        }
+        return read;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Get the number of blocks
+     *
+     * @return int blocks in the file
+     */
+    public int getBlockCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Get the coded size of the file
+     *
+     * @return long bytes of the header, seek table and blocks
+     */
+    public long getCodedLength() {
+        return offsets[offsets.length - 1];
+    }
+
+    @Override
+    public boolean checkIntact() {
+        boolean was = intact;
+        intact = true;
+        return was;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Decodes a block unless it is the one decoded last.
+     */
+    private void load(int index) throws IOException {
+        if (index == cached) {
+            return;
+        }
+
+        long start = offsets[index];
+        long size = offsets[index + 1] - start;
+        if (size <= 0 || size > coded.length) {
+            throw new IOException("Corrupt seek table at block " + index);
+        }
+        int count = (int) Math.min(blockFrames, frames - (long) index * blockFrames);
+        cached = -1;
+        cachedIntact = checksums == null || checksums.check(file, start, size);
+        if (!cachedIntact) {
+            Arrays.fill(block, 0, count * frameSize, (byte) 0); // A damaged block plays as silence, not as noise
+        } else {
+            ByteBuffer buffer = ByteBuffer.wrap(coded, 0, (int) size);
+            readFully(buffer, start);
+            codec.decode(coded, 0, (int) size, count, block);
+        }
+        cached = index;
+        cachedBytes = count * frameSize;
+    }
+
+    /**
+     * Reads bytes at a position until the buffer is full.
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Compressed file ends early");
+            }
+            position += read;
+        }
+    }
+}
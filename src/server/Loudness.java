@@ -0,0 +1,236 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The Loudness class holds the measured loudness of a media file: its
+ * integrated loudness following ITU-R BS.1770 and its sample peak.
+ *
+ * Integrated loudness is the gated mean power of the K-weighted signal, a
+ * shelf boosting high frequencies followed by a high-pass, over 400ms blocks
+ * overlapping by 75%. Blocks below -70 LUFS, and then blocks more than 10 LU
+ * below the mean of the rest, are left out, so that silence and quiet passages
+ * do not pull the measurement down.
+ */
+public class Loudness {
+
+    private static final double ABSOLUTE_GATE = -70.0; // LUFS
+    private static final double RELATIVE_GATE = -10.0; // LU below the absolutely gated mean
+    private static final double PEAK_CEILING = 0.891; // -1 dBFS, the highest peak a gain may raise a file to
+    private static final int READ_BYTES = 1 << 16;
+
+    private final double integrated;
+    private final double peak;
+
+    /**
+     * Constructs a new Loudness.
+     *
+     * @param integrated The integrated loudness in LUFS, negative infinity for silence.
+     * @param peak       The sample peak, 0 to 1 of full scale.
+     */
+    public Loudness(double integrated, double peak) {
+        this.integrated = integrated;
+        this.peak = peak;
+    }
+
+    /**
+     * Get the integrated loudness
+     *
+     * @return double loudness in LUFS, negative infinity for silence
+     */
+    public double getIntegrated() {
+        return integrated;
+    }
+
+    /**
+     * Get the sample peak
+     *
+     * @return double peak as a fraction of full scale
+     */
+    public double getPeak() {
+        return peak;
+    }
+
+    /**
+     * Gets the gain that brings the file to a target loudness, lowered if
+     * needed so that the loudest sample stays below -1 dBFS.
+     *
+     * @param target The target loudness in LUFS.
+     * @return The linear gain, 1 for silent files.
+     */
+    public double gainFor(double target) {
+        if (Double.isInfinite(integrated) || peak <= 0) {
+            return 1.0;
+        }
+        double gain = Math.pow(10, (target - integrated) / 20);
+        return Math.min(gain, PEAK_CEILING / peak);
+    }
+
+    /**
+     * Measures the loudness of a 16-bit PCM WAV file or compressed file.
+     *
+     * @param file The audio file.
+     * @return The loudness, or null if the file is not 16-bit PCM audio.
+     * @throws IOException if the file cannot be read.
+     */
+    public static Loudness measure(File file) throws IOException {
+        WavFormat format = WavFormat.read(file);
+        if (format == null || format.getBitsPerSample() != 16) {
+            return null;
+        }
+
+        int channels = format.getChannels();
+        int rate = format.getSampleRate();
+        int step = Math.max(1, rate / 10); // Blocks are 4 steps of 100ms
+        KWeighting[] filters = new KWeighting[channels];
+        for (int c = 0; c < channels; c++) {
+            filters[c] = new KWeighting(rate);
+        }
+
+        double[] steps = new double[16]; // Summed K-weighted power of each 100ms step
+        int stepCount = 0;
+        double power = 0;
+        int inStep = 0;
+        int peak = 0;
+
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BYTES - READ_BYTES % format.getFrameSize()).order(ByteOrder.LITTLE_ENDIAN);
+        try (PcmReader reader = PcmReader.open(file, format)) {
+            long position = 0;
+            long end = format.getDataLength();
+
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = reader.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+
+                int frames = buffer.position() / format.getFrameSize();
+                for (int f = 0; f < frames; f++) {
+                    for (int c = 0; c < channels; c++) {
+                        short sample = buffer.getShort((f * channels + c) * 2);
+                        peak = Math.max(peak, Math.abs((int) sample));
+                        double weighted = filters[c].apply(sample / 32768.0);
+                        power += weighted * weighted;
+                    }
+
+                    if (++inStep == step) {
+                        if (stepCount == steps.length) {
+                            steps = Arrays.copyOf(steps, stepCount * 2);
+                        }
+                        steps[stepCount++] = power;
+                        power = 0;
+                        inStep = 0;
+                    }
+                }
+
+                // Keep a partial frame for the next read
+                int used = frames * format.getFrameSize();
+                if (used < buffer.position()) {
+                    position -= buffer.position() - used;
+                }
+            }
+        }
+
+        return new Loudness(integrate(steps, stepCount, 4.0 * step), Math.min(1.0, peak / 32768.0));
+    }
+
+    /**
+     * Gates the 400ms blocks and averages the ones that pass.
+     *
+     * @param steps      The power of each 100ms step.
+     * @param count      The number of steps.
+     * @param blockFrames The number of frames in a block.
+     * @return The integrated loudness in LUFS.
+     */
+    private static double integrate(double[] steps, int count, double blockFrames) {
+        int blocks = count - 3;
+        if (blocks <= 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        double[] block = new double[blocks];
+        for (int b = 0; b < blocks; b++) {
+            block[b] = (steps[b] + steps[b + 1] + steps[b + 2] + steps[b + 3]) / blockFrames;
+        }
+
+        double relativeGate = loudness(mean(block, powerOf(ABSOLUTE_GATE))) + RELATIVE_GATE;
+        return loudness(mean(block, Math.max(powerOf(ABSOLUTE_GATE), powerOf(relativeGate))));
+    }
+
+    /**
+     * Averages the block powers above a gate.
+     *
+     * @return The mean power, zero if no block passes.
+     */
+    private static double mean(double[] block, double gate) {
+        double sum = 0;
+        int passed = 0;
+        for (double power : block) {
+            if (power > gate) {
+                sum += power;
+                passed++;
+            }
+        }
+        return passed == 0 ? 0 : sum / passed;
+    }
+
+    private static double loudness(double power) {
+        return -0.691 + 10 * Math.log10(power);
+    }
+
+    private static double powerOf(double loudness) {
+        return Math.pow(10, (loudness + 0.691) / 10);
+    }
+
+    /**
+     * The two biquad stages of the K-weighting filter for one channel, with
+     * coefficients derived for the file's sample rate.
+     */
+    private static class KWeighting {
+
+        private final double b0, b1, b2, a1, a2; // High shelf
+        private final double c1, c2; // High-pass, with numerator 1, -2, 1
+        private double x1, x2, y1, y2;
+        private double u1, u2, z1, z2;
+
+        KWeighting(int rate) {
+            double k = Math.tan(Math.PI * 1681.974450955533 / rate);
+            double q = 0.7071752369554196;
+            double vh = Math.pow(10, 3.999843853973347 / 20);
+            double vb = Math.pow(vh, 0.4996667741545416);
+            double a0 = 1 + k / q + k * k;
+            b0 = (vh + vb * k / q + k * k) / a0;
+            b1 = 2 * (k * k - vh) / a0;
+            b2 = (vh - vb * k / q + k * k) / a0;
+            a1 = 2 * (k * k - 1) / a0;
+            a2 = (1 - k / q + k * k) / a0;
+
+            k = Math.tan(Math.PI * 38.13547087602444 / rate);
+            q = 0.5003270373238773;
+            a0 = 1 + k / q + k * k;
+            c1 = 2 * (k * k - 1) / a0;
+            c2 = (1 - k / q + k * k) / a0;
+        }
+
+        double apply(double x) {
+            double y = b0 * x + b1 * x1 + b2 * x2 - a1 * y1 - a2 * y2;
+            x2 = x1;
+            x1 = x;
+            y2 = y1;
+            y1 = y;
+
+            double z = y - 2 * u1 + u2 - c1 * z1 - c2 * z2;
+            u2 = u1;
+            u1 = y;
+            z2 = z1;
+            z1 = z;
+            return z;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package server;
+
+import merrimackutil.net.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The LoudnessStore class keeps the measured {@link Loudness} of every media
+ * file in a small file next to its segments, so that each file is analysed
+ * once at ingest and not again for every listener or after a restart. Like a
+ * segment file, a loudness file remembers the length and modification time
+ * of its source and is measured again whenever the source changes.
+ *
+ * Measurements are also cached in memory, since playback looks one up every
+ * time a file starts.
+ */
+public class LoudnessStore {
+
+    private static final int MAGIC = 0x524C5546; // "RLUF"
+    private static final int VERSION = 1;
+    private static final String LOUDNESS_DIR = ".loudness";
+    private static final String LOUDNESS_SUFFIX = ".lufs";
+
+    private final File databaseDir;
+    private final File loudnessDir;
+    private final Log logger;
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a new LoudnessStore for the given database directory.
+     *
+     * @param databaseDir The database directory holding the source media files.
+     * @param logger      The logger used to record analysis events.
+     */
+    public LoudnessStore(String databaseDir, Log logger) {
+        this.databaseDir = new File(databaseDir);
+        this.loudnessDir = new File(databaseDir, LOUDNESS_DIR);
+        this.logger = logger;
+    }
+
+    /**
+     * Gets the loudness file that belongs to a source media file.
+     *
+     * @param source The source media file.
+     * @return The loudness file location.
+     */
+    public File loudnessFile(File source) {
+        String relative = databaseDir.toPath().toAbsolutePath().normalize()
+                .relativize(source.toPath().toAbsolutePath().normalize()).toString();
+        return new File(loudnessDir, relative + LOUDNESS_SUFFIX);
+    }
+
+    /**
+     * Measures a source file and stores the result, unless an up to date
+     * measurement is already stored.
+     *
+     * @param source The source media file.
+     * @throws IOException if the source cannot be read or the result cannot be written.
+     */
+    public void analyze(File source) throws IOException {
+        if (get(source) != null) {
+            return;
+        }
+
+        long length = source.length();
+        long lastModified = source.lastModified();
+        Loudness loudness = Loudness.measure(source);
+        if (loudness == null) {
+            return; // Not PCM audio, played at its own level
+        }
+
+        File file = loudnessFile(source);
+        file.getParentFile().mkdirs();
+        File tmpFile = new File(file.getPath() + ".tmp." + Thread.currentThread().getId());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeDouble(loudness.getIntegrated());
+            out.writeDouble(loudness.getPeak());
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        cache.put(source.getAbsolutePath(), new Entry(length, lastModified, loudness));
+        logger.log(String.format("INFO: Measured %s at %.1f LUFS, peak %.1f dBFS.", source.getPath(),
+                loudness.getIntegrated(), 20 * Math.log10(loudness.getPeak())));
+    }
+
+    /**
+     * Gets the stored loudness of a source file.
+     *
+     * @param source The source media file.
+     * @return The loudness, or null if the file has not been measured since it last changed.
+     */
+    public Loudness get(File source) {
+        long length = source.length();
+        long lastModified = source.lastModified();
+
+        Entry entry = cache.get(source.getAbsolutePath());
+        if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+            return entry.loudness;
+        }
+
+        File file = loudnessFile(source);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != length || in.readLong() != lastModified) {
+                return null;
+            }
+            Loudness loudness = new Loudness(in.readDouble(), in.readDouble());
+            cache.put(source.getAbsolutePath(), new Entry(length, lastModified, loudness));
+            return loudness;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Removes the loudness file of a source file, if any.
+     *
+     * @param source The source media file.
+     */
+    public void remove(File source) {
+        cache.remove(source.getAbsolutePath());
+        File file = loudnessFile(source);
+        if (file.exists() && !file.delete()) {
+            logger.log("ERROR: Unable to remove loudness file " + file.getPath());
+        }
+    }
+
+    /**
+     * A cached measurement and the version of the source it belongs to.
+     */
+    private static class Entry {
+
+        private final long length;
+        private final long lastModified;
+        private final Loudness loudness;
+
+        Entry(long length, long lastModified, Loudness loudness) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.loudness = loudness;
+        }
+    }
+}
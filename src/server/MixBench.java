@@ -0,0 +1,118 @@
+package server;
+
+import java.util.Random;
+
+/**
+ * The MixBench class measures the {@link VectorMixKernel} against the
+ * {@link ScalarMixKernel} on the same tracks, for a range of track counts.
+ *
+ * Each mix sums one 10ms chunk of 16-bit stereo samples per track, as the
+ * {@link Mixer} does for every chunk it plays. The outputs of the two kernels
+ * are compared first; the vector kernel fuses the multiply and add, so they
+ * may differ by rounding, but never by a whole sample step. The time per
+ * chunk is then reported, and as the number of tracks one core could mix in
+ * real time.
+ *
+ * The Vector API kernel only loads when the JVM is started with
+ * {@code --add-modules jdk.incubator.vector}.
+ */
+public class MixBench {
+
+    private static final int CHUNK_SAMPLES = 1764 / 2; // 10ms of 44.1 kHz stereo
+    private static final int CHUNKS_PER_SECOND = 100;
+    private static final int SAMPLES_PER_RUN = 200_000_000; // Track samples mixed per run, whatever the track count
+    private static final int RUNS = 5;
+    private static final float TOLERANCE = 1f; // One 16-bit sample step
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optionally the track counts to mix.
+     */
+    public static void main(String[] args) {
+        int[] counts = {2, 8, 32};
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        MixKernel vector = MixKernel.best();
+        if (vector instanceof ScalarMixKernel) {
+            System.out.println("The Vector API is not available. Run with --add-modules jdk.incubator.vector");
+            System.exit(1);
+        }
+        MixKernel scalar = new ScalarMixKernel();
+
+        for (int count : counts) {
+            float[][] tracks = new float[count][CHUNK_SAMPLES];
+            float[] gains = new float[count];
+            Random random = new Random(42);
+            for (int t = 0; t < count; t++) {
+                for (int i = 0; i < CHUNK_SAMPLES; i++) {
+                    tracks[t][i] = (short) random.nextInt();
+                }
+                gains[t] = 1f / count + random.nextFloat() * 0.5f; // Some chunks saturate
+            }
+
+            float[] expected = new float[CHUNK_SAMPLES];
+            float[] actual = new float[CHUNK_SAMPLES];
+            scalar.mix(tracks, gains, count, expected, CHUNK_SAMPLES);
+            vector.mix(tracks, gains, count, actual, CHUNK_SAMPLES);
+            for (int i = 0; i < CHUNK_SAMPLES; i++) {
+                if (Math.abs(expected[i] - actual[i]) > TOLERANCE) {
+                    throw new IllegalStateException("Kernels differ at sample " + i + " of " + count
+                            + " tracks: " + expected[i] + " and " + actual[i]);
+                }
+            }
+
+            double scalarNanos = nanosPerChunk(scalar, tracks, gains, actual);
+            double vectorNanos = nanosPerChunk(vector, tracks, gains, actual);
+            System.out.printf("%d tracks, scalar: %.0f ns per chunk, %.0f tracks per core%n", count,
+                    scalarNanos, tracksPerCore(count, scalarNanos));
+            System.out.printf("%d tracks, vector: %.0f ns per chunk, %.0f tracks per core (%.1fx)%n", count,
+                    vectorNanos, tracksPerCore(count, vectorNanos), scalarNanos / vectorNanos);
+        }
+    }
+
+    /**
+     * Times a kernel mixing one chunk of every track, taking the best of
+     * several runs.
+     *
+     * @param kernel The kernel.
+     * @param tracks The samples of each track.
+     * @param gains  The gain of each track.
+     * @param out    The buffer receiving the mix.
+     * @return The time per chunk in nanoseconds.
+     */
+    private static double nanosPerChunk(MixKernel kernel, float[][] tracks, float[] gains, float[] out) {
+        int iterations = SAMPLES_PER_RUN / (tracks.length * CHUNK_SAMPLES);
+        double best = Double.MAX_VALUE;
+        float sink = 0;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                kernel.mix(tracks, gains, tracks.length, out, CHUNK_SAMPLES);
+                sink += out[i % CHUNK_SAMPLES];
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (double) iterations);
+        }
+        if (Float.isNaN(sink)) {
+            System.out.println("NaN in the mix");
+        }
+        return best;
+    }
+
+    /**
+     * Converts the time to mix a chunk into the number of tracks one core
+     * mixes in real time.
+     *
+     * @param count The number of tracks in the chunk.
+     * @param nanos The time per chunk in nanoseconds.
+     * @return The tracks per core.
+     */
+    private static double tracksPerCore(int count, double nanos) {
+        return count * 1e9 / (nanos * CHUNKS_PER_SECOND);
+    }
+}
@@ -0,0 +1,41 @@
+package server;
+
+/**
+ * A MixKernel sums several tracks of float samples into one output with a
+ * gain per track, saturating the result to the 16-bit sample range. It is the
+ * inner loop of the {@link Mixer}.
+ */
+public interface MixKernel {
+
+    float MIN_SAMPLE = Short.MIN_VALUE;
+    float MAX_SAMPLE = Short.MAX_VALUE;
+
+    /**
+     * Mixes tracks into an output buffer.
+     *
+     * @param tracks     The samples of each track.
+     * @param gains      The gain applied to each track.
+     * @param trackCount The number of tracks to mix.
+     * @param out        The buffer receiving the saturated sum.
+     * @param length     The number of samples to mix.
+     */
+    void mix(float[][] tracks, float[] gains, int trackCount, float[] out, int length);
+
+    /**
+     * Gets the fastest kernel available in this JVM. The Vector API kernel is
+     * used when the jdk.incubator.vector module is present, otherwise the
+     * scalar kernel.
+     *
+     * @return The mix kernel to use.
+     */
+    static MixKernel best() {
+        try {
+            MixKernel kernel = (MixKernel) Class.forName("server.VectorMixKernel")
+                    .getDeclaredConstructor().newInstance();
+            kernel.mix(new float[][]{new float[1]}, new float[]{1f}, 1, new float[1], 1);
+            return kernel;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new ScalarMixKernel();
+        }
+    }
+}
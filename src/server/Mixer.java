@@ -0,0 +1,295 @@
+package server;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The Mixer class mixes several audio files of the library into a single
+ * 16-bit little-endian stereo PCM stream at 44.1 kHz. Every track has its own
+ * gain, and the sum is saturated to the 16-bit range instead of wrapping.
+ *
+ * A mix is requested by playing the resource {@code mix} with the tracks and
+ * their gains as the query, for example
+ * {@code mix?vocals.wav=0.8&drums.wav=1.0}. A track without a gain is mixed
+ * at unity gain. Tracks of different lengths are padded with silence, so the
+ * mix lasts as long as its longest track.
+ *
+ * The samples are summed by the fastest {@link MixKernel} the JVM supports.
+ * All buffers are allocated once per mix, so producing a chunk does not
+ * allocate.
+ */
+public class Mixer implements Closeable {
+
+    public static final AudioFormat OUTPUT_FORMAT = new AudioFormat(44100f, 16, 2, true, false);
+
+    private static final String MIX_RESOURCE = "/mix?";
+    private static final MixKernel KERNEL = MixKernel.best();
+
+    private final AudioInputStream[] tracks;
+    private final float[] gains;
+    private final long length;
+    private final byte[][] raw;
+    private final float[][] samples;
+    private final float[] mixed;
+    private long position = 0;
+
+    /**
+     * Opens every track of a mix.
+     *
+     * @param spec      The tracks and gains to mix.
+     * @param chunkSize The largest number of bytes produced by one read.
+     * @throws IOException if a track cannot be opened or converted to the output format.
+     */
+    public Mixer(Spec spec, int chunkSize) throws IOException {
+        int count = spec.files.length;
+        this.tracks = new AudioInputStream[count];
+        this.gains = spec.gains.clone();
+        this.raw = new byte[count][chunkSize];
+        this.samples = new float[count][chunkSize / 2];
+        this.mixed = new float[chunkSize / 2];
+
+        long longest = 0;
+        try {
+            for (int t = 0; t < count; t++) {
+                tracks[t] = openTrack(spec.files[t]);
+                longest = Math.max(longest, tracks[t].getFrameLength());
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        this.length = longest * OUTPUT_FORMAT.getFrameSize();
+    }
+
+    /**
+     * Get the name of the kernel that sums the samples
+     *
+     * @return String name of the kernel class
+     */
+    public static String getKernelName() {
+        return KERNEL.getClass().getSimpleName();
+    }
+
+    /**
+     * Checks whether a path names a mix rather than a single file.
+     *
+     * @param path The path requested for playback.
+     * @return true if the path is a mix request.
+     */
+    public static boolean isMix(String path) {
+        return path.contains(MIX_RESOURCE);
+    }
+
+    /**
+     * Checks whether a mix request is well formed and all of its tracks exist.
+     *
+     * @param path The mix path requested for playback.
+     * @return true if the mix can be played.
+     */
+    public static boolean exists(String path) {
+        try {
+            for (File file : Spec.parse(path).files) {
+                if (!file.exists() || file.isDirectory()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the length of the mix
+     *
+     * @return long length of the mix in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Mixes the next chunk of the stream into the start of a buffer.
+     *
+     * @param dst      The buffer to write the little-endian samples to.
+     * @param maxBytes The largest number of bytes to produce, at most the chunk size.
+     * @return The number of bytes produced, zero at the end of the mix.
+     * @throws IOException if a track cannot be read.
+     */
+    public int read(ByteBuffer dst, int maxBytes) throws IOException {
+        int bytes = (int) Math.min(Math.min(maxBytes, raw[0].length), length - position);
+        bytes -= bytes % OUTPUT_FORMAT.getFrameSize();
+        int count = bytes / 2;
+
+        for (int t = 0; t < tracks.length; t++) {
+            int filled = readFully(tracks[t], raw[t], bytes);
+            int valid = filled / 2;
+            byte[] in = raw[t];
+            float[] out = samples[t];
+
+            for (int i = 0; i < valid; i++) {
+                out[i] = (short) ((in[2 * i] & 0xff) | in[2 * i + 1] << 8);
+            }
+            java.util.Arrays.fill(out, valid, count, 0f);
+        }
+
+        KERNEL.mix(samples, gains, tracks.length, mixed, count);
+
+        for (int i = 0; i < count; i++) {
+            int sample = Math.round(mixed[i]);
+            dst.put(2 * i, (byte) sample);
+            dst.put(2 * i + 1, (byte) (sample >> 8));
+        }
+
+        position += bytes;
+        return bytes;
+    }
+
+    /**
+     * Closes every track of the mix.
+     *
+     * @throws IOException if a track cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        for (AudioInputStream track : tracks) {
+            if (track != null) {
+                track.close();
+            }
+        }
+    }
+
+    /**
+     * Opens a track and converts it to the output format if needed.
+     *
+     * @param file The audio file of the track.
+     * @return The track as a stream in the output format.
+     * @throws IOException if the file is not audio or cannot be converted.
+     */
+    private static AudioInputStream openTrack(File file) throws IOException {
+        AudioInputStream in;
+        try {
+            WavFormat format = WavFormat.read(file);
+            if (format != null && format.isLossless()) {
+                AudioFormat decoded = new AudioFormat(format.getSampleRate(), format.getBitsPerSample(),
+                        format.getChannels(), true, false);
+                in = new AudioInputStream(PcmReader.open(file, format).asStream(), decoded,
+                        format.getDataLength() / format.getFrameSize());
+            } else {
+                in = AudioSystem.getAudioInputStream(file);
+            }
+        } catch (UnsupportedAudioFileException e) {
+            throw new IOException("Unsupported audio file: " + file.getPath(), e);
+        }
+
+        if (in.getFormat().matches(OUTPUT_FORMAT)) {
+            return in;
+        }
+
+        if (in.getFormat().getSampleRate() != OUTPUT_FORMAT.getSampleRate()) {
+            in.close();
+            throw new IOException("Cannot mix " + file.getPath() + " at " + in.getFormat().getSampleRate() + " Hz");
+        }
+
+        try {
+            return AudioSystem.getAudioInputStream(OUTPUT_FORMAT, in);
+        } catch (IllegalArgumentException e) {
+            in.close();
+            throw new IOException("Cannot convert " + file.getPath() + " to " + OUTPUT_FORMAT, e);
+        }
+    }
+
+    /**
+     * Reads from a stream until a number of bytes is read or the stream ends.
+     *
+     * @param in     The stream to read.
+     * @param buffer The buffer to read into.
+     * @param length The number of bytes to read.
+     * @return The number of bytes read, rounded down to whole frames.
+     * @throws IOException if the stream cannot be read.
+     */
+    private static int readFully(AudioInputStream in, byte[] buffer, int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int read = in.read(buffer, filled, length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+        }
+        return filled - filled % OUTPUT_FORMAT.getFrameSize();
+    }
+
+    /**
+     * The Spec class holds the tracks and gains of a mix request.
+     */
+    public static class Spec {
+
+        private final File[] files;
+        private final float[] gains;
+
+        /**
+         * Constructs a new Spec.
+         *
+         * @param files The audio files to mix.
+         * @param gains The gain of each file.
+         */
+        public Spec(File[] files, float[] gains) {
+            this.files = files;
+            this.gains = gains;
+        }
+
+        /**
+         * Parses a mix path of the form
+         * {@code <db_dir>/mix?<track>[=<gain>]&...}.
+         *
+         * @param path The mix path requested for playback.
+         * @return The parsed mix.
+         * @throws IllegalArgumentException if the path is not a valid mix request.
+         */
+        public static Spec parse(String path) {
+            int at = path.indexOf(MIX_RESOURCE);
+            if (at < 0) {
+                throw new IllegalArgumentException("Not a mix request: " + path);
+            }
+
+            String dir = path.substring(0, at);
+            String query = path.substring(at + MIX_RESOURCE.length());
+            if (query.isEmpty()) {
+                throw new IllegalArgumentException("Mix request has no tracks");
+            }
+
+            String[] params = query.split("&");
+            File[] files = new File[params.length];
+            float[] gains = new float[params.length];
+
+            for (int i = 0; i < params.length; i++) {
+                String[] pair = params[i].split("=", 2);
+                String name = URLDecoder.decode(pair[0], StandardCharsets.UTF_8);
+                if (name.isEmpty()) {
+                    throw new IllegalArgumentException("Mix request has an empty track name");
+                }
+
+                files[i] = new File(dir, name);
+                try {
+                    gains[i] = pair.length == 2 ? Float.parseFloat(pair[1]) : 1f;
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid gain for " + name + ": " + pair[1]);
+                }
+                if (!Float.isFinite(gains[i]) || gains[i] < 0f) {
+                    throw new IllegalArgumentException("Invalid gain for " + name + ": " + pair[1]);
+                }
+            }
+
+            return new Spec(files, gains);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package server;
+
+import common.BufferPool;
+import common.MessageSocket;
+import common.messages.*;
+import merrimackutil.net.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The OriginFetch class pulls one file from another server, the origin of
+ * the copy, into a local file. It is used by the {@link EdgeCache} to fill
+ * the cache and by the {@link Placement} to move files between the nodes of
+ * a sharded cluster. It talks to the origin like a client does: SETUP with binary DATA
+ * frames, PLAY of the file, reading frames from the media connection the way
+ * PlaySong does until END, and TEARDOWN. The SETUP asks for a verbatim
+ * transfer, so the origin sends the file's bytes as they are stored, without
+ * converting its sample rate or loudness.
+ *
+ * The received bytes are written to a spool file as they arrive, and local
+ * listeners read the spool while it grows, so they hear the file as soon as
+ * the first chunk arrives from the origin. When the stream ends, the spool is
+ * handed to the {@link Listener}, which moves it into place.
+ */
+public class OriginFetch extends Thread {
+
+    private static final long START_TIMEOUT = 5000; // Milliseconds to wait for the origin to start streaming
+    private static final String TRANSPORT = "RTP/AVP;unicast;client_port=8000-8001;payload=binary;transfer=verbatim";
+
+    private final Listener listener;
+    private final String origin;
+    private final String resource;
+    private final File partFile;
+    private final File cachedFile;
+    private final Log logger;
+
+    private long available = 0;
+    private boolean started = false;
+    private boolean done = false;
+    private boolean failed = false;
+    private boolean moved = false;
+
+    /**
+     * Constructs a new OriginFetch.
+     *
+     * @param listener   The listener told when the fetch completes or fails.
+     * @param origin     The host:port of the server to fetch from.
+     * @param resource   The file name relative to the database directory.
+     * @param partFile   The spool file written while fetching.
+     * @param cachedFile The file the spool is moved to once complete.
+     * @param logger     The logger used to record fetch events.
+     */
+    public OriginFetch(Listener listener, String origin, String resource, File partFile, File cachedFile, Log logger) {
+        super("origin-fetch");
+        this.listener = listener;
+        this.origin = origin;
+        this.resource = resource;
+        this.partFile = partFile;
+        this.cachedFile = cachedFile;
+        this.logger = logger;
+        setDaemon(true);
+    }
+
+    /**
+     * Get the file name relative to the database directory
+     *
+     * @return String fetched file name
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    /**
+     * Get the file the fetched file is placed in
+     *
+     * @return File fetched file location
+     */
+    public File getCachedFile() {
+        return cachedFile;
+    }
+
+    /**
+     * Waits until the origin has either started streaming the file or failed.
+     *
+     * @return true if the origin is streaming the file.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized boolean awaitStart() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (!started && !done) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return started && !failed;
+    }
+
+    /**
+     * Waits until a number of bytes have been fetched or the fetch has ended.
+     *
+     * @param bytes The number of bytes wanted.
+     * @return The number of bytes fetched so far.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized long awaitBytes(long bytes) throws InterruptedException {
+        while (available < bytes && !done) {
+            wait();
+        }
+        return available;
+    }
+
+    /**
+     * Checks whether the fetch has ended, either complete or failed.
+     *
+     * @return true if no more bytes will arrive.
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Get the number of bytes fetched so far
+     *
+     * @return long fetched bytes
+     */
+    public synchronized long getAvailable() {
+        return available;
+    }
+
+    /**
+     * Opens the fetched bytes for reading, from the spool while the fetch runs
+     * or from the cached file once it has been moved into place.
+     *
+     * @return The opened channel.
+     * @throws IOException if the file cannot be opened.
+     */
+    public synchronized FileChannel openReader() throws IOException {
+        return FileChannel.open((moved ? cachedFile : partFile).toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Fetches the file from the origin into the spool and hands the spool to
+     * the cache once the origin sends END.
+     */
+    @Override
+    public void run() {
+        String[] parts = origin.split(":");
+        String url = "rtsp://" + origin;
+        int cseq = 1;
+
+        partFile.getParentFile().mkdirs();
+
+        try (MessageSocket control = new MessageSocket(parts[0], Integer.parseInt(parts[1]))) {
+            control.sendMessage(new SetUpMessage(url, cseq++, TRANSPORT));
+            ServerResponse setup = (ServerResponse) control.getMessage();
+            if (setup.getCode() != 200) {
+                throw new IOException("Origin refused SETUP with " + setup.getCode());
+            }
+
+            int sessionID = setup.getSessionId();
+            int mediaPort = Integer.parseInt(setup.getTransport().split("server_port=")[1]);
+
+            try (MessageSocket media = new MessageSocket(parts[0], mediaPort);
+                 FileChannel out = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+                control.sendMessage(new PlayPauseMessage("PLAY", url + "/" + resource, cseq++, sessionID));
+                ServerResponse play = (ServerResponse) control.getMessage();
+                if (play.getCode() != 200) {
+                    throw new IOException("Origin refused PLAY with " + play.getCode());
+                }
+
+                synchronized (this) {
+                    started = true;
+                    notifyAll();
+                }
+                logger.log("INFO: Fetching " + resource + " from origin " + origin);
+
+                DataFrame frame = new DataFrame(BufferPool.shared());
+                try {
+                    for (media.readFrame(frame); !frame.isEnd(); media.readFrame(frame)) {
+                        if (frame.getSessionID() != sessionID) {
+                            continue;
+                        }
+
+                        ByteBuffer payload = frame.getPayload();
+                        while (payload.hasRemaining()) {
+                            out.write(payload);
+                        }
+
+                        synchronized (this) {
+                            available += frame.getLength();
+                            notifyAll();
+                        }
+                    }
+                } finally {
+                    frame.release();
+                }
+
+                control.sendMessage(new TeardownMessage(url, cseq++, sessionID));
+                control.getMessage();
+            }
+
+            listener.complete(this);
+        } catch (IOException | RuntimeException e) {
+            logger.log("ERROR: Unable to fetch " + resource + " from origin: " + e.getMessage());
+            synchronized (this) {
+                failed = true;
+            }
+            listener.fail(this);
+        }
+
+        synchronized (this) {
+            done = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Moves the complete spool into place. Readers that open the fetch from
+     * now on read the cached file.
+     *
+     * @throws IOException if the spool cannot be moved.
+     */
+    synchronized void moveIntoPlace() throws IOException {
+        java.nio.file.Files.move(partFile.toPath(), cachedFile.toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        moved = true;
+    }
+
+    /**
+     * Deletes the spool of a failed fetch.
+     */
+    synchronized void deleteSpool() {
+        if (partFile.exists() && !partFile.delete()) {
+            logger.log("ERROR: Unable to delete spool " + partFile.getPath());
+        }
+    }
+
+    /**
+     * A Listener takes over the spool once a fetch ends.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the fetch thread once the whole file has arrived.
+         *
+         * @param fetch The completed fetch.
+         * @throws IOException if the spool cannot be moved into place.
+         */
+        void complete(OriginFetch fetch) throws IOException;
+
+        /**
+         * Called on the fetch thread if the fetch fails.
+         *
+         * @param fetch The failed fetch.
+         */
+        void fail(OriginFetch fetch);
+    }
+}
@@ -0,0 +1,165 @@
+package server;
+
+import common.MessageSocket;
+import merrimackutil.net.Log;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * The OriginTransferCheck class checks that a file fetched through an
+ * {@link OriginFetch} is the origin's file byte for byte, and fails the
+ * build when it is not.
+ *
+ * A 48 kHz file and a 44.1 kHz file are served by a {@link ConnectionHandler}
+ * over loopback, with a loudness target that gives them an audible gain, so
+ * a listener would hear the first converted to 44.1 kHz and both normalized.
+ * The copy an edge or a node of the cluster fetches must be neither. It is
+ * run by {@code ant check}, and removes the files it writes.
+ */
+public class OriginTransferCheck {
+
+    private static final int[] RATES = {48000, 44100};
+    private static final int SECONDS = 2;
+    private static final double LOUDNESS_TARGET = -30; // LUFS, well below the tone
+
+    /**
+     * Runs the check.
+     *
+     * @param args Unused.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("origintransfercheck");
+        boolean same = true;
+        try {
+            for (int rate : RATES) {
+                same &= fetchAndCompare(new File(dir.toFile(), String.valueOf(rate)), rate);
+            }
+        } finally {
+            delete(dir);
+        }
+
+        if (!same) {
+            System.out.println("Origin transfer check failed: the fetched copy differs from the origin's file");
+            System.exit(1);
+        }
+        System.out.println("Origin transfer check passed");
+        System.exit(0); // The origin's handlers keep the JVM alive
+    }
+
+    /**
+     * Serves a file from an origin, fetches it and compares the copy with it.
+     *
+     * @param dir  The directory to write the files in.
+     * @param rate The sample rate of the file.
+     * @return true if the copy matches the file.
+     */
+    private static boolean fetchAndCompare(File dir, int rate) throws IOException, InterruptedException {
+        String resource = "check" + rate + ".wav";
+        File originDir = new File(dir, "origin");
+        originDir.mkdirs();
+        File original = new File(originDir, resource);
+        writeAudio(original, rate);
+
+        Log log = new Log(new File(dir, "origintransfercheck.log").getPath(), "OriginTransferCheck");
+        Catalog catalog = new Catalog(originDir.getPath(), log);
+        catalog.ingest(original);
+        catalog.setLoudnessTarget(LOUDNESS_TARGET);
+
+        try (ServerSocket listener = new ServerSocket()) {
+            listener.bind(new InetSocketAddress("127.0.0.1", 0));
+            Thread origin = new Thread(() -> serve(listener, log, catalog), "origin");
+            origin.setDaemon(true);
+            origin.start();
+
+            File copy = new File(dir, resource);
+            boolean[] complete = new boolean[1];
+            OriginFetch fetch = new OriginFetch(new OriginFetch.Listener() {
+                @Override
+                public void complete(OriginFetch fetch) throws IOException {
+                    fetch.moveIntoPlace();
+                    complete[0] = true;
+                }
+
+                @Override
+                public void fail(OriginFetch fetch) {
+                    fetch.deleteSpool();
+                }
+            }, "127.0.0.1:" + listener.getLocalPort(), resource, new File(dir, resource + ".part"), copy, log);
+            fetch.start();
+            fetch.join();
+
+            if (!complete[0]) {
+                System.out.println("The fetch from the origin failed");
+                return false;
+            }
+            long mismatch = Files.mismatch(original.toPath(), copy.toPath());
+            System.out.printf("%s: %d bytes at the origin, %d fetched, %s%n", resource, original.length(),
+                    copy.length(), mismatch < 0 ? "identical" : "first difference at byte " + mismatch);
+            return mismatch < 0;
+        }
+    }
+
+    /**
+     * Hands every connection to a listener to a handler, as the server does.
+     *
+     * @param listener The origin's listener.
+     * @param log      The log of the origin.
+     * @param catalog  The origin's library.
+     */
+    private static void serve(ServerSocket listener, Log log, Catalog catalog) {
+        try {
+            while (true) {
+                Socket client = listener.accept();
+                new ConnectionHandler(new MessageSocket(client), log, catalog).start();
+            }
+        } catch (IOException e) {
+            // Closed once the check is done
+        }
+    }
+
+    /**
+     * Writes a 16-bit stereo WAV file of a tone.
+     *
+     * @param file The file to write.
+     * @param rate The sample rate.
+     */
+    private static void writeAudio(File file, int rate) throws IOException {
+        AudioFormat format = new AudioFormat(rate, 16, 2, true, false);
+        int frames = SECONDS * rate;
+        byte[] samples = new byte[frames * 4];
+        for (int i = 0; i < frames; i++) {
+            short sample = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / (double) rate));
+            samples[4 * i] = samples[4 * i + 2] = (byte) sample;
+            samples[4 * i + 1] = samples[4 * i + 3] = (byte) (sample >> 8);
+        }
+        try (AudioInputStream stream = new AudioInputStream(new ByteArrayInputStream(samples), format, frames)) {
+            AudioSystem.write(stream, AudioFileFormat.Type.WAVE, file);
+        }
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     *
+     * @param dir The directory.
+     */
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
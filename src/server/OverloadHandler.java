@@ -0,0 +1,69 @@
+package server;
+
+import common.MessageSocket;
+import common.messages.Message;
+import common.messages.ServerResponse;
+import merrimackutil.net.Log;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * The OverloadHandler class sheds a client that was not admitted. It waits
+ * briefly for the client's first request so the answer carries the matching
+ * CSeq, answers it with 503 Service Unavailable and a Retry-After header, and
+ * closes the connection. Nothing else is read or sent.
+ */
+public class OverloadHandler implements Runnable {
+
+    private static final int REQUEST_TIMEOUT = 2000; // Milliseconds to wait for the first request
+
+    private final Socket socket;
+    private final int retryAfter;
+    private final Log logger;
+
+    /**
+     * Constructs a new OverloadHandler for a rejected client.
+     *
+     * @param socket     The socket of the rejected client.
+     * @param retryAfter The number of seconds the client should wait before retrying.
+     * @param logger     The logger used to record shedding events.
+     */
+    public OverloadHandler(Socket socket, int retryAfter, Log logger) {
+        this.socket = socket;
+        this.retryAfter = retryAfter;
+        this.logger = logger;
+    }
+
+    @Override
+    public void run() {
+        int cseq = 0;
+
+        try (MessageSocket ms = new MessageSocket(socket)) {
+            try {
+                socket.setSoTimeout(REQUEST_TIMEOUT);
+                Message request = ms.getMessage();
+                cseq = request.getCseq();
+            } catch (IOException | RuntimeException e) {
+                // No usable request in time, answer without a CSeq match
+            }
+
+            reject(ms, cseq, retryAfter);
+        } catch (IOException | RuntimeException e) {
+            logger.log("ERROR: Unable to shed client: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the 503 response to a rejected client.
+     *
+     * @param ms         The socket of the rejected client.
+     * @param cseq       The CSeq of the client's request, or zero if none was read.
+     * @param retryAfter The number of seconds the client should wait before retrying.
+     */
+    public static void reject(MessageSocket ms, int cseq, int retryAfter) {
+        ms.sendMessage(new ServerResponse.ResponseBuilder(503, cseq)
+                .setRetryAfter(retryAfter)
+                .build());
+    }
+}
@@ -0,0 +1,153 @@
+package server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A PcmReader reads the samples of a media file as interleaved
+ * little-endian PCM, wherever the file keeps them: in the data chunk of a
+ * WAV file, or coded in the blocks of a {@link LosslessCodec} file. Positions
+ * count bytes of PCM from the first sample.
+ *
+ * Given the stored checksums of the file, a reader checks the blocks of the
+ * file it reads and remembers whether any of them was damaged.
+ */
+public interface PcmReader extends Closeable {
+
+    /**
+     * Reads samples from a position, with the semantics of a positional
+     * {@link FileChannel} read.
+     *
+     * @param dst      The buffer to read into.
+     * @param position The byte position of the samples.
+     * @return The number of bytes read, or -1 at the end of the samples.
+     * @throws IOException if the file cannot be read or decoded.
+     */
+    int read(ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * Get the length of the samples
+     *
+     * @return long number of PCM bytes
+     */
+    long length();
+
+    /**
+     * Checks whether the reads since the last call only touched blocks that
+     * match their stored checksums, and starts over.
+     *
+     * @return false if a read touched a damaged block.
+     */
+    default boolean checkIntact() {
+        return true;
+    }
+
+    /**
+     * Opens the samples of a media file.
+     *
+     * @param file   The media file.
+     * @param format The format of the file.
+     * @return A reader for the samples.
+     * @throws IOException if the file cannot be opened.
+     */
+    static PcmReader open(File file, WavFormat format) throws IOException {
+        return open(file, format, null);
+    }
+
+    /**
+     * Opens the samples of a media file, checking the blocks it reads.
+     *
+     * @param file      The media file.
+     * @param format    The format of the file.
+     * @param checksums The stored checksums of the file, or null to read unchecked.
+     * @return A reader for the samples.
+     * @throws IOException if the file cannot be opened.
+     */
+    static PcmReader open(File file, WavFormat format, ChecksumStore.Checksums checksums) throws IOException {
+        if (format.isLossless()) {
+            return new LosslessReader(file, checksums);
+        }
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        long offset = format.getDataOffset();
+        long length = format.getDataLength();
+        return new PcmReader() {
+            private boolean intact = true;
+
+            @Override
+            public int read(ByteBuffer dst, long position) throws IOException {
+                if (position >= length) {
+                    return -1;
+                }
+                int limit = dst.limit();
+                dst.limit((int) Math.min(limit, dst.position() + length - position));
+                try {
+                    if (checksums != null) {
+                        intact &= checksums.check(channel, offset + position, dst.remaining());
+                    }
+                    return channel.read(dst, offset + position);
+                } finally {
+                    dst.limit(limit);
+                }
+            }
+
+            @Override
+            public long length() {
+                return length;
+            }
+
+            @Override
+            public boolean checkIntact() {
+                boolean was = intact;
+                intact = true;
+                return was;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Gets the samples as a stream, read from the start.
+     *
+     * @return InputStream of the PCM bytes, closing the reader when closed
+     */
+    default InputStream asStream() {
+        return new InputStream() {
+            private final ByteBuffer one = ByteBuffer.allocate(1);
+            private long position = 0;
+
+            @Override
+            public int read() throws IOException {
+                one.clear();
+                int read = read(one.array(), 0, 1);
+                return read < 0 ? -1 : one.get(0) & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int read = PcmReader.this.read(ByteBuffer.wrap(b, off, len), position);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                PcmReader.this.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,222 @@
+package server;
+
+import merrimackutil.net.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The Placement class shards the library of a cluster across its nodes. Each
+ * file is owned by the first replication factor nodes found on a
+ * {@link HashRing} of the live nodes, so that the library can grow beyond the
+ * disk of one server while every node keeps its share of it hot.
+ *
+ * Recordings are routed to the owners of their file, and a background pass
+ * moves files to where they belong: whenever nodes join or leave the cluster,
+ * and periodically otherwise, a node pulls the files it owns but lacks from a
+ * node that holds them, and drops the files it no longer owns once all of
+ * their owners hold a copy. Files are pulled one at a time with an
+ * {@link OriginFetch}, so a rebalance never adds more than one stream of load
+ * to the cluster per node.
+ */
+public class Placement extends Thread implements OriginFetch.Listener {
+
+    public static final long REBALANCE_MILLIS = 10000;
+
+    private static final String PART_SUFFIX = ".part";
+
+    private final ClusterNode cluster;
+    private final Catalog catalog;
+    private final int replicationFactor;
+    private final int virtualNodes;
+    private final Log logger;
+    private volatile HashRing ring;
+
+    /**
+     * Constructs a new Placement.
+     *
+     * @param cluster           The cluster this node is part of.
+     * @param catalog           The library of this node.
+     * @param replicationFactor The number of nodes owning each file.
+     * @param virtualNodes      The number of ring points of each node.
+     * @param logger            The logger used to record placement events.
+     */
+    public Placement(ClusterNode cluster, Catalog catalog, int replicationFactor, int virtualNodes, Log logger) {
+        super("placement");
+        this.cluster = cluster;
+        this.catalog = catalog;
+        this.replicationFactor = replicationFactor;
+        this.virtualNodes = virtualNodes;
+        this.logger = logger;
+        setDaemon(true);
+    }
+
+    /**
+     * Gets the owners of a file.
+     *
+     * @param resource The file name relative to the database directory.
+     * @return The owners, the primary owner first, or an empty list if the
+     *         members of the cluster are not known yet.
+     */
+    public List<String> owners(String resource) {
+        HashRing current = ring;
+        return current == null ? Collections.emptyList() : current.owners(resource, replicationFactor);
+    }
+
+    /**
+     * Checks whether this node owns a file. Until the members of the cluster
+     * are known, every node owns everything.
+     *
+     * @param resource The file name relative to the database directory.
+     * @return true if this node owns the file.
+     */
+    public boolean isOwner(String resource) {
+        List<String> owners = owners(resource);
+        return owners.isEmpty() || owners.contains(cluster.getSelf());
+    }
+
+    /**
+     * Gets the node a file is recorded on.
+     *
+     * @param resource The file name relative to the database directory.
+     * @return The host:port of the primary owner, or null if not known yet.
+     */
+    public String primaryOwner(String resource) {
+        List<String> owners = owners(resource);
+        return owners.isEmpty() ? null : owners.get(0);
+    }
+
+    /**
+     * Follows the members of the cluster and rebalances the library whenever
+     * they change, and periodically otherwise. Files are only dropped once the
+     * members have stayed the same for a whole pass, so that a node missing a
+     * few heartbeats does not cause files to move back and forth.
+     */
+    @Override
+    public void run() {
+        long lastPass = 0;
+        Set<String> lastMembers = null;
+
+        while (true) {
+            try {
+                Thread.sleep(ClusterNode.HEARTBEAT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            Set<String> members = cluster.getMembers();
+            if (members == null || !members.contains(cluster.getSelf())) {
+                continue; // Not reported in yet, or the coordinator is away
+            }
+
+            HashRing current = ring;
+            boolean changed = current == null || !current.getNodes().equals(members);
+            if (changed) {
+                ring = new HashRing(members, virtualNodes);
+                logger.log("INFO: Placement ring now has " + members.size() + " nodes: " + members);
+            }
+
+            long now = System.currentTimeMillis();
+            if (changed || now - lastPass >= REBALANCE_MILLIS) {
+                rebalance(members.equals(lastMembers));
+                lastPass = now;
+                lastMembers = members;
+            }
+        }
+    }
+
+    /**
+     * Runs one rebalancing pass.
+     *
+     * @param stable Whether the members are the same as in the previous pass,
+     *               which allows files this node no longer owns to be dropped.
+     */
+    private void rebalance(boolean stable) {
+        Map<String, Set<String>> holders = cluster.getHolders();
+        if (holders == null) {
+            return;
+        }
+
+        String self = cluster.getSelf();
+        for (Map.Entry<String, Set<String>> entry : holders.entrySet()) {
+            String resource = entry.getKey();
+            if (!isOwner(resource) || entry.getValue().contains(self) || local(resource).exists()) {
+                continue;
+            }
+            pull(resource, entry.getValue().iterator().next());
+        }
+
+        if (!stable) {
+            return;
+        }
+
+        for (File file : catalog.listMedia()) {
+            String resource = catalog.nameOf(file);
+            if (isOwner(resource)) {
+                continue;
+            }
+
+            Set<String> held = holders.getOrDefault(resource, Collections.emptySet());
+            if (held.containsAll(owners(resource)) && catalog.remove(file)) {
+                logger.log("INFO: Dropped " + resource + ", now held by its owners " + owners(resource));
+            }
+        }
+    }
+
+    /**
+     * Pulls a file this node owns from a node that holds it, and waits for the
+     * transfer to finish.
+     *
+     * @param resource The file name relative to the database directory.
+     * @param holder   The host:port of a node holding the file.
+     */
+    private void pull(String resource, String holder) {
+        File target = local(resource);
+        File part = new File(target.getParentFile(), "." + target.getName() + PART_SUFFIX); // Hidden from the catalog
+
+        OriginFetch fetch = new OriginFetch(this, holder, resource, part, target, logger);
+        fetch.start();
+        try {
+            fetch.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Moves a pulled file into the library and ingests it.
+     *
+     * @param fetch The completed fetch.
+     * @throws IOException if the spool cannot be moved into place.
+     */
+    @Override
+    public void complete(OriginFetch fetch) throws IOException {
+        fetch.moveIntoPlace();
+        catalog.ingest(fetch.getCachedFile());
+        logger.log("INFO: Placed " + fetch.getResource() + " on this node.");
+    }
+
+    /**
+     * Drops the spool of a failed pull. The next pass tries again.
+     *
+     * @param fetch The failed fetch.
+     */
+    @Override
+    public void fail(OriginFetch fetch) {
+        fetch.deleteSpool();
+    }
+
+    /**
+     * Gets the local location of a file.
+     *
+     * @param resource The file name relative to the database directory.
+     * @return The file in the database directory.
+     */
+    private File local(String resource) {
+        return new File(catalog.getDatabaseDir(), resource);
+    }
+}
@@ -1,30 +1,91 @@
 package server;
 
+import common.BufferPool;
 import common.MessageSocket;
+import common.Rendition;
+import common.messages.DataFrame;
 import common.messages.DataMessage;
 import merrimackutil.net.Log;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import jdk.jfr.EventType;
 
 /**
  * The PlayHandler class is responsible for streaming audio data from the server
- * to a client over a MessageSocket. It reads an audio file from disk, splits it
- * into fixed-size chunks, encodes each chunk in Base64, and sends them as RTSP
- * DATA messages to the client.
+ * to a client over a MessageSocket. The audio file is sent as fixed-size chunks,
+ * each encoded in Base64 and wrapped in an RTSP DATA message. The frames are
+ * normally pre-built once per file by the {@link SegmentStore}.
+ *
+ * When the client negotiated binary DATA frames, the payload is sent as raw
+ * bytes after a small header instead. Without an active {@link ChunkTransform}
+ * the payload is transferred from the file to the socket without passing
+ * through the Java heap, otherwise each chunk is copied through a buffer.
+ *
+ * A client that asked for checksums gets the CRC32C of every payload in its
+ * DATA frame. Files are read through their stored {@link ChecksumStore}
+ * checksums, and a chunk read from a damaged block goes out with a checksum
+ * that does not match, so the client treats it like a chunk damaged on
+ * the way.
+ *
+ * A file that is still being recorded is relayed from its {@link LiveStream},
+ * starting at the live edge or at the position the PLAY request's Range asks
+ * for within the stream's window.
+ *
+ * A client that decodes several codecs gets an adaptive bitrate. An
+ * {@link AdaptiveBitrate} estimates its throughput from the time sends
+ * block and picks a {@link Rendition} for each chunk, and the chunks of the
+ * lower renditions come from the {@link RenditionStore}. Chunk i of every
+ * rendition covers the same 10ms, so switching between two chunks leaves no
+ * gap or overlap, and the first chunk after a switch names the new format
+ * for the client.
+ *
+ * Further files can be queued while playback runs. The next queued file is
+ * opened and its first chunks are prefetched while the current one drains,
+ * and sequence numbers continue across files so the client hears no gap.
  *
  * Playback runs in its own thread, supports pause/resume functionality, and
- * sends a final END message once the entire file has been transmitted.
+ * sends a final END message once the last queued file has been transmitted.
+ * Every chunk sent is timed as a {@link ChunkSendEvent} for Java Flight
+ * Recorder, so that a stalled listener shows up with its session.
  */
 public class PlayHandler extends Thread {
 
+    private static final int HEADER_CAPACITY = 128;
+    private static final int PREFETCH_CHUNKS = 100; // One second of audio
+    private static final int LIVE_RATE = 44100; // The rate RecordHandler records at
+    private static final long STOP_MILLIS = 1000; // How long stopping waits for an interrupted send
+    private static final EventType CHUNK_SEND = EventType.getEventType(ChunkSendEvent.class);
+
     private boolean isPaused = false;
+    private volatile boolean stopped = false;
     private final MessageSocket socket;
     private final String filePath;
     private final Log logger;
     private final int sessionID;
+    private final Catalog catalog;
+    private final SegmentStore segmentStore;
+    private final boolean binaryPayload;
+    private ChunkTransform transform;
+    private int outputRate = 0;
+    private boolean normalized = true;
+    private boolean checksums = false;
+    private String range;
+    private List<Rendition> renditions;
+    private AdaptiveBitrate adaptive;
+    private Rendition playing = Rendition.PCM; // The rendition the client decodes the next chunk in
+    private final TrafficMeter meter = TrafficMeter.shared();
 
+    private final ArrayDeque<String> queue = new ArrayDeque<>();
+    private boolean finished = false;
 
     /**
      * Constructs a new PlayHandler thread bound to a given session.
@@ -33,18 +94,109 @@ public class PlayHandler extends Thread {
      * @param filePath  The path to the audio file to be streamed.
      * @param logger    The logger used to record playback events.
      * @param sessionID The RTSP session ID that identifies the playback session.
+     * @param catalog   The library the files are played from.
+     * @param binaryPayload Whether the client negotiated binary DATA frames.
      */
-    public PlayHandler(MessageSocket socket, String filePath, Log logger, int sessionID) {
+    public PlayHandler(MessageSocket socket, String filePath, Log logger, int sessionID,
+                       Catalog catalog, boolean binaryPayload) {
         this.filePath = filePath;
         this.socket = socket;
         this.logger = logger;
         this.sessionID = sessionID;
+        this.catalog = catalog;
+        this.segmentStore = catalog.getSegmentStore();
+        this.binaryPayload = binaryPayload;
+    }
+
+    /**
+     * Sets the transform applied to every chunk before it is sent. Must be
+     * called before the thread is started.
+     *
+     * @param transform The chunk transform, or null to send the file unchanged.
+     */
+    public void setTransform(ChunkTransform transform) {
+        if (transform != null && transform.maxOutputLength(SegmentStore.CHUNK_SIZE) > BufferPool.BUFFER_SIZE) {
+            throw new IllegalArgumentException("Chunk transform output does not fit a pooled buffer");
+        }
+        this.transform = transform;
     }
 
     /**
-     * Reads the audio file into memory, splits it into fixed-size chunks
-     * (1764 bytes per chunk, corresponding to 10ms of stereo audio at 44.1 kHz),
-     * encodes each chunk in Base64, and sends it to the client as a DataMessage.
+     * Sets the sample rate the client plays at. Files recorded at another
+     * rate are converted to it. Must be called before the thread is started.
+     *
+     * @param outputRate The client's sample rate in Hz, or 0 to send every file unchanged.
+     */
+    public void setOutputRate(int outputRate) {
+        this.outputRate = outputRate;
+    }
+
+    /**
+     * Sets whether files are played at the catalog's loudness target. Copies
+     * of a file for another server are sent without the gain. Must be called
+     * before the thread is started.
+     *
+     * @param normalized Whether to apply the loudness gain.
+     */
+    public void setNormalized(boolean normalized) {
+        this.normalized = normalized;
+    }
+
+    /**
+     * Makes every DATA frame carry the CRC32C of its payload. Chunks are then
+     * always copied through a buffer, where the checksum is computed. Must be
+     * called before the thread is started.
+     *
+     * @param checksums Whether the client asked for checksums.
+     */
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * Sets the renditions the client can decode. With more than one, files
+     * that have renditions switch between them as the client's throughput
+     * changes. Must be called before the thread is started.
+     *
+     * @param renditions The renditions, highest bitrate first, or null to send files as they are.
+     */
+    public void setRenditions(List<Rendition> renditions) {
+        if (renditions != null && renditions.size() > 1) {
+            this.renditions = renditions;
+            this.adaptive = new AdaptiveBitrate(renditions);
+        }
+    }
+
+    /**
+     * Sets where playback of a live stream starts, as the Range header of the
+     * PLAY request. Only applies to the first file. Must be called before the
+     * thread is started.
+     *
+     * @param range The Range header, or null to start at the live edge.
+     */
+    public void setRange(String range) {
+        this.range = range;
+    }
+
+    /**
+     * Queues a file to be played after the current one.
+     *
+     * @param path The path to the audio file to queue.
+     * @return true if the file was queued, false if the stream has already ended.
+     */
+    public synchronized boolean enqueue(String path) {
+        if (finished) {
+            return false;
+        }
+
+        queue.add(path);
+        return true;
+    }
+
+    /**
+     * Streams the audio file and every file queued after it to the client.
+     * Sequence numbers run on across files and the next file is prefetched
+     * during the last second of the current one.
      *
      * The method blocks while sending messages and supports pause/resume
      * functionality. After all chunks have been sent, an END message is
@@ -57,42 +209,1004 @@ public class PlayHandler extends Thread {
 
         logger.log("INFO: Started Playing song to client.");
 
-        int i = 0; // Chunk index
+        int seq = 0; // Sequence number, continued across queued files
+        boolean adapting = false; // Whether the last chunk went through the adaptive bitrate
 
         try {
-            File audioFile = new File(filePath);
+            Track track = openTrack(filePath, range);
 
-            byte[] bytes = Files.readAllBytes(audioFile.toPath());
-            int chunkSize = 1764; // 44100 Hz * 2 bytes/sample * 2 channels * 0.01 sec = 1764 bytes for 10ms of audio
-            int totalChunks = (int) Math.ceil((double) bytes.length / chunkSize);
+            while (track != null) {
+                FutureTask<Track> next = null;
 
-            for (i = 0; i < totalChunks; i++) {
-                while (isPaused) {
-                    synchronized (this) {
-                        this.wait();
-                    }
+                try {
+                    for (int i = 0; track.hasChunk(i); i++) {
+                        long paused = waitWhilePaused();
 
-                }
+                        if (next == null && track.remaining(i) <= PREFETCH_CHUNKS) {
+                            next = prefetchNext();
+                        }
+                        if (track.isAdaptive()) {
+                            if (!adapting) {
+                                adaptive.restart(System.nanoTime());
+                            } else {
+                                adaptive.paused(paused);
+                            }
+                            long ahead = adaptive.getWait(System.nanoTime());
+                            if (ahead > 0) {
+                                Thread.sleep(ahead / 1_000_000, (int) (ahead % 1_000_000));
+                            }
+                        }
+                        adapting = track.isAdaptive(); // Queued files carry on the measurement
 
-                int start = i * chunkSize;
-                int end = Math.min(start + chunkSize, bytes.length);
-                byte[] chunk = new byte[end - start];
-                System.arraycopy(bytes, start, chunk, 0, end - start);
+                        // Only created while recorded, the JIT does not always remove it
+                        ChunkSendEvent event = CHUNK_SEND.isEnabled() ? new ChunkSendEvent() : null;
+                        if (event != null) {
+                            event.begin();
+                        }
+                        long sendStart = System.nanoTime();
+                        int sent = track.send(i, seq);
+                        long sendEnd = System.nanoTime();
+                        meter.record(sent);
+                        if (track.isAdaptive()) {
+                            adapt(sent, sendEnd - sendStart, sendEnd, seq + 1);
+                        }
 
-                String payload = java.util.Base64.getEncoder().encodeToString(chunk);
-                DataMessage dataMessage = new DataMessage("DATA", i, sessionID, payload);
-                socket.sendMessage(dataMessage);
+                        if (event != null) {
+                            event.end();
+                            if (event.shouldCommit()) {
+                                event.session = sessionID;
+                                event.sequence = seq;
+                                event.bytes = sent;
+                                event.track = track.getClass().getSimpleName();
+                                event.commit();
+                            }
+                        }
+                        seq++;
+                    }
+                } finally {
+                    track.close();
+                    if (stopped && next != null) {
+                        discard(next);
+                    }
+                }
+
+                track = nextTrack(next);
             }
         } catch (IOException | InterruptedException e) {
+            if (stopped) {
+                closeSocket();
+                logger.log("INFO: Stopped playing song to client.");
+                return;
+            }
             throw new RuntimeException(e);
         }
 
 
-        DataMessage endMessage = new DataMessage("End", i, sessionID, "");
+        DataMessage endMessage = new DataMessage("End", seq, sessionID, "");
         socket.sendMessage(endMessage);
         logger.log("INFO: Finished Playing song to client.");
     }
 
+    /**
+     * Hands a sent chunk to the adaptive bitrate, and records the switch when
+     * it picks another rendition.
+     *
+     * @param sent     The bytes written for the chunk.
+     * @param busy     The nanoseconds the send took.
+     * @param now      The time the send returned.
+     * @param sequence The sequence number of the next chunk.
+     */
+    private void adapt(int sent, long busy, long now, int sequence) {
+        Rendition from = adaptive.getRendition();
+        if (!adaptive.sent(sent, busy, now)) {
+            return;
+        }
+
+        Rendition to = adaptive.getRendition();
+        long throughput = adaptive.getThroughput();
+        long lead = adaptive.getLead(now);
+        logger.log("INFO: Session " + sessionID + " switching from " + from + " to " + to + ", "
+                + (throughput == Long.MAX_VALUE ? "unblocked" : throughput / 1000 + " kbps") + ", "
+                + lead + " chunks ahead.");
+
+        RenditionSwitchEvent event = new RenditionSwitchEvent();
+        if (event.shouldCommit()) {
+            event.session = sessionID;
+            event.sequence = sequence;
+            event.from = from.getName();
+            event.to = to.getName();
+            event.throughput = throughput;
+            event.lead = lead;
+            event.commit();
+        }
+    }
+
+    /**
+     * Opens an audio file with the send path that fits the session: file
+     * regions for binary frames, pre-framed segments for text frames, and
+     * buffered copies when a chunk transform is active. A mix request is
+     * always mixed into a buffer, and a file still being fetched from the
+     * origin is read from its spool as it grows. A file at another sample
+     * rate than the client's, or with a loudness gain, is converted through
+     * a buffer. A file still being recorded is relayed live. A compressed
+     * file is decoded block by block as it is sent. A session with an
+     * adaptive bitrate plays files that have renditions through them.
+     *
+     * @param path  The path to the audio file.
+     * @param range The Range a live stream starts at, or null for the live edge.
+     * @return The opened track.
+     * @throws IOException if the file cannot be opened.
+     */
+    private Track openTrack(String path, String range) throws IOException {
+        if (Mixer.isMix(path)) {
+            return new MixTrack(Mixer.Spec.parse(path));
+        }
+
+        LiveStream live = LiveRelay.shared().find(new File(path));
+        if (live != null) {
+            return new LiveTrack(live, range);
+        }
+
+        OriginFetch fetch = catalog.getEdgeCache() == null ? null : catalog.getEdgeCache().inFlight(path);
+        if (fetch != null) {
+            return new FetchTrack(fetch);
+        }
+
+        File audioFile = new File(path);
+
+        // Files at another rate than the client's, or played at a common loudness, are converted
+        double gain = normalized ? catalog.gainFor(audioFile) : 1.0;
+        boolean normalize = GainTransform.isAudible(gain);
+        WavFormat format = WavFormat.read(audioFile);
+        boolean resample = format != null && outputRate > 0 && format.getSampleRate() != outputRate;
+        if (resample || (format != null && normalize)) {
+            if (format.getBitsPerSample() == 16 && format.getChannels() <= 2) {
+                Resampler resampler = resample
+                        ? new Resampler(format.getSampleRate(), outputRate, format.getChannels(), chunkBytes(format))
+                        : null;
+                return new PcmTrack(audioFile, format, resampler, normalize ? new GainTransform(gain) : null);
+            }
+            logger.log("ERROR: Cannot convert " + format.getBitsPerSample() + "-bit " + format.getChannels()
+                    + " channel audio from " + format.getSampleRate() + " Hz, sending it unchanged.");
+        }
+
+        if (adaptive != null && transform == null && RenditionStore.canRender(format)) {
+            Track file = format.isLossless() ? new DecodedTrack(audioFile, format)
+                    : binaryPayload && !checksums ? new RegionTrack(audioFile) : new BufferedTrack(audioFile);
+            return new RenditionTrack(file, audioFile, format);
+        }
+        if (format != null && format.isLossless()) {
+            return new DecodedTrack(audioFile, format);
+        }
+        if (binaryPayload && transform == null && !checksums) {
+            return new RegionTrack(audioFile);
+        } else if (!binaryPayload && transform == null && !checksums && adaptive == null
+                && SegmentStore.canPatch(sessionID)) { // Pre-framed segments cannot name a format
+            return new SegmentTrack(audioFile);
+        } else {
+            return new BufferedTrack(audioFile);
+        }
+    }
+
+    /**
+     * Takes the next queued file, if any, and opens and prefetches it on a
+     * background thread.
+     *
+     * @return The pending track, or null if nothing is queued.
+     */
+    private FutureTask<Track> prefetchNext() {
+        String path = claimNext(false);
+        if (path == null) {
+            return null;
+        }
+
+        logger.log("INFO: Prefetching queued file: " + path);
+
+        FutureTask<Track> task = new FutureTask<>(() -> {
+            Track track = openTrack(path, null);
+            track.prefetch(PREFETCH_CHUNKS);
+            return track;
+        });
+
+        Thread prefetcher = new Thread(task, "prefetch-" + sessionID);
+        prefetcher.setDaemon(true);
+        prefetcher.start();
+        return task;
+    }
+
+    /**
+     * Gets the track to play after the current one, skipping queued files
+     * that cannot be opened.
+     *
+     * @param prefetched The prefetched next track, or null if none was prefetched.
+     * @return The next track, or null once the queue is exhausted.
+     * @throws InterruptedException if interrupted while waiting for the prefetch.
+     */
+    private Track nextTrack(FutureTask<Track> prefetched) throws InterruptedException {
+        while (true) {
+            try {
+                if (prefetched != null) {
+                    return prefetched.get();
+                }
+
+                String path = claimNext(true);
+                return path == null ? null : openTrack(path, null);
+            } catch (ExecutionException | IOException e) {
+                logger.log("ERROR: Skipping queued file: " + e.getMessage());
+                prefetched = null;
+            }
+        }
+    }
+
+    /**
+     * Closes a prefetched track that will not be played, once it is open.
+     *
+     * @param prefetched The pending track.
+     */
+    private void discard(FutureTask<Track> prefetched) {
+        Thread.interrupted(); // Stopping interrupted this thread, the prefetch still finishes
+        try {
+            prefetched.get().close();
+        } catch (ExecutionException | IOException e) {
+            logger.log("ERROR: Unable to close prefetched file: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes the next file from the queue.
+     *
+     * @param finishIfEmpty Whether to end the stream when the queue is empty.
+     * @return The path of the next file, or null if the queue is empty.
+     */
+    private synchronized String claimNext(boolean finishIfEmpty) {
+        String path = queue.poll();
+        if (path == null && finishIfEmpty) {
+            finished = true;
+        }
+        return path;
+    }
+
+    /**
+     * A Track is an opened audio file that sends its chunks to the client
+     * under a given sequence number.
+     */
+    private abstract static class Track implements Closeable {
+
+        protected int chunkCount;
+
+        /**
+         * Checks whether the track has a chunk, waiting for it if the track
+         * is still growing.
+         *
+         * @param index The chunk index within the track.
+         * @return true if the chunk can be sent, false once the track has ended.
+         * @throws InterruptedException if interrupted while waiting for the chunk.
+         */
+        boolean hasChunk(int index) throws InterruptedException {
+            return index < chunkCount;
+        }
+
+        /**
+         * Gets the number of chunks left after a chunk.
+         *
+         * @param index The chunk index within the track.
+         * @return The number of chunks from the index to the end, or Integer.MAX_VALUE if not known yet.
+         */
+        int remaining(int index) {
+            return chunkCount - index;
+        }
+
+        /**
+         * Checks whether the track switches renditions as the session's
+         * throughput changes.
+         *
+         * @return true if the adaptive bitrate picks the rendition of each chunk.
+         */
+        boolean isAdaptive() {
+            return false;
+        }
+
+        /**
+         * Loads the first chunks of the track ahead of playback.
+         *
+         * @param chunks The number of chunks to prefetch.
+         * @throws IOException if the file cannot be read.
+         */
+        abstract void prefetch(int chunks) throws IOException;
+
+        /**
+         * Sends one chunk of the track.
+         *
+         * @param index The chunk index within the track.
+         * @param cseq  The sequence number to send the chunk under.
+         * @return The number of bytes written to the socket.
+         * @throws IOException if the chunk cannot be read or sent.
+         */
+        abstract int send(int index, int cseq) throws IOException;
+    }
+
+    /**
+     * Sends the pre-framed DATA messages of the audio file straight from its
+     * segment file, patching the sequence number and session ID into each frame.
+     */
+    private class SegmentTrack extends Track {
+
+        private final SegmentStore.Segments segments;
+        private final byte[] frame;
+        private byte[] prefetched;
+        private int[] prefetchedOffsets;
+        private int prefetchedCount;
+
+        SegmentTrack(File audioFile) throws IOException {
+            this.segments = segmentStore.open(audioFile);
+            this.chunkCount = segments.getChunkCount();
+            this.frame = new byte[segments.getMaxFrameLength()];
+        }
+
+        @Override
+        void prefetch(int chunks) throws IOException {
+            int count = Math.min(chunks, chunkCount);
+            prefetched = new byte[count * segments.getMaxFrameLength()];
+            prefetchedOffsets = new int[count + 1];
+
+            for (int i = 0; i < count; i++) {
+                prefetchedOffsets[i + 1] = prefetchedOffsets[i] + segments.readRawFrame(i, prefetched, prefetchedOffsets[i]);
+            }
+            prefetchedCount = count;
+        }
+
+        @Override
+        int send(int index, int cseq) throws IOException {
+            if (index < prefetchedCount) {
+                int offset = prefetchedOffsets[index];
+                segments.patch(index, prefetched, offset, cseq, sessionID);
+                int length = prefetchedOffsets[index + 1] - offset;
+                socket.sendBytes(prefetched, offset, length);
+                return length;
+            }
+
+            int length = segments.readFrame(index, frame, cseq, sessionID);
+            socket.sendBytes(frame, 0, length);
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            segments.close();
+        }
+    }
+
+    /**
+     * Sends binary DATA messages whose payload is transferred straight from
+     * the audio file to the socket. Only the frame header passes through the
+     * Java heap, and it is written from one reusable buffer.
+     */
+    private class RegionTrack extends Track {
+
+        private final FileChannel file;
+        private final ChecksumStore.Checksums sums;
+        private final long size;
+        private final byte[] headerBytes = new byte[HEADER_CAPACITY];
+        private final ByteBuffer header = ByteBuffer.wrap(headerBytes);
+
+        RegionTrack(File audioFile) throws IOException {
+            this.sums = catalog.getChecksumStore().get(audioFile);
+            this.file = FileChannel.open(audioFile.toPath(), StandardOpenOption.READ);
+            this.size = file.size();
+            this.chunkCount = (int) ((size + SegmentStore.CHUNK_SIZE - 1) / SegmentStore.CHUNK_SIZE);
+        }
+
+        @Override
+        void prefetch(int chunks) throws IOException {
+            // Pull the first chunks into the page cache, they are sent from there
+            long length = Math.min(size, (long) chunks * SegmentStore.CHUNK_SIZE);
+            if (length > 0) {
+                file.map(FileChannel.MapMode.READ_ONLY, 0, length).load();
+            }
+        }
+
+        @Override
+        int send(int index, int cseq) throws IOException {
+            long position = (long) index * SegmentStore.CHUNK_SIZE;
+            int length = (int) Math.min(SegmentStore.CHUNK_SIZE, size - position);
+            if (sums != null) {
+                sums.check(file, position, length); // Damaged blocks are logged, the client cannot be told here
+            }
+
+            header.clear().limit(DataMessage.writeBinaryHeader(headerBytes, "DATA", cseq, sessionID, length, -1,
+                    switchTo(Rendition.PCM)));
+            socket.sendFileRegion(header, file, position, length);
+            return header.limit() + length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads the audio file in fixed-size chunks (1764 bytes per chunk,
+     * corresponding to 10ms of stereo audio at 44.1 kHz) into a pooled frame,
+     * applies the chunk transform if one is set, and sends each chunk to the
+     * client either as a binary DATA message or Base64 encoded. The frame is
+     * reused for every chunk, so sending does not allocate.
+     */
+    private class BufferedTrack extends Track {
+
+        private final FileChannel file;
+        private final ChecksumStore.Checksums sums;
+        private final DataFrame frame;
+        private byte[] prefetched;
+
+        BufferedTrack(File audioFile) throws IOException {
+            this.sums = catalog.getChecksumStore().get(audioFile);
+            this.file = FileChannel.open(audioFile.toPath(), StandardOpenOption.READ);
+            this.chunkCount = (int) ((file.size() + SegmentStore.CHUNK_SIZE - 1) / SegmentStore.CHUNK_SIZE);
+            this.frame = new DataFrame(BufferPool.shared());
+        }
+
+        @Override
+        void prefetch(int chunks) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(file.size(), (long) chunks * SegmentStore.CHUNK_SIZE));
+            while (buffer.hasRemaining() && file.read(buffer, buffer.position()) >= 0) {
+                // Keep reading until the prefetch window is full
+            }
+            prefetched = buffer.array();
+        }
+
+        @Override
+        int send(int index, int cseq) throws IOException {
+            int chunkSize = SegmentStore.CHUNK_SIZE;
+            long start = (long) index * chunkSize;
+            int length;
+            boolean intact = sums == null || sums.check(file, start, chunkSize);
+
+            if (prefetched != null && start < prefetched.length) {
+                length = Math.min(chunkSize, prefetched.length - (int) start);
+                frame.writablePayload().put(0, prefetched, (int) start, length);
+            } else {
+                length = frame.readPayload(file, start, chunkSize);
+            }
+
+            if (transform != null) {
+                length = transform.apply(frame.writablePayload(), length);
+            }
+
+            frame.set("DATA", cseq, sessionID, length, binaryPayload);
+            return sendFrame(frame, intact);
+        }
+
+        @Override
+        public void close() throws IOException {
+            frame.release();
+            file.close();
+        }
+    }
+
+    /**
+     * Gets the size of the chunks a PCM file is converted in, 10ms of audio.
+     *
+     * @param format The format of the file.
+     * @return The chunk size in bytes, whole frames.
+     */
+    private static int chunkBytes(WavFormat format) {
+        return Math.max(1, format.getSampleRate() / 100) * format.getFrameSize();
+    }
+
+    /**
+     * Sends the samples of a file converted chunk by chunk: to the client's
+     * sample rate, to the loudness target, or both. Each chunk holds 10ms of
+     * the file, so chunks still carry 10ms of audio once converted. The WAV
+     * header is not sent, since the client plays the converted samples in
+     * its own format.
+     */
+    private class PcmTrack extends Track {
+
+        private final PcmReader file;
+        private final WavFormat format;
+        private final int inputChunk;
+        private final Resampler resampler;
+        private final GainTransform gain;
+        private final DataFrame frame;
+        private ByteBuffer prefetched;
+
+        PcmTrack(File audioFile, WavFormat format, Resampler resampler, GainTransform gain) throws IOException {
+            this.format = format;
+            this.inputChunk = chunkBytes(format);
+            this.resampler = resampler;
+            this.gain = gain;
+            this.chunkCount = (int) ((format.getDataLength() + inputChunk - 1) / inputChunk);
+            this.frame = new DataFrame(BufferPool.shared());
+
+            int outputChunk = resampler == null ? inputChunk : resampler.maxOutputLength(inputChunk);
+            if (outputChunk > frame.getCapacity()) {
+                frame.release();
+                throw new IOException("Cannot convert " + format.getSampleRate() + " Hz to " + outputRate + " Hz in one frame");
+            }
+            this.file = PcmReader.open(audioFile, format, catalog.getChecksumStore().get(audioFile));
+        }
+
+        @Override
+        void prefetch(int chunks) throws IOException {
+            prefetched = ByteBuffer.allocate((int) Math.min(format.getDataLength(), (long) chunks * inputChunk));
+            while (prefetched.hasRemaining() && file.read(prefetched, prefetched.position()) >= 0) {
+                // Keep reading until the prefetch window is full
+            }
+            prefetched.flip();
+        }
+
+        @Override
+        int send(int index, int cseq) throws IOException {
+            long start = (long) index * inputChunk;
+            int length = (int) Math.min(inputChunk, format.getDataLength() - start);
+
+            if (prefetched != null && start + length <= prefetched.limit()) {
+                frame.writablePayload().put(0, prefetched, (int) start, length);
+            } else {
+                length = readPayload(frame, file, start, length);
+            }
+
+            if (gain != null) {
+                length = gain.apply(frame.writablePayload(), length);
+            }
+            if (resampler != null) {
+                length = resampler.apply(frame.writablePayload(), length);
+            }
+            if (transform != null) {
+                length = transform.apply(frame.writablePayload(), length);
+            }
+
+            frame.set("DATA", cseq, sessionID, length, binaryPayload);
+            return sendFrame(frame, file.checkIntact());
+        }
+
+        @Override
+        public void close() throws IOException {
+            frame.release();
+            file.close();
+        }
+    }
+
+    /**
+     * Sends a compressed file as the WAV file it holds: a canonical WAV
+     * header followed by the samples, decoded block by block as the chunks
+     * that reach into a block are sent. Listeners and edge servers get the
+     * same bytes they would get had the file not been compressed, apart
+     * from any extra chunks the original header had.
+     */
+    private class DecodedTrack extends Track {
+
+        private final PcmReader reader;
+        private final byte[] wavHeader;
+        private final long size;
+        private final DataFrame frame;
+
+        DecodedTrack(File audioFile, WavFormat format) throws IOException {
+            this.wavHeader = format.toWavHeader();
+            this.size = wavHeader.length + format.getDataLength();
+            this.chunkCount = (int) ((size + SegmentStore.CHUNK_SIZE - 1) / SegmentStore.CHUNK_SIZE);
+            this.reader = PcmReader.open(audioFile, format, catalog.getChecksumStore().get(audioFile));
+            this.frame = new DataFrame(BufferPool.shared());
+        }
+
+        @Override
+        void prefetch(int chunks) throws IOException {
+            // Decode the first block, the chunks that follow are sent from it
+            reader.read(ByteBuffer.allocate(1), 0);
+        }
+
+        @Override
+        int send(int index, int cseq) throws IOException {
+            long position = (long) index * SegmentStore.CHUNK_SIZE;
+            int length = (int) Math.min(SegmentStore.CHUNK_SIZE, size - position);
+
+            int fromHeader = (int) Math.max(0, Math.min(length, wavHeader.length - position));
+            if (fromHeader > 0) {
+                frame.writablePayload().put(0, wavHeader, (int) position, fromHeader);
+                length = fromHeader + readPayload(frame, reader, position + fromHeader - wavHeader.length,
+                        fromHeader, length - fromHeader);
+            } else {
+                length = readPayload(frame, reader, position - wavHeader.length, length);
+            }
+
+            if (transform != null) {
+                length = transform.apply(frame.writablePayload(), length);
+            }
+
+            frame.set("DATA", cseq, sessionID, length, binaryPayload);
+            return sendFrame(frame, reader.checkIntact());
+        }
+
+        @Override
+        public void close() throws IOException {
+            frame.release();
+            reader.close();
+        }
+    }
+
+    /**
+     * Sends a frame, with the checksum of its payload if the client asked
+     * for checksums.
+     *
+     * @param frame  The frame to send.
+     * @param intact Whether the payload was read from blocks that match their stored checksums.
+     * @return The number of bytes written to the socket.
+     * @throws IOException if the frame cannot be sent.
+     */
+    private int sendFrame(DataFrame frame, boolean intact) throws IOException {
+        return sendFrame(frame, intact, Rendition.PCM);
+    }
+
+    /**
+     * Sends a frame in a rendition, naming the rendition's format if the
+     * client is playing another one.
+     *
+     * @param frame     The frame to send.
+     * @param intact    Whether the payload was read from blocks that match their stored checksums.
+     * @param rendition The rendition of the payload.
+     * @return The number of bytes written to the socket.
+     * @throws IOException if the frame cannot be sent.
+     */
+    private int sendFrame(DataFrame frame, boolean intact, Rendition rendition) throws IOException {
+        frame.setFormat(switchTo(rendition));
+        if (checksums) {
+            long checksum = frame.computeChecksum();
+            if (!intact) {
+                frame.setChecksum(~checksum & 0xFFFFFFFFL); // Cannot match, the client drops the chunk
+            }
+        }
+        return socket.sendFrame(frame);
+    }
+
+    /**
+     * Gets the Format field of a chunk in a rendition. The client takes the
+     * format of a chunk that names none to be that of the chunk before.
+     *
+     * @param rendition The rendition of the chunk.
+     * @return The format of the rendition if the client is playing another one, null otherwise.
+     */
+    private String switchTo(Rendition rendition) {
+        if (rendition == playing) {
+            return null;
+        }
+        playing = rendition;
+        return rendition.getFormat();
+    }
+
+    /**
+     * Reads samples into the payload of a frame.
+     *
+     * @param frame    The frame to fill.
+     * @param reader   The samples.
+     * @param position The position of the samples to read.
+     * @param count    The number of bytes to read.
+     * @return The number of bytes read, less than count only at the end of the samples.
+     * @throws IOException if the samples cannot be read.
+     */
+    private static int readPayload(DataFrame frame, PcmReader reader, long position, int count) throws IOException {
+        return readPayload(frame, reader, position, 0, count);
+    }
+
+    /**
+     * Reads samples into the payload of a frame after the bytes already in
+     * it, which are kept.
+     *
+     * @return The number of bytes read.
+     */
+    private static int readPayload(DataFrame frame, PcmReader reader, long position, int offset, int count)
+            throws IOException {
+        ByteBuffer buffer = frame.writablePayload();
+        buffer.position(offset).limit(offset + count);
+        while (buffer.hasRemaining()) {
+            if (reader.read(buffer, position + buffer.position() - offset) < 0) {
+                break;
+            }
+        }
+        return buffer.position() - offset;
+    }
+
+    /**
+     * Sends a file in the rendition the session's {@link AdaptiveBitrate}
+     * picks for each chunk. Chunks of the file itself take the send path
+     * they would take without adapting, and chunks of a lower rendition are
+     * read from the {@link RenditionStore} into a pooled frame. While the
+     * picked rendition is still being encoded, the nearest one that is ready
+     * is sent instead, a lower one if there is one.
+     */
+    private class RenditionTrack extends Track {
+
+        private static final int RETRY_CHUNKS = 100; // Chunks between looks for newly encoded renditions
+
+        private final Track file;
+        private final File audioFile;
+        private final RenditionStore.Chunks[] stored;
+        private final DataFrame frame;
+        private int retryAt = 0;
+
+        RenditionTrack(Track file, File audioFile, WavFormat format) {
+            this.file = file;
+            this.audioFile = audioFile;
+            this.chunkCount = file.chunkCount;
+            this.stored = new RenditionStore.Chunks[renditions.size()];
+            this.frame = new DataFrame(BufferPool.shared());
+            catalog.getRenditionStore().prepare(audioFile, format, renditions);
+        }
+
+        @Override
+        boolean isAdaptive() {
+            return true;
+        }
+
+        @Override
+        void prefetch(int chunks) throws IOException {
+            file.prefetch(chunks);
+        }
+
+        @Override
+        int send(int index, int cseq) throws IOException {
+            RenditionStore.Chunks chunks = pick(index);
+            if (chunks == null) {
+                return file.send(index, cseq);
+            }
+
+            int length = chunks.read(index, frame.writablePayload());
+            frame.set("DATA", cseq, sessionID, length, binaryPayload);
+            return sendFrame(frame, true, chunks.getRendition());
+        }
+
+        /**
+         * Gets the stored chunks of the rendition a chunk is sent in.
+         *
+         * @param index The chunk index.
+         * @return The chunks, or null to send the file itself.
+         * @throws IOException if a rendition file cannot be opened.
+         */
+        private RenditionStore.Chunks pick(int index) throws IOException {
+            if (index >= retryAt) {
+                for (int r = 1; r < stored.length; r++) {
+                    if (stored[r] == null) {
+                        stored[r] = catalog.getRenditionStore().open(audioFile, renditions.get(r));
+                    }
+                }
+                retryAt = index + RETRY_CHUNKS;
+            }
+
+            int target = renditions.indexOf(adaptive.getRendition());
+            for (int r = target; r < stored.length; r++) {
+                if (r == 0 || (stored[r] != null && index < stored[r].getChunkCount())) {
+                    return stored[r];
+                }
+            }
+            for (int r = target - 1; r > 0; r--) {
+                if (stored[r] != null && index < stored[r].getChunkCount()) {
+                    return stored[r];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            frame.release();
+            for (RenditionStore.Chunks chunks : stored) {
+                if (chunks != null) {
+                    chunks.close();
+                }
+            }
+            file.close();
+        }
+    }
+
+    /**
+     * Relays a file that is still being fetched from the origin. Chunks are
+     * read from the fetch's spool through a pooled frame as soon as the
+     * origin has delivered them.
+     */
+    private class FetchTrack extends Track {
+
+        private final OriginFetch fetch;
+        private final FileChannel file;
+        private final DataFrame frame;
+        private long available;
+
+        FetchTrack(OriginFetch fetch) throws IOException {
+            this.fetch = fetch;
+            this.file = fetch.openReader();
+            this.frame = new DataFrame(BufferPool.shared());
+        }
+
+        @Override
+        boolean hasChunk(int index) throws InterruptedException {
+            long start = (long) index * SegmentStore.CHUNK_SIZE;
+            available = fetch.awaitBytes(start + SegmentStore.CHUNK_SIZE);
+            return available > start;
+        }
+
+        @Override
+        int remaining(int index) {
+            if (!fetch.isDone()) {
+                return Integer.MAX_VALUE;
+            }
+            return (int) ((fetch.getAvailable() + SegmentStore.CHUNK_SIZE - 1) / SegmentStore.CHUNK_SIZE) - index;
+        }
+
+        @Override
+        void prefetch(int chunks) {
+            // Chunks arrive from the origin while playing, there is nothing to load ahead
+        }
+
+        @Override
+        int send(int index, int cseq) throws IOException {
+            long position = (long) index * SegmentStore.CHUNK_SIZE;
+            int length = frame.readPayload(file, position, (int) Math.min(SegmentStore.CHUNK_SIZE, available - position));
+
+            if (transform != null) {
+                length = transform.apply(frame.writablePayload(), length);
+            }
+
+            frame.set("DATA", cseq, sessionID, length, binaryPayload);
+            return sendFrame(frame, true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            frame.release();
+            file.close();
+        }
+    }
+
+    /**
+     * Relays a recording in progress from its live stream. The track holds
+     * nothing of the stream but the sequence number of its next chunk, which
+     * it copies out of the ring into a pooled frame. A listener that falls
+     * out of the ring's window, for instance after a long pause, continues
+     * from the oldest chunk the ring still holds.
+     */
+    private class LiveTrack extends Track {
+
+        private final LiveStream stream;
+        private final Resampler resampler;
+        private final DataFrame frame;
+        private int next;
+
+        LiveTrack(LiveStream stream, String range) {
+            this.stream = stream;
+            this.next = stream.startFor(range);
+            this.resampler = outputRate > 0 && outputRate != LIVE_RATE
+                    ? new Resampler(LIVE_RATE, outputRate, 2, Upload.CHUNK_BYTES)
+                    : null;
+            this.frame = new DataFrame(BufferPool.shared());
+        }
+
+        @Override
+        boolean hasChunk(int index) throws InterruptedException {
+            return stream.await(next);
+        }
+
+        @Override
+        int remaining(int index) {
+            return stream.isEnded() ? stream.available(next) : Integer.MAX_VALUE;
+        }
+
+        @Override
+        void prefetch(int chunks) {
+            // The stream is held in memory, there is nothing to load ahead
+        }
+
+        @Override
+        int send(int index, int cseq) throws IOException {
+            int length;
+            try {
+                while ((length = stream.read(next, frame.writablePayload())) < 0) {
+                    next = Math.max(next + 1, stream.oldest()); // Overwritten since, skip ahead
+                    if (!stream.await(next)) {
+                        length = 0;
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while relaying live stream", e);
+            }
+            next++;
+
+            if (resampler != null) {
+                length = resampler.apply(frame.writablePayload(), length);
+            }
+            if (transform != null) {
+                length = transform.apply(frame.writablePayload(), length);
+            }
+
+            frame.set("DATA", cseq, sessionID, length, binaryPayload);
+            return sendFrame(frame, true);
+        }
+
+        @Override
+        public void close() {
+            frame.release();
+        }
+    }
+
+    /**
+     * Mixes several audio files into one PCM stream chunk by chunk and sends
+     * each mixed chunk through a pooled frame, like {@link BufferedTrack}.
+     */
+    private class MixTrack extends Track {
+
+        private final Mixer mixer;
+        private final DataFrame frame;
+        private ByteBuffer prefetched;
+        private int prefetchedChunks;
+
+        MixTrack(Mixer.Spec spec) throws IOException {
+            this.mixer = new Mixer(spec, SegmentStore.CHUNK_SIZE);
+            this.chunkCount = (int) ((mixer.getLength() + SegmentStore.CHUNK_SIZE - 1) / SegmentStore.CHUNK_SIZE);
+            this.frame = new DataFrame(BufferPool.shared());
+        }
+
+        @Override
+        void prefetch(int chunks) throws IOException {
+            prefetchedChunks = Math.min(chunks, chunkCount);
+            prefetched = ByteBuffer.allocate(prefetchedChunks * SegmentStore.CHUNK_SIZE);
+            for (int i = 0; i < prefetchedChunks; i++) {
+                mixer.read(prefetched.position(i * SegmentStore.CHUNK_SIZE).slice(), SegmentStore.CHUNK_SIZE);
+            }
+        }
+
+        @Override
+        int send(int index, int cseq) throws IOException {
+            int length;
+
+            if (index < prefetchedChunks) {
+                long start = (long) index * SegmentStore.CHUNK_SIZE;
+                length = (int) Math.min(SegmentStore.CHUNK_SIZE, mixer.getLength() - start);
+                frame.writablePayload().put(0, prefetched, (int) start, length);
+            } else {
+                length = mixer.read(frame.writablePayload(), SegmentStore.CHUNK_SIZE);
+            }
+
+            if (transform != null) {
+                length = transform.apply(frame.writablePayload(), length);
+            }
+
+            frame.set("DATA", cseq, sessionID, length, binaryPayload);
+            return sendFrame(frame, true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            frame.release();
+            mixer.close();
+        }
+    }
+
+    /**
+     * Blocks the playback thread for as long as playback is paused.
+     *
+     * @return The nanoseconds playback was paused for.
+     * @throws InterruptedException if interrupted while waiting, or once playback is stopped.
+     */
+    private long waitWhilePaused() throws InterruptedException {
+        if (stopped) {
+            throw new InterruptedException("Playback stopped");
+        }
+        if (!isPaused) {
+            return 0;
+        }
+
+        long start = System.nanoTime();
+        while (isPaused) {
+            synchronized (this) {
+                this.wait();
+            }
+
+        }
+        return System.nanoTime() - start;
+    }
+
     /**
      * Toggles the pause state of playback. If playback is currently active,
      * calling this method will pause it; if paused, calling it will resume playback.
@@ -107,4 +1221,34 @@ public class PlayHandler extends Thread {
         }
     }
 
+    /**
+     * Stops playback for good, as when its session is torn down. The thread
+     * is interrupted wherever it waits, paused or not, and ends without
+     * sending the End message. This returns once the thread has ended.
+     */
+    public void stopPlayback() {
+        stopped = true;
+        interrupt();
+        try {
+            join(STOP_MILLIS);
+            if (isAlive()) {
+                closeSocket(); // Unblocks a send the interrupt did not reach
+                join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the media socket of a stopped session.
+     */
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.log("ERROR: Unable to close media socket: " + e.getMessage());
+        }
+    }
+
 }
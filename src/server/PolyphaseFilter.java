@@ -0,0 +1,150 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The PolyphaseFilter class holds the anti-aliasing filter for converting
+ * audio from one sample rate to another by a rational factor L/M: the input
+ * is conceptually stuffed with L-1 zeros between samples, low-pass filtered
+ * and kept at every M-th sample. Only every L-th tap of the filter meets a
+ * non-zero input sample, so the filter is stored split into its L phases,
+ * and each output sample costs one short dot product with the phase it
+ * falls on.
+ *
+ * The filter is a windowed sinc with a Kaiser window, cut off just below the
+ * Nyquist frequency of the lower of the two rates. Designing it is far more
+ * expensive than using it, so one table per pair of rates is built on first
+ * use and shared by every session converting between them.
+ */
+public class PolyphaseFilter {
+
+    private static final int ZERO_CROSSINGS = 16; // Sinc lobes on each side of the centre, at the lower rate
+    private static final double ROLLOFF = 0.94; // Passband edge as a fraction of the lower Nyquist frequency
+    private static final double KAISER_BETA = 8.0; // About 80 dB of stopband attenuation
+
+    private static final ConcurrentHashMap<Long, PolyphaseFilter> FILTERS = new ConcurrentHashMap<>();
+
+    private final int up;
+    private final int down;
+    private final int taps;
+    private final float[] coefficients;
+
+    /**
+     * Designs the filter for a pair of rates.
+     *
+     * @param inputRate  The sample rate of the input.
+     * @param outputRate The sample rate of the output.
+     */
+    private PolyphaseFilter(int inputRate, int outputRate) {
+        int gcd = gcd(inputRate, outputRate);
+        this.up = outputRate / gcd;
+        this.down = inputRate / gcd;
+
+        // Downsampling widens the filter in input samples to keep the same number of lobes at the output rate
+        double stretch = Math.max(1.0, (double) inputRate / outputRate);
+        this.taps = (int) Math.ceil(2 * ZERO_CROSSINGS * stretch);
+        this.coefficients = new float[up * taps];
+
+        int length = up * taps;
+        double centre = (length - 1) / 2.0;
+        double cutoff = ROLLOFF * 0.5 / (up * stretch); // Cycles per sample at the zero-stuffed rate
+        double norm = besselI0(KAISER_BETA);
+
+        for (int k = 0; k < length; k++) {
+            double t = k - centre;
+            double sinc = t == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            double r = t / (centre + 1);
+            double window = besselI0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - r * r))) / norm;
+
+            // Phase p holds taps p, p + L, p + 2L, ... so each phase is contiguous
+            int phase = k % up;
+            int tap = k / up;
+            coefficients[phase * taps + tap] = (float) (sinc * window * up); // Gain of L makes up for the stuffed zeros
+        }
+    }
+
+    /**
+     * Gets the filter converting between two rates, designing it on first use.
+     *
+     * @param inputRate  The sample rate of the input.
+     * @param outputRate The sample rate of the output.
+     * @return The shared filter.
+     */
+    public static PolyphaseFilter forRates(int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException("Sample rates must be positive");
+        }
+        return FILTERS.computeIfAbsent((long) inputRate << 32 | outputRate, key -> new PolyphaseFilter(inputRate, outputRate));
+    }
+
+    /**
+     * Get the interpolation factor
+     *
+     * @return int L, the output rate divided by the common divisor of both rates
+     */
+    public int getUp() {
+        return up;
+    }
+
+    /**
+     * Get the decimation factor
+     *
+     * @return int M, the input rate divided by the common divisor of both rates
+     */
+    public int getDown() {
+        return down;
+    }
+
+    /**
+     * Get the length of each phase
+     *
+     * @return int input samples each output sample is computed from
+     */
+    public int getTaps() {
+        return taps;
+    }
+
+    /**
+     * Computes one output sample: the dot product of a phase with the input
+     * samples ending at a position, newest first.
+     *
+     * @param phase   The phase the output sample falls on, 0 to L-1.
+     * @param samples The input samples.
+     * @param newest  The index of the newest input sample used; the
+     *                {@link #getTaps()} - 1 samples before it must exist.
+     * @return The output sample.
+     */
+    public float apply(int phase, float[] samples, int newest) {
+        float[] c = coefficients;
+        int base = phase * taps;
+        float sum = 0;
+        for (int j = 0; j < taps; j++) {
+            sum += c[base + j] * samples[newest - j];
+        }
+        return sum;
+    }
+
+    /**
+     * Computes the zeroth order modified Bessel function of the first kind,
+     * which shapes the Kaiser window.
+     */
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        double half = x / 2;
+        for (int k = 1; term > 1e-12 * sum; k++) {
+            term *= (half / k) * (half / k);
+            sum += term;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,43 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The RecordEvent is recorded by Java Flight Recorder for each connection a
+ * {@link RecordHandler} receives an upload over, from the connection
+ * attaching until the upload ends or is suspended.
+ */
+@Name("streaming.Record")
+@Label("Record")
+@Category({"Streaming", "Media"})
+@Description("Chunks of an upload received over one connection")
+class RecordEvent extends jdk.jfr.Event {
+
+    @Label("Session")
+    int session;
+
+    @Label("File")
+    String file;
+
+    @Label("Chunks")
+    int chunks;
+
+    @Label("Received")
+    @DataAmount(DataAmount.BYTES)
+    long bytes;
+
+    @Label("Duplicates")
+    int duplicates;
+
+    @Label("Damaged")
+    @Description("Chunks dropped because they failed their checksum")
+    int damaged;
+
+    @Label("Complete")
+    @Description("Whether the upload ended with every chunk received")
+    boolean complete;
+}
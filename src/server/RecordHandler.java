@@ -1,8 +1,8 @@
 package server;
 
+import common.BufferPool;
 import common.MessageSocket;
-import common.messages.DataMessage;
-import common.messages.Message;
+import common.messages.DataFrame;
 import merrimackutil.net.Log;
 
 import javax.sound.sampled.AudioFileFormat;
@@ -10,86 +10,248 @@ import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import java.io.*;
-import java.util.Base64;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 public class RecordHandler extends Thread {
 
+    private static final int ACK_EVERY = 50; // Chunks between acknowledgements, half a second of audio
+
     private final MessageSocket socket;
     private final int sessionId;
+    private final Upload upload;
     private final File file;
     private final Log logger;
+    private final Catalog catalog;
 
-    public RecordHandler(MessageSocket socket, int sessionId, File file, Log logger) {
+    /**
+     * Constructs a new RecordHandler that receives an upload over one media
+     * connection.
+     *
+     * @param socket  The media connection of the client.
+     * @param upload  The upload, new or resumed.
+     * @param logger  The logger used to record upload events.
+     * @param catalog The library the recording is ingested into.
+     */
+    public RecordHandler(MessageSocket socket, Upload upload, Log logger, Catalog catalog) {
         this.socket = socket;
-        this.sessionId = sessionId;
-        this.file = file;
+        this.sessionId = upload.getSessionId();
+        this.upload = upload;
+        this.file = upload.getFile();
         this.logger = logger;
+        this.catalog = catalog;
     }
 
+    /**
+     * Receives DATA messages into one reusable pooled frame and places each
+     * payload in the upload's {@link LiveStream} by its sequence number, so
+     * that the receive loop does not allocate per chunk, listeners hear the
+     * recording as it arrives, chunks resent after a resume land where they
+     * belong, and duplicates are dropped. A chunk that fails the checksum it
+     * carries is dropped too; the gap it leaves makes the client resend it.
+     * The live stream writes the chunks out to the upload's spool and the
+     * {@link RecordJournal} behind the receive loop. The client is told how
+     * many chunks arrived without a gap when the connection attaches, every
+     * {@value #ACK_EVERY} chunks, and at the end, once the journal has
+     * committed them to disk.
+     *
+     * Once an END message arrives and no chunk is missing, the spooled audio
+     * is written out as a WAV file and ingested, then compressed in the
+     * background if the server compresses recordings. If the connection is
+     * lost first, the upload waits in the {@link UploadRegistry} for the
+     * client to resume it.
+     */
     @Override
     public void run() {
 
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        File spool = upload.getSpool();
+        LiveStream live = LiveRelay.shared().open(upload);
+        DataFrame frame = new DataFrame(BufferPool.shared());
+        DataFrame ack = new DataFrame(BufferPool.shared());
+        boolean ended = false;
+        int total = 0;
+        int duplicates = 0;
+        int damaged = 0;
+        int chunks = 0;
+        long bytes = 0;
+        RecordEvent event = new RecordEvent();
+        event.begin();
+
+        try {
+            upload.open();
+            live.attach();
+            acknowledge(ack);
 
-        Message msg = socket.getMessage();
+            socket.readFrame(frame);
 
-        logger.log("INFO: Started recording.");
+            logger.log("INFO: Started recording at chunk " + upload.getAcknowledged() + ".");
 
-        int i = 0;
+            // Loop to receive messages until "End" message is received
+            int sinceAck = 0;
+            while (!frame.isEnd()) {
 
-        // Loop to receive messages until "End" message is received
-        while (!(msg.getHeader().equals("END"))) {
+                // Process only Data messages
+                if (frame.getHeader().equals("DATA") && frame.getSessionID() == sessionId) {
+                    chunks++;
+                    bytes += frame.getLength();
 
-            // Process only Data messages
-            if (msg.getHeader().equals("DATA") && ((DataMessage) msg).getSessionID() == sessionId) {
-                // Extract payload and decode from Base64
-                String payload = ((DataMessage) msg).getPayload();
-                byte[] chunk = Base64.getDecoder().decode(payload);
+                    // Place the payload, raw bytes or decoded from Base64 for text frames,
+                    // unless it fails its checksum and is left for the client to resend
+                    if (!frame.isIntact()) {
+                        damaged++;
+                    } else if (!live.write(frame.getCseq(), frame.getPayload())) {
+                        duplicates++;
+                    }
 
-                // Append bytes to audioBytes list
-                try {
-                    byteStream.write(chunk);
-                } catch (Exception e) {
-                    logger.log("INFO: Error writing audio data: " + e.getMessage());
+                    if (++sinceAck == ACK_EVERY) {
+                        acknowledge(ack);
+                        sinceAck = 0;
+                    }
                 }
-            }
-            msg = socket.getMessage();
 
-            i++;
+                socket.readFrame(frame);
+            }
 
+            total = frame.getCseq(); // The number of chunks sent, zero from clients that do not say
+            ended = detach(live); // Acknowledge only once everything received is in the spool
+            RecordJournal.shared().sync(); // and on disk in the journal
+            acknowledge(ack);
+        } catch (IOException | RuntimeException e) {
+            logger.log("INFO: Error receiving audio data: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.log("INFO: Interrupted receiving audio data.");
+        } finally {
+            frame.release();
+            ack.release();
+            if (!detach(live)) {
+                ended = false;
+            }
         }
 
-        logger.log("INFO: Finished recording. Writing to WAV file...");
+        event.end();
+        if (event.shouldCommit()) {
+            event.session = sessionId;
+            event.file = file.getPath();
+            event.chunks = chunks;
+            event.bytes = bytes;
+            event.duplicates = duplicates;
+            event.damaged = damaged;
+            event.complete = ended && upload.isComplete(total);
+            event.commit();
+        }
 
-        // Convert ByteArrayOutputStream to byte array
-        byte[] audioBytes = byteStream.toByteArray();
+        if (damaged > 0) {
+            logger.log("ERROR: Dropped " + damaged + " chunks that failed their checksum.");
+        }
+        if (duplicates > 0) {
+            logger.log("INFO: Dropped " + duplicates + " duplicate chunks.");
+        }
 
-        // Define audio format (assuming 44.1kHz, 16-bit, stereo PCM)
-        AudioFormat audioFormat = new AudioFormat(44100, 16, 2, true, false);
+        if (!ended || !upload.isComplete(total)) {
+            UploadRegistry.shared().suspend(upload, logger);
+            closeSocket();
+            return;
+        }
+        UploadRegistry.shared().finish(upload);
 
-        // Create AudioInputStream from byte array
-        InputStream bytesStream = new ByteArrayInputStream(audioBytes);
-        long frameLength = audioBytes.length / audioFormat.getFrameSize();
-        AudioInputStream audioInputStream = new AudioInputStream(bytesStream, audioFormat, frameLength);
+        logger.log("INFO: Finished recording. Writing to WAV file...");
 
-        // Write the AudioInputStream to a WAV file
+        IngestEvent ingest = new IngestEvent();
+        ingest.begin();
         try {
-            // Write the AudioInputStream to a File in WAV format
-            AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, file);
+            writeWav(spool, file);
 
             logger.log("INFO: WAV file written successfully: " + file.toPath());
+
+            // Prepare the new recording for playback
+            catalog.ingest(file);
+            ingest.succeeded = true;
+
+            // Compress it and copy it to the peers in the background, so peers get the smaller file
+            Replicator replicator = catalog.getReplicator();
+            Transcoder.shared().compressLater(file, replicator == null ? null : () -> replicator.replicate(file));
         } catch (IllegalArgumentException | IOException e) {
             logger.log("ERROR: writing WAV file: " + e.getMessage());
         } finally {
-            // Close the streams
+            ingest.end();
+            if (ingest.shouldCommit()) {
+                ingest.session = sessionId;
+                ingest.file = file.getPath();
+                ingest.bytes = file.length();
+                ingest.commit();
+            }
+            LiveRelay.shared().end(file); // New listeners play the file from here on
+            if (!spool.delete()) {
+                logger.log("ERROR: removing spool file: " + spool.getPath());
+            }
             try {
-                bytesStream.close();
-                audioInputStream.close();
+                RecordJournal.shared().finish(sessionId); // The WAV file is on disk, or cannot be written
             } catch (IOException e) {
-                logger.log("ERROR: closing streams: " + e.getMessage());
+                logger.log("ERROR: writing journal: " + e.getMessage());
             }
         }
 
+        closeSocket();
+    }
+
+    /**
+     * Writes spooled audio out as a WAV file (44.1kHz, 16-bit, stereo PCM)
+     * and forces it to disk, so the journal can let go of the recording.
+     *
+     * @param spool The spooled PCM audio.
+     * @param file  The WAV file to write.
+     * @throws IOException if the file cannot be written.
+     */
+    static void writeWav(File spool, File file) throws IOException {
+        AudioFormat audioFormat = new AudioFormat(44100, 16, 2, true, false);
+
+        try (InputStream bytesStream = new BufferedInputStream(new FileInputStream(spool));
+             AudioInputStream audioInputStream = new AudioInputStream(bytesStream, audioFormat,
+                     spool.length() / audioFormat.getFrameSize())) {
+            AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, file);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Stops the live stream from writing to the spool once everything it
+     * holds without a gap is written out.
+     *
+     * @param live The upload's live stream.
+     * @return true if the spool holds every chunk received without a gap.
+     */
+    private boolean detach(LiveStream live) {
+        try {
+            live.detach();
+            return true;
+        } catch (IOException e) {
+            logger.log("ERROR: writing spool file: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Tells the client how many chunks have arrived without a gap.
+     *
+     * @param ack The frame to send the acknowledgement in.
+     * @throws IOException if the acknowledgement cannot be sent.
+     */
+    private void acknowledge(DataFrame ack) throws IOException {
+        ack.writablePayload();
+        ack.set("ACK", upload.getAcknowledged(), sessionId, 0, true);
+        socket.sendFrame(ack);
+    }
+
+    /**
+     * Closes the media connection.
+     */
+    private void closeSocket() {
         try {
             socket.close();
         } catch (IOException e) {
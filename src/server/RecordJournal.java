@@ -0,0 +1,518 @@
+package server;
+
+import merrimackutil.net.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * The RecordJournal class is a write-ahead log of the recordings in
+ * progress, so that a crash of the server does not lose them. Every upload
+ * appends a record when it begins, one per chunk, and one when its WAV file
+ * is safely written. The records of all uploads go to the same segment
+ * file, and a committer thread forces it to disk for all of them at once,
+ * once a commit interval has passed or enough bytes are waiting, so no
+ * upload pays for an fsync per chunk.
+ *
+ * Each record is its length, a CRC32C of its body, and the body: a type, the
+ * session of the upload, and for a chunk its sequence number and bytes. A
+ * record torn by a crash fails its CRC and ends the replay of its segment.
+ * Segments are rolled at {@value #SEGMENT_BYTES} bytes and deleted once no
+ * unfinished upload has records in them.
+ *
+ * When the server starts, the segments left behind are replayed: the chunks
+ * of every upload that did not finish are placed in its spool again and
+ * written out as a WAV file, gaps left silent.
+ */
+public class RecordJournal {
+
+    public static final long DEFAULT_COMMIT_MILLIS = 10;
+    public static final long DEFAULT_COMMIT_BYTES = 1024 * 1024;
+
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final byte BEGIN = 1;
+    private static final byte CHUNK = 2;
+    private static final byte FINISH = 3;
+    private static final int HEADER_BYTES = 17; // Length, CRC, type, session and sequence number
+
+    private static final RecordJournal SHARED = new RecordJournal();
+
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    private final ByteBuffer[] record = {header, null};
+    private final CRC32C crc = new CRC32C();
+    private final Map<Integer, Long> active = new HashMap<>(); // The first segment of each unfinished upload
+    private final Object commitLock = new Object(); // Held while a segment is forced, so it is not closed meanwhile
+
+    private File dir;
+    private long commitNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_COMMIT_MILLIS);
+    private long commitBytes = DEFAULT_COMMIT_BYTES;
+    private FileChannel channel; // The segment appended to, null while the journal is closed
+    private long segment;
+    private long segmentSize;
+    private long appended; // Bytes appended since the journal was opened
+    private long committing; // Bytes the last commit covers
+    private long durable; // Bytes known to be on disk
+    private long pendingSince; // When the first byte after the last commit was appended
+    private long commits;
+    private Thread committer;
+    private IOException failure;
+
+    /**
+     * Get the journal shared by every upload of the server
+     *
+     * @return RecordJournal shared journal
+     */
+    public static RecordJournal shared() {
+        return SHARED;
+    }
+
+    /**
+     * Opens the journal in a directory, first recovering the uploads a
+     * previous run left unfinished there. Until it is opened, the journal
+     * records nothing.
+     *
+     * @param dir          The directory of the segments.
+     * @param commitMillis The longest a record waits to be forced to disk, zero to commit continuously.
+     * @param commitBytes  The bytes waiting that force a commit before the interval has passed.
+     * @param logger       The logger used to record recovery.
+     * @return The number of recordings recovered.
+     * @throws IOException if the journal cannot be read or created.
+     */
+    public synchronized int open(File dir, long commitMillis, long commitBytes, Log logger) throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("The journal is already open");
+        }
+        if (commitMillis < 0 || commitBytes < 1) {
+            throw new IllegalArgumentException("Invalid journal commit interval");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + dir);
+        }
+
+        this.dir = dir;
+        this.commitNanos = TimeUnit.MILLISECONDS.toNanos(commitMillis);
+        this.commitBytes = commitBytes;
+
+        long[] segments = segments();
+        int recovered = recover(segments, logger);
+        for (long id : segments) {
+            delete(id);
+        }
+
+        segment = segments.length == 0 ? 1 : segments[segments.length - 1] + 1;
+        channel = openSegment(segment);
+        segmentSize = 0;
+        appended = 0;
+        committing = 0;
+        durable = 0;
+        failure = null;
+
+        committer = new Thread(this::commitLoop, "journal-commit");
+        committer.setDaemon(true);
+        committer.start();
+        return recovered;
+    }
+
+    /**
+     * Checks whether the journal records uploads
+     *
+     * @return true once the journal is open
+     */
+    public synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * Get the number of commits forced to disk
+     *
+     * @return long commits since the journal was opened
+     */
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    /**
+     * Records the start of an upload. An upload that is resumed keeps its
+     * first record.
+     *
+     * @param sessionId The session of the upload.
+     * @param file      The file the recording is written to.
+     * @throws IOException if the record cannot be appended.
+     */
+    public synchronized void begin(int sessionId, File file) throws IOException {
+        if (channel == null || active.containsKey(sessionId)) {
+            return;
+        }
+
+        append(BEGIN, sessionId, -1, ByteBuffer.wrap(file.getPath().getBytes(StandardCharsets.UTF_8)));
+        active.put(sessionId, segment);
+    }
+
+    /**
+     * Records a chunk of an upload. The payload is left as it was found.
+     *
+     * @param sessionId The session of the upload.
+     * @param sequence  The sequence number of the chunk.
+     * @param payload   The chunk bytes.
+     * @throws IOException if the record cannot be appended, or an earlier commit failed.
+     */
+    public synchronized void append(int sessionId, int sequence, ByteBuffer payload) throws IOException {
+        if (channel == null) {
+            return;
+        }
+
+        int start = payload.position();
+        try {
+            append(CHUNK, sessionId, sequence, payload);
+        } finally {
+            payload.position(start);
+        }
+    }
+
+    /**
+     * Records that an upload needs no recovery, because its WAV file is on
+     * disk or it was given up, and deletes the segments no longer needed.
+     *
+     * @param sessionId The session of the upload.
+     * @throws IOException if the record cannot be appended.
+     */
+    public synchronized void finish(int sessionId) throws IOException {
+        if (channel == null || active.remove(sessionId) == null) {
+            return;
+        }
+
+        append(FINISH, sessionId, -1, ByteBuffer.allocate(0));
+        deleteObsolete();
+    }
+
+    /**
+     * Waits until everything appended so far has been forced to disk by the
+     * next group commit.
+     *
+     * @throws IOException if the commit failed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized void sync() throws IOException, InterruptedException {
+        long target = appended;
+        while (channel != null && durable < target && failure == null) {
+            wait();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Forces what is left to disk and closes the journal. The segments stay
+     * for the next open to recover.
+     *
+     * @throws IOException if the segment cannot be forced.
+     * @throws InterruptedException if interrupted while the committer stops.
+     */
+    public void close() throws IOException, InterruptedException {
+        Thread stopping;
+        synchronized (this) {
+            if (channel == null) {
+                return;
+            }
+            synchronized (commitLock) {
+                channel.force(false);
+                channel.close();
+            }
+            channel = null;
+            active.clear();
+            stopping = committer;
+            committer = null;
+            notifyAll();
+        }
+        stopping.join();
+    }
+
+    /**
+     * Appends one record to the current segment, rolling to a new segment
+     * first if the record does not fit.
+     */
+    private void append(byte type, int sessionId, int sequence, ByteBuffer body) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+
+        int headerLength = type == CHUNK ? HEADER_BYTES : HEADER_BYTES - 4;
+        int length = headerLength + body.remaining();
+        if (segmentSize > 0 && segmentSize + length > SEGMENT_BYTES) {
+            roll();
+        }
+
+        header.clear();
+        header.putInt(length - 8).putInt(0).put(type).putInt(sessionId);
+        if (type == CHUNK) {
+            header.putInt(sequence);
+        }
+        header.flip();
+
+        crc.reset();
+        crc.update(header.array(), 8, headerLength - 8);
+        int start = body.position();
+        crc.update(body);
+        body.position(start);
+        header.putInt(4, (int) crc.getValue());
+
+        record[1] = body;
+        while (header.hasRemaining() || body.hasRemaining()) {
+            channel.write(record);
+        }
+        record[1] = null;
+
+        boolean first = appended == committing;
+        if (first) {
+            pendingSince = System.nanoTime();
+        }
+        appended += length;
+        segmentSize += length;
+        if (first || appended - committing >= commitBytes) {
+            notifyAll(); // Starts the commit interval, or cuts it short
+        }
+    }
+
+    /**
+     * Forces the current segment to disk, closes it and starts the next.
+     */
+    private void roll() throws IOException {
+        synchronized (commitLock) {
+            channel.force(false);
+            channel.close();
+        }
+        durable = appended;
+        committing = appended;
+        notifyAll();
+
+        segment++;
+        channel = openSegment(segment);
+        segmentSize = 0;
+        deleteObsolete();
+    }
+
+    /**
+     * Forces the appended records to disk whenever the commit interval has
+     * passed since the first of them, or enough of them are waiting, so the
+     * uploads appending in the meantime share one fsync.
+     */
+    private void commitLoop() {
+        try {
+            while (true) {
+                FileChannel forcing;
+                long target;
+                synchronized (this) {
+                    while (channel != null && appended == committing) {
+                        wait();
+                    }
+                    long remaining;
+                    while (channel != null && appended - committing < commitBytes
+                            && (remaining = pendingSince + commitNanos - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                    if (channel == null) {
+                        return;
+                    }
+                    forcing = channel;
+                    target = appended;
+                    committing = target;
+                }
+
+                synchronized (commitLock) {
+                    if (forcing.isOpen()) { // A closed segment was forced before it was closed
+                        forcing.force(false);
+                    }
+                }
+
+                synchronized (this) {
+                    durable = Math.max(durable, target);
+                    commits++;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replays the segments of a previous run and writes out the uploads that
+     * did not finish.
+     *
+     * @return The number of recordings recovered.
+     */
+    private int recover(long[] segments, Log logger) throws IOException {
+        Map<Integer, Upload> uploads = new HashMap<>();
+        for (long id : segments) {
+            replay(segmentFile(id), uploads, logger);
+        }
+
+        int recovered = 0;
+        for (Upload upload : uploads.values()) {
+            upload.close();
+            try {
+                if (upload.getSpool().length() > 0) {
+                    RecordHandler.writeWav(upload.getSpool(), upload.getFile());
+                    logger.log("INFO: Recovered recording " + upload.getFile().getPath() + " from the journal.");
+                    recovered++;
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                logger.log("ERROR: recovering recording " + upload.getFile().getPath() + ": " + e.getMessage());
+            } finally {
+                upload.getSpool().delete();
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * Places the chunks of one segment in the spools of their uploads, up to
+     * the first record that is torn or corrupt.
+     */
+    private void replay(File file, Map<Integer, Upload> uploads, Log logger) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                int expected = in.readInt();
+                if (length < 5 || length > SEGMENT_BYTES) {
+                    throw new EOFException();
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != expected) {
+                    logger.log("INFO: Journal segment " + file.getName() + " ends in a torn record.");
+                    return;
+                }
+
+                ByteBuffer record = ByteBuffer.wrap(body);
+                byte type = record.get();
+                int sessionId = record.getInt();
+                switch (type) {
+                    case BEGIN -> {
+                        Upload upload = new Upload(sessionId, new File(new String(body, 5, length - 5, StandardCharsets.UTF_8)));
+                        upload.open();
+                        Upload replaced = uploads.put(sessionId, upload);
+                        if (replaced != null) {
+                            replaced.close();
+                        }
+                    }
+                    case CHUNK -> {
+                        Upload upload = uploads.get(sessionId);
+                        if (upload != null) {
+                            int sequence = record.getInt();
+                            upload.write(sequence, record);
+                        }
+                    }
+                    case FINISH -> {
+                        Upload upload = uploads.remove(sessionId);
+                        if (upload != null) {
+                            upload.close();
+                            upload.getSpool().delete();
+                        }
+                    }
+                    default -> {
+                        logger.log("INFO: Journal segment " + file.getName() + " holds an unknown record.");
+                        return;
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            logger.log("INFO: Journal segment " + file.getName() + " ends in a torn record.");
+        }
+    }
+
+    /**
+     * Deletes the segments that no unfinished upload has records in.
+     */
+    private void deleteObsolete() {
+        long oldest = segment;
+        for (long first : active.values()) {
+            oldest = Math.min(oldest, first);
+        }
+        for (long id : segments()) {
+            if (id < oldest) {
+                delete(id);
+            }
+        }
+    }
+
+    /**
+     * Gets the segments in the journal directory
+     *
+     * @return long[] segment numbers in ascending order
+     */
+    private long[] segments() {
+        String[] names = dir.list((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (names == null) {
+            return new long[0];
+        }
+
+        long[] ids = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            try {
+                ids[count++] = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                count--; // Not a segment
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Opens a new, empty segment
+     *
+     * @return FileChannel positioned at the start of the segment
+     */
+    private FileChannel openSegment(long id) throws IOException {
+        return FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Gets the file of a segment
+     *
+     * @return File of the segment in the journal directory
+     */
+    private File segmentFile(long id) {
+        return new File(dir, String.format("%016d", id) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Deletes a segment.
+     */
+    private void delete(long id) {
+        segmentFile(id).delete();
+    }
+}
@@ -0,0 +1,112 @@
+package server;
+
+import common.BufferPool;
+import common.MessageSocket;
+import common.messages.DataFrame;
+import merrimackutil.net.Log;
+
+import java.io.IOException;
+
+public class RelayHandler extends Thread {
+
+    private static final int ACK_EVERY = 50; // Chunks between acknowledgements, half a second of audio
+
+    private final MessageSocket socket;
+    private final int sessionId;
+    private final LiveStream stream;
+    private final Log logger;
+
+    /**
+     * Constructs a new RelayHandler that receives a named live stream over
+     * one media connection.
+     *
+     * @param socket    The media connection of the client.
+     * @param sessionId The session recording the stream.
+     * @param stream    The named stream the chunks are relayed through.
+     * @param logger    The logger used to record relay events.
+     */
+    public RelayHandler(MessageSocket socket, int sessionId, LiveStream stream, Log logger) {
+        this.socket = socket;
+        this.sessionId = sessionId;
+        this.stream = stream;
+        this.logger = logger;
+    }
+
+    /**
+     * Receives DATA messages into one reusable pooled frame and places each
+     * payload that passes its checksum in the named {@link LiveStream}, where
+     * the listeners waiting on it pick the chunk up as soon as it is placed.
+     * Nothing is written to disk. The client is told the live edge when the
+     * connection attaches, every {@value #ACK_EVERY} chunks, and at the end,
+     * so that an uploading client sees the same acknowledgements as for a
+     * recording.
+     *
+     * The stream ends with an END message or when the connection is lost;
+     * listeners play what is left in the ring and then stop.
+     */
+    @Override
+    public void run() {
+
+        DataFrame frame = new DataFrame(BufferPool.shared());
+        DataFrame ack = new DataFrame(BufferPool.shared());
+        int dropped = 0;
+
+        try {
+            acknowledge(ack);
+
+            socket.readFrame(frame);
+
+            logger.log("INFO: Started relaying live stream " + stream.getFile().getName() + ".");
+
+            int sinceAck = 0;
+            while (!frame.isEnd()) {
+
+                if (frame.getHeader().equals("DATA") && frame.getSessionID() == sessionId) {
+                    if (!frame.isIntact() || !stream.write(frame.getCseq(), frame.getPayload())) {
+                        dropped++;
+                    }
+
+                    if (++sinceAck == ACK_EVERY) {
+                        acknowledge(ack);
+                        sinceAck = 0;
+                    }
+                }
+
+                socket.readFrame(frame);
+            }
+
+            acknowledge(ack);
+            logger.log("INFO: Finished relaying live stream.");
+        } catch (IOException | RuntimeException e) {
+            logger.log("INFO: Live stream ingest ended: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            frame.release();
+            ack.release();
+            LiveRelay.shared().end(stream.getFile());
+        }
+
+        if (dropped > 0) {
+            logger.log("INFO: Dropped " + dropped + " duplicate, late or damaged chunks.");
+        }
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.log("ERROR: closing socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tells the client how far the live edge has moved.
+     *
+     * @param ack The frame to send the acknowledgement in.
+     * @throws IOException if the acknowledgement cannot be sent.
+     */
+    private void acknowledge(DataFrame ack) throws IOException {
+        ack.writablePayload();
+        ack.set("ACK", stream.getHead(), sessionId, 0, true);
+        socket.sendFrame(ack);
+    }
+}
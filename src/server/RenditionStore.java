@@ -0,0 +1,447 @@
+package server;
+
+import common.Rendition;
+import merrimackutil.net.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The RenditionStore class keeps the lower bitrate {@link Rendition}s of the
+ * media files that sessions with an adaptive bitrate play, one file per
+ * rendition next to the segments. A rendition is encoded on demand, the
+ * first time a file is played by such a session, on a background thread,
+ * and kept until its source changes. Until then, sessions send the file as
+ * it is.
+ *
+ * A rendition file holds the chunks of the rendition back to back, all of
+ * the same length but the last, so chunk i is read from a fixed offset.
+ * Chunk i covers the same 10ms of the stream as chunk i of the file sent as
+ * it is, WAV header included, so that a session can switch between them on
+ * any chunk: the header becomes a few samples of silence. Chunks at a lower
+ * sample rate start one sample late, as the client interpolates each chunk
+ * from the last sample of the one before.
+ */
+public class RenditionStore {
+
+    private static final int MAGIC = 0x52524E44; // "RRND"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 40;
+    private static final String RENDITION_DIR = ".renditions";
+
+    private final File databaseDir;
+    private final File renditionDir;
+    private final Log logger;
+    private final ConcurrentHashMap<String, Header> cache = new ConcurrentHashMap<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "rendition-encoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructs a new RenditionStore for the given database directory.
+     *
+     * @param databaseDir The database directory holding the source media files.
+     * @param logger      The logger used to record encoding events.
+     */
+    public RenditionStore(String databaseDir, Log logger) {
+        this.databaseDir = new File(databaseDir);
+        this.renditionDir = new File(databaseDir, RENDITION_DIR);
+        this.logger = logger;
+    }
+
+    /**
+     * Checks whether a file can be played at every rendition. Renditions are
+     * cut from the chunks of 44.1 kHz 16-bit stereo audio, the format the
+     * file is sent in as it is.
+     *
+     * @param format The format of the file.
+     * @return true if renditions can be encoded from the file.
+     */
+    public static boolean canRender(WavFormat format) {
+        return format != null && format.getSampleRate() == Rendition.PCM.getSampleRate()
+                && format.getBitsPerSample() == 16 && format.getChannels() == Rendition.PCM.getChannels()
+                && (format.isLossless() || format.getDataOffset() % format.getFrameSize() == 0);
+    }
+
+    /**
+     * Gets the length of the header a file is sent with, which the
+     * renditions start with as silence.
+     *
+     * @param format The format of the file.
+     * @return The header length in bytes.
+     */
+    public static int headerBytes(WavFormat format) {
+        return format.isLossless() ? format.toWavHeader().length : (int) format.getDataOffset();
+    }
+
+    /**
+     * Gets the rendition file that belongs to a source media file.
+     *
+     * @param source    The source media file.
+     * @param rendition The rendition.
+     * @return The rendition file location.
+     */
+    public File renditionFile(File source, Rendition rendition) {
+        String relative = databaseDir.toPath().toAbsolutePath().normalize()
+                .relativize(source.toPath().toAbsolutePath().normalize()).toString();
+        return new File(renditionDir, relative + "." + rendition.getName());
+    }
+
+    /**
+     * Starts encoding the renditions of a file that are missing or stale,
+     * lowest bitrate first, since those are what a struggling session needs.
+     *
+     * @param source     The source media file.
+     * @param format     The format of the file.
+     * @param renditions The renditions to prepare, {@link Rendition#PCM} is the file itself.
+     */
+    public void prepare(File source, WavFormat format, List<Rendition> renditions) {
+        for (int i = renditions.size() - 1; i >= 0; i--) {
+            Rendition rendition = renditions.get(i);
+            if (rendition == Rendition.PCM || header(source, rendition) != null) {
+                continue;
+            }
+
+            String key = renditionFile(source, rendition).getPath();
+            if (!pending.add(key)) {
+                continue;
+            }
+            worker.execute(() -> {
+                try {
+                    build(source, format, rendition);
+                } catch (IOException | RuntimeException e) {
+                    logger.log("ERROR: Unable to encode " + rendition + " of " + source.getPath() + ": " + e.getMessage());
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * Encodes a rendition of a file and stores it, unless an up to date one
+     * is already stored.
+     *
+     * @param source    The source media file.
+     * @param format    The format of the file.
+     * @param rendition The rendition to encode.
+     * @throws IOException if the source cannot be read or the rendition cannot be written.
+     */
+    public void build(File source, WavFormat format, Rendition rendition) throws IOException {
+        if (header(source, rendition) != null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        long length = source.length();
+        long lastModified = source.lastModified();
+        int headerBytes = headerBytes(format);
+        long streamBytes = headerBytes + format.getDataLength();
+        int chunkCount = (int) ((streamBytes + SegmentStore.CHUNK_SIZE - 1) / SegmentStore.CHUNK_SIZE);
+        int lastInputFrames = (int) (streamBytes - (long) (chunkCount - 1) * SegmentStore.CHUNK_SIZE) / 4;
+
+        File file = renditionFile(source, rendition);
+        file.getParentFile().mkdirs();
+        File tmpFile = new File(file.getPath() + ".tmp." + Thread.currentThread().getId());
+        int chunkBytes = rendition.getChunkBytes();
+        int lastChunkBytes;
+        try (PcmReader reader = PcmReader.open(source, format);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeInt(headerBytes);
+            out.writeInt(chunkCount);
+            out.writeInt(chunkBytes);
+            out.writeInt(0); // The length of the last chunk, known once it is encoded
+
+            Encoder encoder = new Encoder(reader, headerBytes, streamBytes, rendition);
+            byte[] chunk = new byte[chunkBytes];
+            lastChunkBytes = chunkBytes;
+            for (int i = 0; i < chunkCount; i++) {
+                int frames = i < chunkCount - 1 ? rendition.getChunkFrames()
+                        : (int) Math.max(1, ((long) lastInputFrames * rendition.getSampleRate()
+                        + Rendition.PCM.getSampleRate() - 1) / Rendition.PCM.getSampleRate());
+                lastChunkBytes = encoder.encode(frames, chunk);
+                out.write(chunk, 0, lastChunkBytes);
+            }
+        }
+        try (RandomAccessFile patch = new RandomAccessFile(tmpFile, "rw")) {
+            patch.seek(HEADER_BYTES - 4);
+            patch.writeInt(lastChunkBytes);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        cache.put(file.getPath(), new Header(length, lastModified, chunkCount, chunkBytes, lastChunkBytes));
+        logger.log(String.format("INFO: Encoded %s of %s at %d kbps in %d ms.", rendition, source.getPath(),
+                rendition.getBitrate() / 1000, (System.nanoTime() - start) / 1_000_000));
+    }
+
+    /**
+     * Opens the stored chunks of a rendition of a file.
+     *
+     * @param source    The source media file.
+     * @param rendition The rendition.
+     * @return The chunks, or null if the rendition has not been encoded since the file last changed.
+     * @throws IOException if the rendition file cannot be opened.
+     */
+    public Chunks open(File source, Rendition rendition) throws IOException {
+        Header header = header(source, rendition);
+        if (header == null) {
+            return null;
+        }
+        return new Chunks(rendition, header, FileChannel.open(renditionFile(source, rendition).toPath(),
+                StandardOpenOption.READ));
+    }
+
+    /**
+     * Removes the rendition files of a source file, if any.
+     *
+     * @param source The source media file.
+     */
+    public void remove(File source) {
+        for (Rendition rendition : Rendition.LADDER) {
+            File file = renditionFile(source, rendition);
+            cache.remove(file.getPath());
+            if (file.exists() && !file.delete()) {
+                logger.log("ERROR: Unable to remove rendition file " + file.getPath());
+            }
+        }
+    }
+
+    /**
+     * Gets the header of a stored rendition.
+     *
+     * @return The header, or null if the rendition is missing or stale.
+     */
+    private Header header(File source, Rendition rendition) {
+        long length = source.length();
+        long lastModified = source.lastModified();
+        File file = renditionFile(source, rendition);
+
+        Header header = cache.get(file.getPath());
+        if (header != null && header.length == length && header.lastModified == lastModified) {
+            return header;
+        }
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != length || in.readLong() != lastModified) {
+                return null;
+            }
+            in.readInt(); // Header bytes, fixed by the source
+            header = new Header(length, lastModified, in.readInt(), in.readInt(), in.readInt());
+            cache.put(file.getPath(), header);
+            return header;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The Header of a stored rendition and the version of the source it
+     * belongs to.
+     */
+    private static class Header {
+
+        private final long length;
+        private final long lastModified;
+        private final int chunkCount;
+        private final int chunkBytes;
+        private final int lastChunkBytes;
+
+        Header(long length, long lastModified, int chunkCount, int chunkBytes, int lastChunkBytes) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.chunkCount = chunkCount;
+            this.chunkBytes = chunkBytes;
+            this.lastChunkBytes = lastChunkBytes;
+        }
+    }
+
+    /**
+     * The stored Chunks of a rendition, opened for one session.
+     */
+    public static class Chunks implements Closeable {
+
+        private final Rendition rendition;
+        private final Header header;
+        private final FileChannel file;
+
+        Chunks(Rendition rendition, Header header, FileChannel file) {
+            this.rendition = rendition;
+            this.header = header;
+            this.file = file;
+        }
+
+        /**
+         * Reads a chunk into a buffer.
+         *
+         * @param index The chunk index.
+         * @param dst   The buffer to read into, from position zero.
+         * @return The length of the chunk in bytes.
+         * @throws IOException if the chunk cannot be read.
+         */
+        public int read(int index, ByteBuffer dst) throws IOException {
+            int length = index == header.chunkCount - 1 ? header.lastChunkBytes : header.chunkBytes;
+            dst.clear().limit(length);
+            long position = HEADER_BYTES + (long) index * header.chunkBytes;
+            while (dst.hasRemaining()) {
+                if (file.read(dst, position + dst.position()) < 0) {
+                    throw new EOFException("Rendition ends before chunk " + index);
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Get the rendition
+         *
+         * @return Rendition of the chunks
+         */
+        public Rendition getRendition() {
+            return rendition;
+        }
+
+        /**
+         * Get the number of chunks
+         *
+         * @return int chunks of the rendition
+         */
+        public int getChunkCount() {
+            return header.chunkCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * An Encoder cuts the stream of a file into the chunks of a rendition:
+     * the header as silence and then the samples, converted to the sample
+     * rate of the rendition with its filter delay taken out, mixed down if
+     * the rendition is mono and encoded with its codec.
+     */
+    private static class Encoder {
+
+        private static final int FRAME_BYTES = 4; // 16-bit stereo
+
+        private final PcmReader reader;
+        private final int headerBytes;
+        private final long streamBytes;
+        private final Rendition rendition;
+        private final Resampler resampler;
+        private final ByteBuffer input;
+        private final int[] state = new int[2];
+        private short[] converted = new short[2 * 2 * SegmentStore.CHUNK_SIZE];
+        private int convertedFrames = 0;
+        private int skip; // Converted frames still to drop at the start
+        private long position = 0; // Stream bytes converted so far
+        private final short[] samples;
+
+        Encoder(PcmReader reader, int headerBytes, long streamBytes, Rendition rendition) {
+            this.reader = reader;
+            this.headerBytes = headerBytes;
+            this.streamBytes = streamBytes;
+            this.rendition = rendition;
+            int rate = Rendition.PCM.getSampleRate();
+            this.resampler = rendition.getSampleRate() == rate ? null
+                    : new Resampler(rate, rendition.getSampleRate(), 2, SegmentStore.CHUNK_SIZE);
+            this.skip = resampler == null ? 0 : resampler.getDelay() + 1;
+            this.input = ByteBuffer.allocate(resampler == null ? SegmentStore.CHUNK_SIZE
+                    : Math.max(SegmentStore.CHUNK_SIZE, resampler.maxOutputLength(SegmentStore.CHUNK_SIZE)))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            this.samples = new short[2 * rendition.getChunkFrames()];
+        }
+
+        /**
+         * Encodes the next chunk.
+         *
+         * @param frames The number of frames of the chunk at the rendition's rate.
+         * @param out    The array the chunk is written to.
+         * @return The length of the encoded chunk in bytes.
+         * @throws IOException if the source cannot be read.
+         */
+        int encode(int frames, byte[] out) throws IOException {
+            while (convertedFrames < frames) {
+                convertNext();
+            }
+
+            int channels = rendition.getChannels();
+            for (int f = 0; f < frames; f++) {
+                if (channels == 1) {
+                    samples[f] = (short) ((converted[2 * f] + converted[2 * f + 1]) >> 1);
+                } else {
+                    samples[2 * f] = converted[2 * f];
+                    samples[2 * f + 1] = converted[2 * f + 1];
+                }
+            }
+            System.arraycopy(converted, 2 * frames, converted, 0, 2 * (convertedFrames - frames));
+            convertedFrames -= frames;
+
+            return rendition.getCodec().encode(samples, frames, channels, state, out);
+        }
+
+        /**
+         * Converts the next 10ms of the stream, silence past its end, and
+         * queues the result.
+         */
+        private void convertNext() throws IOException {
+            input.clear();
+            int length = SegmentStore.CHUNK_SIZE;
+            for (int i = 0; i < length; i++) {
+                input.put(i, (byte) 0);
+            }
+
+            // The header and anything past the samples are silence
+            long dataStart = Math.max(position, headerBytes);
+            long dataEnd = Math.min(position + length, streamBytes);
+            if (dataEnd > dataStart) {
+                ByteBuffer slice = input.duplicate();
+                slice.position((int) (dataStart - position)).limit((int) (dataEnd - position));
+                while (slice.hasRemaining()) {
+                    if (reader.read(slice, position + slice.position() - headerBytes) < 0) {
+                        break;
+                    }
+                }
+            }
+            position += length;
+
+            if (resampler != null) {
+                length = resampler.apply(input, length);
+            }
+
+            int frames = length / FRAME_BYTES;
+            int from = Math.min(skip, frames);
+            skip -= from;
+            if (converted.length < 2 * (convertedFrames + frames)) {
+                converted = Arrays.copyOf(converted, 2 * (convertedFrames + frames));
+            }
+            for (int f = from; f < frames; f++) {
+                converted[2 * convertedFrames] = input.getShort(f * FRAME_BYTES);
+                converted[2 * convertedFrames + 1] = input.getShort(f * FRAME_BYTES + 2);
+                convertedFrames++;
+            }
+        }
+    }
+}
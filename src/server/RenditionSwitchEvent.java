@@ -0,0 +1,43 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Frequency;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The RenditionSwitchEvent is recorded by Java Flight Recorder each time the
+ * {@link AdaptiveBitrate} of a session moves it to another rendition, with
+ * the measurements the decision was taken on.
+ */
+@Name("streaming.RenditionSwitch")
+@Label("Rendition Switch")
+@Category({"Streaming", "Media"})
+@Description("A listener switched to a higher or lower bitrate")
+class RenditionSwitchEvent extends jdk.jfr.Event {
+
+    @Label("Session")
+    int session;
+
+    @Label("Sequence")
+    @Description("The first chunk sent in the new rendition")
+    int sequence;
+
+    @Label("From")
+    String from;
+
+    @Label("To")
+    String to;
+
+    @Label("Throughput")
+    @Description("The bits per second sent while blocked in sends over the last window")
+    @DataAmount(DataAmount.BITS)
+    @Frequency
+    long throughput;
+
+    @Label("Lead")
+    @Description("The chunks sent ahead of playback")
+    long lead;
+}
@@ -0,0 +1,185 @@
+package server;
+
+import merrimackutil.net.Log;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The ReplicaReceiver class accepts recordings copied from peer servers by
+ * their {@link Replicator}. Each file is spooled to a hidden file next to its
+ * place in the library, which stays behind if the transfer breaks off so the
+ * peer can resume from its end. Once the whole file has arrived it is moved
+ * into place and ingested, and is played from this server from then on.
+ */
+public class ReplicaReceiver extends Thread {
+
+    private static final int READ_TIMEOUT = 30000; // Milliseconds a peer may stay silent mid-transfer
+    private static final String SPOOL_SUFFIX = ".replica";
+
+    private final ServerSocket serverSocket;
+    private final Catalog catalog;
+    private final Log logger;
+
+    /**
+     * Constructs a new ReplicaReceiver listening on a port.
+     *
+     * @param port    The port to listen on.
+     * @param catalog The library replicas are placed in.
+     * @param logger  The logger used to record replication events.
+     * @throws IOException if the port cannot be bound.
+     */
+    public ReplicaReceiver(int port, Catalog catalog, Log logger) throws IOException {
+        super("replica-receiver");
+        this.serverSocket = new ServerSocket(port);
+        this.catalog = catalog;
+        this.logger = logger;
+        setDaemon(true);
+    }
+
+    /**
+     * Get the port replicas are accepted on
+     *
+     * @return int listening port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts peers until the socket is closed. A cluster has few peers, so
+     * each one is served on its own thread.
+     */
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread peer = new Thread(() -> receive(socket), "replica-in");
+                peer.setDaemon(true);
+                peer.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.log("ERROR: Replica accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting replicas.
+     *
+     * @throws IOException if the socket cannot be closed.
+     */
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * Receives the files a peer offers until it closes the connection.
+     *
+     * @param socket The connection to the peer.
+     */
+    private void receive(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout(READ_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), Replicator.BATCH_BYTES));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            while (true) {
+                String command;
+                try {
+                    command = in.readUTF();
+                } catch (EOFException e) {
+                    return; // The peer has sent everything
+                }
+                if (!command.equals("OFFER")) {
+                    throw new IOException("Unknown replication command " + command);
+                }
+                accept(in.readUTF(), in.readLong(), in, out);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log("ERROR: Receiving replica failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers one offer and receives the part of the file not spooled yet.
+     *
+     * @param resource The file name relative to the database directory.
+     * @param size     The size of the whole file.
+     * @param in       The stream the batches arrive on.
+     * @param out      The stream answers are sent on.
+     * @throws IOException if the transfer breaks off.
+     */
+    private void accept(String resource, long size, DataInputStream in, DataOutputStream out) throws IOException {
+        File target = new File(catalog.getDatabaseDir(), resource);
+        if (!catalog.nameOf(target).equals(resource) || resource.startsWith(".") || resource.contains("/.")) {
+            throw new IOException("Refusing replica outside the library: " + resource);
+        }
+
+        if (target.exists()) {
+            out.writeLong(-1);
+            out.flush();
+            return;
+        }
+
+        target.getParentFile().mkdirs();
+        File spool = new File(target.getParentFile(), "." + target.getName() + SPOOL_SUFFIX); // Hidden from the catalog
+        long offset = spool.length() <= size ? spool.length() : 0;
+        out.writeLong(offset);
+        out.flush();
+
+        byte[] stored = new byte[Replicator.BATCH_BYTES];
+        byte[] raw = new byte[Replicator.BATCH_BYTES];
+        Inflater inflater = new Inflater();
+
+        try (RandomAccessFile spooled = new RandomAccessFile(spool, "rw")) {
+            spooled.setLength(offset);
+            spooled.seek(offset);
+
+            for (int length = in.readInt(); length > 0; length = in.readInt()) {
+                int storedLength = in.readInt();
+                if (length > raw.length || storedLength > stored.length) {
+                    throw new IOException("Replica batch too large");
+                }
+                in.readFully(stored, 0, storedLength);
+
+                if (storedLength == length) {
+                    spooled.write(stored, 0, length);
+                } else {
+                    inflater.reset();
+                    inflater.setInput(stored, 0, storedLength);
+                    if (inflater.inflate(raw, 0, length) != length) {
+                        throw new IOException("Replica batch does not inflate to its length");
+                    }
+                    spooled.write(raw, 0, length);
+                }
+            }
+
+            spooled.getFD().sync(); // The copy must be durable before it counts as a replica
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt replica batch", e);
+        } finally {
+            inflater.end();
+        }
+
+        boolean complete = spool.length() == size;
+        if (complete) {
+            Files.move(spool.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            catalog.ingest(target);
+            logger.log("INFO: Received replica " + resource + " (" + size + " bytes).");
+        } else {
+            spool.delete();
+            logger.log("ERROR: Replica " + resource + " arrived with the wrong size, discarded.");
+        }
+
+        out.writeBoolean(complete);
+        out.flush();
+    }
+}
@@ -0,0 +1,324 @@
+package server;
+
+import merrimackutil.net.Log;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * The Replicator class copies new recordings to peer servers in the
+ * background, so that a recording survives the loss of the node it was made
+ * on and can be played from its peers as soon as it arrives there.
+ *
+ * Every peer has its own queue and sender thread, so a slow or unreachable
+ * peer does not hold back the others. A sender drains its whole queue over one
+ * connection to the peer's {@link ReplicaReceiver}, offering each file and
+ * streaming it from the offset the peer already holds, in Deflate compressed
+ * batches:
+ *
+ * <pre>
+ * sender:   OFFER &lt;file&gt; &lt;size&gt;       (UTF string, UTF string, long)
+ * receiver: &lt;offset&gt;                     (long, -1 if it already has the file)
+ * sender:   &lt;raw&gt; &lt;stored&gt; &lt;bytes&gt;    (int, int, stored bytes) per batch,
+ *                                        stored equals raw if not compressed
+ * sender:   0                            (int) after the last batch
+ * receiver: &lt;ok&gt;                         (boolean) once the file is in place
+ * </pre>
+ *
+ * A transfer that fails is retried later and resumes where it stopped. All
+ * senders share one rate limit, which also gives way to playback when the
+ * server has an outbound bitrate limit, so that replication does not starve
+ * live listeners.
+ */
+public class Replicator {
+
+    public static final int BATCH_BYTES = 64 * 1024;
+
+    private static final int TIMEOUT = 5000; // Milliseconds to connect to and wait for a peer
+    private static final long RETRY_MILLIS = 5000; // Wait before retrying a failed transfer
+    private static final long MIN_BITRATE = 1_000_000; // Bits per second replication always gets
+    private static final int HASH_POINTS = 64; // Ring points per node when choosing peers without sharding
+
+    private final ClusterNode cluster;
+    private final Catalog catalog;
+    private final int replicas;
+    private final long maxBitrate;
+    private final long maxOutboundBitrate;
+    private final TrafficMeter meter;
+    private final Log logger;
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+    private long nextFree = 0; // Nanosecond time the shared rate limit frees up
+
+    /**
+     * Constructs a new Replicator.
+     *
+     * @param cluster            The cluster the peers are found in.
+     * @param catalog            The library the recordings are in.
+     * @param replicas           The number of peers each recording is copied to, unless the library is sharded.
+     * @param maxBitrate         The largest bitrate of all transfers together, in bits per second.
+     * @param maxOutboundBitrate The outbound bitrate limit of the server, zero if it has none.
+     * @param meter              The meter measuring the playback bitrate.
+     * @param logger             The logger used to record replication events.
+     */
+    public Replicator(ClusterNode cluster, Catalog catalog, int replicas, long maxBitrate, long maxOutboundBitrate,
+                      TrafficMeter meter, Log logger) {
+        this.cluster = cluster;
+        this.catalog = catalog;
+        this.replicas = replicas;
+        this.maxBitrate = maxBitrate;
+        this.maxOutboundBitrate = maxOutboundBitrate;
+        this.meter = meter;
+        this.logger = logger;
+    }
+
+    /**
+     * Queues a finished recording for every peer that should hold a copy.
+     * With a sharded library these are the other owners of the file,
+     * otherwise the next nodes on a hash ring of the cluster.
+     *
+     * @param file The recording.
+     */
+    public void replicate(File file) {
+        String resource = catalog.nameOf(file);
+
+        List<String> targets;
+        Placement placement = cluster.getPlacement();
+        if (placement != null) {
+            targets = placement.owners(resource);
+        } else {
+            Set<String> members = cluster.getMembers();
+            if (members == null) {
+                logger.log("ERROR: Unable to replicate " + resource + ", cluster members unknown.");
+                return;
+            }
+            members.add(cluster.getSelf());
+            targets = new HashRing(members, HASH_POINTS).owners(resource, replicas + 1);
+        }
+
+        for (String target : targets) {
+            if (!target.equals(cluster.getSelf())) {
+                peers.computeIfAbsent(target, Peer::new).enqueue(resource);
+            }
+        }
+    }
+
+    /**
+     * Gets how far a peer is behind, as the age of its oldest recording not
+     * yet copied.
+     *
+     * @param peer The host:port of the peer.
+     * @return The lag in milliseconds, zero if the peer is up to date.
+     */
+    public long getLag(String peer) {
+        Peer state = peers.get(peer);
+        return state == null ? 0 : state.lag();
+    }
+
+    /**
+     * Gets the rate at which recent transfers to a peer moved file bytes.
+     *
+     * @param peer The host:port of the peer.
+     * @return The throughput in bytes per second, zero if nothing was sent.
+     */
+    public long getThroughput(String peer) {
+        Peer state = peers.get(peer);
+        return state == null ? 0 : (long) state.throughput;
+    }
+
+    /**
+     * Get the peers recordings have been queued for
+     *
+     * @return Set of host:port peers
+     */
+    public Set<String> getPeers() {
+        return Collections.unmodifiableSet(peers.keySet());
+    }
+
+    /**
+     * Waits until the shared rate limit allows a number of bytes to be sent.
+     * When the server has an outbound bitrate limit, replication only uses
+     * what playback leaves of it.
+     *
+     * @param bytes The number of bytes about to be sent.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void throttle(int bytes) throws InterruptedException {
+        long bitrate = maxBitrate;
+        if (maxOutboundBitrate > 0) {
+            bitrate = Math.min(bitrate, Math.max(MIN_BITRATE, maxOutboundBitrate - meter.getBitrate()));
+        }
+        if (bitrate <= 0) {
+            return;
+        }
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFree);
+            nextFree = start + bytes * 8L * 1_000_000_000L / bitrate;
+            wait = start - now;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * The queue and sender thread of one peer.
+     */
+    private class Peer extends Thread {
+
+        private final String peer;
+        private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+        private volatile Pending current;
+        private volatile double throughput = 0; // Smoothed bytes per second
+
+        Peer(String peer) {
+            super("replicator-" + peer);
+            this.peer = peer;
+            setDaemon(true);
+            start();
+        }
+
+        void enqueue(String resource) {
+            queue.add(new Pending(resource, System.currentTimeMillis()));
+        }
+
+        long lag() {
+            Pending oldest = current != null ? current : queue.peek();
+            return oldest == null ? 0 : System.currentTimeMillis() - oldest.queuedAt;
+        }
+
+        /**
+         * Sends queued recordings until interrupted, retrying the ones that
+         * fail after a pause.
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    current = queue.take();
+                    try {
+                        sendBatch();
+                    } catch (IOException | RuntimeException e) {
+                        logger.log("ERROR: Replication to " + peer + " failed, retrying: " + e.getMessage());
+                        Thread.sleep(RETRY_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Sends the current recording and everything queued behind it over
+         * one connection. The current recording stays set until the peer has
+         * it, so a failure leaves it to be sent again.
+         */
+        private void sendBatch() throws IOException, InterruptedException {
+            String address = cluster.findReplicaAddress(peer);
+            if (address == null) {
+                throw new IOException("peer does not accept replicas");
+            }
+
+            String[] parts = address.split(":");
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])), TIMEOUT);
+                socket.setSoTimeout(TIMEOUT);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BATCH_BYTES));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                while (current != null) {
+                    send(current, out, in);
+                    current = queue.poll();
+                }
+            }
+        }
+
+        /**
+         * Offers one recording to the peer and streams the part it lacks.
+         */
+        private void send(Pending pending, DataOutputStream out, DataInputStream in) throws IOException, InterruptedException {
+            File file = new File(catalog.getDatabaseDir(), pending.resource);
+            if (!file.exists()) {
+                logger.log("ERROR: Not replicating " + pending.resource + ", it was removed.");
+                return;
+            }
+
+            long size = file.length();
+            out.writeUTF("OFFER");
+            out.writeUTF(pending.resource);
+            out.writeLong(size);
+            out.flush();
+
+            long offset = in.readLong();
+            if (offset < 0) {
+                return; // The peer has it already
+            }
+
+            long started = System.nanoTime();
+            long stored = 0;
+            byte[] raw = new byte[BATCH_BYTES];
+            byte[] packed = new byte[BATCH_BYTES];
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+            try (RandomAccessFile source = new RandomAccessFile(file, "r")) {
+                source.seek(offset);
+                for (long position = offset; position < size; ) {
+                    int length = (int) Math.min(BATCH_BYTES, size - position);
+                    source.readFully(raw, 0, length);
+
+                    deflater.reset();
+                    deflater.setInput(raw, 0, length);
+                    deflater.finish();
+                    int packedLength = deflater.deflate(packed);
+                    boolean compressed = deflater.finished() && packedLength < length;
+
+                    int sending = compressed ? packedLength : length;
+                    throttle(sending);
+                    out.writeInt(length);
+                    out.writeInt(sending);
+                    out.write(compressed ? packed : raw, 0, sending);
+
+                    stored += sending;
+                    position += length;
+                }
+            } finally {
+                deflater.end();
+            }
+
+            out.writeInt(0);
+            out.flush();
+            if (!in.readBoolean()) {
+                throw new IOException("peer rejected " + pending.resource);
+            }
+
+            long millis = Math.max(1, (System.nanoTime() - started) / 1_000_000);
+            double rate = (size - offset) * 1000.0 / millis;
+            throughput = throughput == 0 ? rate : 0.7 * throughput + 0.3 * rate;
+            logger.log("INFO: Replicated " + pending.resource + " to " + peer + " from offset " + offset
+                    + " (" + stored + " of " + (size - offset) + " bytes sent, " + (long) (rate / 1024) + " KB/s, lag "
+                    + (System.currentTimeMillis() - pending.queuedAt) + " ms)");
+        }
+    }
+
+    /**
+     * A recording waiting to be copied to a peer.
+     */
+    private static class Pending {
+
+        private final String resource;
+        private final long queuedAt;
+
+        Pending(String resource, long queuedAt) {
+            this.resource = resource;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The RequestEvent is recorded by Java Flight Recorder for each RTSP request
+ * a {@link ConnectionHandler} handles, from the moment the request is parsed
+ * until its response is written and the session state is stored.
+ */
+@Name("streaming.Request")
+@Label("RTSP Request")
+@Category({"Streaming", "RTSP"})
+@Description("An RTSP request handled by a connection handler")
+class RequestEvent extends jdk.jfr.Event {
+
+    @Label("Method")
+    String method;
+
+    @Label("Session")
+    int session;
+
+    @Label("CSeq")
+    int cseq;
+
+    @Label("State Before")
+    String fromState;
+
+    @Label("State After")
+    String toState;
+
+    @Label("Status")
+    @Description("The status code of the response")
+    int status;
+
+    @Label("Client")
+    String client;
+}
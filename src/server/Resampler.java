@@ -0,0 +1,114 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The Resampler class converts 16-bit PCM chunks from the sample rate of a
+ * file to the rate a client plays at, using a shared {@link PolyphaseFilter}.
+ * Mono input is sent as stereo, since clients always play two channels.
+ *
+ * A resampler belongs to one stream: it keeps the last input samples of each
+ * chunk, so the filter runs across chunk boundaries without a click, and the
+ * phase of the next output sample. Its buffers are sized for the largest
+ * chunk up front, so converting a chunk does not allocate.
+ */
+public class Resampler implements ChunkTransform {
+
+    private static final int OUTPUT_CHANNELS = 2;
+
+    private final PolyphaseFilter filter;
+    private final int channels;
+    private final int history; // Input samples kept from the previous chunk
+    private final float[][] samples;
+    private int newest; // Index of the newest input sample the next output sample is computed from
+    private int phase = 0;
+
+    /**
+     * Constructs a new Resampler.
+     *
+     * @param inputRate      The sample rate of the input.
+     * @param outputRate     The sample rate of the output.
+     * @param channels       The number of input channels, 1 or 2.
+     * @param maxInputLength The largest input chunk in bytes.
+     */
+    public Resampler(int inputRate, int outputRate, int channels, int maxInputLength) {
+        if (channels < 1 || channels > OUTPUT_CHANNELS) {
+            throw new IllegalArgumentException("Cannot resample " + channels + " channels");
+        }
+
+        this.filter = PolyphaseFilter.forRates(inputRate, outputRate);
+        this.channels = channels;
+        this.history = filter.getTaps() - 1;
+        this.samples = new float[channels][history + maxInputLength / (2 * channels)];
+        this.newest = history; // Starts on the first sample, with silence before it
+    }
+
+    /**
+     * Gets the largest number of bytes a chunk converts to.
+     *
+     * @param inputLength The length of the input chunk in bytes.
+     * @return The largest output length in bytes.
+     */
+    @Override
+    public int maxOutputLength(int inputLength) {
+        long frames = inputLength / (2L * channels);
+        return (int) ((frames * filter.getUp() / filter.getDown() + 1) * 2 * OUTPUT_CHANNELS);
+    }
+
+    /**
+     * Gets the delay of the filter: output sample n + delay holds the input
+     * at the time of output sample n.
+     *
+     * @return The delay in output samples, rounded.
+     */
+    public int getDelay() {
+        double centre = (filter.getUp() * filter.getTaps() - 1) / 2.0; // In samples at the zero-stuffed rate
+        return (int) Math.round(centre / filter.getDown());
+    }
+
+    /**
+     * Converts a chunk in place.
+     *
+     * @param chunk  The buffer holding the chunk, at least {@link #maxOutputLength(int)} long.
+     * @param length The length of the input chunk in bytes, whole frames.
+     * @return The length of the converted chunk in bytes.
+     */
+    @Override
+    public int apply(ByteBuffer chunk, int length) {
+        int frameSize = 2 * channels;
+        int frames = length / frameSize;
+        int end = history + frames;
+
+        // Unpack the chunk behind the samples kept from the last one
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < channels; c++) {
+                samples[c][history + f] = chunk.getShort(f * frameSize + 2 * c);
+            }
+        }
+
+        int up = filter.getUp();
+        int down = filter.getDown();
+        int out = 0;
+
+        while (newest < end) {
+            for (int c = 0; c < OUTPUT_CHANNELS; c++) {
+                float[] channel = samples[Math.min(c, channels - 1)];
+                int value = Math.round(filter.apply(phase, channel, newest));
+                chunk.putShort(out, (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value)));
+                out += 2;
+            }
+
+            phase += down;
+            newest += phase / up;
+            phase %= up;
+        }
+
+        // Keep the samples the next chunk's first outputs reach back to
+        for (float[] channel : samples) {
+            System.arraycopy(channel, frames, channel, 0, history);
+        }
+        newest -= frames;
+
+        return out;
+    }
+}
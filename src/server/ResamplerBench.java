@@ -0,0 +1,181 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The ResamplerBench class measures the quality and the speed of converting
+ * 96 kHz and 48 kHz files to the 44.1 kHz clients play at.
+ *
+ * Quality is measured on 16-bit stereo tones sent through a
+ * {@link Resampler} a chunk at a time, as PlayHandler does. A 1 kHz tone is
+ * fitted with a sine at the output rate and the signal to noise ratio is
+ * what the fit leaves over, so it includes distortion, aliasing and
+ * rounding. A 30 kHz tone at 96 kHz lies above the output's Nyquist
+ * frequency, and its rejection is how far the filter pushes it down.
+ *
+ * Speed is the time one stream takes to convert a 10ms chunk, reported as
+ * the number of real-time streams one core converts.
+ */
+public class ResamplerBench {
+
+    private static final int OUTPUT_RATE = 44100;
+    private static final int CHANNELS = 2;
+    private static final int CHUNKS_PER_SECOND = 100;
+    private static final int SECONDS = 10; // Of audio measured for quality
+    private static final int SETTLE_SECONDS = 1; // Skipped while the filter fills
+    private static final double AMPLITUDE = 0.5 * Short.MAX_VALUE;
+    private static final int ITERATIONS = 20_000;
+    private static final int RUNS = 5;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Unused.
+     */
+    public static void main(String[] args) {
+        for (int rate : new int[]{96000, 48000}) {
+            double snr = sineSnr(rate, 1000);
+            double chunk = nanosPerChunk(rate);
+            System.out.printf("%d Hz to %d Hz: 1 kHz tone at %.1f dB SNR%n", rate, OUTPUT_RATE, snr);
+            if (rate / 2 > 30000) {
+                System.out.printf("%d Hz to %d Hz: 30 kHz tone rejected by %.1f dB%n", rate, OUTPUT_RATE,
+                        rejection(rate, 30000));
+            }
+            System.out.printf("%d Hz to %d Hz: %.0f ns per 10ms chunk, %.0f real-time streams per core%n",
+                    rate, OUTPUT_RATE, chunk, 1e9 / (chunk * CHUNKS_PER_SECOND));
+        }
+    }
+
+    /**
+     * Converts a stereo tone and measures how much of the output is not the
+     * tone. The tone's amplitude and phase are fitted by least squares, so
+     * the filter's delay does not count as error.
+     *
+     * @param rate      The input sample rate.
+     * @param frequency The frequency of the tone in Hz.
+     * @return The signal to noise ratio in dB.
+     */
+    private static double sineSnr(int rate, double frequency) {
+        short[] output = convert(rate, frequency);
+        int start = SETTLE_SECONDS * OUTPUT_RATE;
+        int frames = output.length / CHANNELS;
+
+        // Fit a sin + b cos at the output rate on the left channel
+        double ss = 0, cc = 0, sc = 0, ys = 0, yc = 0;
+        for (int n = start; n < frames; n++) {
+            double w = 2 * Math.PI * frequency * n / OUTPUT_RATE;
+            double s = Math.sin(w);
+            double c = Math.cos(w);
+            double y = output[n * CHANNELS];
+            ss += s * s;
+            cc += c * c;
+            sc += s * c;
+            ys += y * s;
+            yc += y * c;
+        }
+        double det = ss * cc - sc * sc;
+        double a = (ys * cc - yc * sc) / det;
+        double b = (yc * ss - ys * sc) / det;
+
+        double signal = 0, noise = 0;
+        for (int n = start; n < frames; n++) {
+            double w = 2 * Math.PI * frequency * n / OUTPUT_RATE;
+            double fit = a * Math.sin(w) + b * Math.cos(w);
+            double error = output[n * CHANNELS] - fit;
+            signal += fit * fit;
+            noise += error * error;
+        }
+        return 10 * Math.log10(signal / noise);
+    }
+
+    /**
+     * Converts a stereo tone above the output's Nyquist frequency and
+     * compares what is left of it with the tone.
+     *
+     * @param rate      The input sample rate.
+     * @param frequency The frequency of the tone in Hz.
+     * @return The rejection in dB.
+     */
+    private static double rejection(int rate, double frequency) {
+        short[] output = convert(rate, frequency);
+        int start = SETTLE_SECONDS * OUTPUT_RATE;
+        int frames = output.length / CHANNELS;
+
+        double energy = 0;
+        for (int n = start; n < frames; n++) {
+            double y = output[n * CHANNELS];
+            energy += y * y;
+        }
+        double rms = Math.sqrt(energy / (frames - start));
+        return 20 * Math.log10(AMPLITUDE / Math.sqrt(2) / Math.max(rms, 1e-9));
+    }
+
+    /**
+     * Sends a stereo tone through a resampler in 10ms chunks.
+     *
+     * @param rate      The input sample rate.
+     * @param frequency The frequency of the tone in Hz.
+     * @return The interleaved output samples.
+     */
+    private static short[] convert(int rate, double frequency) {
+        int chunkFrames = rate / CHUNKS_PER_SECOND;
+        int chunkBytes = chunkFrames * 2 * CHANNELS;
+        Resampler resampler = new Resampler(rate, OUTPUT_RATE, CHANNELS, chunkBytes);
+        ByteBuffer chunk = ByteBuffer.allocateDirect(Math.max(chunkBytes, resampler.maxOutputLength(chunkBytes)))
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        short[] output = new short[(SECONDS * OUTPUT_RATE + CHUNKS_PER_SECOND) * CHANNELS];
+        int written = 0;
+        long frame = 0;
+        for (int i = 0; i < SECONDS * CHUNKS_PER_SECOND; i++) {
+            for (int f = 0; f < chunkFrames; f++, frame++) {
+                short sample = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * frequency * frame / rate));
+                chunk.putShort(f * 2 * CHANNELS, sample);
+                chunk.putShort(f * 2 * CHANNELS + 2, sample);
+            }
+            int length = resampler.apply(chunk, chunkBytes);
+            for (int b = 0; b < length; b += 2) {
+                output[written++] = chunk.getShort(b);
+            }
+        }
+        return Arrays.copyOf(output, written);
+    }
+
+    /**
+     * Times the conversion of 10ms chunks of a stereo tone, taking the best
+     * of several runs.
+     *
+     * @param rate The input sample rate.
+     * @return The time per chunk in nanoseconds.
+     */
+    private static double nanosPerChunk(int rate) {
+        int chunkFrames = rate / CHUNKS_PER_SECOND;
+        int chunkBytes = chunkFrames * 2 * CHANNELS;
+        Resampler resampler = new Resampler(rate, OUTPUT_RATE, CHANNELS, chunkBytes);
+        ByteBuffer input = ByteBuffer.allocateDirect(chunkBytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int f = 0; f < chunkFrames; f++) {
+            short sample = (short) Math.round(AMPLITUDE * Math.sin(2 * Math.PI * 1000.0 * f / rate));
+            input.putShort(f * 2 * CHANNELS, sample);
+            input.putShort(f * 2 * CHANNELS + 2, sample);
+        }
+        ByteBuffer chunk = ByteBuffer.allocateDirect(Math.max(chunkBytes, resampler.maxOutputLength(chunkBytes)))
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        double best = Double.MAX_VALUE;
+        long sink = 0;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                chunk.put(0, input, 0, chunkBytes);
+                sink += resampler.apply(chunk, chunkBytes);
+            }
+            best = Math.min(best, (System.nanoTime() - start) / (double) ITERATIONS);
+        }
+        if (sink == 0) {
+            System.out.println("No output");
+        }
+        return best;
+    }
+}
@@ -0,0 +1,163 @@
+package server;
+
+import common.messages.ResponseEncoder;
+import common.messages.ServerResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The ResponseBench class measures what answering OPTIONS, DESCRIBE and
+ * SETUP costs the server, encoding the responses as {@link ConnectionHandler}
+ * does against building them with a {@link ServerResponse.ResponseBuilder}
+ * and printing them, as the server did before.
+ *
+ * OPTIONS and DESCRIBE are encoded from the handler's templates. SETUP
+ * carries the client's transport, so it is still built, and only its
+ * encoding differs. Both paths write to a stream that discards the bytes,
+ * after checking once that they write the same bytes. The time and the
+ * bytes allocated on the heap are reported per response.
+ */
+public class ResponseBench {
+
+    private static final int ITERATIONS = 500_000;
+    private static final int RUNS = 5;
+    private static final int SESSION = 123456;
+    private static final String TRANSPORT = "RTP/AVP;unicast;client_port=8000-8001;payload=binary;rate=44100"
+            + ";checksum=crc32c;codecs=pcm,adpcm,adpcm16,ulaw8;resume=0123456789abcdef0123456789abcdef"
+            + ";server_port=40000";
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * A way of writing one response for a request.
+     */
+    private interface Writer {
+        void write(int cseq) throws Exception;
+    }
+
+    /**
+     * Builds a response the way the server did before templates.
+     */
+    private interface Builder {
+        ServerResponse build(int cseq);
+    }
+
+    /**
+     * Encodes a response with the encoder under test.
+     */
+    private interface Encoding {
+        int encode(int cseq);
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Unused.
+     */
+    public static void main(String[] args) throws Exception {
+        compare("OPTIONS", ResponseBench::buildOptions, ConnectionHandler.OPTIONS);
+        compare("DESCRIBE", ResponseBench::buildDescribe, ConnectionHandler.DESCRIBE);
+
+        ResponseEncoder encoder = new ResponseEncoder();
+        OutputStream discard = OutputStream.nullOutputStream();
+        PrintWriter send = new PrintWriter(discard, true);
+        check("SETUP", ResponseBench::buildSetup, cseq -> encoder.encode(buildSetup(cseq)), encoder);
+        report("SETUP", cseq -> send.println(buildSetup(cseq)),
+                cseq -> discard.write(encoder.getBuffer(), 0, encoder.encode(buildSetup(cseq))));
+    }
+
+    /**
+     * Measures a response that is built by the old path and encoded from a
+     * template by the new one.
+     */
+    private static void compare(String name, Builder builder, ResponseEncoder.Template template) throws Exception {
+        ResponseEncoder encoder = new ResponseEncoder();
+        OutputStream discard = OutputStream.nullOutputStream();
+        PrintWriter send = new PrintWriter(discard, true);
+        check(name, builder, cseq -> encoder.encode(template, cseq, 0), encoder);
+        report(name, cseq -> send.println(builder.build(cseq)),
+                cseq -> discard.write(encoder.getBuffer(), 0, encoder.encode(template, cseq, 0)));
+    }
+
+    /**
+     * Checks that both paths write the same bytes.
+     */
+    private static void check(String name, Builder builder, Encoding encoding, ResponseEncoder encoder) {
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        PrintWriter send = new PrintWriter(printed, true, StandardCharsets.UTF_8);
+        send.println(builder.build(42));
+        int length = encoding.encode(42);
+        if (!Arrays.equals(printed.toByteArray(), Arrays.copyOf(encoder.getBuffer(), length))) {
+            throw new IllegalStateException(name + " responses differ:\n" + printed
+                    + "\n" + new String(encoder.getBuffer(), 0, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Prints the time and allocation per response of both paths.
+     */
+    private static void report(String name, Writer builder, Writer template) throws Exception {
+        double[] built = measure(builder);
+        double[] encoded = measure(template);
+        System.out.printf("%-8s builder: %5.0f ns %5.0f B   template: %5.0f ns %5.0f B   (%.1fx faster)%n", name,
+                built[0], built[1], encoded[0], encoded[1], built[0] / encoded[0]);
+    }
+
+    /**
+     * Writes responses and takes the best of several runs.
+     *
+     * @param writer The way of writing a response.
+     * @return The time in nanoseconds and the bytes allocated per response.
+     */
+    private static double[] measure(Writer writer) throws Exception {
+        long thread = Thread.currentThread().getId();
+        double nanos = Double.MAX_VALUE;
+        double bytes = Double.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long allocated = THREADS.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 1; i <= ITERATIONS; i++) {
+                writer.write(i);
+            }
+            nanos = Math.min(nanos, (System.nanoTime() - start) / (double) ITERATIONS);
+            bytes = Math.min(bytes, (THREADS.getThreadAllocatedBytes(thread) - allocated) / (double) ITERATIONS);
+        }
+        return new double[]{nanos, bytes};
+    }
+
+    /**
+     * Builds the OPTIONS response listing the methods the server handles.
+     */
+    private static ServerResponse buildOptions(int cseq) {
+        return new ServerResponse.ResponseBuilder(200, cseq)
+                .setOptions(ConnectionHandler.METHODS)
+                .build();
+    }
+
+    /**
+     * Builds the DESCRIBE response carrying the server's SDP.
+     */
+    private static ServerResponse buildDescribe(int cseq) {
+        return new ServerResponse.ResponseBuilder(200, cseq)
+                .setContentType("application/sdp")
+                .setContentLength(ConnectionHandler.SDP.length())
+                .setBody(ConnectionHandler.SDP)
+                .build();
+    }
+
+    /**
+     * Builds a SETUP response for a session with its own media connection.
+     */
+    private static ServerResponse buildSetup(int cseq) {
+        return new ServerResponse.ResponseBuilder(200, cseq)
+                .setSessionId(SESSION)
+                .setTransport(TRANSPORT)
+                .build();
+    }
+}
@@ -0,0 +1,19 @@
+package server;
+
+/**
+ * The ScalarMixKernel class mixes tracks one sample at a time. It is the
+ * fallback when the Vector API is not available.
+ */
+public class ScalarMixKernel implements MixKernel {
+
+    @Override
+    public void mix(float[][] tracks, float[] gains, int trackCount, float[] out, int length) {
+        for (int i = 0; i < length; i++) {
+            float sum = 0f;
+            for (int t = 0; t < trackCount; t++) {
+                sum += tracks[t][i] * gains[t];
+            }
+            out[i] = Math.max(MIN_SAMPLE, Math.min(MAX_SAMPLE, sum));
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package server;
+
+import common.messages.DataMessage;
+import merrimackutil.net.Log;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The SegmentStore class pre-frames the media files in the database directory
+ * into ready-to-send DATA messages. Each source file gets a segment file that
+ * holds every chunk already sliced, Base64 encoded and serialized exactly as
+ * it appears on the wire, together with a seek index of frame offsets.
+ *
+ * The session ID and the sequence number are the only per-listener parts of a
+ * frame, so frames are written with fixed-width placeholders for both that
+ * are patched in place at send time. The sequence number is zero padded so
+ * that playback can continue numbering across several queued files. A
+ * segment file remembers the length and modification time of its source and
+ * is rebuilt whenever the source changes.
+ */
+public class SegmentStore {
+
+    public static final int CHUNK_SIZE = 1764; // 44100 Hz * 2 bytes/sample * 2 channels * 0.01 sec = 1764 bytes for 10ms of audio
+
+    private static final int MAGIC = 0x52534547; // "RSEG"
+    private static final int VERSION = 2;
+    private static final int PLACEHOLDER_SESSION = 100000;
+    private static final int SESSION_DIGITS = 6;
+    private static final int PLACEHOLDER_CSEQ = 1000000000;
+    private static final int CSEQ_DIGITS = 10;
+    private static final String SEGMENT_DIR = ".segments";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File databaseDir;
+    private final File segmentDir;
+    private final Log logger;
+    private final ConcurrentHashMap<String, Object> buildLocks;
+
+    /**
+     * Constructs a new SegmentStore for the given database directory.
+     *
+     * @param databaseDir The database directory holding the source media files.
+     * @param logger      The logger used to record segmenting events.
+     */
+    public SegmentStore(String databaseDir, Log logger) {
+        this.databaseDir = new File(databaseDir);
+        this.segmentDir = new File(databaseDir, SEGMENT_DIR);
+        this.logger = logger;
+        this.buildLocks = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Checks whether a session ID can be patched into a pre-framed segment.
+     *
+     * @param sessionID The RTSP session ID.
+     * @return true if the session ID has the fixed width used by the placeholder.
+     */
+    public static boolean canPatch(int sessionID) {
+        return sessionID >= 100000 && sessionID <= 999999;
+    }
+
+    /**
+     * Writes the zero padded decimal digits of a value over a placeholder
+     * field of a frame.
+     *
+     * @param frame  The frame bytes.
+     * @param offset The offset of the field within the frame.
+     * @param value  The non-negative value to write.
+     * @param digits The width of the field.
+     */
+    private static void patchDigits(byte[] frame, int offset, int value, int digits) {
+        for (int d = digits - 1; d >= 0; d--) {
+            frame[offset + d] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Gets the segment file that belongs to a source media file.
+     *
+     * @param source The source media file.
+     * @return The segment file location.
+     */
+    public File segmentFile(File source) {
+        String relative = databaseDir.toPath().toAbsolutePath().normalize()
+                .relativize(source.toPath().toAbsolutePath().normalize()).toString();
+        return new File(segmentDir, relative + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Checks whether the segment file of a source exists and still matches it.
+     *
+     * @param source The source media file.
+     * @return true if the segment file is up to date.
+     */
+    public boolean isFresh(File source) {
+        File segFile = segmentFile(source);
+        if (!segFile.exists()) {
+            return false;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segFile)))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION
+                    && in.readLong() == source.length()
+                    && in.readLong() == source.lastModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens the segments of a source file, building or rebuilding the segment
+     * file first if it is missing or stale.
+     *
+     * @param source The source media file.
+     * @return The opened segments.
+     * @throws IOException if the segment file cannot be built or read.
+     */
+    public Segments open(File source) throws IOException {
+        build(source);
+        return new Segments(segmentFile(source));
+    }
+
+    /**
+     * Builds the segment file for a source file unless an up to date one
+     * already exists. Concurrent builds of the same source are serialized so
+     * that the work is only done once.
+     *
+     * @param source The source media file.
+     * @throws IOException if the source cannot be read or the segment file cannot be written.
+     */
+    public void build(File source) throws IOException {
+        Object lock = buildLocks.computeIfAbsent(source.getAbsolutePath(), k -> new Object());
+
+        synchronized (lock) {
+            if (isFresh(source)) {
+                return;
+            }
+
+            long length = source.length();
+            long lastModified = source.lastModified();
+            byte[] bytes = Files.readAllBytes(source.toPath());
+            int totalChunks = (int) Math.ceil((double) bytes.length / CHUNK_SIZE);
+
+            long[] offsets = new long[totalChunks];
+            int[] lengths = new int[totalChunks];
+            int[] cseqOffsets = new int[totalChunks];
+            int[] sessionOffsets = new int[totalChunks];
+
+            File segFile = segmentFile(source);
+            segFile.getParentFile().mkdirs();
+            File tmpFile = new File(segFile.getPath() + ".tmp");
+
+            // Write the frames first, the index is filled in once their offsets are known
+            long headerSize = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+            long framesStart = headerSize + (long) totalChunks * (8 + 4 + 4 + 4);
+            int maxFrameLength = 0;
+
+            try (RandomAccessFile out = new RandomAccessFile(tmpFile, "rw")) {
+                out.setLength(0);
+                out.seek(framesStart);
+
+                BufferedOutputStream frameOut = new BufferedOutputStream(Channels.newOutputStream(out.getChannel()), 1 << 16);
+                long position = framesStart;
+
+                for (int i = 0; i < totalChunks; i++) {
+                    int start = i * CHUNK_SIZE;
+                    int end = Math.min(start + CHUNK_SIZE, bytes.length);
+                    byte[] chunk = new byte[end - start];
+                    System.arraycopy(bytes, start, chunk, 0, end - start);
+
+                    String payload = Base64.getEncoder().encodeToString(chunk);
+                    String frame = new DataMessage("DATA", PLACEHOLDER_CSEQ, PLACEHOLDER_SESSION, payload) + System.lineSeparator();
+                    byte[] frameBytes = frame.getBytes(StandardCharsets.US_ASCII);
+
+                    offsets[i] = position;
+                    lengths[i] = frameBytes.length;
+                    cseqOffsets[i] = frame.indexOf("CSeq: ") + 6;
+                    sessionOffsets[i] = frame.indexOf("Session: ") + 9;
+                    maxFrameLength = Math.max(maxFrameLength, frameBytes.length);
+
+                    frameOut.write(frameBytes);
+                    position += frameBytes.length;
+                }
+                frameOut.flush();
+
+                out.seek(0);
+                DataOutputStream headerOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out.getChannel()), 1 << 16));
+                headerOut.writeInt(MAGIC);
+                headerOut.writeInt(VERSION);
+                headerOut.writeLong(length);
+                headerOut.writeLong(lastModified);
+                headerOut.writeInt(CHUNK_SIZE);
+                headerOut.writeInt(totalChunks);
+                headerOut.writeInt(maxFrameLength);
+                for (int i = 0; i < totalChunks; i++) {
+                    headerOut.writeLong(offsets[i]);
+                    headerOut.writeInt(lengths[i]);
+                    headerOut.writeInt(cseqOffsets[i]);
+                    headerOut.writeInt(sessionOffsets[i]);
+                }
+                headerOut.flush();
+            }
+
+            Files.move(tmpFile.toPath(), segFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.log("INFO: Built segment file for " + source.getPath() + " (" + totalChunks + " chunks).");
+        }
+    }
+
+    /**
+     * Removes the segment file of a source file, if any.
+     *
+     * @param source The source media file.
+     */
+    public void remove(File source) {
+        File segFile = segmentFile(source);
+        if (segFile.exists() && !segFile.delete()) {
+            logger.log("ERROR: Unable to remove segment file " + segFile.getPath());
+        }
+    }
+
+    /**
+     * The Segments class gives sequential and indexed access to the frames of
+     * an opened segment file.
+     */
+    public static class Segments implements Closeable {
+
+        private final RandomAccessFile file;
+        private final int chunkCount;
+        private final int maxFrameLength;
+        private final long[] offsets;
+        private final int[] lengths;
+        private final int[] cseqOffsets;
+        private final int[] sessionOffsets;
+
+        /**
+         * Opens a segment file and loads its seek index.
+         *
+         * @param segFile The segment file to open.
+         * @throws IOException if the segment file cannot be read or is not valid.
+         */
+        Segments(File segFile) throws IOException {
+            this.file = new RandomAccessFile(segFile, "r");
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel()), 1 << 16));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                file.close();
+                throw new IOException("Invalid segment file: " + segFile.getPath());
+            }
+            in.readLong(); // Source length
+            in.readLong(); // Source last modified
+            in.readInt(); // Chunk size
+
+            this.chunkCount = in.readInt();
+            this.maxFrameLength = in.readInt();
+            this.offsets = new long[chunkCount];
+            this.lengths = new int[chunkCount];
+            this.cseqOffsets = new int[chunkCount];
+            this.sessionOffsets = new int[chunkCount];
+
+            for (int i = 0; i < chunkCount; i++) {
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+                cseqOffsets[i] = in.readInt();
+                sessionOffsets[i] = in.readInt();
+            }
+        }
+
+        /**
+         * Get the number of chunks
+         *
+         * @return int number of chunks
+         */
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        /**
+         * Get the length of the largest frame
+         *
+         * @return int largest frame length
+         */
+        public int getMaxFrameLength() {
+            return maxFrameLength;
+        }
+
+        /**
+         * Reads a frame into a buffer without patching it.
+         *
+         * @param index  The chunk index of the frame.
+         * @param buffer The buffer to read into, at least {@link #getMaxFrameLength()} long.
+         * @param offset The offset in the buffer to read to.
+         * @return The length of the frame in bytes.
+         * @throws IOException if the frame cannot be read.
+         */
+        public int readRawFrame(int index, byte[] buffer, int offset) throws IOException {
+            file.seek(offsets[index]);
+            file.readFully(buffer, offset, lengths[index]);
+            return lengths[index];
+        }
+
+        /**
+         * Patches the sequence number and session ID into a frame that was
+         * read with {@link #readRawFrame(int, byte[], int)}.
+         *
+         * @param index     The chunk index of the frame.
+         * @param buffer    The buffer holding the frame.
+         * @param offset    The offset of the frame in the buffer.
+         * @param cseq      The sequence number to patch into the frame.
+         * @param sessionID The session ID to patch into the frame.
+         */
+        public void patch(int index, byte[] buffer, int offset, int cseq, int sessionID) {
+            patchDigits(buffer, offset + cseqOffsets[index], cseq, CSEQ_DIGITS);
+            patchDigits(buffer, offset + sessionOffsets[index], sessionID, SESSION_DIGITS);
+        }
+
+        /**
+         * Reads a frame into a buffer and patches the sequence number and
+         * session ID into it.
+         *
+         * @param index     The chunk index of the frame.
+         * @param buffer    The buffer to read into, at least {@link #getMaxFrameLength()} long.
+         * @param cseq      The sequence number to patch into the frame.
+         * @param sessionID The session ID to patch into the frame.
+         * @return The length of the frame in bytes.
+         * @throws IOException if the frame cannot be read.
+         */
+        public int readFrame(int index, byte[] buffer, int cseq, int sessionID) throws IOException {
+            int length = readRawFrame(index, buffer, 0);
+            patch(index, buffer, 0, cseq, sessionID);
+            return length;
+        }
+
+        /**
+         * Closes the segment file.
+         *
+         * @throws IOException if the file cannot be closed.
+         */
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package server;
+
+import common.BufferPool;
+import common.MessageSocket;
+import common.messages.DataFrame;
+import common.messages.DataMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * The SendPathBench class measures the CPU one stream spends sending its
+ * chunks, on the zero-copy path PlayHandler takes for binary frames against
+ * the paths it replaced.
+ *
+ * Every path sends the chunks of the same file over loopback to a thread
+ * that reads and drops them, through a {@link MessageSocket} accepted from a
+ * channel as the server's media sockets are. The paths are:
+ * <ul>
+ *     <li>Base64: each chunk copied out of the file's bytes, encoded into a
+ *     text DATA message and printed, as playback worked before binary
+ *     frames.</li>
+ *     <li>Copied: each chunk read into a pooled {@link DataFrame} and sent as
+ *     a binary frame, as playback does when it transforms the chunks.</li>
+ *     <li>Zero-copy: the frame header written from a reused buffer and the
+ *     chunk's file region handed to {@link FileChannel#transferTo}.</li>
+ * </ul>
+ * The CPU time of the sending thread, user and system, is reported per chunk
+ * and as the share of a core and the number of streams one core could send.
+ * The receiving side is not counted.
+ */
+public class SendPathBench {
+
+    private static final int CHUNK_BYTES = SegmentStore.CHUNK_SIZE;
+    private static final int CHUNKS_PER_SECOND = 100;
+    private static final int FILE_BYTES = 16 << 20;
+    private static final int FILE_CHUNKS = FILE_BYTES / CHUNK_BYTES;
+    private static final int SESSION = 123456;
+    private static final int RUNS = 3;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * A way of sending one chunk of the file.
+     */
+    private interface Path {
+        void send(int index) throws IOException;
+    }
+
+    /**
+     * Opens the path on a new connection.
+     */
+    private interface Opener {
+        Path open(MessageSocket socket);
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optionally the number of chunks sent per run.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        if (!THREADS.isCurrentThreadCpuTimeSupported()) {
+            System.out.println("Thread CPU time is not supported by this JVM");
+            System.exit(1);
+        }
+
+        File media = File.createTempFile("sendpath", ".wav");
+        media.deleteOnExit();
+        byte[] audio = new byte[FILE_BYTES];
+        new Random(42).nextBytes(audio);
+        Files.write(media.toPath(), audio);
+
+        try (RandomAccessFile raf = new RandomAccessFile(media, "r");
+             ServerSocketChannel listener = ServerSocketChannel.open()) {
+            FileChannel file = raf.getChannel();
+            listener.bind(new InetSocketAddress("127.0.0.1", 0));
+            int port = listener.socket().getLocalPort();
+
+            // Before binary frames: the file was read whole and every chunk sent as Base64 text
+            byte[] bytes = Files.readAllBytes(media.toPath());
+            measure("Base64 text", chunks, listener, port, socket -> index -> {
+                int start = (index % FILE_CHUNKS) * CHUNK_BYTES;
+                byte[] chunk = Arrays.copyOfRange(bytes, start, start + CHUNK_BYTES);
+                String payload = Base64.getEncoder().encodeToString(chunk);
+                socket.sendMessage(new DataMessage("DATA", index, SESSION, payload));
+            });
+
+            DataFrame frame = new DataFrame(BufferPool.shared());
+            measure("Binary, copied", chunks, listener, port, socket -> index -> {
+                long position = (long) (index % FILE_CHUNKS) * CHUNK_BYTES;
+                int length = frame.readPayload(file, position, CHUNK_BYTES);
+                frame.set("DATA", index, SESSION, length, true);
+                socket.sendFrame(frame);
+            });
+            frame.release();
+
+            byte[] headerBytes = new byte[256];
+            ByteBuffer header = ByteBuffer.wrap(headerBytes);
+            measure("Binary, zero-copy", chunks, listener, port, socket -> index -> {
+                long position = (long) (index % FILE_CHUNKS) * CHUNK_BYTES;
+                header.clear().limit(DataMessage.writeBinaryHeader(headerBytes, "DATA", index, SESSION,
+                        CHUNK_BYTES, -1, null));
+                socket.sendFileRegion(header, file, position, CHUNK_BYTES);
+            });
+        }
+    }
+
+    /**
+     * Sends chunks over a new loopback connection and prints the CPU the
+     * sending thread spent per chunk, taking the best of several runs.
+     *
+     * @param name     The name of the path.
+     * @param chunks   The number of chunks per run.
+     * @param listener The channel media connections are accepted from.
+     * @param port     The port of the listener.
+     * @param opener   The path to send the chunks on.
+     */
+    private static void measure(String name, int chunks, ServerSocketChannel listener, int port, Opener opener)
+            throws IOException, InterruptedException {
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            Socket client = new Socket("127.0.0.1", port);
+            MessageSocket socket = new MessageSocket(listener.accept().socket());
+            Thread drain = new Thread(() -> drain(client), "drain");
+            drain.start();
+
+            Path path = opener.open(socket);
+            long start = THREADS.getCurrentThreadCpuTime();
+            for (int i = 0; i < chunks; i++) {
+                path.send(i);
+            }
+            best = Math.min(best, (THREADS.getCurrentThreadCpuTime() - start) / (double) chunks);
+
+            socket.close();
+            drain.join();
+            client.close();
+        }
+
+        System.out.printf("%-18s %6.0f ns of CPU per chunk, %.3f%% of a core per stream, %.0f streams per core%n",
+                name, best, best * CHUNKS_PER_SECOND / 1e7, 1e9 / (best * CHUNKS_PER_SECOND));
+    }
+
+    /**
+     * Reads and drops everything sent to a socket until it is closed.
+     *
+     * @param client The receiving socket.
+     */
+    private static void drain(Socket client) {
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = client.getInputStream()) {
+            while (in.read(buffer) >= 0) {
+                // Dropped
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package server;
 
 import com.sun.jdi.event.ThreadDeathEvent;
+import common.BufferPool;
 import common.MessageSocket;
 import common.messages.*;
 import merrimackutil.cli.LongOption;
@@ -16,13 +17,20 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InvalidObjectException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 class Server {
 
@@ -31,9 +39,41 @@ class Server {
     public static int port;
     public static String databaseDir;
     public static int maxConnections;
+    public static int maxSessions = 0; // Zero allows as many sessions as connections
     public static String log;
+    public static int maxOutboundKbps = 0; // Zero disables the bitrate limit
+    public static int maxBufferedKb = 0; // Zero disables the buffered bytes limit
+    public static int retryAfter = 5; // Seconds a shed client is asked to wait
+    public static String coordinator; // host:port of the cluster coordinator, null to run alone
+    public static int coordinatorPort = 0; // Port of a coordinator embedded in this server, zero for none
+    public static String advertiseHost = "localhost"; // Host clients of the cluster reach this server on
+    public static String origin; // host:port of the origin this server is an edge for, null if none
+    public static int cacheMaxMb = 1024; // Size bound of the edge cache
+    public static boolean sharding = false; // Whether the cluster shards the library across its nodes
+    public static int replicationFactor = 2; // Number of nodes owning each file of a sharded library
+    public static int virtualNodes = 64; // Ring points of each node of a sharded library
+    public static int replicationPort = 0; // Port replicas from peers are accepted on, zero for none
+    public static int replicas = 0; // Number of peers each recording is copied to, unless sharded
+    public static int replicationKbps = 8000; // Bitrate limit of all replication transfers together
+    public static double loudnessTarget = Double.NaN; // LUFS every file is played at, NaN to play files at their own level
+    public static int liveWindowMinutes = LiveRelay.DEFAULT_WINDOW_MINUTES; // Minutes of a live stream kept for seeking back
+    public static long journalCommitMs = RecordJournal.DEFAULT_COMMIT_MILLIS; // Longest a recorded chunk waits for fsync
+    public static long journalCommitKb = RecordJournal.DEFAULT_COMMIT_BYTES / 1024; // Journal bytes waiting that force an fsync sooner
+    public static boolean compressRecordings = false; // Whether new recordings are compressed in the background
+    public static boolean jfr = false; // Whether a continuous flight recording runs
+    public static String jfrFile = "server.jfr"; // Where the flight recording is written when the server exits
+    public static int jfrMaxAgeMinutes = 30; // Minutes of events the flight recording keeps
+    public static int acceptors = 1; // Threads accepting clients, each on its own SO_REUSEPORT listener
+    public static int acceptBacklog = 50; // Connections the kernel queues for each listener
+    public static boolean adaptiveBitrate = true; // Whether sessions switch renditions as their throughput changes
 
     public static Log serverLog;
+    public static Catalog catalog;
+    public static AdmissionController admission;
+    public static ClusterNode cluster;
+
+    private static final int SHED_THREADS = 2;
+    private static final int SHED_QUEUE = 64;
 
     /**
      * Prints the usage message for the server application
@@ -119,31 +159,249 @@ class Server {
         serverLog.log("Starting server on port " + port);
         serverLog.log("Using database directory: " + databaseDir);
         serverLog.log("Max connections set to: " + maxConnections);
+        serverLog.log("Max sessions set to: " + maxSessions);
+        if (jfr) {
+            try {
+                FlightRecording.start(jfrFile, jfrMaxAgeMinutes, serverLog);
+            } catch (IOException | IllegalStateException | SecurityException e) {
+                serverLog.log("ERROR: Unable to start flight recording: " + e.getMessage());
+            }
+        }
+        if (maxOutboundKbps > 0) {
+            serverLog.log("Max outbound bitrate set to: " + maxOutboundKbps + " kbps");
+        }
+        if (maxBufferedKb > 0) {
+            serverLog.log("Max buffered data set to: " + maxBufferedKb + " KB");
+        }
+
+        catalog = new Catalog(databaseDir, serverLog);
+        if (origin != null) {
+            catalog.setOrigin(origin, cacheMaxMb * 1024L * 1024L);
+            serverLog.log("Edge for origin " + origin + " with a " + cacheMaxMb + " MB cache");
+        }
+        if (!Double.isNaN(loudnessTarget)) {
+            catalog.setLoudnessTarget(loudnessTarget);
+            serverLog.log("Normalizing playback to " + loudnessTarget + " LUFS");
+        }
+        try {
+            int recovered = RecordJournal.shared().open(new File(databaseDir, ".journal"), journalCommitMs,
+                    journalCommitKb * 1024, serverLog);
+            serverLog.log("Recovered " + recovered + " recordings, committing the journal every " + journalCommitMs
+                    + " ms or " + journalCommitKb + " KB");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (compressRecordings) {
+            Transcoder.shared().start(catalog, serverLog);
+            serverLog.log("Compressing new recordings");
+        }
+        catalog.setAdaptiveBitrate(adaptiveBitrate);
+        if (!adaptiveBitrate) {
+            serverLog.log("Sending every file at its own bitrate");
+        }
+        catalog.scan();
+        LiveRelay.shared().setWindowMinutes(liveWindowMinutes);
+        serverLog.log("Keeping " + liveWindowMinutes + " minutes of live streams");
+        serverLog.log("INFO: Mixing with " + Mixer.getKernelName() + ".");
+
+        admission = new AdmissionController(maxConnections, maxSessions, maxOutboundKbps * 1000L,
+                maxBufferedKb * 1024L, retryAfter, TrafficMeter.shared(), BufferPool.shared(),
+                SessionRegistry.shared(), serverLog);
+
+        startCluster();
 
         serverStart();
 
     }
 
+    /**
+     * Starts the embedded coordinator and joins the cluster, if configured.
+     * A server that embeds the coordinator reports to it unless another
+     * coordinator is configured.
+     */
+    private static void startCluster() {
+        if (coordinatorPort > 0) {
+            try {
+                new Coordinator(coordinatorPort, serverLog).start();
+                serverLog.log("Coordinator listening on port: " + coordinatorPort);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if (coordinator == null) {
+                coordinator = "localhost:" + coordinatorPort;
+            }
+        }
+
+        if (coordinator != null) {
+            cluster = new ClusterNode(advertiseHost + ":" + port, coordinator, catalog, admission,
+                    TrafficMeter.shared(), maxSessions, serverLog);
+            cluster.start();
+            serverLog.log("Joined cluster as " + cluster.getSelf() + " with coordinator " + coordinator);
+
+            if (sharding) {
+                Placement placement = new Placement(cluster, catalog, replicationFactor, virtualNodes, serverLog);
+                cluster.setPlacement(placement);
+                placement.start();
+                serverLog.log("Sharding library with replication factor " + replicationFactor);
+            }
+
+            startReplication();
+        }
+    }
+
+    /**
+     * Starts accepting replicas from peers and copying new recordings to
+     * them, if configured. A sharded library copies each recording to the
+     * other owners of its file.
+     */
+    private static void startReplication() {
+        if (replicationPort <= 0) {
+            return;
+        }
+
+        try {
+            ReplicaReceiver receiver = new ReplicaReceiver(replicationPort, catalog, serverLog);
+            receiver.start();
+            cluster.setReplicaPort(receiver.getPort());
+            serverLog.log("Accepting replicas on port: " + receiver.getPort());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (replicas > 0 || sharding) {
+            catalog.setReplicator(new Replicator(cluster, catalog, replicas, replicationKbps * 1000L,
+                    maxOutboundKbps * 1000L, TrafficMeter.shared(), serverLog));
+            serverLog.log("Replicating recordings at up to " + replicationKbps + " kbps");
+        }
+    }
+
+    /**
+     * Accepts clients and hands the admitted ones to the connection pool.
+     * Admission keeps the pool from ever queueing, and clients that are not
+     * admitted are answered with 503 by a small separate pool. When even that
+     * pool is full, the client is answered and dropped on the accept thread.
+     *
+     * With more than one acceptor, each acceptor thread has a listener of
+     * its own bound to the port with SO_REUSEPORT, and the kernel spreads
+     * incoming connections across them, so a storm of reconnecting clients
+     * is not accepted one at a time. An acceptor only admits the client; the
+     * connection's streams are set up on the pool thread that serves it.
+     */
     private static void serverStart() {
 
         try {
 
-            ServerSocket serverSocket = new ServerSocket(port);
+            List<ServerSocket> listeners = bindListeners();
             ExecutorService pool = Executors.newFixedThreadPool(maxConnections);
+            ExecutorService shedder = new ThreadPoolExecutor(SHED_THREADS, SHED_THREADS, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(SHED_QUEUE));
+            serverLog.log("Accepting on " + listeners.size() + " threads with a backlog of " + acceptBacklog);
+
+            for (int i = 1; i < listeners.size(); i++) {
+                ServerSocket listener = listeners.get(i);
+                Thread acceptor = new Thread(() -> accept(listener, pool, shedder), "acceptor-" + i);
+                acceptor.start();
+            }
+            accept(listeners.get(0), pool, shedder);
 
-            while(true) {
-
-                MessageSocket messageSocket = new MessageSocket(serverSocket.accept());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-                pool.execute(new ConnectionHandler(messageSocket, serverLog, databaseDir));
+    /**
+     * Binds a listener for every acceptor. Several listeners share the port
+     * through SO_REUSEPORT; where the platform does not support it, a single
+     * listener is bound.
+     *
+     * @return The bound listeners.
+     * @throws IOException if the port cannot be bound.
+     */
+    private static List<ServerSocket> bindListeners() throws IOException {
+        int count = Math.max(1, acceptors);
+        if (count > 1) {
+            try (ServerSocket probe = new ServerSocket()) {
+                if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    serverLog.log("ERROR: SO_REUSEPORT is not supported, accepting on one thread.");
+                    count = 1;
+                }
+            }
+        }
 
+        List<ServerSocket> listeners = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ServerSocket listener = new ServerSocket();
+            if (count > 1) {
+                listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
             }
+            listener.bind(new InetSocketAddress(port), acceptBacklog);
+            listeners.add(listener);
+        }
+        return listeners;
+    }
 
+    /**
+     * Accepts clients on one listener for as long as the server runs.
+     *
+     * @param listener The listener.
+     * @param pool     The pool serving admitted clients.
+     * @param shedder  The pool answering shed clients.
+     */
+    private static void accept(ServerSocket listener, ExecutorService pool, ExecutorService shedder) {
+        try {
+            while (true) {
+
+                Socket socket = listener.accept();
+
+                if (!admission.tryAccept()) {
+                    shed(shedder, socket);
+                    continue;
+                }
+
+                pool.execute(() -> {
+                    try {
+                        MessageSocket messageSocket = new MessageSocket(socket);
+                        new ConnectionHandler(messageSocket, serverLog, catalog, cluster, admission).run();
+                    } catch (IOException e) {
+                        try {
+                            socket.close();
+                        } catch (IOException ex) {
+                            // The client is gone either way
+                        }
+                        serverLog.log("ERROR: Unable to set up client connection: " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        // Keep the pool thread, a storm of clients going away would otherwise replace them all
+                        serverLog.log("INFO: Connection ended: " + e.getMessage());
+                    } finally {
+                        admission.releaseConnection();
+                    }
+                });
+
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Sheds a client that was not admitted.
+     *
+     * @param shedder The pool answering shed clients.
+     * @param socket  The socket of the shed client.
+     */
+    private static void shed(ExecutorService shedder, Socket socket) {
+        try {
+            shedder.execute(new OverloadHandler(socket, retryAfter, serverLog));
+        } catch (RejectedExecutionException e) {
+            try (MessageSocket ms = new MessageSocket(socket)) {
+                OverloadHandler.reject(ms, 0, retryAfter);
+            } catch (IOException | RuntimeException ex) {
+                serverLog.log("ERROR: Unable to shed client: " + ex.getMessage());
+            }
+        }
+    }
+
     /**
      * Helper method for deserializing the JSON config file
      *
@@ -163,9 +421,116 @@ class Server {
             log = obj.getString("log");
         }
 
+        if (obj.containsKey("max_outbound_kbps")) {
+            maxOutboundKbps = obj.getInt("max_outbound_kbps");
+        }
+
+        if (obj.containsKey("max_buffered_kb")) {
+            maxBufferedKb = obj.getInt("max_buffered_kb");
+        }
+
+        if (obj.containsKey("max_sessions")) {
+            maxSessions = obj.getInt("max_sessions");
+        }
+
+        if (obj.containsKey("retry_after")) {
+            retryAfter = obj.getInt("retry_after");
+        }
+
+        if (obj.containsKey("coordinator")) {
+            coordinator = obj.getString("coordinator");
+        }
+
+        if (obj.containsKey("coordinator_port")) {
+            coordinatorPort = obj.getInt("coordinator_port");
+        }
+
+        if (obj.containsKey("advertise_host")) {
+            advertiseHost = obj.getString("advertise_host");
+        }
+
+        if (obj.containsKey("origin")) {
+            origin = obj.getString("origin");
+        }
+
+        if (obj.containsKey("cache_max_mb")) {
+            cacheMaxMb = obj.getInt("cache_max_mb");
+        }
+
+        if (obj.containsKey("sharding")) {
+            sharding = obj.getBoolean("sharding");
+        }
+
+        if (obj.containsKey("replication_factor")) {
+            replicationFactor = obj.getInt("replication_factor");
+        }
+
+        if (obj.containsKey("virtual_nodes")) {
+            virtualNodes = obj.getInt("virtual_nodes");
+        }
+
+        if (obj.containsKey("replication_port")) {
+            replicationPort = obj.getInt("replication_port");
+        }
+
+        if (obj.containsKey("replicas")) {
+            replicas = obj.getInt("replicas");
+        }
+
+        if (obj.containsKey("replication_kbps")) {
+            replicationKbps = obj.getInt("replication_kbps");
+        }
+
+        if (obj.containsKey("loudness_target")) {
+            loudnessTarget = obj.getDouble("loudness_target");
+        }
+
+        if (obj.containsKey("live_window_minutes")) {
+            liveWindowMinutes = obj.getInt("live_window_minutes");
+        }
+
+        if (obj.containsKey("journal_commit_ms")) {
+            journalCommitMs = obj.getInt("journal_commit_ms");
+        }
+
+        if (obj.containsKey("journal_commit_kb")) {
+            journalCommitKb = obj.getInt("journal_commit_kb");
+        }
+
+        if (obj.containsKey("compress_recordings")) {
+            compressRecordings = obj.getBoolean("compress_recordings");
+        }
+
+        if (obj.containsKey("jfr")) {
+            jfr = obj.getBoolean("jfr");
+        }
+
+        if (obj.containsKey("jfr_file")) {
+            jfrFile = obj.getString("jfr_file");
+        }
+
+        if (obj.containsKey("jfr_max_age_minutes")) {
+            jfrMaxAgeMinutes = obj.getInt("jfr_max_age_minutes");
+        }
+
+        if (obj.containsKey("acceptors")) {
+            acceptors = obj.getInt("acceptors");
+        }
+
+        if (obj.containsKey("accept_backlog")) {
+            acceptBacklog = obj.getInt("accept_backlog");
+        }
+
+        if (obj.containsKey("adaptive_bitrate")) {
+            adaptiveBitrate = obj.getBoolean("adaptive_bitrate");
+        }
+
         port = obj.getInt("port");
         databaseDir = obj.getString("db_dir");
         maxConnections = obj.getInt("max_connections");
+        if (maxSessions <= 0) {
+            maxSessions = maxConnections;
+        }
 
     }
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The SessionEvent is recorded by Java Flight Recorder when a session of
+ * the {@link SessionRegistry} is closed. It begins when the session is
+ * opened, so its duration is the lifetime of the session, and recordings
+ * can be searched by session ID for everything that happened to it.
+ */
+@Name("streaming.Session")
+@Label("Session")
+@Category({"Streaming", "RTSP"})
+@Description("An RTSP session from SETUP until it was closed")
+class SessionEvent extends jdk.jfr.Event {
+
+    @Label("Session")
+    int session;
+
+    @Label("Client")
+    String client;
+
+    @Label("Resource")
+    @Description("The resource played or recorded last")
+    String resource;
+
+    @Label("Resumed")
+    @Description("Whether the session took over an ID to resume an upload")
+    boolean resumed;
+
+    @Label("Interleaved")
+    boolean interleaved;
+}
@@ -0,0 +1,153 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The SessionRegistry class keeps every session of the server, so that
+ * session IDs are unique across all connections.
+ *
+ * The sessions are held in a {@link ConcurrentHashMap}, whose bins are
+ * locked separately, so handlers opening and closing sessions on different
+ * connections do not wait on each other.
+ * IDs are drawn from a {@link SplittableRandom} per thread, seeded from a
+ * {@link SecureRandom} so that IDs cannot be guessed from one another, and
+ * are claimed with an atomic insert, so two handlers never hand out the same
+ * ID.
+ *
+ * The sessions are also counted, so that admission can limit how many are
+ * open at once. A session is counted from the moment its slot is reserved
+ * until it is closed.
+ */
+public class SessionRegistry {
+
+    public static final int MIN_ID = 100000; // Session IDs have six digits
+    public static final int MAX_ID = 1000000;
+    public static final int TOKEN_BYTES = 16; // Resume tokens carry 128 random bits
+
+    private static final SessionRegistry SHARED = new SessionRegistry();
+    private static final SecureRandom SEEDS = new SecureRandom();
+
+    private final ConcurrentHashMap<Integer, SessionState> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final ThreadLocal<SplittableRandom> random = ThreadLocal.withInitial(() -> new SplittableRandom(SEEDS.nextLong()));
+
+    /**
+     * Get the registry shared by every connection of the server
+     *
+     * @return SessionRegistry shared registry
+     */
+    public static SessionRegistry shared() {
+        return SHARED;
+    }
+
+    /**
+     * Opens a session under a new ID. IDs of uploads waiting to be resumed
+     * are not handed out again, so their client can still claim them.
+     *
+     * @param client The address of the client.
+     * @return The new session.
+     */
+    public SessionState open(String client) {
+        return open(client, 0);
+    }
+
+    /**
+     * Opens a session under a new ID, unless the registry already holds as
+     * many sessions as the limit allows. The slot is reserved before the
+     * session is created, so concurrent SETUPs never exceed the limit.
+     *
+     * @param client The address of the client.
+     * @param limit  The largest number of open sessions, or zero for no limit.
+     * @return The new session, or null if the limit is reached.
+     */
+    public SessionState open(String client, int limit) {
+        while (true) {
+            int open = count.get();
+            if (limit > 0 && open >= limit) {
+                return null;
+            }
+            if (count.compareAndSet(open, open + 1)) {
+                break;
+            }
+        }
+
+        SplittableRandom ids = random.get();
+        while (true) {
+            int id = ids.nextInt(MIN_ID, MAX_ID);
+            if (UploadRegistry.shared().contains(id)) {
+                continue;
+            }
+
+            SessionState session = new SessionState(id, client, newToken(), false);
+            if (sessions.putIfAbsent(id, session) == null) {
+                return session;
+            }
+        }
+    }
+
+    /**
+     * Opens a session under an ID the registry handed out before, as when a
+     * client resumes an interrupted upload. The client proves the ID is its
+     * own with the resume token it was given, so an ID that is merely
+     * guessed is refused. An ID still held by an open session is refused as
+     * well, and that session left alone: the handler of the lost connection
+     * may not have noticed the loss yet, and the client tries again once it
+     * has closed the session.
+     *
+     * @param id          The session ID.
+     * @param client      The address of the client.
+     * @param resumeToken The resume token the client presented, or null.
+     * @return The session, or null if the client may not claim the ID.
+     */
+    public SessionState claim(int id, String client, String resumeToken) {
+        if (!UploadRegistry.shared().isSuspended(id, resumeToken)) {
+            return null;
+        }
+
+        SessionState session = new SessionState(id, client, resumeToken, true);
+        if (sessions.putIfAbsent(id, session) != null) {
+            return null;
+        }
+        count.incrementAndGet();
+        return session;
+    }
+
+    /**
+     * Draws a resume token from the {@link SecureRandom}, which cannot be
+     * guessed the way a six digit session ID can.
+     *
+     * @return The token, as hex digits.
+     */
+    private static String newToken() {
+        byte[] token = new byte[TOKEN_BYTES];
+        SEEDS.nextBytes(token);
+        return HexFormat.of().formatHex(token);
+    }
+
+    /**
+     * Closes a session, freeing its ID, and records its lifetime for Java
+     * Flight Recorder.
+     *
+     * @param session The session.
+     */
+    public void close(SessionState session) {
+        session.setState(RTSPSates.TEARDOWN);
+        if (sessions.remove(session.getId(), session)) {
+            count.decrementAndGet();
+        }
+        session.commitEvent();
+    }
+
+    /**
+     * Get the number of open sessions
+     *
+     * @return int open sessions
+     */
+    public int size() {
+        return count.get();
+    }
+}
@@ -0,0 +1,139 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The SessionState class is the server-wide view of one RTSP session, kept
+ * in the {@link SessionRegistry}. The connection handler serving the session
+ * is its only writer, and every field is either final or volatile.
+ *
+ * A session begins its {@link SessionEvent} when it is set up and commits it
+ * once, when the registry closes it.
+ */
+public class SessionState {
+
+    private final int id;
+    private final String client;
+    private final String resumeToken;
+    private volatile RTSPSates state = RTSPSates.READY;
+    private volatile String resource;
+    private volatile boolean interleaved;
+    private final SessionEvent event = new SessionEvent();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Constructs a new SessionState for a session that was just set up.
+     *
+     * @param id          The session ID.
+     * @param client      The address of the client.
+     * @param resumeToken The secret the client presents to resume an upload of the session.
+     * @param resumed     Whether the session took over its ID to resume an upload.
+     */
+    SessionState(int id, String client, String resumeToken, boolean resumed) {
+        this.id = id;
+        this.client = client;
+        this.resumeToken = resumeToken;
+        event.resumed = resumed;
+        event.begin();
+    }
+
+    /**
+     * Get the session ID
+     *
+     * @return int session ID
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get the client address
+     *
+     * @return String address of the client
+     */
+    public String getClient() {
+        return client;
+    }
+
+    /**
+     * Get the resume token
+     *
+     * @return String secret the client presents to resume an upload of the session
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * Get the state of the session
+     *
+     * @return RTSPSates current state
+     */
+    public RTSPSates getState() {
+        return state;
+    }
+
+    /**
+     * Moves the session to a new state.
+     *
+     * @param next The new state.
+     */
+    public void setState(RTSPSates next) {
+        state = next;
+    }
+
+    /**
+     * Get the resource being played or recorded
+     *
+     * @return String resource name, or null before PLAY or RECORD
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    /**
+     * Sets the resource being played or recorded.
+     *
+     * @param resource The resource name.
+     */
+    public void setResource(String resource) {
+        this.resource = resource;
+    }
+
+    /**
+     * Get whether the media is interleaved
+     *
+     * @return boolean true if the media is carried on the control connection
+     */
+    public boolean isInterleaved() {
+        return interleaved;
+    }
+
+    /**
+     * Sets whether the media is carried on the control connection.
+     *
+     * @param interleaved true for interleaved media.
+     */
+    public void setInterleaved(boolean interleaved) {
+        this.interleaved = interleaved;
+    }
+
+    /**
+     * Ends the session's lifetime event, only the first time the session is
+     * closed.
+     */
+    void commitEvent() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.session = id;
+            event.client = client;
+            event.resource = resource;
+            event.interleaved = interleaved;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The TrafficMeter class measures the aggregate outbound bitrate of all
+ * playback sessions. Senders add the bytes they write, and a daemon thread
+ * turns the count into a bitrate once per sampling interval, so recording is
+ * a single uncontended add on the hot path.
+ */
+public class TrafficMeter {
+
+    private static final long SAMPLE_MILLIS = 500;
+    private static final TrafficMeter SHARED = new TrafficMeter();
+
+    private final LongAdder bytes = new LongAdder();
+    private volatile long bitrate = 0;
+    private Thread sampler;
+
+    /**
+     * Get the meter shared by every session of the server
+     *
+     * @return TrafficMeter shared meter
+     */
+    public static TrafficMeter shared() {
+        SHARED.start();
+        return SHARED;
+    }
+
+    /**
+     * Records bytes written to a client.
+     *
+     * @param count The number of bytes written.
+     */
+    public void record(long count) {
+        bytes.add(count);
+    }
+
+    /**
+     * Get the outbound bitrate over the last sampling interval
+     *
+     * @return long bits per second
+     */
+    public long getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Starts the sampling thread unless it is already running.
+     */
+    private synchronized void start() {
+        if (sampler != null) {
+            return;
+        }
+
+        sampler = new Thread(() -> {
+            long last = System.nanoTime();
+            while (true) {
+                try {
+                    Thread.sleep(SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                long now = System.nanoTime();
+                bitrate = bytes.sumThenReset() * 8 * 1_000_000_000L / Math.max(1, now - last);
+                last = now;
+            }
+        }, "traffic-meter");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+}
@@ -0,0 +1,223 @@
+package server;
+
+import merrimackutil.net.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Transcoder class replaces WAV files of the library with their
+ * {@link LosslessCodec} compression. A file is compressed next to itself
+ * under a hidden name, decoded again and compared with the original, and
+ * only then moved over the original, so a crash or a bug leaves the WAV
+ * file as it was. Listeners already playing the file keep reading the
+ * original through their open handle.
+ *
+ * New recordings are compressed one at a time on a background thread once
+ * the server enables it. Existing libraries are compressed by the batch job
+ * in {@link #main(String[])}, which works on several files in parallel.
+ */
+public class Transcoder {
+
+    private static final Transcoder SHARED = new Transcoder();
+    private static final int VERIFY_BYTES = LosslessCodec.BLOCK_FRAMES * 4 * 16; // 16 stereo blocks
+
+    private ExecutorService executor;
+    private Catalog catalog;
+    private Log logger;
+
+    /**
+     * Gets the transcoder of the server.
+     *
+     * @return Transcoder shared instance
+     */
+    public static Transcoder shared() {
+        return SHARED;
+    }
+
+    /**
+     * Starts compressing new recordings in the background.
+     *
+     * @param catalog The library the compressed files are ingested into again.
+     * @param logger  The logger used to record compressions.
+     */
+    public synchronized void start(Catalog catalog, Log logger) {
+        if (executor != null) {
+            return;
+        }
+
+        this.catalog = catalog;
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "transcoder");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY); // Playback comes first
+            return thread;
+        });
+    }
+
+    /**
+     * Checks whether new recordings are compressed
+     *
+     * @return true once {@link #start(Catalog, Log)} was called
+     */
+    public synchronized boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * Queues a file to be compressed in the background, then runs a task
+     * whether or not the file could be compressed.
+     *
+     * @param file The WAV file.
+     * @param then The task to run afterwards, or null.
+     */
+    public synchronized void compressLater(File file, Runnable then) {
+        if (executor == null) {
+            if (then != null) {
+                then.run();
+            }
+            return;
+        }
+
+        executor.execute(() -> {
+            try {
+                long before = file.length();
+                if (transcode(file)) {
+                    catalog.ingest(file);
+                    logger.log("INFO: Compressed " + file.getPath() + " from " + before + " to " + file.length()
+                            + " bytes.");
+                }
+            } catch (IOException e) {
+                logger.log("ERROR: Unable to compress " + file.getPath() + ": " + e.getMessage());
+            } finally {
+                if (then != null) {
+                    then.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Compresses a WAV file in place once the compression decodes to the
+     * same samples.
+     *
+     * @param file The WAV file.
+     * @return false if the file is not audio the codec compresses, or does not get smaller.
+     * @throws IOException if a file cannot be read or written, or the compression does not decode to the original.
+     */
+    public static boolean transcode(File file) throws IOException {
+        File temp = new File(file.getParentFile(), "." + file.getName() + ".slac");
+        try {
+            if (!LosslessCodec.compress(file, temp) || temp.length() >= file.length()) {
+                return false;
+            }
+            verify(file, temp);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Decodes a compressed file and compares its samples with the WAV file
+     * it was compressed from.
+     *
+     * @throws IOException if the samples differ.
+     */
+    private static void verify(File wav, File compressed) throws IOException {
+        WavFormat format = WavFormat.read(wav);
+        WavFormat decoded = WavFormat.read(compressed);
+        if (decoded == null || !decoded.isLossless() || decoded.getDataLength() != format.getDataLength()
+                - format.getDataLength() % format.getFrameSize()) {
+            throw new IOException("compressed length does not match");
+        }
+
+        ByteBuffer expected = ByteBuffer.allocate(VERIFY_BYTES);
+        ByteBuffer actual = ByteBuffer.allocate(VERIFY_BYTES);
+        try (PcmReader original = PcmReader.open(wav, format);
+             PcmReader copy = PcmReader.open(compressed, decoded)) {
+            for (long position = 0; position < decoded.getDataLength(); position += expected.limit()) {
+                int length = (int) Math.min(VERIFY_BYTES, decoded.getDataLength() - position);
+                fill(original, expected.clear().limit(length), position);
+                fill(copy, actual.clear().limit(length), position);
+                if (!expected.flip().equals(actual.flip())) {
+                    throw new IOException("compressed samples differ near byte " + position);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads samples at a position until the buffer is full.
+     */
+    private static void fill(PcmReader reader, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (reader.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("samples end early");
+            }
+        }
+    }
+
+    /**
+     * Compresses every WAV file of a library in parallel. The server picks
+     * the compressed files up at its next catalog scan.
+     *
+     * @param args The database directory, and optionally the number of threads.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: ");
+            System.out.println("  transcoder <db_dir> [threads]");
+            System.exit(1);
+        }
+
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Log log = new Log(new File(args[0], ".transcoder.log").getPath(), "Transcoder");
+        List<File> media = new Catalog(args[0], log).listMedia();
+
+        AtomicInteger compressed = new AtomicInteger();
+        AtomicLong before = new AtomicLong();
+        AtomicLong after = new AtomicLong();
+        long start = System.nanoTime();
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> media.parallelStream().forEach(file -> {
+                long length = file.length();
+                try {
+                    if (transcode(file)) {
+                        compressed.incrementAndGet();
+                        before.addAndGet(length);
+                        after.addAndGet(file.length());
+                        System.out.printf("%-48s %6.1f%%%n", file.getPath(), 100.0 * file.length() / length);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Unable to compress " + file.getPath() + ": " + e.getMessage());
+                }
+            })).get();
+        } catch (ExecutionException e) {
+            System.out.println("Transcoding failed: " + e.getCause().getMessage());
+            System.exit(1);
+        } finally {
+            pool.shutdown();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Compressed %d of %d files on %d threads in %.1f s: %d MB to %d MB (%.1f%%), %.1f MB/s%n",
+                compressed.get(), media.size(), threads, seconds, before.get() >> 20, after.get() >> 20,
+                before.get() == 0 ? 100.0 : 100.0 * after.get() / before.get(), before.get() / seconds / (1 << 20));
+    }
+}
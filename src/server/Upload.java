@@ -0,0 +1,233 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.BitSet;
+
+/**
+ * The Upload class keeps the progress of one RECORD upload across the media
+ * connections that carry it. Chunks are placed in a spool file by their
+ * sequence number, so they may arrive in any order and more than once, and
+ * the upload remembers which chunks it holds. The number of chunks received
+ * without a gap is what the server acknowledges, and where a client that
+ * reconnects after losing its connection resumes.
+ *
+ * Every new chunk is also appended to the {@link RecordJournal}, so the
+ * upload can be recovered if the server crashes.
+ */
+public class Upload {
+
+    public static final int CHUNK_BYTES = 1764; // The chunk size SendSong numbers its chunks by
+
+    private final int sessionId;
+    private final File file;
+    private final File spool;
+    private final String resumeToken;
+    private final BitSet received = new BitSet();
+    private int acknowledged = 0;
+    private FileChannel channel;
+    private boolean attached = true;
+    private long suspendedAt;
+
+    /**
+     * Constructs a new Upload that no client can resume, as when it is
+     * recovered from the journal.
+     *
+     * @param sessionId The session the upload belongs to.
+     * @param file      The file the recording is written to.
+     */
+    public Upload(int sessionId, File file) {
+        this(sessionId, file, null);
+    }
+
+    /**
+     * Constructs a new Upload attached to its first media connection.
+     *
+     * @param sessionId   The session the upload belongs to.
+     * @param file        The file the recording is written to.
+     * @param resumeToken The secret the client was given to resume the upload, or null if it cannot be resumed.
+     */
+    public Upload(int sessionId, File file, String resumeToken) {
+        this.sessionId = sessionId;
+        this.file = file;
+        this.spool = new File(file.getParentFile(), "." + file.getName() + ".part");
+        this.resumeToken = resumeToken;
+    }
+
+    /**
+     * Get the session ID
+     *
+     * @return int session the upload belongs to
+     */
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Get the recorded file
+     *
+     * @return File the recording is written to
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Get the spool file
+     *
+     * @return File holding the received chunks
+     */
+    public File getSpool() {
+        return spool;
+    }
+
+    /**
+     * Get the number of chunks received without a gap
+     *
+     * @return int sequence number of the first missing chunk
+     */
+    public synchronized int getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * Opens the spool for writing. A new upload starts from an empty spool
+     * and is recorded in the journal, a resumed one keeps the chunks it holds.
+     *
+     * @throws IOException if the spool cannot be opened.
+     */
+    public synchronized void open() throws IOException {
+        if (received.isEmpty()) {
+            channel = FileChannel.open(spool.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            RecordJournal.shared().begin(sessionId, file);
+        } else {
+            channel = FileChannel.open(spool.toPath(), StandardOpenOption.WRITE);
+        }
+    }
+
+    /**
+     * Places a chunk in the spool and the journal unless it is already there.
+     *
+     * @param sequence The sequence number of the chunk.
+     * @param payload  The chunk bytes.
+     * @return true if the chunk was new, false for a duplicate.
+     * @throws IOException if the chunk cannot be written.
+     */
+    public synchronized boolean write(int sequence, ByteBuffer payload) throws IOException {
+        if (received.get(sequence)) {
+            return false;
+        }
+
+        RecordJournal.shared().append(sessionId, sequence, payload);
+
+        long position = (long) sequence * CHUNK_BYTES;
+        while (payload.hasRemaining()) {
+            position += channel.write(payload, position);
+        }
+
+        received.set(sequence);
+        while (received.get(acknowledged)) {
+            acknowledged++;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a chunk is already in the spool.
+     *
+     * @param sequence The sequence number of the chunk.
+     * @return true if the chunk was written.
+     */
+    public synchronized boolean has(int sequence) {
+        return received.get(sequence);
+    }
+
+    /**
+     * Checks whether every chunk of the upload has arrived.
+     *
+     * @param total The number of chunks the client sent, or zero if it did not say.
+     * @return true if no chunk is missing.
+     */
+    public synchronized boolean isComplete(int total) {
+        return total == 0 || acknowledged >= total;
+    }
+
+    /**
+     * Closes the spool.
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing was left unwritten
+        }
+        channel = null;
+    }
+
+    /**
+     * Attaches the upload to a new media connection, unless one is still
+     * attached.
+     *
+     * @return true if the upload was suspended and is now attached.
+     */
+    synchronized boolean attach() {
+        if (attached) {
+            return false;
+        }
+        attached = true;
+        return true;
+    }
+
+    /**
+     * Detaches the upload from its lost media connection.
+     */
+    synchronized void suspend() {
+        close();
+        attached = false;
+        suspendedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Checks whether the upload has waited too long for its client.
+     *
+     * @param now     The current time in milliseconds.
+     * @param timeout How long a suspended upload is kept.
+     * @return true if the upload is suspended and has expired.
+     */
+    synchronized boolean isExpired(long now, long timeout) {
+        return !attached && now - suspendedAt > timeout;
+    }
+
+    /**
+     * Checks whether the upload is waiting for its client to resume it.
+     *
+     * @return true if no media connection is attached.
+     */
+    synchronized boolean isSuspended() {
+        return !attached;
+    }
+
+    /**
+     * Checks whether a client holds the secret of the upload. The tokens are
+     * compared in constant time, so the comparison does not reveal how much
+     * of a guess was right.
+     *
+     * @param token The token the client presented, or null.
+     * @return true if the token is the one the upload was started with.
+     */
+    boolean isResumableBy(String token) {
+        return resumeToken != null && token != null
+                && MessageDigest.isEqual(resumeToken.getBytes(StandardCharsets.US_ASCII),
+                token.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,131 @@
+package server;
+
+import merrimackutil.net.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The UploadRegistry class keeps the RECORD uploads of the server by session,
+ * so that an upload whose connection is lost can be resumed by its client
+ * with a SETUP naming the same session. Session IDs are short enough to be
+ * guessed, so the SETUP must also present the resume token the client was
+ * given when it first set the session up. Uploads that are not resumed within
+ * a while are dropped together with their spool.
+ */
+public class UploadRegistry {
+
+    public static final long RESUME_MILLIS = 10 * 60 * 1000; // How long an interrupted upload waits for its client
+
+    private static final UploadRegistry SHARED = new UploadRegistry();
+
+    private final ConcurrentHashMap<Integer, Upload> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * Get the registry shared by every session of the server
+     *
+     * @return UploadRegistry shared registry
+     */
+    public static UploadRegistry shared() {
+        return SHARED;
+    }
+
+    /**
+     * Starts a new upload for a session.
+     *
+     * @param sessionId   The session recording the file.
+     * @param file        The file the recording is written to.
+     * @param resumeToken The secret the client of the session was given.
+     * @return The new upload, attached to the session's media connection.
+     */
+    public Upload begin(int sessionId, File file, String resumeToken) {
+        expire();
+        Upload upload = new Upload(sessionId, file, resumeToken);
+        uploads.put(sessionId, upload);
+        return upload;
+    }
+
+    /**
+     * Resumes the interrupted upload of a session.
+     *
+     * @param sessionId The session recording the file.
+     * @param file      The file the recording is written to.
+     * @return The upload, attached again, or null if the session has no
+     *         interrupted upload of this file.
+     */
+    public Upload resume(int sessionId, File file) {
+        expire();
+        Upload upload = uploads.get(sessionId);
+        if (upload == null || !upload.getFile().equals(file) || !upload.attach()) {
+            return null;
+        }
+        return upload;
+    }
+
+    /**
+     * Checks whether a session has an interrupted upload waiting for the
+     * client holding its resume token.
+     *
+     * @param sessionId   The session ID.
+     * @param resumeToken The token the client presented, or null.
+     * @return true if the client can resume the session.
+     */
+    public boolean isSuspended(int sessionId, String resumeToken) {
+        Upload upload = uploads.get(sessionId);
+        return upload != null && upload.isSuspended() && upload.isResumableBy(resumeToken);
+    }
+
+    /**
+     * Checks whether a session ID belongs to an upload the registry holds,
+     * running or interrupted.
+     *
+     * @param sessionId The session ID.
+     * @return true if an upload uses the ID.
+     */
+    public boolean contains(int sessionId) {
+        return uploads.containsKey(sessionId);
+    }
+
+    /**
+     * Keeps an upload whose connection was lost until its client resumes it.
+     *
+     * @param upload The interrupted upload.
+     * @param logger The logger used to record the interruption.
+     */
+    public void suspend(Upload upload, Log logger) {
+        upload.suspend();
+        logger.log("INFO: Upload of " + upload.getFile().getName() + " for session " + upload.getSessionId()
+                + " interrupted after " + upload.getAcknowledged() + " chunks, waiting for resume.");
+    }
+
+    /**
+     * Forgets a finished upload.
+     *
+     * @param upload The finished upload.
+     */
+    public void finish(Upload upload) {
+        upload.close();
+        uploads.remove(upload.getSessionId(), upload);
+    }
+
+    /**
+     * Drops the uploads that have waited too long for their client.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        uploads.values().removeIf(upload -> {
+            if (!upload.isExpired(now, RESUME_MILLIS)) {
+                return false;
+            }
+            LiveRelay.shared().end(upload.getFile());
+            upload.getSpool().delete();
+            try {
+                RecordJournal.shared().finish(upload.getSessionId()); // Given up, nothing to recover
+            } catch (IOException ignored) {
+                // Recovered on the next start instead
+            }
+            return true;
+        });
+    }
+}
@@ -0,0 +1,39 @@
+package server;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The VectorMixKernel class mixes tracks with the incubating Vector API, so
+ * that each step sums as many samples as the CPU's preferred vector width
+ * holds. The server must be started with
+ * {@code --add-modules jdk.incubator.vector} for this kernel to load.
+ */
+public class VectorMixKernel implements MixKernel {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public void mix(float[][] tracks, float[] gains, int trackCount, float[] out, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector sum = FloatVector.zero(SPECIES);
+            for (int t = 0; t < trackCount; t++) {
+                FloatVector gain = FloatVector.broadcast(SPECIES, gains[t]);
+                sum = FloatVector.fromArray(SPECIES, tracks[t], i).fma(gain, sum);
+            }
+            sum.max(MIN_SAMPLE).min(MAX_SAMPLE).intoArray(out, i);
+        }
+
+        // Scalar tail for the samples that do not fill a whole vector
+        for (; i < length; i++) {
+            float sum = 0f;
+            for (int t = 0; t < trackCount; t++) {
+                sum += tracks[t][i] * gains[t];
+            }
+            out[i] = Math.max(MIN_SAMPLE, Math.min(MAX_SAMPLE, sum));
+        }
+    }
+}
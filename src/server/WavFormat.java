@@ -0,0 +1,192 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The WavFormat class describes the PCM audio of a WAV file: its sample
+ * rate, channels and sample size, and where the samples lie in the file.
+ * Only the RIFF chunk headers are read, so describing a file is cheap enough
+ * to do every time it is played.
+ *
+ * A file compressed by {@link LosslessCodec} is described by its header as
+ * well. Its samples are not stored as they are played, so they are read
+ * through a {@link PcmReader} rather than from the data offset.
+ */
+public class WavFormat {
+
+    private static final int PCM = 1;
+    private static final int EXTENSIBLE = 0xFFFE;
+
+    private final int sampleRate;
+    private final int channels;
+    private final int bitsPerSample;
+    private final long dataOffset;
+    private final long dataLength;
+    private final boolean lossless;
+
+    private WavFormat(int sampleRate, int channels, int bitsPerSample, long dataOffset, long dataLength,
+                      boolean lossless) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bitsPerSample = bitsPerSample;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+        this.lossless = lossless;
+    }
+
+    /**
+     * Reads the format of a WAV file or a compressed file.
+     *
+     * @param file The audio file.
+     * @return The format, or null if the file is neither a PCM WAV file nor a compressed file.
+     * @throws IOException if the file cannot be read.
+     */
+    public static WavFormat read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(LosslessCodec.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (readFully(channel, header.limit(LosslessCodec.HEADER_BYTES), 0) && header.getInt(0) == LosslessCodec.MAGIC) {
+                int channels = header.get(5);
+                int bits = header.get(6);
+                long frames = header.getLong(12);
+                long blocks = header.getInt(24);
+                return new WavFormat(header.getInt(8), channels, bits, LosslessCodec.HEADER_BYTES + 8 * (blocks + 1),
+                        frames * channels * ((bits + 7) / 8), true);
+            }
+
+            if (!readFully(channel, header.clear().limit(12), 0) || header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) {
+                return null; // Not "RIFF" ... "WAVE"
+            }
+
+            int sampleRate = 0;
+            int channels = 0;
+            int bits = 0;
+            boolean pcm = false;
+            long position = 12;
+
+            while (readFully(channel, header.clear().limit(8), position)) {
+                int id = header.getInt(0);
+                long size = header.getInt(4) & 0xFFFFFFFFL;
+                long body = position + 8;
+
+                if (id == 0x20746D66) { // "fmt "
+                    if (size < 16 || !readFully(channel, header.clear().limit(16), body)) {
+                        return null;
+                    }
+                    int tag = header.getShort(0) & 0xFFFF;
+                    pcm = tag == PCM || tag == EXTENSIBLE;
+                    channels = header.getShort(2) & 0xFFFF;
+                    sampleRate = header.getInt(4);
+                    bits = header.getShort(14) & 0xFFFF;
+                } else if (id == 0x61746164) { // "data"
+                    if (!pcm || channels == 0) {
+                        return null;
+                    }
+                    long length = Math.min(size, channel.size() - body); // Files still being written claim too much
+                    return new WavFormat(sampleRate, channels, bits, body, length, false);
+                }
+
+                position = body + size + (size & 1); // Chunks are padded to an even length
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Get the sample rate
+     *
+     * @return int frames per second
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Get the number of channels
+     *
+     * @return int channels
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Get the sample size
+     *
+     * @return int bits per sample
+     */
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    /**
+     * Get the size of one frame
+     *
+     * @return int bytes per frame
+     */
+    public int getFrameSize() {
+        return channels * ((bitsPerSample + 7) / 8);
+    }
+
+    /**
+     * Get the position of the samples
+     *
+     * @return long offset of the first sample in the file
+     */
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * Get the length of the samples
+     *
+     * @return long number of sample bytes
+     */
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Checks whether the file is compressed
+     *
+     * @return true if the samples are coded by {@link LosslessCodec}
+     */
+    public boolean isLossless() {
+        return lossless;
+    }
+
+    /**
+     * Builds the canonical 44 byte header of a WAV file holding the samples.
+     *
+     * @return byte[] RIFF, fmt and data chunk headers
+     */
+    public byte[] toWavHeader() {
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952).putInt((int) (36 + dataLength)).putInt(0x45564157) // "RIFF" ... "WAVE"
+                .putInt(0x20746D66).putInt(16).putShort((short) PCM).putShort((short) channels) // "fmt "
+                .putInt(sampleRate).putInt(sampleRate * getFrameSize()).putShort((short) getFrameSize())
+                .putShort((short) bitsPerSample)
+                .putInt(0x61746164).putInt((int) dataLength); // "data"
+        return header.array();
+    }
+
+    /**
+     * Reads bytes at a position until the buffer is full.
+     *
+     * @return false if the file ended first.
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+}